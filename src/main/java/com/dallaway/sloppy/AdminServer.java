@@ -0,0 +1,968 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URLDecoder;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * A small HTTP server, on a port of its own, for watching and controlling
+ * Sloppy while it runs: a test harness can step the bandwidth up and down
+ * during a run, and see what each connection and client is getting, without
+ * scraping the log.
+ * <p>
+ *
+ * The server runs on one thread, selecting over its connections, and
+ * answers each request in JSON then closes the connection.  Parameters go 
+ * in the query string, and requests that change anything must be POSTs:
+ * <ul>
+ * <li> <code>GET /config</code> shows the settings of the server and its listeners. </li>
+ * <li> <code>GET /connections</code> shows the connections in progress, with their throughput. </li>
+ * <li> <code>GET /clients</code> shows each client's usage, and the throughput of its connections. </li>
+ * <li> <code>GET /limiters</code> shows the rate and backlog of every limit. </li>
+ * <li> <code>GET /metrics</code> shows what each listener, and each of its clients, has
+ *      actually been given: the bytes each way, and percentiles of the {@link Metrics} times. </li>
+ * <li> <code>GET /rate</code> shows the settings of the main listener. </li>
+ * <li> <code>POST /rate?bytesPerSecond=<i>n</i></code> changes the download rate,
+ *      and so on for <code>uploadBytesPerSecond</code>, <code>connectionBytesPerSecond</code>
+ *      and <code>globalBytesPerSecond</code>.  A fixed rate stops any trace being followed.
+ *      Add <code>listener=<i>name</i></code> for one of the further listeners. </li>
+ * <li> <code>GET /listeners</code> shows the settings of the listeners. </li>
+ * <li> <code>POST /listeners?name=<i>name</i>&amp;port=<i>n</i></code> starts listening on 
+ *      another port, with any of the settings a listener can have in the configuration file. </li>
+ * <li> <code>POST /drain</code> stops accepting connections, and stops the server once 
+ *      the connections in progress have finished. </li>
+ * </ul>
+ * Errors are answered with an HTTP error status and <code>{"error":"<i>why</i>"}</code>.
+ * <p>
+ *
+ * A new rate applies to the connections in progress as well as new ones: each
+ * connection picks it up with its next chunk (see {@link TokenBucket#setBytesPerSecond(int)}).
+ * <p>
+ *
+ * Nothing checks who sends a command, so the server only listens on the
+ * loopback interface unless another address is set with 
+ * {@link Configuration#setAdminAddress(String)}.
+ */
+public class AdminServer implements Runnable
+{
+
+    /** The largest request head we accept. */
+    public static final int MAX_REQUEST_BYTES = 8 * 1024;
+
+    // Nanoseconds in a millisecond.
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    // Microseconds in a millisecond.
+    private static final long MICROS_PER_MILLI = 1000L;
+
+    // The settings to report on and change.
+    private final Configuration conf;
+
+    // The server to add listeners to and drain, or null if there isn't one.
+    private final SloppyServer server;
+
+    // The interface to log to.
+    private final UserInterface ui;
+
+    // Multiplexes the listening socket and the connections.
+    private Selector selector;
+
+    // Accepts the connections.
+    private ServerSocketChannel channel;
+
+    // Is the server running?
+    private volatile boolean running = false;
+
+    /**
+     * @param conf the main configuration, with its listeners.
+     * @param server the server to add listeners to and drain, or null if there isn't one.
+     */
+    public AdminServer(final Configuration conf, final SloppyServer server)
+    {
+        this.conf = conf;
+        this.server = server;
+        this.ui = conf.getUserInterface();
+    }
+
+    /**
+     * Start listening on the admin port, at the admin address.
+     * 
+     * @throws IOException if the address isn't known, or the port can't be listened on.
+     */
+    public void bind() throws IOException
+    {
+        InetSocketAddress address = new InetSocketAddress(conf.getAdminAddress(), conf.getAdminPort());
+        if (address.isUnresolved())
+        {
+            throw new UnknownHostException("Unknown admin address: " + conf.getAdminAddress()); //$NON-NLS-1$
+        }
+
+        selector = Selector.open();
+        channel = ServerSocketChannel.open();
+        channel.socket().setReuseAddress(true);
+        channel.socket().bind(address);
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+
+        if (!address.getAddress().isLoopbackAddress())
+        {
+            ui.notice("The admin server on " + address + " takes commands from anyone who can reach it"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+    }
+
+    /**
+     * @return the address the server is listening on, or null before {@link #bind()}.
+     */
+    public InetSocketAddress getLocalAddress()
+    {
+        return channel == null ? null : (InetSocketAddress) channel.socket().getLocalSocketAddress();
+    }
+
+    /**
+     * Answer requests until stopped.
+     */
+    public void run()
+    {
+        while (running)
+        {
+            try
+            {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext())
+                {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                    {
+                        continue;
+                    }
+                    try
+                    {
+                        if (key.isAcceptable())
+                        {
+                            accept();
+                        }
+                        else if (key.isReadable())
+                        {
+                            read(key);
+                        }
+                        else if (key.isWritable())
+                        {
+                            write(key);
+                        }
+                    }
+                    catch (RuntimeException rx)
+                    {
+                        // Drop just this connection, and carry on answering the others
+                        ui.error("Admin request failed", rx); //$NON-NLS-1$
+                        if (key.channel() != channel)
+                        {
+                            try
+                            {
+                                key.channel().close();
+                            }
+                            catch (IOException iox)
+                            {
+                                ui.debug("Error closing admin connection: " + iox); //$NON-NLS-1$
+                            }
+                        }
+                    }
+                }
+            }
+            catch (IOException iox)
+            {
+                ui.debug("Admin request failed: " + iox); //$NON-NLS-1$
+            }
+        }
+        close();
+    }
+
+    /**
+     * Stop answering requests.
+     */
+    public void stop()
+    {
+        running = false;
+        Selector current = selector;
+        if (current != null)
+        {
+            current.wakeup();
+        }
+    }
+
+    /**
+     * Close the listening socket and any connections.
+     */
+    public void close()
+    {
+        running = false;
+        try
+        {
+            if (selector != null)
+            {
+                for (SelectionKey key : selector.keys())
+                {
+                    key.channel().close();
+                }
+                selector.close();
+            }
+            if (channel != null)
+            {
+                channel.close();
+            }
+        }
+        catch (IOException iox)
+        {
+            ui.debug("Error closing admin server: " + iox); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * Take on a new connection.
+     * 
+     * @throws IOException if the connection can't be set up.
+     */
+    private void accept() throws IOException
+    {
+        SocketChannel client = channel.accept();
+        if (client != null)
+        {
+            client.configureBlocking(false);
+            client.register(selector, SelectionKey.OP_READ, new Exchange());
+        }
+    }
+
+    /**
+     * Read more of a request, and answer it once the head is in.
+     * 
+     * @param key the connection's key.
+     * @throws IOException if the connection fails.
+     */
+    private void read(final SelectionKey key) throws IOException
+    {
+        SocketChannel client = (SocketChannel) key.channel();
+        Exchange exchange = (Exchange) key.attachment();
+        int n;
+        try
+        {
+            n = client.read(exchange.request);
+        }
+        catch (IOException iox)
+        {
+            client.close();
+            return;
+        }
+        if (n < 0)
+        {
+            client.close();
+            return;
+        }
+
+        String response;
+        try
+        {
+            if (!exchange.parser.parse(exchange.request.array(), exchange.request.position()))
+            {
+                if (exchange.request.hasRemaining())
+                {
+                    return; // Wait for more
+                }
+                response = error(413, "Request Entity Too Large", "Request too large"); //$NON-NLS-1$ //$NON-NLS-2$
+            }
+            else
+            {
+                response = respond(exchange.parser.getMethod(), exchange.parser.getTarget());
+            }
+        }
+        catch (IOException iox)
+        {
+            response = error(400, "Bad Request", iox.getMessage()); //$NON-NLS-1$
+        }
+        catch (RuntimeException rx)
+        {
+            // A bug in answering one request must not stop us answering the rest
+            ui.error("Admin request failed", rx); //$NON-NLS-1$
+            response = error(500, "Internal Server Error", String.valueOf(rx)); //$NON-NLS-1$
+        }
+
+        exchange.response = ByteBuffer.wrap(response.getBytes("UTF-8")); //$NON-NLS-1$
+        key.interestOps(SelectionKey.OP_WRITE);
+        write(key);
+    }
+
+    /**
+     * Send more of the response, closing the connection once it has all gone.
+     * 
+     * @param key the connection's key.
+     * @throws IOException if the connection fails.
+     */
+    private void write(final SelectionKey key) throws IOException
+    {
+        SocketChannel client = (SocketChannel) key.channel();
+        Exchange exchange = (Exchange) key.attachment();
+        try
+        {
+            client.write(exchange.response);
+        }
+        catch (IOException iox)
+        {
+            client.close();
+            return;
+        }
+        if (!exchange.response.hasRemaining())
+        {
+            client.close();
+        }
+    }
+
+    /**
+     * Answer a request.
+     * 
+     * @param method the request method, such as GET.
+     * @param target the request target, such as <code>/rate?bytesPerSecond=1000</code>.
+     * @return the whole HTTP response.
+     */
+    String respond(final String method, final String target)
+    {
+        int query = target.indexOf('?');
+        String path = query < 0 ? target : target.substring(0, query);
+        Map<String, String> params = query < 0 ? new LinkedHashMap<String, String>() : parseQuery(target.substring(query + 1));
+        boolean post = "POST".equals(method); //$NON-NLS-1$
+
+        if ("/config".equals(path)) //$NON-NLS-1$
+        {
+            return post ? notAllowed("GET") : ok(config(new JsonWriter())); //$NON-NLS-1$
+        }
+        if ("/connections".equals(path)) //$NON-NLS-1$
+        {
+            return post ? notAllowed("GET") : ok(connections(new JsonWriter())); //$NON-NLS-1$
+        }
+        if ("/clients".equals(path)) //$NON-NLS-1$
+        {
+            return post ? notAllowed("GET") : ok(clients(new JsonWriter())); //$NON-NLS-1$
+        }
+        if ("/limiters".equals(path)) //$NON-NLS-1$
+        {
+            return post ? notAllowed("GET") : ok(limiters(new JsonWriter())); //$NON-NLS-1$
+        }
+        if ("/metrics".equals(path)) //$NON-NLS-1$
+        {
+            return post ? notAllowed("GET") : ok(metrics(new JsonWriter())); //$NON-NLS-1$
+        }
+        if ("/rate".equals(path)) //$NON-NLS-1$
+        {
+            return rate(post, params);
+        }
+        if ("/listeners".equals(path)) //$NON-NLS-1$
+        {
+            return post ? addListener(params) : ok(listeners(new JsonWriter()));
+        }
+        if ("/drain".equals(path)) //$NON-NLS-1$
+        {
+            return post ? drain() : notAllowed("POST"); //$NON-NLS-1$
+        }
+        return error(404, "Not Found", "No such command: " + path); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    /**
+     * Show or change a listener's rates.
+     * 
+     * @param post is the request a POST?
+     * @param params the listener, and any new rates.
+     * @return the whole HTTP response.
+     */
+    private String rate(final boolean post, final Map<String, String> params)
+    {
+        Configuration listener = conf.getListener(params.remove("listener")); //$NON-NLS-1$
+        if (listener == null)
+        {
+            return error(404, "Not Found", "No such listener"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+
+        if (!params.isEmpty())
+        {
+            if (!post)
+            {
+                return notAllowed("POST"); //$NON-NLS-1$
+            }
+            try
+            {
+                changeRates(listener, params);
+            }
+            catch (IllegalArgumentException iax)
+            {
+                return error(400, "Bad Request", iax.getMessage()); //$NON-NLS-1$
+            }
+            ui.notice("Rates changed: " + listener); //$NON-NLS-1$
+        }
+        return ok(listener(new JsonWriter(), listener));
+    }
+
+    /**
+     * Start listening on a further port.
+     * 
+     * @param params the listener's <code>name</code>, <code>port</code>, and any other
+     *        settings a listener may have in the configuration file.
+     * @return the whole HTTP response.
+     */
+    private String addListener(final Map<String, String> params)
+    {
+        String name = params.remove("name"); //$NON-NLS-1$
+        if (name == null || name.length() == 0)
+        {
+            return error(400, "Bad Request", "The listener needs a name"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        if (params.get("port") == null) //$NON-NLS-1$
+        {
+            return error(400, "Bad Request", "The listener needs a port"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        if (server == null || !server.isRunning())
+        {
+            return error(503, "Service Unavailable", "The server isn't running"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+
+        Properties props = new Properties();
+        for (Map.Entry<String, String> param : params.entrySet())
+        {
+            props.setProperty("sloppy.listener." + name + "." + param.getKey(), param.getValue()); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+
+        Configuration listener;
+        try
+        {
+            listener = conf.readListener(name, props);
+        }
+        catch (MalformedURLException mux)
+        {
+            return error(400, "Bad Request", mux.getMessage()); //$NON-NLS-1$
+        }
+        catch (IllegalArgumentException iax)
+        {
+            return error(400, "Bad Request", iax.getMessage()); //$NON-NLS-1$
+        }
+
+        try
+        {
+            server.addListener(listener);
+        }
+        catch (IOException iox)
+        {
+            return error(409, "Conflict", "Can't listen on port " + listener.getLocalPort() + ": " + iox.getMessage()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        }
+        catch (IllegalArgumentException iax)
+        {
+            return error(409, "Conflict", iax.getMessage()); //$NON-NLS-1$
+        }
+        catch (IllegalStateException isx)
+        {
+            return error(503, "Service Unavailable", isx.getMessage()); //$NON-NLS-1$
+        }
+        return ok(listener(new JsonWriter(), listener));
+    }
+
+    /**
+     * Stop accepting connections, and stop once those in progress are done.
+     * 
+     * @return the whole HTTP response.
+     */
+    private String drain()
+    {
+        if (server == null || !server.isRunning())
+        {
+            return error(503, "Service Unavailable", "The server isn't running"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        server.drain();
+        ui.notice("Draining"); //$NON-NLS-1$
+        JsonWriter json = new JsonWriter().beginObject();
+        json.name("draining").value(true); //$NON-NLS-1$
+        json.name("connections").value(conf.getConnections().size()); //$NON-NLS-1$
+        return ok(json.endObject());
+    }
+
+    /**
+     * @param json where to write the settings of the server and all its listeners.
+     * @return the writer.
+     */
+    private JsonWriter config(final JsonWriter json)
+    {
+        json.beginObject();
+        json.name("engine").value(lower(conf.getEngine())); //$NON-NLS-1$
+        json.name("adminPort").value(conf.getAdminPort()); //$NON-NLS-1$
+        json.name("adminAddress").value(conf.getAdminAddress()); //$NON-NLS-1$
+        json.name("running").value(server != null && server.isRunning()); //$NON-NLS-1$
+        json.name("draining").value(server != null && server.isDraining()); //$NON-NLS-1$
+        json.name("seed").value(conf.getSeed() == null ? null : conf.getSeed().toString()); //$NON-NLS-1$
+        json.name("listeners"); //$NON-NLS-1$
+        listeners(json);
+        return json.endObject();
+    }
+
+    /**
+     * @param json where to write the settings of the main listener and the further listeners.
+     * @return the writer.
+     */
+    private JsonWriter listeners(final JsonWriter json)
+    {
+        json.beginArray();
+        listener(json, conf);
+        for (Configuration listener : conf.getListeners())
+        {
+            listener(json, listener);
+        }
+        return json.endArray();
+    }
+
+    /**
+     * @param json where to write the listener's settings.
+     * @param listener the listener.
+     * @return the writer.
+     */
+    private static JsonWriter listener(final JsonWriter json, final Configuration listener)
+    {
+        json.beginObject();
+        json.name("name").value(listener.getListenerName()); //$NON-NLS-1$
+        json.name("port").value(listener.getLocalPort()); //$NON-NLS-1$
+        json.name("mode").value(lower(listener.getMode())); //$NON-NLS-1$
+        json.name("destination").value(listener.getDestination() == null ? null : listener.getDestination().toString()); //$NON-NLS-1$
+        json.name("bytesPerSecond").value(listener.getBytesPerSecond()); //$NON-NLS-1$
+        json.name("uploadBytesPerSecond").value(listener.getUploadBytesPerSecond()); //$NON-NLS-1$
+        json.name("connectionBytesPerSecond").value(listener.getConnectionBytesPerSecond()); //$NON-NLS-1$
+        json.name("globalBytesPerSecond").value(listener.getGlobalBytesPerSecond()); //$NON-NLS-1$
+        json.name("burstBytes").value(listener.getBurstBytes()); //$NON-NLS-1$
+
+        LatencyModel latency = listener.getLatency();
+        json.name("latency").beginObject(); //$NON-NLS-1$
+        json.name("roundTripMillis").value(latency.getRoundTripMillis()); //$NON-NLS-1$
+        json.name("jitterMillis").value(latency.getJitterMillis()); //$NON-NLS-1$
+        json.name("distribution").value(lower(latency.getDistribution())); //$NON-NLS-1$
+        json.endObject();
+
+        LossModel loss = listener.getLoss();
+        json.name("loss").beginObject(); //$NON-NLS-1$
+        json.name("percent").value(loss.getLossPercent()); //$NON-NLS-1$
+        json.name("pattern").value(lower(loss.getPattern())); //$NON-NLS-1$
+        json.name("burstPackets").value(loss.getBurstPackets()); //$NON-NLS-1$
+        json.endObject();
+
+        json.name("trace").value(path(listener.getTrace())); //$NON-NLS-1$
+        json.name("uploadTrace").value(path(listener.getUploadTrace())); //$NON-NLS-1$
+        return json.endObject();
+    }
+
+    /**
+     * @param json where to write the connections in progress.
+     * @return the writer.
+     */
+    private JsonWriter connections(final JsonWriter json)
+    {
+        long now = System.currentTimeMillis();
+        json.beginArray();
+        for (Bottleneck connection : conf.getConnections())
+        {
+            json.beginObject();
+            json.name("client").value(connection.getClientId()); //$NON-NLS-1$
+            json.name("listener").value(connection.getConfiguration().getListenerName()); //$NON-NLS-1$
+            json.name("ageMillis").value(now - connection.getStartMillis()); //$NON-NLS-1$
+            json.name("sentBytes").value(connection.getDownloadThroughput().getBytes()); //$NON-NLS-1$
+            json.name("sentBytesPerSecond").value(connection.getDownloadThroughput().getBytesPerSecond()); //$NON-NLS-1$
+            json.name("receivedBytes").value(connection.getUploadThroughput().getBytes()); //$NON-NLS-1$
+            json.name("receivedBytesPerSecond").value(connection.getUploadThroughput().getBytesPerSecond()); //$NON-NLS-1$
+            json.name("lostPackets").value(connection.getDownloadLoss().getLostCount() + connection.getUploadLoss().getLostCount()); //$NON-NLS-1$
+            json.name("stalledMillis").value((connection.getDownloadLoss().getStalledNanos() + connection.getUploadLoss().getStalledNanos()) / NANOS_PER_MILLI); //$NON-NLS-1$
+            json.endObject();
+        }
+        return json.endArray();
+    }
+
+    /**
+     * @param json where to write each client's usage, and the rate of its connections in progress.
+     * @return the writer.
+     */
+    private JsonWriter clients(final JsonWriter json)
+    {
+        long now = System.currentTimeMillis();
+        json.beginArray();
+        for (Configuration listener : allListeners())
+        {
+            for (Map.Entry<String, Usage> client : listener.getClientRegistry().snapshot().entrySet())
+            {
+                int connections = 0;
+                long sent = 0;
+                long received = 0;
+                for (Bottleneck connection : conf.getConnections())
+                {
+                    if (connection.getConfiguration() == listener && connection.getClientId().equals(client.getKey()))
+                    {
+                        connections++;
+                        sent += connection.getDownloadThroughput().getBytesPerSecond();
+                        received += connection.getUploadThroughput().getBytesPerSecond();
+                    }
+                }
+
+                Usage usage = client.getValue();
+                json.beginObject();
+                json.name("client").value(client.getKey()); //$NON-NLS-1$
+                json.name("listener").value(listener.getListenerName()); //$NON-NLS-1$
+                json.name("totalBytes").value(usage.getTotalBytes()); //$NON-NLS-1$
+                json.name("idleMillis").value(now - usage.getLastMark()); //$NON-NLS-1$
+                json.name("connections").value(connections); //$NON-NLS-1$
+                json.name("sentBytesPerSecond").value(sent); //$NON-NLS-1$
+                json.name("receivedBytesPerSecond").value(received); //$NON-NLS-1$
+                json.endObject();
+            }
+        }
+        return json.endArray();
+    }
+
+    /**
+     * @param json where to write the state of every rate limiter.
+     * @return the writer.
+     */
+    private JsonWriter limiters(final JsonWriter json)
+    {
+        json.beginObject();
+        json.name("global"); //$NON-NLS-1$
+        bucket(json, conf.getGlobalBucket());
+
+        json.name("groups").beginArray(); //$NON-NLS-1$
+        for (ClientGroup group : conf.getClientGroups())
+        {
+            json.beginObject();
+            json.name("name").value(group.getName()); //$NON-NLS-1$
+            json.name("limit"); //$NON-NLS-1$
+            bucket(json, group.getBucket());
+            json.endObject();
+        }
+        json.endArray();
+
+        json.name("listeners").beginArray(); //$NON-NLS-1$
+        for (Configuration listener : allListeners())
+        {
+            json.beginObject();
+            json.name("name").value(listener.getListenerName()); //$NON-NLS-1$
+            json.name("connectionBytesPerSecond").value(listener.getConnectionBytesPerSecond()); //$NON-NLS-1$
+            json.name("clients").beginArray(); //$NON-NLS-1$
+            for (Map.Entry<String, Usage> client : listener.getClientRegistry().snapshot().entrySet())
+            {
+                json.beginObject();
+                json.name("client").value(client.getKey()); //$NON-NLS-1$
+                json.name("download"); //$NON-NLS-1$
+                bucket(json, client.getValue().getBucket());
+                json.name("upload"); //$NON-NLS-1$
+                bucket(json, client.getValue().getUploadBucket());
+                json.endObject();
+            }
+            json.endArray();
+            json.endObject();
+        }
+        json.endArray();
+        return json.endObject();
+    }
+
+    /**
+     * @param json where to write the metrics of each listener, and of each of its clients.
+     * @return the writer.
+     */
+    private JsonWriter metrics(final JsonWriter json)
+    {
+        json.beginArray();
+        for (Configuration listener : allListeners())
+        {
+            json.beginObject();
+            json.name("name").value(listener.getListenerName()); //$NON-NLS-1$
+            json.name("metrics"); //$NON-NLS-1$
+            metrics(json, listener.getMetrics());
+            json.name("clients").beginArray(); //$NON-NLS-1$
+            for (Map.Entry<String, Usage> client : listener.getClientRegistry().snapshot().entrySet())
+            {
+                json.beginObject();
+                json.name("client").value(client.getKey()); //$NON-NLS-1$
+                json.name("metrics"); //$NON-NLS-1$
+                metrics(json, client.getValue().getMetrics());
+                json.endObject();
+            }
+            json.endArray();
+            json.endObject();
+        }
+        return json.endArray();
+    }
+
+    /**
+     * @param json where to write the metrics.
+     * @param metrics what a listener or client has been given.
+     */
+    private static void metrics(final JsonWriter json, final Metrics metrics)
+    {
+        json.beginObject();
+        json.name("connections").value(metrics.getConnections()); //$NON-NLS-1$
+        json.name("requests").value(metrics.getRequests()); //$NON-NLS-1$
+        json.name("sentBytes").value(metrics.getBytesOut()); //$NON-NLS-1$
+        json.name("receivedBytes").value(metrics.getBytesIn()); //$NON-NLS-1$
+        json.name("upstreamWaitMillis"); //$NON-NLS-1$
+        histogram(json, metrics.getUpstreamWait());
+        json.name("pacingDelayMillis"); //$NON-NLS-1$
+        histogram(json, metrics.getPacingDelay());
+        json.name("firstByteMillis"); //$NON-NLS-1$
+        histogram(json, metrics.getFirstByte());
+        json.name("durationMillis"); //$NON-NLS-1$
+        histogram(json, metrics.getDuration());
+        json.endObject();
+    }
+
+    /**
+     * @param json where to write the count, mean and percentiles of the times.
+     * @param micros times, in microseconds.
+     */
+    private static void histogram(final JsonWriter json, final Histogram micros)
+    {
+        Histogram.Snapshot times = micros.snapshot();
+        json.beginObject();
+        json.name("count").value(times.getCount()); //$NON-NLS-1$
+        json.name("mean").value(times.getMean() / MICROS_PER_MILLI); //$NON-NLS-1$
+        json.name("p50").value((double) times.getValueAtPercentile(50) / MICROS_PER_MILLI); //$NON-NLS-1$
+        json.name("p90").value((double) times.getValueAtPercentile(90) / MICROS_PER_MILLI); //$NON-NLS-1$
+        json.name("p99").value((double) times.getValueAtPercentile(99) / MICROS_PER_MILLI); //$NON-NLS-1$
+        json.name("p999").value((double) times.getValueAtPercentile(99.9) / MICROS_PER_MILLI); //$NON-NLS-1$
+        json.name("max").value((double) times.getMax() / MICROS_PER_MILLI); //$NON-NLS-1$
+        json.endObject();
+    }
+
+    /**
+     * @param json where to write the state of the limiter.
+     * @param bucket the limiter.
+     */
+    private static void bucket(final JsonWriter json, final TokenBucket bucket)
+    {
+        json.beginObject();
+        json.name("bytesPerSecond").value(bucket.getBytesPerSecond()); //$NON-NLS-1$
+        json.name("burstBytes").value(bucket.getBurstBytes()); //$NON-NLS-1$
+        json.name("backlogMillis").value((double) bucket.getBacklogNanos() / NANOS_PER_MILLI); //$NON-NLS-1$
+        json.endObject();
+    }
+
+    /**
+     * Change a listener's rates.  All the values are checked before any is changed.
+     * 
+     * @param listener the listener to change.
+     * @param params the new rates, by name.
+     * @throws IllegalArgumentException if a rate is unknown or not a number.
+     */
+    private static void changeRates(final Configuration listener, final Map<String, String> params)
+    {
+        Map<String, Integer> rates = new LinkedHashMap<String, Integer>();
+        for (Map.Entry<String, String> param : params.entrySet())
+        {
+            String name = param.getKey();
+            if (!"bytesPerSecond".equals(name) && !"uploadBytesPerSecond".equals(name) //$NON-NLS-1$ //$NON-NLS-2$
+                && !"connectionBytesPerSecond".equals(name) && !"globalBytesPerSecond".equals(name)) //$NON-NLS-1$ //$NON-NLS-2$
+            {
+                throw new IllegalArgumentException("Unknown rate: " + name); //$NON-NLS-1$
+            }
+            try
+            {
+                rates.put(name, Integer.valueOf(param.getValue().trim()));
+            }
+            catch (NumberFormatException nfx)
+            {
+                throw new IllegalArgumentException("Not a rate: " + name + "=" + param.getValue()); //$NON-NLS-1$ //$NON-NLS-2$
+            }
+        }
+
+        for (Map.Entry<String, Integer> rate : rates.entrySet())
+        {
+            String name = rate.getKey();
+            int value = rate.getValue().intValue();
+            if ("bytesPerSecond".equals(name)) //$NON-NLS-1$
+            {
+                listener.setTrace(null);
+                listener.setBytesPerSecond(value);
+            }
+            else if ("uploadBytesPerSecond".equals(name)) //$NON-NLS-1$
+            {
+                listener.setUploadTrace(null);
+                listener.setUploadBytesPerSecond(value);
+            }
+            else if ("connectionBytesPerSecond".equals(name)) //$NON-NLS-1$
+            {
+                listener.setConnectionBytesPerSecond(value);
+            }
+            else
+            {
+                listener.setGlobalBytesPerSecond(value);
+            }
+        }
+    }
+
+    /**
+     * @return the main configuration, followed by the further listeners.
+     */
+    private List<Configuration> allListeners()
+    {
+        List<Configuration> all = new ArrayList<Configuration>();
+        all.add(conf);
+        all.addAll(conf.getListeners());
+        return all;
+    }
+
+    /**
+     * @param query a query string, such as <code>a=1&amp;b=2</code>.
+     * @return the parameters, by name, in the order given.
+     */
+    static Map<String, String> parseQuery(final String query)
+    {
+        Map<String, String> params = new LinkedHashMap<String, String>();
+        for (String pair : query.split("&")) //$NON-NLS-1$
+        {
+            if (pair.length() == 0)
+            {
+                continue;
+            }
+            int equals = pair.indexOf('=');
+            String name = equals < 0 ? pair : pair.substring(0, equals);
+            String value = equals < 0 ? "" : pair.substring(equals + 1); //$NON-NLS-1$
+            params.put(decode(name), decode(value));
+        }
+        return params;
+    }
+
+    /**
+     * @param s part of a query string.
+     * @return the part with its escapes decoded.
+     */
+    private static String decode(final String s)
+    {
+        try
+        {
+            return URLDecoder.decode(s, "UTF-8"); //$NON-NLS-1$
+        }
+        catch (UnsupportedEncodingException uex)
+        {
+            throw new AssertionError(uex); // Every JVM has UTF-8
+        }
+    }
+
+    /**
+     * @param json the answer.
+     * @return the whole HTTP response.
+     */
+    private static String ok(final JsonWriter json)
+    {
+        return reply(200, "OK", json.toString()); //$NON-NLS-1$
+    }
+
+    /**
+     * @param allowed the method the command needs.
+     * @return the whole HTTP response.
+     */
+    private static String notAllowed(final String allowed)
+    {
+        return error(405, "Method Not Allowed", "Use " + allowed); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    /**
+     * @param status the HTTP status code.
+     * @param reason the reason phrase for the status.
+     * @param message what went wrong.
+     * @return the whole HTTP response.
+     */
+    private static String error(final int status, final String reason, final String message)
+    {
+        return reply(status, reason, new JsonWriter().beginObject().name("error").value(message).endObject().toString()); //$NON-NLS-1$
+    }
+
+    /**
+     * @param value a setting, or null.
+     * @return the setting's name in lower case, as in the configuration file.
+     */
+    private static String lower(final Enum<?> value)
+    {
+        return value == null ? null : value.name().toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * @param trace a trace, or null.
+     * @return the trace's file, or null.
+     */
+    private static String path(final BandwidthTrace trace)
+    {
+        return trace == null ? null : trace.getFile().getPath();
+    }
+
+    /**
+     * @param status the HTTP status code.
+     * @param reason the reason phrase for the status.
+     * @param body the JSON text of the response.
+     * @return the whole HTTP response.
+     */
+    private static String reply(final int status, final String reason, final String body)
+    {
+        int length;
+        try
+        {
+            length = body.getBytes("UTF-8").length; //$NON-NLS-1$
+        }
+        catch (UnsupportedEncodingException uex)
+        {
+            throw new AssertionError(uex);
+        }
+        StringBuffer b = new StringBuffer();
+        b.append("HTTP/1.0 ").append(status).append(' ').append(reason).append("\r\n"); //$NON-NLS-1$ //$NON-NLS-2$
+        b.append("Content-Type: application/json; charset=UTF-8\r\n"); //$NON-NLS-1$
+        b.append("Content-Length: ").append(length).append("\r\n"); //$NON-NLS-1$ //$NON-NLS-2$
+        b.append("Connection: close\r\n\r\n"); //$NON-NLS-1$
+        b.append(body);
+        return b.toString();
+    }
+
+    /**
+     * A request being read and the response being written, for one connection.
+     */
+    private static class Exchange
+    {
+        // The request head read so far.
+        final ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_BYTES);
+
+        // Parses the head as it comes in.
+        final RequestParser parser = new RequestParser();
+
+        // The response, once there is one.
+        ByteBuffer response;
+    }
+
+}
@@ -24,6 +24,17 @@ import java.text.NumberFormat;
 /**
  * Conntainer for information about a particular bandwidth setting: i.e.,
  * a label such as "28.8k" and a corresponding bytes-per-second measure.
+ * <p>
+ * 
+ * Many links are asymmetric (e.g., ADSL or GPRS), so a setting also
+ * carries the rate at which the client can upload.  Unless told otherwise,
+ * the upload rate is the same as the download rate.
+ * <p>
+ * 
+ * On slow links, and mobile ones especially, the round trip time matters as
+ * much as the rate, so a setting may also carry a {@link LatencyModel}, 
+ * and a {@link LossModel} for the packets the link loses.  Unless told 
+ * otherwise, there is no latency and no loss.
  */
 public class Bandwidth
 {
@@ -34,6 +45,15 @@ public class Bandwidth
     // The maximum bytes per second for this bandwidth setting.
     private final int bytesPerSecond;
     
+    // The maximum bytes per second the client may upload.
+    private final int uploadBytesPerSecond;
+    
+    // The round trip time of the link.
+    private final LatencyModel latency;
+    
+    // The packet loss of the link.
+    private final LossModel loss;
+    
     // For formatting labels automaticallty.
     private static final NumberFormat nf = NumberFormat.getInstance();
     
@@ -52,6 +72,46 @@ public class Bandwidth
      * @param label the label to show the user (e.g., "28.8k").
      */
     public Bandwidth(final float kiloBitsPerSecond, final String label)
+    {
+        this(kiloBitsPerSecond, label, kiloBitsPerSecond);
+    }
+    
+    /**
+     * Create a new container for an asymmetric bandwidth setting.
+     * 
+     * @param kiloBitsPerSecond the download kbps value (e.g., 512).
+     * @param label the label to show the user (e.g., "512k").
+     * @param uploadKiloBitsPerSecond the upload kbps value (e.g., 128).
+     */
+    public Bandwidth(final float kiloBitsPerSecond, final String label, final float uploadKiloBitsPerSecond)
+    {
+        this(kiloBitsPerSecond, label, uploadKiloBitsPerSecond, LatencyModel.NONE, LossModel.NONE);
+    }
+    
+    /**
+     * Create a new container for an asymmetric bandwidth setting with latency and loss.
+     * 
+     * @param kiloBitsPerSecond the download kbps value (e.g., 80).
+     * @param label the label to show the user (e.g., "80k (GPRS)").
+     * @param uploadKiloBitsPerSecond the upload kbps value (e.g., 20).
+     * @param latency the round trip time of the link.
+     * @param loss the packet loss of the link.
+     */
+    public Bandwidth(final float kiloBitsPerSecond, final String label, final float uploadKiloBitsPerSecond, 
+        final LatencyModel latency, final LossModel loss)
+    {
+        this.bytesPerSecond = toBytesPerSecond(kiloBitsPerSecond);
+        this.uploadBytesPerSecond = toBytesPerSecond(uploadKiloBitsPerSecond);
+        this.label = label;
+        this.latency = latency;
+        this.loss = loss;
+    }
+    
+    /**
+     * @param kiloBitsPerSecond a kbps value (e.g., 28.8).
+     * @return the corresponding bytes per second.
+     */
+    private static int toBytesPerSecond(final float kiloBitsPerSecond)
     {
        /*
          * Convert Kb into KBs
@@ -67,9 +127,7 @@ public class Bandwidth
          * providing the bytes per second as a constructor parameter. 
          * 
          */
-        this.bytesPerSecond = Math.round(((kiloBitsPerSecond * 1024.0f) / 8.0f) * (7.0f / 8.0f));
- 
-        this.label = label;
+        return Math.round(((kiloBitsPerSecond * 1024.0f) / 8.0f) * (7.0f / 8.0f));
     }
     
     /**
@@ -129,4 +187,28 @@ public class Bandwidth
     {
         return this.bytesPerSecond;
     }
+    
+    /**
+     * @return Bytes per second the client may upload with this bandwidth setting.
+     */
+    public int getUploadBytesPerSecond()
+    {
+        return this.uploadBytesPerSecond;
+    }
+    
+    /**
+     * @return The round trip time of the link for this bandwidth setting.
+     */
+    public LatencyModel getLatency()
+    {
+        return this.latency;
+    }
+    
+    /**
+     * @return The packet loss of the link for this bandwidth setting.
+     */
+    public LossModel getLoss()
+    {
+        return this.loss;
+    }
 }
@@ -21,6 +21,7 @@ package com.dallaway.sloppy;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import javax.swing.AbstractListModel;
 import javax.swing.ComboBoxModel;
 
@@ -53,6 +54,39 @@ public class BandwidthList extends AbstractListModel implements ComboBoxModel
             512f,   768f,    1536f,    3072f 
         };
 
+        // Upload rates, as typical for the kind of link each option represents:
+        float[] uploadKiloBitesPerSecond =  { 
+            9.6f,   14.4f,   28.8f,   14.4f,  33.6f,  20f, 
+            128f,  59.2f,  64f,  
+            128f,   128f,    256f,    448f 
+        };
+
+        // Round trip times and their jitter (milliseconds), likewise typical:
+        int[] latencyMillis =  { 
+            250,   200,   150,   400,   120,  600, 
+            40,    300,   40,  
+            30,    30,    25,    20 
+        };
+
+        int[] jitterMillis =  { 
+            20,    20,    15,    50,    10,   150, 
+            5,     80,    5,  
+            5,     5,     5,     5 
+        };
+
+        // Packet loss (percent) and its burstiness: mobile links lose packets in bursts.
+        float[] lossPercent =  { 
+            0f,    0f,    0f,    1f,    0f,   2f, 
+            0f,    1f,    0f,  
+            0f,    0f,    0f,    0f 
+        };
+
+        float[] lossBurstPackets =  { 
+            1f,    1f,    1f,    2f,    1f,   3f, 
+            1f,    2f,    1f,  
+            1f,    1f,    1f,    1f 
+        };
+
         String[] label = {
             "9.6k", "14.4k", "28.8k", "43.2k (HSCSD)", "56k",  "80k (GPRS)",  
             "128k",  "236k (EDGE)", "256k",
@@ -60,11 +94,18 @@ public class BandwidthList extends AbstractListModel implements ComboBoxModel
         };
         
         assert label.length == kiloBitesPerSecond.length;
+        assert uploadKiloBitesPerSecond.length == kiloBitesPerSecond.length;
+        assert latencyMillis.length == kiloBitesPerSecond.length;
+        assert jitterMillis.length == kiloBitesPerSecond.length;
+        assert lossPercent.length == kiloBitesPerSecond.length;
+        assert lossBurstPackets.length == kiloBitesPerSecond.length;
         
         
         for(int i=0, n=kiloBitesPerSecond.length; i<n; i++)
         {
-            options.add( new Bandwidth(kiloBitesPerSecond[i], label[i]) );
+            LatencyModel latency = new LatencyModel(latencyMillis[i], jitterMillis[i], JitterDistribution.NORMAL);
+            LossModel loss = new LossModel(LossPattern.GILBERT_ELLIOTT, lossPercent[i], lossBurstPackets[i]);
+            options.add( new Bandwidth(kiloBitesPerSecond[i], label[i], uploadKiloBitesPerSecond[i], latency, loss) );
         }
         
         
@@ -113,4 +154,24 @@ public class BandwidthList extends AbstractListModel implements ComboBoxModel
         return options.get(selectedIndex);
     }
 
+    /**
+     * Look up an option by name, such as "56k" or "GPRS".  A name matches an 
+     * option's whole label, or the part of the label in brackets.
+     * 
+     * @param name the name to look for, in any case.
+     * @return the option, or null if there is none by that name.
+     */
+    public Bandwidth find(final String name)
+    {
+        for (Bandwidth option : options)
+        {
+            String label = option.toString();
+            if (label.equalsIgnoreCase(name) || label.toUpperCase(Locale.ENGLISH).endsWith("(" + name.toUpperCase(Locale.ENGLISH) + ")")) //$NON-NLS-1$ //$NON-NLS-2$
+            {
+                return option;
+            }
+        }
+        return null;
+    }
+
 }
@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A recorded network throughput curve to replay, such as a commuter's mobile link.
+ * <p>
+ *
+ * The trace file is memory mapped rather than read onto the heap, so a trace
+ * of millions of points costs no more heap than a short one.  It is read once
+ * when opened, to check it and find its length, and after that each client 
+ * follows it with a {@link TraceCursor} that reads the mapping as it goes.
+ * Traces repeat from the start when they run out.
+ * <p>
+ *
+ * The format is worked out from the file: lines with commas are 
+ * {@link TraceFormat#CSV}, lines without are {@link TraceFormat#MAHIMAHI}.
+ * Blank lines, and lines that don't start with a digit (comments and headings),
+ * are skipped.  A Mahimahi trace is turned into a rate for every 
+ * {@link #WINDOW_MILLIS} from the deliveries in it.
+ * <p>
+ *
+ * A rate of zero means no limit to a {@link TokenBucket}, so an outage in a 
+ * trace slows the link to {@link #MIN_BYTES_PER_SECOND} rather than lifting the
+ * limit; a slower rate would leave the bucket owing for longer than the outage.
+ * <p>
+ *
+ * Immutable, so it can be shared by any number of clients.
+ */
+public class BandwidthTrace
+{
+
+    /** The bytes delivered at each timestamp of a Mahimahi trace. */
+    public static final int PACKET_BYTES = 1500;
+
+    /** The time a Mahimahi trace is averaged over for each rate. */
+    public static final int WINDOW_MILLIS = 100;
+
+    /** The slowest rate a trace runs at: a packet a second. */
+    public static final int MIN_BYTES_PER_SECOND = PACKET_BYTES;
+
+    // How long a single line of a CSV trace lasts before repeating.
+    private static final long SINGLE_LINE_MILLIS = 1000;
+
+    // The file the trace was read from.
+    private final File file;
+
+    // The layout of the file.
+    private final TraceFormat format;
+
+    // The whole file, mapped.  Never read directly: each cursor reads a duplicate.
+    private final ByteBuffer buffer;
+
+    // The number of lines with a timestamp.
+    private final long points;
+
+    // How long the trace lasts before it repeats.
+    private final long periodMillis;
+
+    /**
+     * @param file the trace file.
+     * @param buffer the contents of the file.
+     * @throws IOException if the file holds no trace.
+     */
+    BandwidthTrace(final File file, final ByteBuffer buffer) throws IOException
+    {
+        this.file = file;
+        this.buffer = buffer;
+        this.format = detectFormat(buffer.duplicate());
+
+        // Read it all once, to check it and to find out how long it lasts
+        ByteBuffer b = buffer.duplicate();
+        long count = 0;
+        double last = 0;
+        double previous = 0;
+        while (nextRecord(b))
+        {
+            int at = b.position();
+            double timestamp = readNumber(b);
+            if (format == TraceFormat.CSV && readNumber(b) < 0)
+            {
+                throw new IOException("No rate at byte " + at + " of " + file); //$NON-NLS-1$ //$NON-NLS-2$
+            }
+            skipLine(b);
+            previous = last;
+            last = timestamp;
+            count++;
+        }
+        if (count == 0)
+        {
+            throw new IOException("No bandwidth trace in " + file); //$NON-NLS-1$
+        }
+        this.points = count;
+
+        if (format == TraceFormat.MAHIMAHI)
+        {
+            this.periodMillis = (long) last;
+        }
+        else
+        {
+            // The last line lasts as long as the one before it
+            this.periodMillis = count == 1 ? SINGLE_LINE_MILLIS : (long) (last + (last - previous));
+        }
+        if (periodMillis <= 0)
+        {
+            throw new IOException("Bandwidth trace takes no time: " + file); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * Open a trace file.
+     * 
+     * @param file the trace file, in either {@link TraceFormat}.
+     * @return the trace.
+     * @throws IOException if the file can't be read or holds no trace.
+     */
+    public static BandwidthTrace open(final File file) throws IOException
+    {
+        RandomAccessFile in = new RandomAccessFile(file, "r"); //$NON-NLS-1$
+        try
+        {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+            {
+                throw new IOException("Bandwidth trace too large to map: " + file); //$NON-NLS-1$
+            }
+            // The mapping stays valid once the file is closed
+            return new BandwidthTrace(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * @return A new cursor, starting at the beginning of the trace now.
+     */
+    public TraceCursor newCursor()
+    {
+        return new TraceCursor(this, buffer.duplicate());
+    }
+
+    /**
+     * @return The file the trace was read from.
+     */
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * @return The layout of the file.
+     */
+    public TraceFormat getFormat()
+    {
+        return format;
+    }
+
+    /**
+     * @return The number of timestamps in the trace.
+     */
+    public long getPoints()
+    {
+        return points;
+    }
+
+    /**
+     * @return How long the trace lasts before it repeats, in milliseconds.
+     */
+    public long getPeriodMillis()
+    {
+        return periodMillis;
+    }
+
+    /**
+     * @return The file and how long it lasts, for display.
+     */
+    @Override
+    public String toString()
+    {
+        return file.getName() + " (" + points + " points over " + periodMillis + "ms)"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    }
+
+    /**
+     * @param kiloBitsPerSecond a rate from a trace, in kilobits of 1000 bits a second.
+     * @return The rate in bytes per second, no slower than {@link #MIN_BYTES_PER_SECOND}.
+     */
+    static int toBytesPerSecond(final double kiloBitsPerSecond)
+    {
+        return (int) Math.max(MIN_BYTES_PER_SECOND, Math.min(Integer.MAX_VALUE, Math.round(kiloBitsPerSecond * 1000.0 / 8.0)));
+    }
+
+    /**
+     * @param b the trace, at its start.
+     * @return The layout of the trace, from its first record.
+     */
+    private static TraceFormat detectFormat(final ByteBuffer b)
+    {
+        if (nextRecord(b))
+        {
+            while (b.hasRemaining())
+            {
+                byte c = b.get();
+                if (c == ',')
+                {
+                    return TraceFormat.CSV;
+                }
+                if (c == '\n')
+                {
+                    break;
+                }
+            }
+        }
+        return TraceFormat.MAHIMAHI;
+    }
+
+    /**
+     * Move to the start of the next record, past blank lines, comments and headings.
+     * 
+     * @param b the trace.
+     * @return True if there is a record; false at the end of the trace.
+     */
+    static boolean nextRecord(final ByteBuffer b)
+    {
+        while (b.hasRemaining())
+        {
+            byte c = b.get(b.position());
+            if (isDigit(c))
+            {
+                return true;
+            }
+            if (isSpace(c) || c == '\r' || c == '\n')
+            {
+                b.get();
+            }
+            else
+            {
+                skipLine(b);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Read a number, and the comma after it if there is one.
+     * 
+     * @param b the trace.
+     * @return The number, or -1 if there are no more on this line.
+     */
+    static double readNumber(final ByteBuffer b)
+    {
+        skipSpaces(b);
+        if (!b.hasRemaining() || !isDigit(b.get(b.position())))
+        {
+            return -1;
+        }
+
+        long whole = 0;
+        while (b.hasRemaining() && isDigit(b.get(b.position())))
+        {
+            whole = whole * 10 + (b.get() - '0');
+        }
+        double value = whole;
+        if (b.hasRemaining() && b.get(b.position()) == '.')
+        {
+            b.get();
+            double scale = 0.1;
+            while (b.hasRemaining() && isDigit(b.get(b.position())))
+            {
+                value += (b.get() - '0') * scale;
+                scale /= 10;
+            }
+        }
+
+        skipSpaces(b);
+        if (b.hasRemaining() && b.get(b.position()) == ',')
+        {
+            b.get();
+        }
+        return value;
+    }
+
+    /**
+     * Move past the rest of the line.
+     * 
+     * @param b the trace.
+     */
+    static void skipLine(final ByteBuffer b)
+    {
+        while (b.hasRemaining())
+        {
+            if (b.get() == '\n')
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param b the trace, moved past any spaces and tabs.
+     */
+    private static void skipSpaces(final ByteBuffer b)
+    {
+        while (b.hasRemaining() && isSpace(b.get(b.position())))
+        {
+            b.get();
+        }
+    }
+
+    /**
+     * @param c a character from the trace.
+     * @return True for 0 to 9.
+     */
+    private static boolean isDigit(final byte c)
+    {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * @param c a character from the trace.
+     * @return True for a space or tab.
+     */
+    private static boolean isSpace(final byte c)
+    {
+        return c == ' ' || c == '\t';
+    }
+}
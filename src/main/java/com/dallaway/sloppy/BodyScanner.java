@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ *
+ * This file is part of Sloppy.
+ *
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Finds where the body of an HTTP request ends, in bytes that are being
+ * passed on unchanged.
+ * <p>
+ *
+ * The body is as long as its Content-Length, or, when it is sent with
+ * <code>Transfer-Encoding: chunked</code>, runs to the end of the last chunk
+ * and any trailer.  Anything after that belongs to the next request.
+ * This is the non-blocking counterpart of {@link ContentLengthInputStream}
+ * and {@link ChunkedInputStream}: the bytes are scanned as they arrive,
+ * however they happen to be split up.
+ */
+public class BodyScanner
+{
+
+    // Where we are in the body.
+    private enum State { DATA, SIZE, DATA_END, TRAILER, DONE }
+
+    private State state;
+
+    // True if the body is chunked.
+    private final boolean chunked;
+
+    // Bytes left in the body, or in the current chunk.
+    private long remaining;
+
+    // Have we seen a character that isn't part of the chunk size?
+    private boolean sizeEnded = false;
+
+    // Characters on the trailer line so far.
+    private int lineLength = 0;
+
+    /**
+     * @param contentLength the length of a body that is not chunked.
+     */
+    public BodyScanner(final long contentLength)
+    {
+        this.chunked = false;
+        this.remaining = contentLength;
+        this.state = contentLength > 0 ? State.DATA : State.DONE;
+    }
+
+    /**
+     * A scanner for a chunked body.
+     */
+    public BodyScanner()
+    {
+        this.chunked = true;
+        this.remaining = 0;
+        this.state = State.SIZE;
+    }
+
+    /**
+     * @param request the parsed head of a request.
+     * @return a scanner for the request's body, which is finished at once if there is no body.
+     * @throws IOException if the Content-Length is not valid.
+     */
+    public static BodyScanner forRequest(final RequestParser request) throws IOException
+    {
+        String transferEncoding = request.getHeader("Transfer-Encoding"); //$NON-NLS-1$
+        if (transferEncoding != null && transferEncoding.toLowerCase(Locale.ENGLISH).indexOf("chunked") != -1) //$NON-NLS-1$
+        {
+            return new BodyScanner();
+        }
+
+        String contentLength = request.getHeader("Content-Length"); //$NON-NLS-1$
+        if (contentLength == null)
+        {
+            return new BodyScanner(0);
+        }
+        try
+        {
+            long length = Long.parseLong(contentLength.trim());
+            if (length >= 0)
+            {
+                return new BodyScanner(length);
+            }
+        }
+        catch (NumberFormatException nfx)
+        {
+            // Fall through
+        }
+        throw new IOException("Bad Content-Length: " + contentLength); //$NON-NLS-1$
+    }
+
+    /**
+     * @return true if the body is chunked, and so any Content-Length does not apply.
+     */
+    public boolean isChunked()
+    {
+        return chunked;
+    }
+
+    /**
+     * @return true once the whole body has been scanned.
+     */
+    public boolean isFinished()
+    {
+        return state == State.DONE;
+    }
+
+    /**
+     * Scan the next bytes of the body.
+     *
+     * @param bytes the bytes that follow those already scanned.
+     * @param off where the bytes start.
+     * @param len the number of bytes.
+     * @return how many of the bytes are part of the body; fewer than len only
+     *         if the body has finished.
+     * @throws IOException if a chunk size is not valid.
+     */
+    public int scan(final byte[] bytes, final int off, final int len) throws IOException
+    {
+        int i = off;
+        int end = off + len;
+        while (i < end && state != State.DONE)
+        {
+            if (state == State.DATA)
+            {
+                int n = (int) Math.min(remaining, end - i);
+                i += n;
+                remaining -= n;
+                if (remaining == 0)
+                {
+                    state = chunked ? State.DATA_END : State.DONE;
+                }
+                continue;
+            }
+
+            int c = bytes[i++];
+            switch (state)
+            {
+                case SIZE:
+                    size(c);
+                    break;
+
+                case DATA_END:
+                    if (c == '\n')
+                    {
+                        state = State.SIZE;
+                    }
+                    break;
+
+                case TRAILER:
+                    if (c == '\n')
+                    {
+                        state = lineLength == 0 ? State.DONE : State.TRAILER;
+                        lineLength = 0;
+                    }
+                    else if (c != '\r')
+                    {
+                        lineLength++;
+                    }
+                    break;
+
+                default:
+                    break;
+            }
+        }
+        return i - off;
+    }
+
+    /**
+     * Take the next character of a chunk size line.
+     *
+     * @param c the character.
+     * @throws IOException if the chunk size is not valid.
+     */
+    private void size(final int c) throws IOException
+    {
+        if (c == '\n')
+        {
+            sizeEnded = false;
+            state = remaining == 0 ? State.TRAILER : State.DATA;
+            return;
+        }
+        if (sizeEnded)
+        {
+            return; // Ignore any chunk extension
+        }
+
+        int digit = Character.digit(c, 16);
+        if (digit != -1)
+        {
+            if (remaining > (Long.MAX_VALUE >> 4))
+            {
+                throw new IOException("Chunk too large"); //$NON-NLS-1$
+            }
+            remaining = (remaining << 4) + digit;
+        }
+        else if (c == ';' || c == ' ' || c == '\t' || c == '\r')
+        {
+            sizeEnded = true;
+        }
+        else
+        {
+            throw new IOException("Bad chunk size"); //$NON-NLS-1$
+        }
+    }
+
+}
@@ -19,13 +19,13 @@
  */
 package com.dallaway.sloppy;
 
-import java.util.HashMap;
+import java.util.Random;
 
 /**
  * Mechanism to work out a delay before sending data between client and server.
  * <p>
  *
- * We make use of a staic hash of {@link Usage} objects to record the amount of data
+ * We make use of a {@link ClientRegistry} of {@link Usage} objects to record the amount of data
  * sent between a client and a server.  The usage is keyed by clientId (such
  * as IP address).
  * <p>
@@ -33,22 +33,124 @@ import java.util.HashMap;
  * We need to do this because a browser may request multiple files at the same
  * time, and we want to limit overall bandwidth, not just the bandwidth
  * used on each request.
+ * <p>
+ *
+ * The limit itself is a {@link TokenBucket} held by the usage object, so
+ * concurrent requests from the same client share it without locking.
+ * <p>
+ *
+ * The client's limit is one level of a hierarchy.  Bytes pass through,
+ * in turn, a limit for this connection alone, the client's limit, the limit of 
+ * the {@link ClientGroup} the client belongs to, and a global limit for
+ * everything Sloppy sends.  Levels without a limit are skipped.  Each level
+ * admits the bytes no earlier than the level before it did, so the bytes 
+ * go when the last level allows.
+ * <p>
+ *
+ * Connections compete fairly at each level because they reserve a chunk at
+ * a time, and do not reserve their next chunk until the last one has gone:
+ * connections sharing a limit take turns, so one big download cannot starve
+ * the others.
+ * <p>
+ *
+ * Data going the other way, from the client to the server, is limited
+ * separately by the client's upload limit: see {@link #restrictUpload(int)}.
+ * <p>
+ *
+ * The size of each chunk follows from the rate: see {@link #chunkSize()}.
+ * A chunk is what the tightest limit lets through in one pacing interval,
+ * so slow clients get small, frequent chunks rather than long silences,
+ * and fast clients get large chunks rather than thousands of tiny ones.
+ * <p>
+ *
+ * Waits are in nanoseconds, to be timed by a {@link PacingScheduler}.  
+ * The rate the connection achieves is measured as it goes, for comparison
+ * with the configured rate: see {@link #getDownloadThroughput()}.
+ * <p>
+ *
+ * The configured {@link LatencyModel} is added to the waits: each direction 
+ * has a {@link DelayLine} that holds chunks back for a one way delay after
+ * the limits admit them.  The handlers also wait a round trip before serving
+ * a new connection, as the TCP handshake would, and push each message head
+ * through the line for its direction, so the first byte of a response comes 
+ * a round trip after the request was sent.
+ * <p>
+ *
+ * The configured {@link LossModel} adds stalls: each direction has a 
+ * {@link PacketLoss} that decides which of the chunk's packets are lost, 
+ * and the chunk waits a retransmission timeout for each.  The latency
+ * and loss come from randomness given by the configuration, so they can
+ * be made the same from run to run.
+ * <p>
+ *
+ * What the connection is given is recorded in the {@link Metrics} of the
+ * client and of the listener: the bytes and waits as they go through here,
+ * and the times of each request as the handlers mark its stages with
+ * {@link #beginRequest()}, {@link #beginUpstream()}, {@link #endUpstream()}
+ * and {@link #endRequest()}.
  */
 public class Bottleneck
 {
 
-  // Hash to Usage objects, keyed by clientId. 
-  private final static HashMap<String,Usage> clients = new HashMap<String, Usage>();
+  /** The smallest chunk size, however slow the limit. */
+  public static final int MIN_CHUNK_SIZE = 256;
+
+  /** The largest chunk size, used when there is no limit. */
+  public static final int MAX_CHUNK_SIZE = BufferPool.MAX_SIZE;
 
   // This client's id (e.g., IP Address). 
   private String clientId = null;
 
-  // Bandwidth usage. 
-  private Usage usage = null;
+  // Bandwidth usage; volatile as the admin server reads it. 
+  private volatile Usage usage = null;
+
+  // Has the connection been counted, and has it given up its hold on the usage?
+  private boolean opened = false;
+  private boolean released = false;
+
+  // The limit for this connection alone.
+  private final TokenBucket connectionBucket;
+
+  // The limit shared by every client, looked up once rather than on every chunk.
+  private final TokenBucket globalBucket;
+
+  // The group the client belongs to, or null if none; looked up with the usage.
+  private ClientGroup group = null;
 
   // The configuration, so we can see the bandwidth limit. 
   private Configuration conf;
 
+  // The rates this connection achieves, each way.
+  private final Throughput downloadThroughput = new Throughput();
+  private final Throughput uploadThroughput = new Throughput();
+
+  // Hold the bytes back for the latency of the link, each way.
+  private final DelayLine downloadLine = new DelayLine();
+  private final DelayLine uploadLine = new DelayLine();
+
+  // The source of the latency jitter.
+  private final Random random;
+
+  // The packets lost, each way.
+  private final PacketLoss downloadLoss;
+  private final PacketLoss uploadLoss;
+
+  // When the connection was made (System.currentTimeMillis()).
+  private final long startMillis = System.currentTimeMillis();
+
+  // The latency for the round trip time a trace last gave, with the configured jitter.
+  private LatencyModel traceLatency = null;
+
+  // What the listener's clients have been given.
+  private final Metrics listenerMetrics;
+
+  // When the request in progress arrived, and when it was passed on (System.nanoTime()); zero if not.
+  private long requestNanos = 0;
+  private long upstreamNanos = 0;
+
+  // Is the first byte of the response to the request in progress still to be sent?
+  private boolean awaitingFirstByte = false;
+
   /**
    * Construct a new bottleneck for a given client.
    *
@@ -60,20 +162,32 @@ public class Bottleneck
     this.clientId = clientId;
 	this.conf = conf;
     usage = null;
+    connectionBucket = new TokenBucket(conf.getConnectionBytesPerSecond(), conf.getBurstBytes());
+    globalBucket = conf.getGlobalBucket();
+    listenerMetrics = conf.getMetrics();
+
+    // Separate randomness for each use, so one doesn't disturb the sequence of another
+    Random connection = conf.newRandom();
+    random = new Random(connection.nextLong());
+    downloadLoss = new PacketLoss(new Random(connection.nextLong()));
+    uploadLoss = new PacketLoss(new Random(connection.nextLong()));
   }
 
 
   /**
-   * Delay looking up a client's usage until we have to.
+   * Look up a client's usage when the connection opens, or first needs it, 
+   * then hold on to it for the rest of the connection.  The registry keeps
+   * the usage for as long as we hold it, so every connection from the client
+   * shares the one limit.
    */
-  private synchronized void getUsage()
+  private void getUsage()
   {
-      usage = clients.get(clientId);
       if (usage == null)
       {
-        usage = new Usage();
-        clients.put(clientId, usage);
-   	  }
+        usage = conf.getClientRegistry().open(clientId, conf.getBytesPerSecond(), conf.getBurstBytes());
+        group = conf.getClientGroup(clientId);
+        usage.getMetrics().connectionOpened();
+      }
   }
 
 
@@ -93,24 +207,481 @@ public class Bottleneck
    *
    * @param bytesRead	The number of bytes sent to the client.
    * 
-   * @return Milliseconds to sleep for; may be -ve indicating no sleep required.
+   * @return Milliseconds to sleep for; zero if no sleep is required.
    */
   public long restrict(final int bytesRead)
+  {
+      // Round to the nearest millisecond: the bucket evens out the error over time
+      return (restrictNanos(bytesRead) + 500000L) / 1000000L;
+  }
+
+  /**
+   * Compute the amount of time to wait to keep the client's bandwidth
+   * usage inside the BPM measure.
+   *
+   * @param bytesRead	The number of bytes sent to the client.
+   * 
+   * @return Nanoseconds to wait for; zero if the bytes may be sent now.
+   */
+  public long restrictNanos(final int bytesRead)
   {
       // Keep track of bytes sent
       getUsage();
       usage.increment(bytesRead);
-      int totalBytes = usage.getTotalBytes();
 
-      // Keep track of time spend sending those bytes
-      long now = System.currentTimeMillis();
-      long duration = now - usage.getStartTime();
+      // Pick up any change to the bandwidth settings, or in the trace being followed
+      TokenBucket clientBucket = usage.getBucket();
+      int bytesPerSecond = downloadBytesPerSecond();
+      if (clientBucket.getBytesPerSecond() != bytesPerSecond)
+      {
+          clientBucket.setBytesPerSecond(bytesPerSecond);
+      }
+      if (connectionBucket.getBytesPerSecond() != conf.getConnectionBytesPerSecond())
+      {
+          connectionBucket.setBytesPerSecond(conf.getConnectionBytesPerSecond());
+      }
+
+      // Each level admits the bytes once the level below has
+      long now = System.nanoTime();
+      downloadThroughput.record(bytesRead, now);
+      long admitted = downloadLine.virtualNow(now);
+      admitted += connectionBucket.reserve(bytesRead, admitted);
+      admitted += clientBucket.reserve(bytesRead, admitted);
+      if (group != null)
+      {
+          admitted += group.getBucket().reserve(bytesRead, admitted);
+      }
+      admitted += globalBucket.reserve(bytesRead, admitted);
+
+      long stall = stallNanos(downloadLoss, bytesRead);
+      long wait = untilResponse(downloadLine.release(admitted, now, latency().oneWayNanos(random), stall));
+
+      usage.getMetrics().sent(bytesRead);
+      usage.getMetrics().recordPacingDelay(wait);
+      listenerMetrics.sent(bytesRead);
+      listenerMetrics.recordPacingDelay(wait);
+      return wait;
+  }
+
+  /**
+   * @return Nanoseconds to wait before serving a new connection: a round trip,
+   *         for the TCP handshake over the client's link.
+   */
+  public long connectNanos()
+  {
+      return latency().roundTripNanos(random);
+  }
+
+  /**
+   * Compute the time the head of a response takes to reach the client.
+   * Heads are not counted against the limits, but do wait for the latency.
+   * 
+   * @return Nanoseconds to wait before sending the head; zero if it may be sent now.
+   */
+  public long downloadLatencyNanos()
+  {
+      // A head follows a wait for the other side, so the line has run dry.
+      // Look up the usage now, so it doesn't hold up the chunks that follow.
+      getUsage();
+      downloadLine.idle();
+      long now = System.nanoTime();
+      return untilResponse(downloadLine.release(now, now, latency().oneWayNanos(random), 0));
+  }
+
+  /**
+   * Compute the time the head of a request takes to reach us from the client.
+   * 
+   * @return Nanoseconds to wait before passing the head on; zero if it may go now.
+   */
+  public long uploadLatencyNanos()
+  {
+      getUsage();
+      uploadLine.idle();
+      long now = System.nanoTime();
+      return untilRelease(uploadLine.release(now, now, latency().oneWayNanos(random), 0));
+  }
+
+  /**
+   * @return The client's download rate: the configured rate, or where the 
+   *         client has got to in the trace being followed.
+   */
+  private int downloadBytesPerSecond()
+  {
+      TraceCursor cursor = followTrace(conf.getTrace(), false);
+      return cursor == null ? conf.getBytesPerSecond() : cursor.getBytesPerSecond();
+  }
+
+  /**
+   * @return The client's upload rate: the configured rate, or where the 
+   *         client has got to in the upload trace being followed.
+   */
+  private int uploadBytesPerSecond()
+  {
+      TraceCursor cursor = followTrace(conf.getUploadTrace(), true);
+      return cursor == null ? conf.getUploadBytesPerSecond() : cursor.getBytesPerSecond();
+  }
+
+  /**
+   * @return The latency of the client's link: as configured, but with the
+   *         round trip time of the trace being followed if it gives one.
+   */
+  private LatencyModel latency()
+  {
+      LatencyModel configured = conf.getLatency();
+      TraceCursor cursor = followTrace(conf.getTrace(), false);
+      int roundTrip = cursor == null ? -1 : cursor.getRoundTripMillis();
+      if (roundTrip < 0)
+      {
+          return configured;
+      }
+      if (traceLatency == null || traceLatency.getRoundTripMillis() != roundTrip 
+          || traceLatency.getJitterMillis() != configured.getJitterMillis() 
+          || traceLatency.getDistribution() != configured.getDistribution())
+      {
+          traceLatency = new LatencyModel(roundTrip, configured.getJitterMillis(), configured.getDistribution());
+      }
+      return traceLatency;
+  }
+
+  /**
+   * @param trace A trace the client's link follows, or null.
+   * @param upload True for the upload trace, false for the download trace.
+   * @return The client's place in the trace, brought up to now; null if there is no trace.
+   */
+  private TraceCursor followTrace(final BandwidthTrace trace, final boolean upload)
+  {
+      if (trace == null)
+      {
+          return null;
+      }
+      getUsage();
+      TraceCursor cursor = upload ? usage.followUpload(trace) : usage.followDownload(trace);
+      cursor.advance(System.nanoTime());
+      return cursor;
+  }
+
+  /**
+   * @param loss The packets lost in the direction the bytes are going.
+   * @param bytesRead The number of bytes being passed on.
+   * @return Nanoseconds the bytes are held up by lost packets.
+   */
+  private long stallNanos(final PacketLoss loss, final int bytesRead)
+  {
+      LossModel model = conf.getLoss();
+      return model.hasLoss() ? loss.stallNanos(model, bytesRead, latency().retransmitTimeoutNanos()) : 0;
+  }
+
+  /**
+   * @param release When some bytes may be sent (System.nanoTime()).
+   * @return Nanoseconds from now until then, measured after the work of deciding,
+   *         so the time the caller sleeps ends when the bytes are due.
+   */
+  private static long untilRelease(final long release)
+  {
+      return Math.max(0, release - System.nanoTime());
+  }
+
+  /**
+   * @param release When some bytes of a response may be sent (System.nanoTime()).
+   * @return Nanoseconds from now until then, having recorded the time to the
+   *         first byte if these are the first bytes of the response.
+   */
+  private long untilResponse(final long release)
+  {
+      if (awaitingFirstByte)
+      {
+          awaitingFirstByte = false;
+          long firstByte = Math.max(release, System.nanoTime()) - requestNanos;
+          usage.getMetrics().recordFirstByte(firstByte);
+          listenerMetrics.recordFirstByte(firstByte);
+      }
+      return untilRelease(release);
+  }
+
+  /**
+   * A request has arrived from the client: start timing it.
+   */
+  public void beginRequest()
+  {
+      getUsage();
+      requestNanos = System.nanoTime();
+      upstreamNanos = 0;
+      awaitingFirstByte = true;
+      usage.getMetrics().requestStarted();
+      listenerMetrics.requestStarted();
+  }
+
+  /**
+   * The request is being passed on to the web server: start timing the wait for it.
+   */
+  public void beginUpstream()
+  {
+      upstreamNanos = System.nanoTime();
+  }
+
+  /**
+   * The head of the response has arrived from the web server: record how long it took.
+   */
+  public void endUpstream()
+  {
+      if (upstreamNanos != 0)
+      {
+          long wait = System.nanoTime() - upstreamNanos;
+          upstreamNanos = 0;
+          usage.getMetrics().recordUpstreamWait(wait);
+          listenerMetrics.recordUpstreamWait(wait);
+      }
+  }
+
+  /**
+   * The whole response has been sent to the client: record how long the request took.
+   */
+  public void endRequest()
+  {
+      if (requestNanos != 0)
+      {
+          long duration = System.nanoTime() - requestNanos;
+          requestNanos = 0;
+          awaitingFirstByte = false;
+          usage.getMetrics().recordDuration(duration);
+          listenerMetrics.recordDuration(duration);
+      }
+  }
+
+  /**
+   * @return The number of bytes to send to the client in one go: as many as the
+   *         tightest download limit lets through in one pacing interval.
+   */
+  public int chunkSize()
+  {
+      return chunkSize(getConfiguredBytesPerSecond());
+  }
+
+  /**
+   * @return The tightest of the download limits on this connection, in bytes per second; zero for no limit.
+   */
+  public int getConfiguredBytesPerSecond()
+  {
+      getUsage();
+      int rate = tighter(downloadBytesPerSecond(), conf.getConnectionBytesPerSecond());
+      if (group != null)
+      {
+          rate = tighter(rate, group.getBucket().getBytesPerSecond());
+      }
+      return tighter(rate, conf.getGlobalBytesPerSecond());
+  }
+
+  /**
+   * @return The rate this connection has actually been sending to the client at.
+   */
+  public Throughput getDownloadThroughput()
+  {
+      return downloadThroughput;
+  }
+
+  /**
+   * @return The rate this connection has actually been passing on uploads at.
+   */
+  public Throughput getUploadThroughput()
+  {
+      return uploadThroughput;
+  }
+
+  /**
+   * @return The number of bytes to pass on from the client in one go: as many as
+   *         the upload limit lets through in one pacing interval.
+   */
+  public int uploadChunkSize()
+  {
+      return chunkSize(uploadBytesPerSecond());
+  }
+
+  /**
+   * @param bytesPerSecond A rate, or zero for no limit.
+   * @return The bytes sent at that rate in one pacing interval, within the chunk size limits.
+   */
+  private int chunkSize(final int bytesPerSecond)
+  {
+      if (bytesPerSecond <= 0)
+      {
+          return MAX_CHUNK_SIZE;
+      }
+      long bytes = (long) bytesPerSecond * conf.getPacingIntervalMillis() / 1000L;
+      return (int) Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, bytes));
+  }
+
+  /**
+   * @param a A rate, or zero for no limit.
+   * @param b Another rate, or zero for no limit.
+   * @return The lower of the rates that are limits, or zero if neither is.
+   */
+  private static int tighter(final int a, final int b)
+  {
+      if (a <= 0)
+      {
+          return b;
+      }
+      return b <= 0 ? a : Math.min(a, b);
+  }
+
+  /**
+   * Compute the amount of time to sleep to keep the client's uploads
+   * inside the upload limit.
+   *
+   * @param bytesRead	The number of bytes received from the client.
+   * 
+   * @return Milliseconds to sleep for; zero if no sleep is required.
+   */
+  public long restrictUpload(final int bytesRead)
+  {
+      return (restrictUploadNanos(bytesRead) + 500000L) / 1000000L;
+  }
+
+  /**
+   * Compute the amount of time to wait to keep the client's uploads
+   * inside the upload limit.
+   *
+   * @param bytesRead	The number of bytes received from the client.
+   * 
+   * @return Nanoseconds to wait for; zero if the bytes may be passed on now.
+   */
+  public long restrictUploadNanos(final int bytesRead)
+  {
+      getUsage();
+      usage.increment(bytesRead);
+
+      // Pick up any change to the bandwidth settings
+      TokenBucket uploadBucket = usage.getUploadBucket();
+      int bytesPerSecond = uploadBytesPerSecond();
+      if (uploadBucket.getBytesPerSecond() != bytesPerSecond)
+      {
+          uploadBucket.setBytesPerSecond(bytesPerSecond);
+      }
+
+      long now = System.nanoTime();
+      uploadThroughput.record(bytesRead, now);
+      long admitted = uploadLine.virtualNow(now);
+      admitted += uploadBucket.reserve(bytesRead, admitted);
+      long stall = stallNanos(uploadLoss, bytesRead);
+      long wait = untilRelease(uploadLine.release(admitted, now, latency().oneWayNanos(random), stall));
+
+      usage.getMetrics().received(bytesRead);
+      usage.getMetrics().recordPacingDelay(wait);
+      listenerMetrics.received(bytesRead);
+      listenerMetrics.recordPacingDelay(wait);
+      return wait;
+  }
+
+  /**
+   * @return The rates achieved against the rates configured, for logging.
+   */
+  @Override
+  public String toString()
+  {
+      StringBuffer b = new StringBuffer(clientId);
+      b.append(" sent ").append(downloadThroughput.getBytes()); //$NON-NLS-1$
+      b.append(" bytes at ").append(downloadThroughput.getBytesPerSecond()); //$NON-NLS-1$
+      b.append(" of ").append(getConfiguredBytesPerSecond()).append(" B/s"); //$NON-NLS-1$ //$NON-NLS-2$
+      appendLoss(b, downloadLoss);
+      if (uploadThroughput.getBytes() > 0)
+      {
+          b.append(", received ").append(uploadThroughput.getBytes()); //$NON-NLS-1$
+          b.append(" bytes at ").append(uploadThroughput.getBytesPerSecond()); //$NON-NLS-1$
+          b.append(" of ").append(uploadBytesPerSecond()).append(" B/s"); //$NON-NLS-1$ //$NON-NLS-2$
+          appendLoss(b, uploadLoss);
+      }
+      return b.toString();
+  }
+
+  /**
+   * @param b Where to describe the loss.
+   * @param loss The packets lost in one direction.
+   */
+  private static void appendLoss(final StringBuffer b, final PacketLoss loss)
+  {
+      if (loss.getLostCount() > 0)
+      {
+          b.append(" losing ").append(loss.getLostCount()); //$NON-NLS-1$
+          b.append(" packets for ").append(loss.getStalledNanos() / 1000000L).append("ms"); //$NON-NLS-1$ //$NON-NLS-2$
+      }
+  }
+
+  /**
+   * @return The packets lost on the way to the client.
+   */
+  public PacketLoss getDownloadLoss()
+  {
+      return downloadLoss;
+  }
+
+  /**
+   * @return The packets lost on the way from the client.
+   */
+  public PacketLoss getUploadLoss()
+  {
+      return uploadLoss;
+  }
+
+  /**
+   * Count this connection among those in progress, for the {@link AdminServer}.
+   * Does nothing if already open, as when a connection is handed on to a tunnel.
+   */
+  public void open()
+  {
+      if (opened)
+      {
+          return;
+      }
+      opened = true;
+      getUsage();
+      listenerMetrics.connectionOpened();
+      conf.getConnections().add(this);
+  }
+
+  /**
+   * The connection is finished: stop counting it among those in progress,
+   * and let go of the client's usage.  Safe to call more than once.
+   */
+  public void close()
+  {
+      conf.getConnections().remove(this);
+      if (usage != null && !released)
+      {
+          released = true;
+          usage.release();
+      }
+  }
+
+  /**
+   * @return The client's id (e.g., IP address).
+   */
+  public String getClientId()
+  {
+      return clientId;
+  }
+
+  /**
+   * @return The settings of the listener the connection was made to.
+   */
+  public Configuration getConfiguration()
+  {
+      return conf;
+  }
 
-      long expectedDuration = (long)(totalBytes / (conf.getBytesPerSecond()/1000) );
+  /**
+   * @return When the connection was made (System.currentTimeMillis()).
+   */
+  public long getStartMillis()
+  {
+      return startMillis;
+  }
 
-      // If we have arrived her before we are expected, we want to sleep it out
-      // so we return the time difference between expected and actual
-      return expectedDuration - duration;
+  /**
+   * @return The client's usage, or null if the connection hasn't got as far as needing it.
+   */
+  public Usage getClientUsage()
+  {
+      return usage;
   }
 
 
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps buffers for copying bodies between connections, so a busy Sloppy
+ * is not allocating and collecting a buffer for every request.
+ * <p>
+ *
+ * Buffers come in size classes, powers of two from {@link #MIN_SIZE} to
+ * {@link #MAX_SIZE}; a request is rounded up to the next class.  Each class
+ * keeps at most a fixed number of free buffers: returning a buffer to a full
+ * class just drops it.  Requests larger than the largest class are
+ * allocated and dropped without pooling.  Buffers are either all on the heap,
+ * for the stream-based copying of {@link SlowProxyThread}, which needs the
+ * backing array, or all direct, for channel I/O.
+ * <p>
+ *
+ * Safe to use from several threads at once.  A buffer must be released at
+ * most once, and not used after it has been released.
+ */
+public class BufferPool
+{
+
+    /** The smallest buffer handed out. */
+    public static final int MIN_SIZE = 2048;
+
+    /** The largest buffer pooled. */
+    public static final int MAX_SIZE = 64 * 1024;
+
+    // Free buffers in each size class, smallest class first.
+    private final List<Queue<ByteBuffer>> free;
+
+    // Number of free buffers in each size class (queue sizes are not constant time).
+    private final AtomicInteger[] freeCount;
+
+    // The most free buffers kept in each size class.
+    private final int maxFreePerClass;
+
+    // True for direct buffers, false for heap buffers.
+    private final boolean direct;
+
+    // Requests met from the pool, and requests that needed a new buffer.
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    // Buffers handed out and not yet released.
+    private final AtomicLong outstanding = new AtomicLong();
+
+    /**
+     * @param maxFreePerClass the most free buffers to keep in each size class; zero to pool nothing.
+     * @param direct true for direct buffers, false for heap buffers.
+     */
+    public BufferPool(final int maxFreePerClass, final boolean direct)
+    {
+        this.maxFreePerClass = maxFreePerClass;
+        this.direct = direct;
+
+        int classes = Integer.numberOfTrailingZeros(MAX_SIZE / MIN_SIZE) + 1;
+        this.free = new ArrayList<Queue<ByteBuffer>>(classes);
+        this.freeCount = new AtomicInteger[classes];
+        for (int i = 0; i < classes; i++)
+        {
+            free.add(new ConcurrentLinkedQueue<ByteBuffer>());
+            freeCount[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Take a buffer from the pool, or allocate one if none is free.
+     * 
+     * @param size the least capacity needed.
+     * @return a cleared buffer of at least the given capacity.
+     */
+    public ByteBuffer acquire(final int size)
+    {
+        outstanding.incrementAndGet();
+
+        int index = sizeClass(size);
+        if (index == -1)
+        {
+            misses.incrementAndGet();
+            return allocate(size);
+        }
+
+        ByteBuffer buffer = free.get(index).poll();
+        if (buffer == null)
+        {
+            misses.incrementAndGet();
+            return allocate(MIN_SIZE << index);
+        }
+
+        freeCount[index].decrementAndGet();
+        hits.incrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Give a buffer back, to be handed out again.
+     * 
+     * @param buffer a buffer from {@link #acquire(int)}; ignored if null.
+     */
+    public void release(final ByteBuffer buffer)
+    {
+        if (buffer == null)
+        {
+            return;
+        }
+        outstanding.decrementAndGet();
+
+        int index = sizeClass(buffer.capacity());
+        if (index == -1 || buffer.capacity() != (MIN_SIZE << index) || buffer.isDirect() != direct)
+        {
+            return; // Not one of ours to keep
+        }
+
+        // Reserve a place first, so the class never holds more than its maximum
+        if (freeCount[index].incrementAndGet() > maxFreePerClass)
+        {
+            freeCount[index].decrementAndGet();
+            return;
+        }
+        buffer.clear();
+        free.get(index).offer(buffer);
+    }
+
+    /**
+     * @param size a capacity.
+     * @return the index of the smallest class holding the capacity, or -1 if it's too big to pool.
+     */
+    private static int sizeClass(final int size)
+    {
+        if (size > MAX_SIZE)
+        {
+            return -1;
+        }
+        if (size <= MIN_SIZE)
+        {
+            return 0;
+        }
+        // Round up to a power of two, then count the doublings from the smallest class
+        int rounded = Integer.highestOneBit(size - 1) << 1;
+        return Integer.numberOfTrailingZeros(rounded / MIN_SIZE);
+    }
+
+    /**
+     * @param capacity the size of buffer to allocate.
+     * @return a new buffer of the pool's kind.
+     */
+    private ByteBuffer allocate(final int capacity)
+    {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * @return the number of requests met with a free buffer.
+     */
+    public long getHitCount()
+    {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of requests that needed a new buffer.
+     */
+    public long getMissCount()
+    {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of buffers handed out and not yet released.
+     */
+    public long getOutstandingCount()
+    {
+        return outstanding.get();
+    }
+
+    /**
+     * @return the number of free buffers held.
+     */
+    public int getFreeCount()
+    {
+        int count = 0;
+        for (AtomicInteger n : freeCount)
+        {
+            count += n.get();
+        }
+        return count;
+    }
+
+    /**
+     * @return a summary of the pool's use, for logging.
+     */
+    @Override
+    public String toString()
+    {
+        return (direct ? "Direct" : "Heap") + " buffers: hits=" + getHitCount() + " misses=" + getMissCount() //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+            + " outstanding=" + getOutstandingCount() + " free=" + getFreeCount(); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+}
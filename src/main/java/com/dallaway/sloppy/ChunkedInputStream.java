@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the body of an HTTP message sent with <code>Transfer-Encoding: chunked</code>,
+ * giving just the data, without the chunk sizes or any trailer.
+ * <p>
+ *
+ * End of stream is reported after the last chunk, leaving the underlying stream
+ * positioned at the start of the next message.  Closing this stream does not
+ * close the underlying stream, as the connection may carry more requests.
+ */
+public class ChunkedInputStream extends FilterInputStream
+{
+
+    // Bytes left to read in the current chunk.
+    private long remaining = 0;
+
+    // Have we read the last chunk?
+    private boolean finished = false;
+
+    /**
+     * @param in the stream positioned at the first chunk size.
+     */
+    public ChunkedInputStream(final InputStream in)
+    {
+        super(in);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int read() throws IOException
+    {
+        byte[] one = new byte[1];
+        int n = read(one, 0, 1);
+        return n == -1 ? -1 : one[0] & 0xff;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException
+    {
+        if (len == 0)
+        {
+            return 0;
+        }
+
+        if (remaining == 0 && !finished)
+        {
+            nextChunk();
+        }
+
+        if (finished)
+        {
+            return -1;
+        }
+
+        int bytesRead = in.read(b, off, (int) Math.min(len, remaining));
+        if (bytesRead == -1)
+        {
+            throw new EOFException("Connection closed in the middle of a chunk"); //$NON-NLS-1$
+        }
+
+        remaining -= bytesRead;
+        if (remaining == 0)
+        {
+            Headers.readLine(in); // The CRLF after the chunk data
+        }
+
+        return bytesRead;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int available() throws IOException
+    {
+        return finished ? 0 : (int) Math.min(in.available(), remaining);
+    }
+
+    /**
+     * Leave the underlying stream open.
+     */
+    @Override
+    public void close()
+    {
+    }
+
+    /** Mark and reset are not supported. */
+    @Override
+    public boolean markSupported()
+    {
+        return false;
+    }
+
+    /**
+     * Read the next chunk size line; on the last chunk, skip any trailer.
+     * 
+     * @throws IOException if the chunk size could not be read.
+     */
+    private void nextChunk() throws IOException
+    {
+        String line = Headers.readLine(in);
+        if (line == null)
+        {
+            throw new EOFException("Connection closed before the last chunk"); //$NON-NLS-1$
+        }
+
+        // Ignore any chunk extension after a semicolon
+        int semi = line.indexOf(';');
+        String size = (semi == -1 ? line : line.substring(0, semi)).trim();
+        try
+        {
+            remaining = Long.parseLong(size, 16);
+        }
+        catch (NumberFormatException nfx)
+        {
+            throw new IOException("Bad chunk size: " + line); //$NON-NLS-1$
+        }
+
+        if (remaining == 0)
+        {
+            finished = true;
+            String trailer = Headers.readLine(in);
+            while (trailer != null && trailer.length() > 0)
+            {
+                trailer = Headers.readLine(in);
+            }
+        }
+    }
+
+}
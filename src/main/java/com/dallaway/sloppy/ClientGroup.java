@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A named set of clients sharing one bandwidth limit, such as the machines
+ * behind an office uplink or the phones on one cell.
+ * <p>
+ *
+ * Clients are matched on the start of their IP address, so a prefix of
+ * <code>192.168.1.</code> puts all of that subnet in the group.
+ */
+public class ClientGroup
+{
+
+    // The name of the group, as used in the configuration.
+    private final String name;
+
+    // IP address prefixes of the clients in the group.
+    private final List<String> prefixes;
+
+    // The limit shared by every client in the group.
+    private final TokenBucket bucket;
+
+    /**
+     * @param name the name of the group.
+     * @param prefixes IP address prefixes of the clients in the group.
+     * @param bytesPerSecond the limit for the group as a whole.
+     * @param burstBytes the burst size for the group.
+     */
+    public ClientGroup(final String name, final List<String> prefixes, final int bytesPerSecond, final int burstBytes)
+    {
+        this.name = name;
+        this.prefixes = Collections.unmodifiableList(new ArrayList<String>(prefixes));
+        this.bucket = new TokenBucket(bytesPerSecond, burstBytes);
+    }
+
+    /**
+     * @param clientId the client's IP address.
+     * @return true if the client belongs to this group.
+     */
+    public boolean contains(final String clientId)
+    {
+        for (String prefix : prefixes)
+        {
+            if (clientId.startsWith(prefix))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the name of the group.
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * @return the IP address prefixes of the clients in the group.
+     */
+    public List<String> getPrefixes()
+    {
+        return prefixes;
+    }
+
+    /**
+     * @return the limit shared by every client in the group.
+     */
+    public TokenBucket getBucket()
+    {
+        return bucket;
+    }
+
+    /**
+     * @return Human-readable version of this group.
+     */
+    @Override
+    public String toString()
+    {
+        return name + prefixes + "@" + bucket.getBytesPerSecond(); //$NON-NLS-1$
+    }
+
+}
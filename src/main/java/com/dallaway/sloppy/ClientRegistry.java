@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The {@link Usage} of each client, keyed by client id (IP address).
+ * <p>
+ *
+ * Lookups do not lock: the map is a {@link ConcurrentHashMap}, so handlers
+ * for different clients never wait for each other.  To stop a long-running
+ * Sloppy from collecting every client it has ever seen, clients that have
+ * been idle for longer than the idle time are dropped, checked every so
+ * often as clients are looked up.  If the registry still grows past its
+ * maximum size, the least recently active clients are dropped.
+ * <p>
+ *
+ * Neither drops a client with connections open, as counted by 
+ * {@link #open(String, int, int)}: the client's next connection must share
+ * the same {@link Usage}, or the client would get twice its limit.  So the
+ * registry can grow past its maximum while more clients than that are connected.
+ * <p>
+ *
+ * A client that is dropped or reset starts with a fresh {@link Usage} on
+ * its next connection.  Only a reset, asked for by the user, forgets a
+ * client whose connections are still open; they keep the usage they have.
+ */
+public class ClientRegistry
+{
+
+    // Usage of each client, keyed by client id.
+    private final ConcurrentHashMap<String, Usage> clients = new ConcurrentHashMap<String, Usage>();
+
+    // How long a client may be idle before it is dropped (milliseconds).
+    private final long idleMillis;
+
+    // The most clients to keep.
+    private final int maxClients;
+
+    // When we next look for idle clients (System.currentTimeMillis()).
+    private final AtomicLong nextSweep;
+
+    /**
+     * @param idleMillis how long a client may be idle before it is forgotten.
+     * @param maxClients the most clients to remember.
+     */
+    public ClientRegistry(final long idleMillis, final int maxClients)
+    {
+        this.idleMillis = idleMillis;
+        this.maxClients = Math.max(1, maxClients);
+        this.nextSweep = new AtomicLong(System.currentTimeMillis() + sweepInterval());
+    }
+
+    /**
+     * Find a client's usage, creating it if this is a new client.
+     * 
+     * @param clientId the client, e.g., IP address.
+     * @param bytesPerSecond the rate to limit a new client to.
+     * @param burstBytes the burst size for a new client.
+     * @return the client's usage.
+     */
+    public Usage get(final String clientId, final int bytesPerSecond, final int burstBytes)
+    {
+        Usage usage = clients.get(clientId);
+        if (usage == null)
+        {
+            Usage created = new Usage(bytesPerSecond, burstBytes);
+            usage = clients.putIfAbsent(clientId, created);
+            if (usage == null)
+            {
+                usage = created;
+                if (clients.size() > maxClients)
+                {
+                    evictLeastRecent();
+                }
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        long due = nextSweep.get();
+        if (now >= due && nextSweep.compareAndSet(due, now + sweepInterval()))
+        {
+            evictIdle(now); // Only the thread that moved nextSweep on does this
+        }
+
+        return usage;
+    }
+
+    /**
+     * Find a client's usage for a new connection, counting the connection as
+     * holding it until it calls {@link Usage#release()}.
+     * 
+     * @param clientId the client, e.g., IP address.
+     * @param bytesPerSecond the rate to limit a new client to.
+     * @param burstBytes the burst size for a new client.
+     * @return the client's usage.
+     */
+    public Usage open(final String clientId, final int bytesPerSecond, final int burstBytes)
+    {
+        while (true)
+        {
+            Usage usage = get(clientId, bytesPerSecond, burstBytes);
+            if (usage.retain())
+            {
+                return usage;
+            }
+            // Dropped as we found it: make sure it's gone, and look again
+            clients.remove(clientId, usage);
+        }
+    }
+
+    /**
+     * @param clientId the client, e.g., IP address.
+     * @return the client's usage, or null if the client is not known.
+     */
+    public Usage peek(final String clientId)
+    {
+        return clients.get(clientId);
+    }
+
+    /**
+     * @return a copy of the current usage of all known clients.
+     */
+    public Map<String, Usage> snapshot()
+    {
+        return Collections.unmodifiableMap(new HashMap<String, Usage>(clients));
+    }
+
+    /**
+     * @return the number of clients known.
+     */
+    public int size()
+    {
+        return clients.size();
+    }
+
+    /**
+     * Forget a client, so its next connection starts with a full bucket.
+     * 
+     * @param clientId the client, e.g., IP address.
+     * @return true if the client was known.
+     */
+    public boolean reset(final String clientId)
+    {
+        return clients.remove(clientId) != null;
+    }
+
+    /**
+     * Forget all clients.
+     */
+    public void resetAll()
+    {
+        clients.clear();
+    }
+
+    /**
+     * Drop the clients that have been idle too long, and have no connections open.
+     * 
+     * @param now the current time (System.currentTimeMillis()).
+     */
+    void evictIdle(final long now)
+    {
+        for (Map.Entry<String, Usage> entry : clients.entrySet())
+        {
+            if (now - entry.getValue().getLastMark() > idleMillis)
+            {
+                evict(entry);
+            }
+        }
+    }
+
+    /**
+     * Drop a client, unless it has connections open.
+     * 
+     * @param entry the client and its usage.
+     * @return true if the client was dropped.
+     */
+    private boolean evict(final Map.Entry<String, Usage> entry)
+    {
+        if (!entry.getValue().retire())
+        {
+            return false;
+        }
+        // Only remove it if it hasn't been replaced in the meantime
+        clients.remove(entry.getKey(), entry.getValue());
+        return true;
+    }
+
+    /**
+     * Bring the number of clients back under the maximum, dropping the
+     * least recently active first, but none with connections open.  We go
+     * a little under, so that a registry at its limit does not do this on
+     * every new client.
+     */
+    private synchronized void evictLeastRecent()
+    {
+        int target = maxClients - maxClients / 10;
+        if (clients.size() <= target)
+        {
+            return; // Another thread got here first
+        }
+
+        // Sort on a copy of each client's last activity: connections keep
+        // marking while we sort, and a changing order breaks the sort.
+        List<Candidate> candidates = new ArrayList<Candidate>(clients.size());
+        for (Map.Entry<String, Usage> entry : clients.entrySet())
+        {
+            candidates.add(new Candidate(entry));
+        }
+        Collections.sort(candidates);
+
+        int excess = candidates.size() - target;
+        for (int i = 0; i < candidates.size() && excess > 0; i++)
+        {
+            if (evict(candidates.get(i).entry))
+            {
+                excess--;
+            }
+        }
+    }
+
+    /**
+     * @return milliseconds between checks for idle clients.
+     */
+    private long sweepInterval()
+    {
+        return Math.max(1000L, idleMillis / 2);
+    }
+
+    /**
+     * A client that might be evicted, with when it was last active as it was
+     * when we looked.
+     */
+    private static final class Candidate implements Comparable<Candidate>
+    {
+
+        // The client.
+        private final Map.Entry<String, Usage> entry;
+
+        // The client's last activity, fixed for sorting.
+        private final long lastMark;
+
+        /**
+         * @param entry the client.
+         */
+        Candidate(final Map.Entry<String, Usage> entry)
+        {
+            this.entry = entry;
+            this.lastMark = entry.getValue().getLastMark();
+        }
+
+        public int compareTo(final Candidate other)
+        {
+            return lastMark < other.lastMark ? -1 : (lastMark == other.lastMark ? 0 : 1);
+        }
+    }
+
+}
@@ -19,14 +19,25 @@
  */
 package com.dallaway.sloppy;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.io.Serializable;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
 import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import javax.jnlp.BasicService;
 import javax.jnlp.FileContents;
@@ -42,7 +53,7 @@ import javax.jnlp.UnavailableServiceException;
  * It also knows how to save itself to disk in the JNLP
  * environment via the load and save muffins methods.
  */
-public class Configuration implements Serializable
+public class Configuration implements Serializable, Cloneable
 {
 
     private static final long serialVersionUID = 117056425192351479L;
@@ -50,11 +61,95 @@ public class Configuration implements Serializable
     /** The port we listen on by default */
     public static final int DEFAULT_LISTEN_PORT = 7569;
     
+    /** The address the admin server listens on by default: loopback, as its commands are not authenticated */
+    public static final String DEFAULT_ADMIN_ADDRESS = "127.0.0.1"; //$NON-NLS-1$
+    
     /** Default bandwidth to simulate */
     public static final int DEFAULT_BYTES_PER_SECOND = 3225;
     
+    /** Bytes a client may be sent without waiting, by default */
+    public static final int DEFAULT_BURST_BYTES = 2048;
+    
+    /** Seconds a client may be idle before its usage is forgotten, by default */
+    public static final int DEFAULT_CLIENT_IDLE_SECONDS = 300;
+    
+    /** Number of clients whose usage is remembered, by default */
+    public static final int DEFAULT_MAX_CLIENTS = 10000;
+    
+    /** Number of threads in the handler pool by default */
+    public static final int DEFAULT_WORKER_THREADS = 200;
+    
+    /** Number of connections that may wait for a pooled handler thread by default */
+    public static final int DEFAULT_ACCEPT_QUEUE = 1000;
+    
+    /** Number of idle connections kept open to each web server by default */
+    public static final int DEFAULT_UPSTREAM_MAX_IDLE_PER_HOST = 5;
+    
+    /** Seconds an idle connection to a web server is kept open by default */
+    public static final int DEFAULT_UPSTREAM_IDLE_SECONDS = 5;
+    
+    /** Milliseconds allowed for connecting to a web server by default */
+    public static final int DEFAULT_UPSTREAM_CONNECT_TIMEOUT_MILLIS = 10 * 1000;
+    
+    /** Milliseconds a web server may take to send the next part of a response by default */
+    public static final int DEFAULT_UPSTREAM_READ_TIMEOUT_MILLIS = 60 * 1000;
+    
+    /** Milliseconds of data released in each throttled write by default */
+    public static final int DEFAULT_PACING_INTERVAL_MILLIS = 10;
+    
+    /** Number of free buffers kept in each size class of the buffer pools by default */
+    public static final int DEFAULT_POOLED_BUFFERS = 256;
+    
+    /** Number of selector threads used by the NIO engine by default */
+    public static final int DEFAULT_NIO_THREADS = Runtime.getRuntime().availableProcessors();
+    
     // The bandwidth we want to limit to. 
-    private int bytesPerSecond;
+    private volatile int bytesPerSecond;
+    
+    // The bandwidth we limit uploads (data from the client) to; zero for no limit. 
+    private volatile int uploadBytesPerSecond;
+    
+    // The round trip time of the clients' link. 
+    private volatile LatencyModel latency;
+    
+    // The packet loss of the clients' link. 
+    private volatile LossModel loss;
+    
+    // The recorded rates the clients' downloads follow, or null for the fixed rate. 
+    private transient volatile BandwidthTrace trace;
+    
+    // The recorded rates the clients' uploads follow, or null for the fixed rate. 
+    private transient volatile BandwidthTrace uploadTrace;
+    
+    // The seed for the random latency and loss, or null to vary from run to run. 
+    private Long seed;
+    
+    // The number of connections given seeded randomness so far. 
+    private transient long randomCount;
+    
+    // The number of bytes a client may be sent without waiting. 
+    private volatile int burstBytes;
+    
+    // The limit for each connection; zero for no limit. 
+    private volatile int connectionBytesPerSecond;
+    
+    // The limit on everything Sloppy sends; zero for no limit. 
+    private volatile int globalBytesPerSecond;
+    
+    // The limiter for everything Sloppy sends, created on first use. 
+    private transient TokenBucket globalBucket;
+    
+    // Groups of clients sharing a limit. 
+    private List<ClientGroup> clientGroups;
+    
+    // Seconds a client may be idle before its usage is forgotten. 
+    private int clientIdleSeconds;
+    
+    // The most clients whose usage is remembered. 
+    private int maxClients;
+    
+    // The usage of each client, created on first use. 
+    private transient ClientRegistry clientRegistry;
     
     // The address we're proxying to. 
     private URL destination;
@@ -62,6 +157,85 @@ public class Configuration implements Serializable
     // The local port we're listening on. 
     private int localPort;
     
+    // The port the admin server listens on; zero for no admin server. 
+    private int adminPort;
+    
+    // The host name or IP address the admin server listens on. 
+    private String adminAddress;
+    
+    // How accepted connections are serviced. 
+    private Engine engine;
+    
+    // Whether connections carry HTTP or are tunnelled byte for byte. 
+    private ProxyMode mode;
+    
+    // The host:port tunnelled connections go to, or null for the destination URL's. 
+    private String tunnelDestination;
+    
+    // Do we also act as a forward proxy, for absolute URIs and CONNECT? 
+    private boolean forwardProxy;
+    
+    // Number of selector threads when running the NIO engine. 
+    private int nioThreads;
+    
+    // The threads that run handlers when running the thread engine. 
+    private ExecutionMode executionMode;
+    
+    // Number of handler threads in the pool execution mode. 
+    private int workerThreads;
+    
+    // Number of connections that may wait for a thread in the pool execution mode. 
+    private int acceptQueue;
+    
+    // What to do with connections when the pool's queue is full. 
+    private RejectionPolicy rejectionPolicy;
+    
+    // Number of idle keep-alive connections kept open to each web server. 
+    private int upstreamMaxIdlePerHost;
+    
+    // Seconds before an idle keep-alive connection to a web server is closed. 
+    private int upstreamIdleSeconds;
+    
+    // Milliseconds allowed for connecting to a web server. 
+    private int upstreamConnectTimeoutMillis;
+    
+    // Milliseconds a web server may take to send the next part of a response. 
+    private int upstreamReadTimeoutMillis;
+    
+    // Idle connections to web servers, created on first use. 
+    private transient UpstreamPool upstreamPool;
+    
+    // Milliseconds of data released in each throttled write. 
+    private int pacingIntervalMillis;
+    
+    // Free buffers kept in each size class of the buffer pools. 
+    private int pooledBuffers;
+    
+    // Buffers for copying, created on first use. 
+    private transient BufferPool heapBufferPool;
+    private transient BufferPool directBufferPool;
+    
+    // Times the throttled writes, created on first use. 
+    private transient PacingScheduler pacingScheduler;
+    
+    // Looks up host names for the NIO engine, created on first use. 
+    private transient Resolver resolver;
+    
+    // The connections in progress, created on first use. 
+    private transient Set<Bottleneck> connections;
+
+    // What this listener's clients have actually been given, created on first use. 
+    private transient Metrics metrics;
+    
+    // Further ports to listen on, each with its own settings. 
+    private List<Configuration> listeners;
+    
+    // The name of this listener, or null for the main configuration. 
+    private String listenerName;
+    
+    // The configuration this listener was read from, or null for the main configuration. 
+    private transient Configuration parent;
+    
     // For messages back to the user, which by default will output to the console. 
     private UserInterface ui = new ConsoleLogger();
     
@@ -71,12 +245,110 @@ public class Configuration implements Serializable
     // Name of the setting in the properties file for the bandwidth 
     private static final String BYTES_KEY = "sloppy.bytesPerSecond"; //$NON-NLS-1$
     
+    // Name of the setting in the properties file for the upload bandwidth 
+    private static final String UPLOAD_BYTES_KEY = "sloppy.uploadBytesPerSecond"; //$NON-NLS-1$
+    
+    // Name of the setting for the limit on each connection 
+    private static final String CONNECTION_BYTES_KEY = "sloppy.connectionBytesPerSecond"; //$NON-NLS-1$
+    
+    // Name of the setting for the limit on everything Sloppy sends 
+    private static final String GLOBAL_BYTES_KEY = "sloppy.globalBytesPerSecond"; //$NON-NLS-1$
+    
+    // Start of the settings for client groups: sloppy.group.NAME.clients and sloppy.group.NAME.bytesPerSecond 
+    private static final String GROUP_PREFIX = "sloppy.group."; //$NON-NLS-1$
+    
+    // Name of the setting for the round trip time of the clients' link 
+    private static final String LATENCY_KEY = "sloppy.latencyMillis"; //$NON-NLS-1$
+    
+    // Name of the setting for how far the round trip time varies 
+    private static final String JITTER_KEY = "sloppy.jitterMillis"; //$NON-NLS-1$
+    
+    // Name of the setting for how the round trip time varies (uniform or normal) 
+    private static final String JITTER_DISTRIBUTION_KEY = "sloppy.jitterDistribution"; //$NON-NLS-1$
+    
+    // Name of the setting for the share of packets lost, as a percentage 
+    private static final String LOSS_KEY = "sloppy.lossPercent"; //$NON-NLS-1$
+    
+    // Name of the setting for which packets are lost (bernoulli or gilbert_elliott) 
+    private static final String LOSS_PATTERN_KEY = "sloppy.lossPattern"; //$NON-NLS-1$
+    
+    // Name of the setting for the average number of packets lost in a row 
+    private static final String LOSS_BURST_KEY = "sloppy.lossBurstPackets"; //$NON-NLS-1$
+    
+    // Name of the setting for the seed of the random latency and loss 
+    private static final String TRACE_KEY = "sloppy.trace"; //$NON-NLS-1$
+    
+    private static final String UPLOAD_TRACE_KEY = "sloppy.uploadTrace"; //$NON-NLS-1$
+    
+    private static final String SEED_KEY = "sloppy.seed"; //$NON-NLS-1$
+    
+    // Name of the setting in the properties file for the burst size 
+    private static final String BURST_KEY = "sloppy.burstBytes"; //$NON-NLS-1$
+    
+    // Name of the setting for how long an idle client is remembered 
+    private static final String CLIENT_IDLE_SECONDS_KEY = "sloppy.clientIdleSeconds"; //$NON-NLS-1$
+    
+    // Name of the setting for the most clients remembered 
+    private static final String MAX_CLIENTS_KEY = "sloppy.maxClients"; //$NON-NLS-1$
+    
     // The names of the property for the port to listen on. 
     private static final String PORT_KEY = "sloppy.listenPort"; //$NON-NLS-1$
     
+    private static final String ADMIN_PORT_KEY = "sloppy.adminPort"; //$NON-NLS-1$
+    
+    private static final String ADMIN_ADDRESS_KEY = "sloppy.adminAddress"; //$NON-NLS-1$
+    
     // The name of the property for the URL to proxy to. 
     private static final String DESTINATION_KEY = "sloppy.desintationURL"; //$NON-NLS-1$
     
+    // The name of the property selecting the proxy engine (thread or nio). 
+    private static final String ENGINE_KEY = "sloppy.engine"; //$NON-NLS-1$
+    
+    // The name of the property selecting the proxy mode (http or tunnel). 
+    private static final String MODE_KEY = "sloppy.mode"; //$NON-NLS-1$
+    
+    // The name of the property for the host:port to tunnel connections to. 
+    private static final String TUNNEL_DESTINATION_KEY = "sloppy.tunnelDestination"; //$NON-NLS-1$
+    
+    // The name of the property turning on forward proxying (true or false). 
+    private static final String FORWARD_PROXY_KEY = "sloppy.forwardProxy"; //$NON-NLS-1$
+    
+    // The name of the property for the number of NIO selector threads. 
+    private static final String NIO_THREADS_KEY = "sloppy.nioThreads"; //$NON-NLS-1$
+    
+    // The name of the property selecting how handlers are run (platform, pool or virtual). 
+    private static final String EXECUTOR_KEY = "sloppy.executor"; //$NON-NLS-1$
+    
+    // The name of the property for the number of pooled handler threads. 
+    private static final String WORKER_THREADS_KEY = "sloppy.workerThreads"; //$NON-NLS-1$
+    
+    // The name of the property for the length of the pool's queue. 
+    private static final String ACCEPT_QUEUE_KEY = "sloppy.acceptQueue"; //$NON-NLS-1$
+    
+    // The name of the property for what to do when the pool's queue is full (unavailable or backlog). 
+    private static final String REJECTION_POLICY_KEY = "sloppy.rejectionPolicy"; //$NON-NLS-1$
+    
+    // The name of the property for the number of idle connections kept per web server. 
+    private static final String UPSTREAM_MAX_IDLE_KEY = "sloppy.upstreamMaxIdlePerHost"; //$NON-NLS-1$
+    
+    // The name of the property for how long idle connections to a web server are kept. 
+    private static final String UPSTREAM_IDLE_SECONDS_KEY = "sloppy.upstreamIdleSeconds"; //$NON-NLS-1$
+    
+    // Name of the setting for the time allowed for connecting to a web server 
+    private static final String UPSTREAM_CONNECT_TIMEOUT_KEY = "sloppy.upstreamConnectTimeoutMillis"; //$NON-NLS-1$
+    
+    // Name of the setting for the time a web server may take to send the next part of a response 
+    private static final String UPSTREAM_READ_TIMEOUT_KEY = "sloppy.upstreamReadTimeoutMillis"; //$NON-NLS-1$
+    
+    // Name of the setting for the milliseconds of data released in each throttled write 
+    private static final String PACING_INTERVAL_KEY = "sloppy.pacingIntervalMillis"; //$NON-NLS-1$
+    
+    // Name of the setting for the number of free buffers kept in each size class 
+    private static final String POOLED_BUFFERS_KEY = "sloppy.pooledBuffers"; //$NON-NLS-1$
+    
+    // The start of the names of properties for further listeners. 
+    private static final String LISTENER_PREFIX = "sloppy.listener."; //$NON-NLS-1$
+    
     // Amount of space (bytes) we need in the web cache for config. 
     private static final long MUFFIN_SIZE = 2048;
 
@@ -87,8 +359,35 @@ public class Configuration implements Serializable
     public Configuration()
     {
         this.bytesPerSecond = DEFAULT_BYTES_PER_SECOND;
+        this.uploadBytesPerSecond = 0;
+        this.latency = LatencyModel.NONE;
+        this.loss = LossModel.NONE;
+        this.burstBytes = DEFAULT_BURST_BYTES;
+        this.connectionBytesPerSecond = 0;
+        this.globalBytesPerSecond = 0;
+        this.clientGroups = Collections.emptyList();
+        this.clientIdleSeconds = DEFAULT_CLIENT_IDLE_SECONDS;
+        this.maxClients = DEFAULT_MAX_CLIENTS;
         this.destination = null;
         this.localPort = DEFAULT_LISTEN_PORT;
+        this.adminAddress = DEFAULT_ADMIN_ADDRESS;
+        this.engine = Engine.THREAD;
+        this.mode = ProxyMode.HTTP;
+        this.tunnelDestination = null;
+        this.forwardProxy = false;
+        this.pacingIntervalMillis = DEFAULT_PACING_INTERVAL_MILLIS;
+        this.pooledBuffers = DEFAULT_POOLED_BUFFERS;
+        this.listeners = new CopyOnWriteArrayList<Configuration>();
+        this.listenerName = null;
+        this.nioThreads = DEFAULT_NIO_THREADS;
+        this.executionMode = ExecutionMode.PLATFORM;
+        this.workerThreads = DEFAULT_WORKER_THREADS;
+        this.acceptQueue = DEFAULT_ACCEPT_QUEUE;
+        this.rejectionPolicy = RejectionPolicy.UNAVAILABLE;
+        this.upstreamMaxIdlePerHost = DEFAULT_UPSTREAM_MAX_IDLE_PER_HOST;
+        this.upstreamIdleSeconds = DEFAULT_UPSTREAM_IDLE_SECONDS;
+        this.upstreamConnectTimeoutMillis = DEFAULT_UPSTREAM_CONNECT_TIMEOUT_MILLIS;
+        this.upstreamReadTimeoutMillis = DEFAULT_UPSTREAM_READ_TIMEOUT_MILLIS;
     }
 
     /**
@@ -99,10 +398,61 @@ public class Configuration implements Serializable
      * The properties are:
      * <ul>
      * <li> sloppy.bytesPerSecond </li>
+     * <li> sloppy.uploadBytesPerSecond </li>
+     * <li> sloppy.latencyMillis (the round trip time) </li>
+     * <li> sloppy.jitterMillis </li>
+     * <li> sloppy.jitterDistribution (<code>uniform</code> or <code>normal</code>) </li>
+     * <li> sloppy.lossPercent </li>
+     * <li> sloppy.lossPattern (<code>bernoulli</code> or <code>gilbert_elliott</code>) </li>
+     * <li> sloppy.lossBurstPackets </li>
+     * <li> sloppy.trace (a {@link BandwidthTrace} file for the download rate to follow) </li>
+     * <li> sloppy.uploadTrace (a {@link BandwidthTrace} file for the upload rate to follow) </li>
+     * <li> sloppy.seed (makes the latency and loss the same from run to run) </li>
+     * <li> sloppy.burstBytes </li>
+     * <li> sloppy.connectionBytesPerSecond </li>
+     * <li> sloppy.globalBytesPerSecond </li>
+     * <li> sloppy.group.<i>name</i>.clients (comma separated IP address prefixes) </li>
+     * <li> sloppy.group.<i>name</i>.bytesPerSecond </li>
+     * <li> sloppy.clientIdleSeconds </li>
+     * <li> sloppy.maxClients </li>
      * <li> sloppy.destinationURL </li>
      * <li> sloppy.listenPort </li>
+     * <li> sloppy.adminPort (for the {@link AdminServer}; none by default) </li>
+     * <li> sloppy.adminAddress (the interface for the {@link AdminServer}; loopback by default) </li>
+     * <li> sloppy.engine (<code>thread</code> or <code>nio</code>) </li>
+     * <li> sloppy.nioThreads </li>
+     * <li> sloppy.mode (<code>http</code> or <code>tunnel</code>) </li>
+     * <li> sloppy.tunnelDestination (<i>host</i>:<i>port</i>, defaulting to the destination URL's) </li>
+     * <li> sloppy.forwardProxy (<code>true</code> or <code>false</code>) </li>
+     * <li> sloppy.executor (<code>platform</code>, <code>pool</code> or <code>virtual</code>) </li>
+     * <li> sloppy.workerThreads </li>
+     * <li> sloppy.acceptQueue </li>
+     * <li> sloppy.rejectionPolicy (<code>unavailable</code> or <code>backlog</code>; 
+     *      <code>backlog</code> stops every listener accepting while it waits for room) </li>
+     * <li> sloppy.upstreamMaxIdlePerHost </li>
+     * <li> sloppy.upstreamIdleSeconds </li>
+     * <li> sloppy.upstreamConnectTimeoutMillis </li>
+     * <li> sloppy.upstreamReadTimeoutMillis </li>
+     * <li> sloppy.pacingIntervalMillis </li>
+     * <li> sloppy.pooledBuffers </li>
+     * <li> sloppy.listener.<i>name</i>.port </li>
+     * <li> sloppy.listener.<i>name</i>.bandwidth (an option from the {@link BandwidthList}, e.g. <code>GPRS</code>) </li>
+     * <li> sloppy.listener.<i>name</i>.bytesPerSecond </li>
+     * <li> sloppy.listener.<i>name</i>.uploadBytesPerSecond </li>
+     * <li> sloppy.listener.<i>name</i>.latencyMillis </li>
+     * <li> sloppy.listener.<i>name</i>.jitterMillis </li>
+     * <li> sloppy.listener.<i>name</i>.jitterDistribution </li>
+     * <li> sloppy.listener.<i>name</i>.lossPercent </li>
+     * <li> sloppy.listener.<i>name</i>.lossPattern </li>
+     * <li> sloppy.listener.<i>name</i>.lossBurstPackets </li>
+     * <li> sloppy.listener.<i>name</i>.trace </li>
+     * <li> sloppy.listener.<i>name</i>.uploadTrace </li>
+     * <li> sloppy.listener.<i>name</i>.destinationURL </li>
+     * <li> sloppy.listener.<i>name</i>.tunnelDestination </li>
      * </ul>
      * 
+     * Each listener takes the other settings from the main configuration.
+     * 
      * 
      * @param	props	A properties file containing zero, one or
      * 					more settings for sloppy.
@@ -131,127 +481,536 @@ public class Configuration implements Serializable
             this.bytesPerSecond = Integer.parseInt(value);
         }
 
+        value = (String) props.get(UPLOAD_BYTES_KEY);
+        if (value != null)
+        {
+            this.uploadBytesPerSecond = Integer.parseInt(value);
+        }
+
+        this.latency = readLatency((String) props.get(LATENCY_KEY), (String) props.get(JITTER_KEY), 
+            (String) props.get(JITTER_DISTRIBUTION_KEY), latency);
+
+        this.loss = readLoss((String) props.get(LOSS_KEY), (String) props.get(LOSS_PATTERN_KEY), 
+            (String) props.get(LOSS_BURST_KEY), loss);
+
+        this.trace = readTrace((String) props.get(TRACE_KEY), trace);
+        this.uploadTrace = readTrace((String) props.get(UPLOAD_TRACE_KEY), uploadTrace);
+
+        value = (String) props.get(SEED_KEY);
+        if (value != null)
+        {
+            this.seed = Long.valueOf(value.trim());
+        }
+
+        value = (String) props.get(BURST_KEY);
+        if (value != null)
+        {
+            this.burstBytes = Integer.parseInt(value);
+        }
+
+        value = (String) props.get(CONNECTION_BYTES_KEY);
+        if (value != null)
+        {
+            this.connectionBytesPerSecond = Integer.parseInt(value);
+        }
+
+        value = (String) props.get(GLOBAL_BYTES_KEY);
+        if (value != null)
+        {
+            setGlobalBytesPerSecond(Integer.parseInt(value));
+        }
+
+        List<ClientGroup> groups = readClientGroups(props);
+        if (!groups.isEmpty())
+        {
+            this.clientGroups = groups;
+        }
+
+        value = (String) props.get(CLIENT_IDLE_SECONDS_KEY);
+        if (value != null)
+        {
+            this.clientIdleSeconds = Integer.parseInt(value);
+        }
+
+        value = (String) props.get(MAX_CLIENTS_KEY);
+        if (value != null)
+        {
+            this.maxClients = Integer.parseInt(value);
+        }
+
         value = (String) props.get(PORT_KEY);
         if (value != null)
         {
             this.localPort = Integer.parseInt(value);
         }
 
+        value = (String) props.get(ADMIN_PORT_KEY);
+        if (value != null)
+        {
+            this.adminPort = Integer.parseInt(value.trim());
+        }
+
+        value = (String) props.get(ADMIN_ADDRESS_KEY);
+        if (value != null)
+        {
+            this.adminAddress = value.trim();
+        }
+
         value = (String) props.get(DESTINATION_KEY);
         if (value != null)
         {
             this.destination = new URL(value);
         }
 
-    }
+        value = (String) props.get(ENGINE_KEY);
+        if (value != null)
+        {
+            this.engine = Engine.valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+        }
 
-    /**
-     * Update the configuration information from any muffins stored
-     * in the Web Start cache.
-     */
-    public void loadMuffins()
-    {
-        ui.debug("Loading muffins"); //$NON-NLS-1$
+        value = (String) props.get(MODE_KEY);
+        if (value != null)
+        {
+            this.mode = ProxyMode.valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+        }
 
-        PersistenceService ps = null;
-        BasicService bs = null;
+        value = (String) props.get(TUNNEL_DESTINATION_KEY);
+        if (value != null)
+        {
+            setTunnelDestination(value.trim());
+        }
 
-        try
+        value = (String) props.get(FORWARD_PROXY_KEY);
+        if (value != null)
         {
-            ps = (PersistenceService) ServiceManager.lookup("javax.jnlp.PersistenceService");  //$NON-NLS-1$
-            bs = (BasicService) ServiceManager.lookup("javax.jnlp.BasicService");  //$NON-NLS-1$
+            this.forwardProxy = Boolean.valueOf(value.trim()).booleanValue();
         }
-        catch (UnavailableServiceException e)
+
+        value = (String) props.get(NIO_THREADS_KEY);
+        if (value != null)
         {
-            ui.error(Messages.getString("error.failedToLoadSavedSettings"), e); //$NON-NLS-1$
-            return;
+            this.nioThreads = Integer.parseInt(value);
         }
 
-        // We store a properties file in the "configuration" address.
-        try
+        value = (String) props.get(EXECUTOR_KEY);
+        if (value != null)
         {
-            URL config = new URL(bs.getCodeBase(), "configuration"); //$NON-NLS-1$
-            FileContents contents = getOrCreateFile(ps, config);
-            if (contents == null)
-            {
-                return;
-            }
+            this.executionMode = ExecutionMode.valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+        }
 
-            InputStream in = contents.getInputStream();
-            Properties props = new Properties();
-            props.load(in);
-            in.close();
+        value = (String) props.get(WORKER_THREADS_KEY);
+        if (value != null)
+        {
+            this.workerThreads = Integer.parseInt(value);
+        }
 
-            init(props);
+        value = (String) props.get(ACCEPT_QUEUE_KEY);
+        if (value != null)
+        {
+            this.acceptQueue = Integer.parseInt(value);
         }
-        catch (IOException iox)
+
+        value = (String) props.get(REJECTION_POLICY_KEY);
+        if (value != null)
         {
-            ui.debug("Failed to read muffins: " + iox);	 //$NON-NLS-1$
+            this.rejectionPolicy = RejectionPolicy.valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+        }
+
+        value = (String) props.get(UPSTREAM_MAX_IDLE_KEY);
+        if (value != null)
+        {
+            this.upstreamMaxIdlePerHost = Integer.parseInt(value);
+        }
+
+        value = (String) props.get(UPSTREAM_IDLE_SECONDS_KEY);
+        if (value != null)
+        {
+            this.upstreamIdleSeconds = Integer.parseInt(value);
+        }
+
+        value = (String) props.get(UPSTREAM_CONNECT_TIMEOUT_KEY);
+        if (value != null)
+        {
+            this.upstreamConnectTimeoutMillis = Integer.parseInt(value);
+        }
+
+        value = (String) props.get(UPSTREAM_READ_TIMEOUT_KEY);
+        if (value != null)
+        {
+            this.upstreamReadTimeoutMillis = Integer.parseInt(value);
+        }
+
+        value = (String) props.get(PACING_INTERVAL_KEY);
+        if (value != null)
+        {
+            this.pacingIntervalMillis = Integer.parseInt(value);
+        }
+
+        value = (String) props.get(POOLED_BUFFERS_KEY);
+        if (value != null)
+        {
+            this.pooledBuffers = Integer.parseInt(value);
+        }
+
+        // Last, so the listeners start from all the other settings
+        List<Configuration> found = readListeners(props);
+        if (!found.isEmpty())
+        {
+            this.listeners = new CopyOnWriteArrayList<Configuration>(found);
         }
 
     }
 
     /**
-     * Fetch the muffin stored at the given address in the Java Web Start cache, or
-     * create it if it does not exist.
+     * Read the settings for further listeners: each listener has a <code>port</code>
+     * setting, and may override the bandwidth and destination.
      * 
-     * @param	ps		The persistance service to use.
-     * @param	address	The address to lookup.
-     * @return The file contents at the address.
-     * @throws IOException	if there was a problem reading the muffin.
+     * @param	props	Properties to read from.
+     * @return	The listeners found, in name order.
+     * @throws	MalformedURLException	if a destination URL is bad.
      */
-    private FileContents getOrCreateFile(final PersistenceService ps, final URL address) throws IOException
+    private List<Configuration> readListeners(final Properties props) throws MalformedURLException
     {
-        ui.debug("Muffin lookup"); //$NON-NLS-1$
-        FileContents toRet = null;
-        try
-        {
-            toRet = ps.get(address);
-
-            // See if the stream exists:
-            InputStream in = toRet.getInputStream();
-            in.close();
-        }
-        catch (FileNotFoundException fnf)
+        List<String> names = new ArrayList<String>();
+        for (String key : props.stringPropertyNames())
         {
-            ui.debug("Creating muffins"); //$NON-NLS-1$
-            // Doesn't exist, so create:
-            long sizeAllocated = ps.create(address, MUFFIN_SIZE);
-            if (sizeAllocated < MUFFIN_SIZE)
+            if (key.startsWith(LISTENER_PREFIX) && key.endsWith(".port")) //$NON-NLS-1$
             {
-                ui.debug("Asked for " + MUFFIN_SIZE + " bytes; was allocated " + sizeAllocated);	 //$NON-NLS-1$ //$NON-NLS-2$
+                names.add(key.substring(LISTENER_PREFIX.length(), key.length() - ".port".length())); //$NON-NLS-1$
             }
-            toRet = ps.get(address);
         }
+        Collections.sort(names);
 
-        return toRet;
+        List<Configuration> found = new ArrayList<Configuration>();
+        for (String name : names)
+        {
+            found.add(readListener(name, props));
+        }
+        return found;
     }
 
     /**
-     * Save the current configuration information.
+     * Read the settings for a further listener.  The listener starts from this
+     * configuration's settings, and is not listened on until it is added.
+     * 
+     * @param	name	The name of the listener.
+     * @param	props	Properties to read from: the listener's settings are named 
+     * 					<code>sloppy.listener.</code><i>name</i><code>.</code><i>setting</i>,
+     * 					and must include the <code>port</code>.
+     * @return	The listener.
+     * @throws	MalformedURLException	if the destination URL is bad.
+     * @throws	IllegalArgumentException	if a setting is bad, or the port is missing.
      */
-    public void saveMuffins()
+    public Configuration readListener(final String name, final Properties props) throws MalformedURLException
     {
-        ui.debug("Saving muffins"); //$NON-NLS-1$
-
-        PersistenceService ps = null;
-        BasicService bs = null;
-
-        try
+        String prefix = LISTENER_PREFIX + name;
+        Configuration listener = newListener(name);
+        String value = props.getProperty(prefix + ".port"); //$NON-NLS-1$
+        if (value == null)
         {
-            ps = (PersistenceService) ServiceManager.lookup("javax.jnlp.PersistenceService");  //$NON-NLS-1$
-            bs = (BasicService) ServiceManager.lookup("javax.jnlp.BasicService");  //$NON-NLS-1$
+            throw new IllegalArgumentException("No port for listener " + name); //$NON-NLS-1$
         }
-        catch (UnavailableServiceException e)
+        listener.localPort = Integer.parseInt(value.trim());
+        if (listener.localPort < 0 || listener.localPort > 65535)
         {
-            ui.error(Messages.getString("error.failedToSaveSettings"), e); //$NON-NLS-1$
-            return;
+            throw new IllegalArgumentException("Bad port for listener " + name + ": " + value); //$NON-NLS-1$ //$NON-NLS-2$
         }
 
-        // We store a properties file in the "configuration" address.
-        try
+        value = props.getProperty(prefix + ".bandwidth"); //$NON-NLS-1$
+        if (value != null)
         {
-            URL config = new URL(bs.getCodeBase(), "configuration"); //$NON-NLS-1$
+            Bandwidth bandwidth = new BandwidthList(bytesPerSecond).find(value.trim());
+            if (bandwidth == null)
+            {
+                throw new IllegalArgumentException("Unknown bandwidth for listener " + name + ": " + value); //$NON-NLS-1$ //$NON-NLS-2$
+            }
+            listener.setBandwidth(bandwidth);
+        }
+
+        value = props.getProperty(prefix + ".bytesPerSecond"); //$NON-NLS-1$
+        if (value != null)
+        {
+            listener.bytesPerSecond = Integer.parseInt(value.trim());
+        }
+
+        value = props.getProperty(prefix + ".uploadBytesPerSecond"); //$NON-NLS-1$
+        if (value != null)
+        {
+            listener.uploadBytesPerSecond = Integer.parseInt(value.trim());
+        }
+
+        listener.latency = readLatency(props.getProperty(prefix + ".latencyMillis"), props.getProperty(prefix + ".jitterMillis"), //$NON-NLS-1$ //$NON-NLS-2$
+            props.getProperty(prefix + ".jitterDistribution"), listener.latency); //$NON-NLS-1$
+        listener.loss = readLoss(props.getProperty(prefix + ".lossPercent"), props.getProperty(prefix + ".lossPattern"), //$NON-NLS-1$ //$NON-NLS-2$
+            props.getProperty(prefix + ".lossBurstPackets"), listener.loss); //$NON-NLS-1$
+        listener.trace = readTrace(props.getProperty(prefix + ".trace"), listener.trace); //$NON-NLS-1$
+        listener.uploadTrace = readTrace(props.getProperty(prefix + ".uploadTrace"), listener.uploadTrace); //$NON-NLS-1$
+
+        value = props.getProperty(prefix + ".destinationURL"); //$NON-NLS-1$
+        if (value != null)
+        {
+            listener.destination = new URL(value.trim());
+        }
+
+        value = props.getProperty(prefix + ".tunnelDestination"); //$NON-NLS-1$
+        if (value != null)
+        {
+            listener.setTunnelDestination(value.trim());
+        }
+
+        return listener;
+    }
+
+    /**
+     * Work out the latency from its settings, any of which may be missing.
+     * 
+     * @param	roundTrip	The round trip time in milliseconds, or null.
+     * @param	jitter	The jitter in milliseconds, or null.
+     * @param	distribution	The jitter distribution, or null.
+     * @param	current	The latency to take missing settings from.
+     * @return	The latency.
+     */
+    private static LatencyModel readLatency(final String roundTrip, final String jitter, final String distribution, 
+        final LatencyModel current)
+    {
+        if (roundTrip == null && jitter == null && distribution == null)
+        {
+            return current;
+        }
+        return new LatencyModel(
+            roundTrip == null ? current.getRoundTripMillis() : Integer.parseInt(roundTrip.trim()),
+            jitter == null ? current.getJitterMillis() : Integer.parseInt(jitter.trim()),
+            distribution == null ? current.getDistribution() : JitterDistribution.valueOf(distribution.trim().toUpperCase(Locale.ENGLISH)));
+    }
+
+    /**
+     * Work out the packet loss from its settings, any of which may be missing.
+     * 
+     * @param	percent	The share of packets lost, or null.
+     * @param	pattern	Which packets are lost, or null.
+     * @param	burst	The average number of packets lost in a row, or null.
+     * @param	current	The loss to take missing settings from.
+     * @return	The loss.
+     */
+    private static LossModel readLoss(final String percent, final String pattern, final String burst, 
+        final LossModel current)
+    {
+        if (percent == null && pattern == null && burst == null)
+        {
+            return current;
+        }
+        return new LossModel(
+            pattern == null ? current.getPattern() : LossPattern.valueOf(pattern.trim().toUpperCase(Locale.ENGLISH).replace('-', '_')),
+            percent == null ? current.getLossPercent() : Float.parseFloat(percent.trim()),
+            burst == null ? current.getBurstPackets() : Float.parseFloat(burst.trim()));
+    }
+
+    /**
+     * Open a bandwidth trace from its setting.
+     * 
+     * @param	path	The trace file, empty for none, or null.
+     * @param	current	The trace to keep if the setting is missing.
+     * @return	The trace, or null for none.
+     * @throws IllegalArgumentException if the trace can't be read.
+     */
+    private static BandwidthTrace readTrace(final String path, final BandwidthTrace current)
+    {
+        if (path == null)
+        {
+            return current;
+        }
+        if (path.trim().length() == 0)
+        {
+            return null;
+        }
+        try
+        {
+            return BandwidthTrace.open(new File(path.trim()));
+        }
+        catch (IOException iox)
+        {
+            throw new IllegalArgumentException("Can't read bandwidth trace " + path + ": " + iox.getMessage(), iox); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+    }
+
+    /**
+     * Make the settings for a further listener: a copy of this configuration
+     * with its own client registry, so its clients are limited separately, 
+     * but sharing the global limit and the connections to web servers.
+     * 
+     * @param	name	The name of the listener.
+     * @return	The new listener's configuration.
+     */
+    private Configuration newListener(final String name)
+    {
+        Configuration listener;
+        try
+        {
+            listener = (Configuration) clone();
+        }
+        catch (CloneNotSupportedException cnsx)
+        {
+            throw new AssertionError(cnsx);
+        }
+        listener.listenerName = name;
+        listener.parent = this;
+        listener.listeners = Collections.emptyList();
+        listener.adminPort = 0;
+        listener.clientRegistry = null;
+        listener.globalBucket = null;
+        listener.upstreamPool = null;
+        listener.heapBufferPool = null;
+        listener.directBufferPool = null;
+        listener.pacingScheduler = null;
+        listener.resolver = null;
+        listener.connections = null;
+        listener.metrics = null;
+        return listener;
+    }
+
+    /**
+     * Read the client group settings: each group has a <code>clients</code> setting
+     * listing IP address prefixes, and a <code>bytesPerSecond</code> setting.
+     * 
+     * @param	props	Properties to read from.
+     * @return	The groups found, in name order.
+     */
+    private List<ClientGroup> readClientGroups(final Properties props)
+    {
+        List<String> names = new ArrayList<String>();
+        for (String key : props.stringPropertyNames())
+        {
+            if (key.startsWith(GROUP_PREFIX) && key.endsWith(".clients")) //$NON-NLS-1$
+            {
+                names.add(key.substring(GROUP_PREFIX.length(), key.length() - ".clients".length())); //$NON-NLS-1$
+            }
+        }
+        Collections.sort(names);
+
+        List<ClientGroup> groups = new ArrayList<ClientGroup>();
+        for (String name : names)
+        {
+            List<String> prefixes = new ArrayList<String>();
+            for (String prefix : Arrays.asList(props.getProperty(GROUP_PREFIX + name + ".clients").split(","))) //$NON-NLS-1$ //$NON-NLS-2$
+            {
+                if (prefix.trim().length() > 0)
+                {
+                    prefixes.add(prefix.trim());
+                }
+            }
+            String rate = props.getProperty(GROUP_PREFIX + name + ".bytesPerSecond", "0"); //$NON-NLS-1$ //$NON-NLS-2$
+            groups.add(new ClientGroup(name, prefixes, Integer.parseInt(rate.trim()), burstBytes));
+        }
+        return groups;
+    }
+
+    /**
+     * Update the configuration information from any muffins stored
+     * in the Web Start cache.
+     */
+    public void loadMuffins()
+    {
+        ui.debug("Loading muffins"); //$NON-NLS-1$
+
+        PersistenceService ps = null;
+        BasicService bs = null;
+
+        try
+        {
+            ps = (PersistenceService) ServiceManager.lookup("javax.jnlp.PersistenceService");  //$NON-NLS-1$
+            bs = (BasicService) ServiceManager.lookup("javax.jnlp.BasicService");  //$NON-NLS-1$
+        }
+        catch (UnavailableServiceException e)
+        {
+            ui.error(Messages.getString("error.failedToLoadSavedSettings"), e); //$NON-NLS-1$
+            return;
+        }
+
+        // We store a properties file in the "configuration" address.
+        try
+        {
+            URL config = new URL(bs.getCodeBase(), "configuration"); //$NON-NLS-1$
+            FileContents contents = getOrCreateFile(ps, config);
+            if (contents == null)
+            {
+                return;
+            }
+
+            InputStream in = contents.getInputStream();
+            Properties props = new Properties();
+            props.load(in);
+            in.close();
+
+            init(props);
+        }
+        catch (IOException iox)
+        {
+            ui.debug("Failed to read muffins: " + iox);	 //$NON-NLS-1$
+        }
+
+    }
+
+    /**
+     * Fetch the muffin stored at the given address in the Java Web Start cache, or
+     * create it if it does not exist.
+     * 
+     * @param	ps		The persistance service to use.
+     * @param	address	The address to lookup.
+     * @return The file contents at the address.
+     * @throws IOException	if there was a problem reading the muffin.
+     */
+    private FileContents getOrCreateFile(final PersistenceService ps, final URL address) throws IOException
+    {
+        ui.debug("Muffin lookup"); //$NON-NLS-1$
+        FileContents toRet = null;
+        try
+        {
+            toRet = ps.get(address);
+
+            // See if the stream exists:
+            InputStream in = toRet.getInputStream();
+            in.close();
+        }
+        catch (FileNotFoundException fnf)
+        {
+            ui.debug("Creating muffins"); //$NON-NLS-1$
+            // Doesn't exist, so create:
+            long sizeAllocated = ps.create(address, MUFFIN_SIZE);
+            if (sizeAllocated < MUFFIN_SIZE)
+            {
+                ui.debug("Asked for " + MUFFIN_SIZE + " bytes; was allocated " + sizeAllocated);	 //$NON-NLS-1$ //$NON-NLS-2$
+            }
+            toRet = ps.get(address);
+        }
+
+        return toRet;
+    }
+
+    /**
+     * Save the current configuration information.
+     */
+    public void saveMuffins()
+    {
+        ui.debug("Saving muffins"); //$NON-NLS-1$
+
+        PersistenceService ps = null;
+        BasicService bs = null;
+
+        try
+        {
+            ps = (PersistenceService) ServiceManager.lookup("javax.jnlp.PersistenceService");  //$NON-NLS-1$
+            bs = (BasicService) ServiceManager.lookup("javax.jnlp.BasicService");  //$NON-NLS-1$
+        }
+        catch (UnavailableServiceException e)
+        {
+            ui.error(Messages.getString("error.failedToSaveSettings"), e); //$NON-NLS-1$
+            return;
+        }
+
+        // We store a properties file in the "configuration" address.
+        try
+        {
+            URL config = new URL(bs.getCodeBase(), "configuration"); //$NON-NLS-1$
             FileContents contents = getOrCreateFile(ps, config);
             if (contents == null)
             {
@@ -266,6 +1025,13 @@ public class Configuration implements Serializable
             }
             out.println(PORT_KEY + "=" + localPort); //$NON-NLS-1$
             out.println(BYTES_KEY + "=" + bytesPerSecond); //$NON-NLS-1$
+            out.println(UPLOAD_BYTES_KEY + "=" + uploadBytesPerSecond); //$NON-NLS-1$
+            out.println(LATENCY_KEY + "=" + latency.getRoundTripMillis()); //$NON-NLS-1$
+            out.println(JITTER_KEY + "=" + latency.getJitterMillis()); //$NON-NLS-1$
+            out.println(JITTER_DISTRIBUTION_KEY + "=" + latency.getDistribution().name().toLowerCase(Locale.ENGLISH)); //$NON-NLS-1$
+            out.println(LOSS_KEY + "=" + loss.getLossPercent()); //$NON-NLS-1$
+            out.println(LOSS_PATTERN_KEY + "=" + loss.getPattern().name().toLowerCase(Locale.ENGLISH)); //$NON-NLS-1$
+            out.println(LOSS_BURST_KEY + "=" + loss.getBurstPackets()); //$NON-NLS-1$
             out.close();
 
         }
@@ -282,9 +1048,67 @@ public class Configuration implements Serializable
     @Override public String toString()
     {
         StringBuffer b = new StringBuffer();
+        if (listenerName != null)
+        {
+            b.append("Listener=").append(listenerName).append(' '); //$NON-NLS-1$
+        }
         b.append("Port=").append(localPort); //$NON-NLS-1$
+        if (adminPort > 0)
+        {
+            b.append(" Admin port=").append(adminPort).append(" on ").append(adminAddress); //$NON-NLS-1$ //$NON-NLS-2$
+        }
         b.append(" Destination=").append(destination); //$NON-NLS-1$
         b.append(" Bytes per second=").append(bytesPerSecond); //$NON-NLS-1$
+        if (uploadBytesPerSecond > 0)
+        {
+            b.append(" Upload=").append(uploadBytesPerSecond); //$NON-NLS-1$
+        }
+        if (latency.hasDelay())
+        {
+            b.append(" Latency=").append(latency); //$NON-NLS-1$
+        }
+        if (loss.hasLoss())
+        {
+            b.append(" Loss=").append(loss); //$NON-NLS-1$
+        }
+        if (trace != null)
+        {
+            b.append(" Trace=").append(trace); //$NON-NLS-1$
+        }
+        if (uploadTrace != null)
+        {
+            b.append(" Upload trace=").append(uploadTrace); //$NON-NLS-1$
+        }
+        if (seed != null)
+        {
+            b.append(" Seed=").append(seed); //$NON-NLS-1$
+        }
+        if (connectionBytesPerSecond > 0)
+        {
+            b.append(" Per connection=").append(connectionBytesPerSecond); //$NON-NLS-1$
+        }
+        if (!clientGroups.isEmpty())
+        {
+            b.append(" Groups=").append(clientGroups); //$NON-NLS-1$
+        }
+        if (getGlobalBytesPerSecond() > 0)
+        {
+            b.append(" Global=").append(getGlobalBytesPerSecond()); //$NON-NLS-1$
+        }
+        if (mode == ProxyMode.TUNNEL)
+        {
+            InetSocketAddress tunnel = getTunnelDestination();
+            b.append(" Tunnel=").append(tunnel == null ? null : tunnel.getHostString() + ":" + tunnel.getPort()); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        if (forwardProxy)
+        {
+            b.append(" Forward proxy"); //$NON-NLS-1$
+        }
+        b.append(" Engine=").append(engine); //$NON-NLS-1$
+        if (engine == Engine.THREAD)
+        {
+            b.append(" Executor=").append(executionMode); //$NON-NLS-1$
+        }
         return b.toString();
     }
 
@@ -305,53 +1129,784 @@ public class Configuration implements Serializable
     }
 
     /**
-     * @return The destination URL to proxy to.
+     * @return Maximum bytes per second the client may upload; zero for no limit.
      */
-    public URL getDestination()
+    public int getUploadBytesPerSecond()
     {
-        return destination;
+        return uploadBytesPerSecond;
     }
 
     /**
-     * @param destination The address to proxy to.
+     * @param uploadBytesPerSecond Maximum bytes per second the client may upload; zero for no limit.
      */
-    public void setDestination(final URL destination)
+    public void setUploadBytesPerSecond(final int uploadBytesPerSecond)
     {
-        this.destination = destination;
+        this.uploadBytesPerSecond = uploadBytesPerSecond;
     }
 
     /**
-     * @return The local port Sloppy listens on.
+     * Limit downloads and uploads to the rates of the given bandwidth setting,
+     * and give the clients its latency and loss.  Any traces stop being followed.
+     * 
+     * @param bandwidth The setting chosen by the user.
      */
-    public int getLocalPort()
+    public void setBandwidth(final Bandwidth bandwidth)
     {
-        return localPort;
+        this.bytesPerSecond = bandwidth.getBytesPerSecond();
+        this.uploadBytesPerSecond = bandwidth.getUploadBytesPerSecond();
+        this.latency = bandwidth.getLatency();
+        this.loss = bandwidth.getLoss();
+        this.trace = null;
+        this.uploadTrace = null;
     }
 
     /**
-     * @param localPort The port that Sloppy listens on.
+     * @return The recorded rates the clients' downloads follow, or null if they
+     *         are limited to {@link #getBytesPerSecond()}.
      */
-    public void setLocalPort(final int localPort)
+    public BandwidthTrace getTrace()
     {
-        this.localPort = localPort;
+        return trace;
     }
 
     /**
-     * @param	ui	The user interface to use for communicating
-     * 				with the user.
+     * @param trace The recorded rates for the clients' downloads to follow, or null for the fixed rate.
      */
-    public void setUserInterface(final UserInterface ui)
+    public void setTrace(final BandwidthTrace trace)
     {
-        this.ui = ui;
+        this.trace = trace;
     }
 
     /**
-     * @return	The user interface to use for communicating
-     * 			with the user.
+     * @return The recorded rates the clients' uploads follow, or null if they
+     *         are limited to {@link #getUploadBytesPerSecond()}.
      */
-    public UserInterface getUserInterface()
+    public BandwidthTrace getUploadTrace()
     {
-        return this.ui;
+        return uploadTrace;
+    }
+
+    /**
+     * @param uploadTrace The recorded rates for the clients' uploads to follow, or null for the fixed rate.
+     */
+    public void setUploadTrace(final BandwidthTrace uploadTrace)
+    {
+        this.uploadTrace = uploadTrace;
+    }
+
+    /**
+     * @return The round trip time of the clients' link.
+     */
+    public LatencyModel getLatency()
+    {
+        return latency;
+    }
+
+    /**
+     * @param latency The round trip time of the clients' link.
+     */
+    public void setLatency(final LatencyModel latency)
+    {
+        this.latency = latency;
+    }
+
+    /**
+     * @return The packet loss of the clients' link.
+     */
+    public LossModel getLoss()
+    {
+        return loss;
+    }
+
+    /**
+     * @param loss The packet loss of the clients' link.
+     */
+    public void setLoss(final LossModel loss)
+    {
+        this.loss = loss;
+    }
+
+    /**
+     * @return The seed for the random latency and loss, or null if they vary from run to run.
+     */
+    public Long getSeed()
+    {
+        return seed;
+    }
+
+    /**
+     * @param seed The seed for the random latency and loss, or null to vary them from run to run.
+     */
+    public void setSeed(final Long seed)
+    {
+        this.seed = seed;
+    }
+
+    /**
+     * Make the randomness for a new connection.  With a seed, the randomness of
+     * each connection follows from the seed and the number of connections before
+     * it, so the same seed and the same connections give the same latency and loss.
+     * 
+     * @return A source of randomness for one connection.
+     */
+    public synchronized Random newRandom()
+    {
+        if (parent != null)
+        {
+            return parent.newRandom();
+        }
+        if (seed == null)
+        {
+            return new Random();
+        }
+        Random connections = new Random(seed.longValue() + randomCount++);
+        return new Random(connections.nextLong());
+    }
+
+    /**
+     * @return The number of bytes a client may be sent without waiting.
+     */
+    public int getBurstBytes()
+    {
+        return burstBytes;
+    }
+
+    /**
+     * @param burstBytes The number of bytes a client may be sent without waiting.
+     */
+    public void setBurstBytes(final int burstBytes)
+    {
+        this.burstBytes = burstBytes;
+    }
+
+    /**
+     * @return The limit for each connection, in bytes per second; zero for no limit.
+     */
+    public int getConnectionBytesPerSecond()
+    {
+        return connectionBytesPerSecond;
+    }
+
+    /**
+     * @param connectionBytesPerSecond The limit for each connection; zero for no limit.
+     */
+    public void setConnectionBytesPerSecond(final int connectionBytesPerSecond)
+    {
+        this.connectionBytesPerSecond = connectionBytesPerSecond;
+    }
+
+    /**
+     * @return The limit on everything Sloppy sends, in bytes per second; zero for no limit.
+     */
+    public int getGlobalBytesPerSecond()
+    {
+        if (parent != null)
+        {
+            return parent.getGlobalBytesPerSecond();
+        }
+        return globalBytesPerSecond;
+    }
+
+    /**
+     * @param globalBytesPerSecond The limit on everything Sloppy sends; zero for no limit.
+     */
+    public synchronized void setGlobalBytesPerSecond(final int globalBytesPerSecond)
+    {
+        if (parent != null)
+        {
+            parent.setGlobalBytesPerSecond(globalBytesPerSecond);
+            return;
+        }
+        this.globalBytesPerSecond = globalBytesPerSecond;
+        if (globalBucket != null)
+        {
+            globalBucket.setBytesPerSecond(globalBytesPerSecond);
+        }
+    }
+
+    /**
+     * @return The limiter shared by every connection.
+     */
+    public synchronized TokenBucket getGlobalBucket()
+    {
+        if (parent != null)
+        {
+            return parent.getGlobalBucket();
+        }
+        if (globalBucket == null)
+        {
+            globalBucket = new TokenBucket(globalBytesPerSecond, burstBytes);
+        }
+        return globalBucket;
+    }
+
+    /**
+     * @return The groups of clients sharing a limit.
+     */
+    public List<ClientGroup> getClientGroups()
+    {
+        return clientGroups;
+    }
+
+    /**
+     * @param clientId A client's IP address.
+     * @return The first group containing the client, or null if none does.
+     */
+    public ClientGroup getClientGroup(final String clientId)
+    {
+        for (ClientGroup group : clientGroups)
+        {
+            if (group.contains(clientId))
+            {
+                return group;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The usage of each client.  The registry is created on first use,
+     *         from the idle time and maximum number of clients at that time.
+     */
+    public synchronized ClientRegistry getClientRegistry()
+    {
+        if (clientRegistry == null)
+        {
+            clientRegistry = new ClientRegistry(clientIdleSeconds * 1000L, maxClients);
+        }
+        return clientRegistry;
+    }
+
+    /**
+     * @return Seconds a client may be idle before its usage is forgotten.
+     */
+    public int getClientIdleSeconds()
+    {
+        return clientIdleSeconds;
+    }
+
+    /**
+     * @return The most clients whose usage is remembered.
+     */
+    public int getMaxClients()
+    {
+        return maxClients;
+    }
+
+    /**
+     * @return The destination URL to proxy to.
+     */
+    public URL getDestination()
+    {
+        return destination;
+    }
+
+    /**
+     * @param destination The address to proxy to.
+     */
+    public void setDestination(final URL destination)
+    {
+        this.destination = destination;
+    }
+
+    /**
+     * @return The local port Sloppy listens on.
+     */
+    public int getLocalPort()
+    {
+        return localPort;
+    }
+
+    /**
+     * @param localPort The port that Sloppy listens on.
+     */
+    public void setLocalPort(final int localPort)
+    {
+        this.localPort = localPort;
+    }
+
+    /**
+     * @return The port the {@link AdminServer} listens on; zero for none.
+     */
+    public int getAdminPort()
+    {
+        return adminPort;
+    }
+
+    /**
+     * @param adminPort The port for the {@link AdminServer} to listen on; zero for none.
+     */
+    public void setAdminPort(final int adminPort)
+    {
+        this.adminPort = adminPort;
+    }
+
+    /**
+     * @return The host name or IP address the {@link AdminServer} listens on.
+     */
+    public String getAdminAddress()
+    {
+        return adminAddress;
+    }
+
+    /**
+     * @param adminAddress The host name or IP address for the {@link AdminServer} to 
+     *        listen on, such as 0.0.0.0 for every interface.  Anyone who can reach
+     *        it can change the settings and stop the server.
+     */
+    public void setAdminAddress(final String adminAddress)
+    {
+        this.adminAddress = adminAddress;
+    }
+
+    /**
+     * @return How accepted connections are serviced.
+     */
+    public Engine getEngine()
+    {
+        return engine;
+    }
+
+    /**
+     * @param engine How accepted connections are serviced.
+     */
+    public void setEngine(final Engine engine)
+    {
+        this.engine = engine;
+    }
+
+    /**
+     * @return Whether connections carry HTTP or are tunnelled byte for byte.
+     */
+    public ProxyMode getMode()
+    {
+        return mode;
+    }
+
+    /**
+     * @param mode Whether connections carry HTTP or are tunnelled byte for byte.
+     */
+    public void setMode(final ProxyMode mode)
+    {
+        this.mode = mode;
+    }
+
+    /**
+     * @return Where tunnelled connections go: the <code>sloppy.tunnelDestination</code>
+     *         setting if there is one, otherwise the host and port of the destination URL.
+     *         Null if neither is set.
+     */
+    public InetSocketAddress getTunnelDestination()
+    {
+        if (tunnelDestination != null)
+        {
+            return Util.parseHostPort(tunnelDestination, -1);
+        }
+        if (destination != null)
+        {
+            int port = destination.getPort() == -1 ? destination.getDefaultPort() : destination.getPort();
+            return InetSocketAddress.createUnresolved(destination.getHost(), port);
+        }
+        return null;
+    }
+
+    /**
+     * @param tunnelDestination The <i>host</i>:<i>port</i> to tunnel connections to,
+     *        or null to use the destination URL's.
+     * @throws IllegalArgumentException if the value is not a host and port.
+     */
+    public void setTunnelDestination(final String tunnelDestination)
+    {
+        if (tunnelDestination != null)
+        {
+            Util.parseHostPort(tunnelDestination, -1); // Fail now rather than on the first connection
+        }
+        this.tunnelDestination = tunnelDestination;
+    }
+
+    /**
+     * @return True if browsers may also use Sloppy as a forward proxy: requests 
+     *         for absolute URIs go to the host named in the URI, and CONNECT 
+     *         requests are tunnelled.
+     */
+    public boolean isForwardProxy()
+    {
+        return forwardProxy;
+    }
+
+    /**
+     * @param forwardProxy True if browsers may also use Sloppy as a forward proxy.
+     */
+    public void setForwardProxy(final boolean forwardProxy)
+    {
+        this.forwardProxy = forwardProxy;
+    }
+
+    /**
+     * @return The number of selector threads used by the NIO engine.
+     */
+    public int getNioThreads()
+    {
+        return nioThreads;
+    }
+
+    /**
+     * @param nioThreads The number of selector threads used by the NIO engine.
+     */
+    public void setNioThreads(final int nioThreads)
+    {
+        this.nioThreads = nioThreads;
+    }
+
+    /**
+     * @return How handlers are run under the thread engine.
+     */
+    public ExecutionMode getExecutionMode()
+    {
+        return executionMode;
+    }
+
+    /**
+     * @param executionMode How handlers are run under the thread engine.
+     */
+    public void setExecutionMode(final ExecutionMode executionMode)
+    {
+        this.executionMode = executionMode;
+    }
+
+    /**
+     * @return The number of handler threads in the pool execution mode.
+     */
+    public int getWorkerThreads()
+    {
+        return workerThreads;
+    }
+
+    /**
+     * @param workerThreads The number of handler threads in the pool execution mode.
+     */
+    public void setWorkerThreads(final int workerThreads)
+    {
+        this.workerThreads = workerThreads;
+    }
+
+    /**
+     * @return The number of connections that may wait for a pooled handler thread.
+     */
+    public int getAcceptQueue()
+    {
+        return acceptQueue;
+    }
+
+    /**
+     * @param acceptQueue The number of connections that may wait for a pooled handler thread.
+     */
+    public void setAcceptQueue(final int acceptQueue)
+    {
+        this.acceptQueue = acceptQueue;
+    }
+
+    /**
+     * @return What to do with connections when the pool's queue is full.
+     */
+    public RejectionPolicy getRejectionPolicy()
+    {
+        return rejectionPolicy;
+    }
+
+    /**
+     * One thread accepts for every listener, so under {@link RejectionPolicy#BACKLOG}
+     * no listener accepts while it waits for room, for up to 
+     * {@link HandlerPool#BACKLOG_WAIT_MILLIS} for each connection that finds the queue full.
+     * 
+     * @param rejectionPolicy What to do with connections when the pool's queue is full.
+     */
+    public void setRejectionPolicy(final RejectionPolicy rejectionPolicy)
+    {
+        this.rejectionPolicy = rejectionPolicy;
+    }
+
+    /**
+     * @return The number of idle keep-alive connections kept open to each web server.
+     */
+    public int getUpstreamMaxIdlePerHost()
+    {
+        return upstreamMaxIdlePerHost;
+    }
+
+    /**
+     * @param upstreamMaxIdlePerHost The number of idle keep-alive connections kept open to each web server.
+     */
+    public void setUpstreamMaxIdlePerHost(final int upstreamMaxIdlePerHost)
+    {
+        this.upstreamMaxIdlePerHost = upstreamMaxIdlePerHost;
+    }
+
+    /**
+     * @return Seconds before an idle keep-alive connection to a web server is closed.
+     */
+    public int getUpstreamIdleSeconds()
+    {
+        return upstreamIdleSeconds;
+    }
+
+    /**
+     * @param upstreamIdleSeconds Seconds before an idle keep-alive connection to a web server is closed.
+     */
+    public void setUpstreamIdleSeconds(final int upstreamIdleSeconds)
+    {
+        this.upstreamIdleSeconds = upstreamIdleSeconds;
+    }
+
+    /**
+     * @return Milliseconds allowed for connecting to a web server.
+     */
+    public int getUpstreamConnectTimeoutMillis()
+    {
+        return upstreamConnectTimeoutMillis;
+    }
+
+    /**
+     * @param upstreamConnectTimeoutMillis Milliseconds allowed for connecting to a web server.
+     */
+    public void setUpstreamConnectTimeoutMillis(final int upstreamConnectTimeoutMillis)
+    {
+        this.upstreamConnectTimeoutMillis = upstreamConnectTimeoutMillis;
+    }
+
+    /**
+     * @return Milliseconds a web server may take to send the next part of a response.
+     */
+    public int getUpstreamReadTimeoutMillis()
+    {
+        return upstreamReadTimeoutMillis;
+    }
+
+    /**
+     * @param upstreamReadTimeoutMillis Milliseconds a web server may take to send the next part of a response.
+     */
+    public void setUpstreamReadTimeoutMillis(final int upstreamReadTimeoutMillis)
+    {
+        this.upstreamReadTimeoutMillis = upstreamReadTimeoutMillis;
+    }
+
+    /**
+     * @return The idle keep-alive connections to web servers.  The pool is created
+     *         on first use, from the upstream settings at that time.
+     */
+    public synchronized UpstreamPool getUpstreamPool()
+    {
+        if (parent != null)
+        {
+            return parent.getUpstreamPool();
+        }
+        if (upstreamPool == null)
+        {
+            upstreamPool = new UpstreamPool(upstreamMaxIdlePerHost, upstreamIdleSeconds * 1000L,
+                upstreamConnectTimeoutMillis, upstreamReadTimeoutMillis);
+        }
+        return upstreamPool;
+    }
+
+    /**
+     * @param	ui	The user interface to use for communicating
+     * 				with the user.
+     */
+    public void setUserInterface(final UserInterface ui)
+    {
+        this.ui = ui;
+        for (Configuration listener : listeners)
+        {
+            listener.setUserInterface(ui);
+        }
+    }
+
+    /**
+     * @return	The user interface to use for communicating
+     * 			with the user.
+     */
+    public UserInterface getUserInterface()
+    {
+        return this.ui;
+    }
+
+    /**
+     * @return Milliseconds of data released in each throttled write; this sets 
+     *         the size of the chunks bodies are copied in.
+     */
+    public int getPacingIntervalMillis()
+    {
+        return pacingIntervalMillis;
+    }
+
+    /**
+     * @param pacingIntervalMillis Milliseconds of data released in each throttled write.
+     */
+    public void setPacingIntervalMillis(final int pacingIntervalMillis)
+    {
+        this.pacingIntervalMillis = pacingIntervalMillis;
+    }
+
+    /**
+     * @return Free buffers kept in each size class of the buffer pools.
+     */
+    public int getPooledBuffers()
+    {
+        return pooledBuffers;
+    }
+
+    /**
+     * @param pooledBuffers Free buffers kept in each size class of the buffer pools.
+     */
+    public void setPooledBuffers(final int pooledBuffers)
+    {
+        this.pooledBuffers = pooledBuffers;
+    }
+
+    /**
+     * @return Heap buffers for copying with streams, shared by all listeners.
+     *         The pool is created on first use.
+     */
+    public synchronized BufferPool getHeapBufferPool()
+    {
+        if (parent != null)
+        {
+            return parent.getHeapBufferPool();
+        }
+        if (heapBufferPool == null)
+        {
+            heapBufferPool = new BufferPool(pooledBuffers, false);
+        }
+        return heapBufferPool;
+    }
+
+    /**
+     * @return Direct buffers for copying between channels, shared by all listeners.
+     *         The pool is created on first use.
+     */
+    public synchronized BufferPool getDirectBufferPool()
+    {
+        if (parent != null)
+        {
+            return parent.getDirectBufferPool();
+        }
+        if (directBufferPool == null)
+        {
+            directBufferPool = new BufferPool(pooledBuffers, true);
+        }
+        return directBufferPool;
+    }
+
+    /**
+     * @return The scheduler timing all throttled writes, shared by all listeners.
+     *         It is created on first use.
+     */
+    public synchronized PacingScheduler getPacingScheduler()
+    {
+        if (parent != null)
+        {
+            return parent.getPacingScheduler();
+        }
+        if (pacingScheduler == null)
+        {
+            pacingScheduler = new PacingScheduler(ui);
+        }
+        return pacingScheduler;
+    }
+
+    /**
+     * @return The resolver looking up host names off the event loops, shared by 
+     *         all listeners.  It is created on first use.
+     */
+    public synchronized Resolver getResolver()
+    {
+        if (parent != null)
+        {
+            return parent.getResolver();
+        }
+        if (resolver == null)
+        {
+            resolver = new Resolver();
+        }
+        return resolver;
+    }
+
+    /**
+     * @return What this listener's clients have actually been given, over all their connections.
+     */
+    public synchronized Metrics getMetrics()
+    {
+        if (metrics == null)
+        {
+            metrics = new Metrics();
+        }
+        return metrics;
+    }
+
+    /**
+     * @return The connections in progress on all the listeners, for the 
+     *         {@link AdminServer} to report on.
+     */
+    public synchronized Set<Bottleneck> getConnections()
+    {
+        if (parent != null)
+        {
+            return parent.getConnections();
+        }
+        if (connections == null)
+        {
+            connections = Collections.newSetFromMap(new ConcurrentHashMap<Bottleneck, Boolean>());
+        }
+        return connections;
+    }
+
+    /**
+     * @return The further ports to listen on, each with its own settings.
+     */
+    public List<Configuration> getListeners()
+    {
+        return listeners;
+    }
+
+    /**
+     * @param listener A further listener, made by {@link #readListener(String, Properties)}.
+     * @throws IllegalArgumentException if there is already a listener with the same name.
+     */
+    public synchronized void addListener(final Configuration listener)
+    {
+        if (getListener(listener.getListenerName()) != null)
+        {
+            throw new IllegalArgumentException("There is already a listener called " + listener.getListenerName()); //$NON-NLS-1$
+        }
+        listeners.add(listener);
+    }
+
+    /**
+     * @param name The name of a listener, or null for the main configuration.
+     * @return That listener's settings, or null if there is no such listener.
+     */
+    public Configuration getListener(final String name)
+    {
+        if (name == null)
+        {
+            return this;
+        }
+        for (Configuration listener : listeners)
+        {
+            if (name.equals(listener.getListenerName()))
+            {
+                return listener;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The name of this listener, or null for the main configuration.
+     */
+    public String getListenerName()
+    {
+        return listenerName;
     }
 
     /**
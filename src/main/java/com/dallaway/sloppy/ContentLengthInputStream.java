@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the body of an HTTP message sent with a <code>Content-Length</code>,
+ * reporting end of stream once that many bytes have been read.
+ * <p>
+ *
+ * As with {@link ChunkedInputStream}, the underlying stream is left positioned
+ * at the start of the next message, and closing this stream does not close it.
+ */
+public class ContentLengthInputStream extends FilterInputStream
+{
+
+    // Bytes of the body not yet read.
+    private long remaining;
+
+    /**
+     * @param in the stream positioned at the start of the body.
+     * @param length the number of bytes in the body.
+     */
+    public ContentLengthInputStream(final InputStream in, final long length)
+    {
+        super(in);
+        this.remaining = length;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int read() throws IOException
+    {
+        byte[] one = new byte[1];
+        int n = read(one, 0, 1);
+        return n == -1 ? -1 : one[0] & 0xff;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException
+    {
+        if (len == 0)
+        {
+            return 0;
+        }
+
+        if (remaining == 0)
+        {
+            return -1;
+        }
+
+        int bytesRead = in.read(b, off, (int) Math.min(len, remaining));
+        if (bytesRead == -1)
+        {
+            throw new EOFException("Connection closed with " + remaining + " bytes of the body to come"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+
+        remaining -= bytesRead;
+        return bytesRead;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long skip(final long n) throws IOException
+    {
+        long skipped = in.skip(Math.min(n, remaining));
+        remaining -= skipped;
+        return skipped;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int available() throws IOException
+    {
+        return (int) Math.min(in.available(), remaining);
+    }
+
+    /**
+     * @return the number of bytes of the body not yet read.
+     */
+    public long getRemaining()
+    {
+        return remaining;
+    }
+
+    /**
+     * Leave the underlying stream open.
+     */
+    @Override
+    public void close()
+    {
+    }
+
+    /** Mark and reset are not supported. */
+    @Override
+    public boolean markSupported()
+    {
+        return false;
+    }
+
+}
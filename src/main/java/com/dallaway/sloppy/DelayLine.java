@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+/**
+ * Holds a connection's chunks back for the latency of the link, in one direction.
+ * <p>
+ *
+ * Each chunk leaves the line a one way delay after the bandwidth limit 
+ * admits it, but never before the chunk ahead of it, as TCP delivers in order.
+ * The line does not hold the chunks: it works out when each may be
+ * written, and the caller waits on the {@link PacingScheduler} for that time, 
+ * so chunks in flight cost a timer each and no thread.
+ * <p>
+ *
+ * While a stream keeps flowing, latency delays it but must not slow it: the
+ * next chunk would have been admitted as soon as the last one was, not a 
+ * delay later.  So the line remembers how far behind the undelayed stream it
+ * is running, and the limit is asked about the next chunk as of that earlier
+ * time.  When the line runs dry, because the sender had nothing more to
+ * send, the lag is dropped and the next chunk pays the full delay again.
+ * The sender may say so, as when it has waited for a new message; otherwise
+ * a sender that comes back well after its last chunk left is taken to have
+ * found nothing to send.
+ * <p>
+ *
+ * A chunk may also be stalled, waiting for a lost packet to be sent again.
+ * Everything behind it waits too, and the time is lost for good: the stall
+ * moves the stream on rather than adding to the lag, so the chunks after it
+ * are not rushed out to make up for it.
+ * <p>
+ *
+ * Used by one connection's thread at a time.
+ */
+public class DelayLine
+{
+
+    /**
+     * A caller that comes back this long after its last chunk left has found the line idle.
+     * It is long enough not to mistake a late wake-up for the line running dry, and 
+     * short enough that a chunk arriving after a pause is delayed by little less than it should be.
+     */
+    public static final long IDLE_NANOS = 10 * 1000000L;
+
+    // How long the last chunk was held back beyond its admission.
+    private long lag = 0;
+
+    // When the last chunk left the line (System.nanoTime()).
+    private long lastRelease = Long.MIN_VALUE;
+
+    /**
+     * @param now the current time (System.nanoTime()).
+     * @return the time the bandwidth limit should treat as now: earlier than now
+     *         while the line is running behind a flowing stream.
+     */
+    public long virtualNow(final long now)
+    {
+        if (lag > 0 && now - lastRelease > IDLE_NANOS)
+        {
+            lag = 0;
+        }
+        return now - lag;
+    }
+
+    /**
+     * @param admitted when the bandwidth limit admits the chunk, as of {@link #virtualNow(long)}.
+     * @param now the current time (System.nanoTime()).
+     * @param delayNanos the latency for this chunk.
+     * @param stallNanos the time this chunk is held up by lost packets.
+     * @return when the chunk may be written (System.nanoTime()); never before now.
+     */
+    public long release(final long admitted, final long now, final long delayNanos, final long stallNanos)
+    {
+        long at = Math.max(admitted + delayNanos + stallNanos, now);
+        if (lastRelease != Long.MIN_VALUE)
+        {
+            at = Math.max(at, lastRelease);
+        }
+        lag = Math.max(0, at - stallNanos - admitted);
+        lastRelease = at;
+        return at;
+    }
+
+    /**
+     * Note that the line has run dry: the sender waited for something to send, 
+     * so the next chunk pays the full delay.
+     */
+    public void idle()
+    {
+        lag = 0;
+    }
+
+    /**
+     * @return how far, in nanoseconds, the line is running behind the stream passing through it.
+     */
+    public long getLag()
+    {
+        return lag;
+    }
+
+}
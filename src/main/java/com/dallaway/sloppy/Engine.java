@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+/**
+ * The ways in which {@link SloppyServer} can service the connections it accepts.
+ */
+public enum Engine
+{
+    /**
+     * Each connection is handled by its own {@link SlowProxyThread}, which
+     * blocks on socket reads and sleeps to throttle the response.
+     */
+    THREAD,
+
+    /**
+     * Connections are multiplexed over a small number of selector threads,
+     * with throttled writes paced by timers rather than by sleeping.
+     * See {@link NioProxyEngine}.
+     */
+    NIO;
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+/**
+ * The threads that run {@link SlowProxyThread} handlers under the
+ * {@link Engine#THREAD} engine.  See {@link HandlerExecutors}.
+ */
+public enum ExecutionMode
+{
+    /**
+     * An operating system thread per connection, as many as are needed.
+     */
+    PLATFORM,
+
+    /**
+     * A fixed number of operating system threads shared by all connections.
+     */
+    POOL,
+
+    /**
+     * A virtual thread per connection.  Requires a JDK with virtual threads
+     * (21 or later); on older JDKs {@link #PLATFORM} is used instead.
+     */
+    VIRTUAL;
+}
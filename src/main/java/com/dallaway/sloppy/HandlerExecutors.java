@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executor that runs {@link SlowProxyThread} handlers,
+ * according to the configured {@link ExecutionMode}.
+ */
+public class HandlerExecutors
+{
+
+    // The method of Executors that makes a virtual thread per task executor (Java 21).
+    static final String VIRTUAL_FACTORY = "newVirtualThreadPerTaskExecutor"; //$NON-NLS-1$
+
+    private HandlerExecutors()
+    {
+    }
+
+    /**
+     * @param conf the configuration for this run of the server.
+     * @return an executor for the configured execution mode.
+     */
+    public static ExecutorService create(final Configuration conf)
+    {
+        return create(conf, VIRTUAL_FACTORY);
+    }
+
+    /**
+     * @param conf the configuration for this run of the server.
+     * @param virtualFactory the name of the method of {@link Executors} making
+     *        a virtual thread executor; tests name a missing one to act as an older JDK.
+     * @return an executor for the configured execution mode.
+     */
+    static ExecutorService create(final Configuration conf, final String virtualFactory)
+    {
+        switch (conf.getExecutionMode())
+        {
+            case POOL:
+                return new HandlerPool(conf.getWorkerThreads(), conf.getAcceptQueue(), 
+                    conf.getRejectionPolicy(), new HandlerThreadFactory());
+
+            case VIRTUAL:
+                ExecutorService virtual = newVirtualThreadPerTaskExecutor(virtualFactory);
+                if (virtual != null)
+                {
+                    return virtual;
+                }
+                conf.getUserInterface().notice("Virtual threads are not available on this JDK; using platform threads"); //$NON-NLS-1$
+                return Executors.newCachedThreadPool(new HandlerThreadFactory());
+
+            case PLATFORM:
+            default:
+                return Executors.newCachedThreadPool(new HandlerThreadFactory());
+        }
+    }
+
+    /**
+     * Sloppy is built for older JDKs, so we look up the virtual thread executor
+     * (added in Java 21) reflectively.
+     *
+     * @param name the name of the factory method.
+     * @return an executor starting a virtual thread per task, or null if this JDK has none.
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor(final String name)
+    {
+        try
+        {
+            Method factory = Executors.class.getMethod(name);
+            return (ExecutorService) factory.invoke(null);
+        }
+        catch (Exception ex)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Names handler threads so they can be recognised in debug output and thread dumps.
+     */
+    private static class HandlerThreadFactory implements ThreadFactory
+    {
+        // Number of threads created so far.
+        private final AtomicInteger count = new AtomicInteger();
+
+        /** {@inheritDoc} */
+        public Thread newThread(final Runnable r)
+        {
+            return new Thread(r, "sloppy-handler-" + count.incrementAndGet()); //$NON-NLS-1$
+        }
+    }
+
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed pool of handler threads with a bounded queue of accepted
+ * connections waiting for a thread.
+ * <p>
+ *
+ * When the queue is full the {@link RejectionPolicy} decides whether the 
+ * browser gets an immediate 503, or whether the accepting thread waits,
+ * pushing the queueing back into the TCP backlog.  Either way a spike of
+ * connections cannot create an unbounded number of threads.
+ * <p>
+ *
+ * Waiting has a cost: one thread accepts for every listener, so while it 
+ * waits for room no listener accepts anything.  The wait is therefore 
+ * bounded, and a connection that still finds no room is refused with a 503
+ * after all.
+ * <p>
+ *
+ * The pool counts how many connections it has accepted and rejected,
+ * the depth of its queue, and how long connections wait for a thread.
+ */
+public class HandlerPool extends ThreadPoolExecutor
+{
+
+    /** The longest the accepting thread waits for room under {@link RejectionPolicy#BACKLOG}. */
+    public static final long BACKLOG_WAIT_MILLIS = 1000;
+
+    // How long, at most, a refused connection is drained before closing (milliseconds).
+    // The drain runs on the accepting thread, so it is kept short.
+    private static final long REFUSE_DRAIN_MILLIS = 100;
+
+    // The most a refused connection is drained of before closing.
+    private static final int REFUSE_DRAIN_BYTES = 64 * 1024;
+
+    // How long the accepting thread waits for room before refusing, under the backlog policy.
+    private final long backlogWaitMillis;
+
+    // Connections handed to the pool.
+    private final AtomicLong submitted = new AtomicLong();
+
+    // Connections turned away with a 503.
+    private final AtomicLong rejected = new AtomicLong();
+
+    // Connections that have started running on a pool thread.
+    private final AtomicLong started = new AtomicLong();
+
+    // Total and longest time connections have spent in the queue (nanoseconds).
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    // The deepest the queue has been.
+    private final AtomicInteger peakQueueDepth = new AtomicInteger();
+
+    /**
+     * @param workers the number of handler threads.
+     * @param queueCapacity the number of connections that may wait for a thread.
+     * @param policy what to do when the queue is full.
+     * @param threadFactory creates the handler threads.
+     */
+    public HandlerPool(final int workers, final int queueCapacity, final RejectionPolicy policy, final ThreadFactory threadFactory)
+    {
+        this(workers, queueCapacity, policy, threadFactory, BACKLOG_WAIT_MILLIS);
+    }
+
+    /**
+     * @param workers the number of handler threads.
+     * @param queueCapacity the number of connections that may wait for a thread.
+     * @param policy what to do when the queue is full.
+     * @param threadFactory creates the handler threads.
+     * @param backlogWaitMillis how long to wait for room before refusing, under the backlog policy.
+     */
+    HandlerPool(final int workers, final int queueCapacity, final RejectionPolicy policy, final ThreadFactory threadFactory,
+        final long backlogWaitMillis)
+    {
+        super(workers, workers, 0L, TimeUnit.MILLISECONDS, 
+            new ArrayBlockingQueue<Runnable>(queueCapacity), threadFactory);
+        this.backlogWaitMillis = backlogWaitMillis;
+        setRejectedExecutionHandler(policy == RejectionPolicy.BACKLOG ? new WaitForRoom() : new ServiceUnavailable());
+    }
+
+    /**
+     * Queue a handler, noting the time so we can measure how long it waits.
+     * 
+     * @param handler the handler to run.
+     */
+    @Override
+    public void execute(final Runnable handler)
+    {
+        submitted.incrementAndGet();
+        super.execute(new Queued(handler));
+
+        int depth = getQueue().size();
+        int peak;
+        while (depth > (peak = peakQueueDepth.get()) && !peakQueueDepth.compareAndSet(peak, depth))
+        {
+            // Another thread raised the peak; try again.
+        }
+    }
+
+    /**
+     * Record the time the handler spent waiting.
+     */
+    @Override
+    protected void beforeExecute(final Thread t, final Runnable r)
+    {
+        super.beforeExecute(t, r);
+
+        long wait = System.nanoTime() - ((Queued) r).queuedAt;
+        started.incrementAndGet();
+        totalWaitNanos.addAndGet(wait);
+        long max;
+        while (wait > (max = maxWaitNanos.get()) && !maxWaitNanos.compareAndSet(max, wait))
+        {
+            // Another thread raised the maximum; try again.
+        }
+    }
+
+    /**
+     * @return the number of connections currently waiting for a thread.
+     */
+    public int getQueueDepth()
+    {
+        return getQueue().size();
+    }
+
+    /**
+     * @return the most connections that have waited for a thread at once.
+     */
+    public int getPeakQueueDepth()
+    {
+        return peakQueueDepth.get();
+    }
+
+    /**
+     * @return the number of connections handed to the pool.
+     */
+    public long getSubmittedCount()
+    {
+        return submitted.get();
+    }
+
+    /**
+     * @return the number of connections refused because the queue was full.
+     */
+    public long getRejectedCount()
+    {
+        return rejected.get();
+    }
+
+    /**
+     * @return the mean time, in milliseconds, a connection waits for a thread.
+     */
+    public double getMeanWaitMillis()
+    {
+        long n = started.get();
+        return n == 0 ? 0.0 : totalWaitNanos.get() / (n * 1000000.0);
+    }
+
+    /**
+     * @return the longest time, in milliseconds, a connection has waited for a thread.
+     */
+    public double getMaxWaitMillis()
+    {
+        return maxWaitNanos.get() / 1000000.0;
+    }
+
+    /**
+     * @return a human-readable summary of the pool counters.
+     */
+    @Override
+    public String toString()
+    {
+        StringBuilder b = new StringBuilder();
+        b.append("Workers=").append(getPoolSize()); //$NON-NLS-1$
+        b.append(" Active=").append(getActiveCount()); //$NON-NLS-1$
+        b.append(" Queued=").append(getQueueDepth()); //$NON-NLS-1$
+        b.append(" Peak queued=").append(getPeakQueueDepth()); //$NON-NLS-1$
+        b.append(" Submitted=").append(getSubmittedCount()); //$NON-NLS-1$
+        b.append(" Rejected=").append(getRejectedCount()); //$NON-NLS-1$
+        b.append(" Mean wait ms=").append(String.format("%.1f", getMeanWaitMillis())); //$NON-NLS-1$ //$NON-NLS-2$
+        b.append(" Max wait ms=").append(String.format("%.1f", getMaxWaitMillis())); //$NON-NLS-1$ //$NON-NLS-2$
+        return b.toString();
+    }
+
+    /**
+     * A handler and the time it was queued.
+     */
+    private static class Queued implements Runnable
+    {
+        private final Runnable handler;
+        private final long queuedAt = System.nanoTime();
+
+        Queued(final Runnable handler)
+        {
+            this.handler = handler;
+        }
+
+        public void run()
+        {
+            handler.run();
+        }
+    }
+
+    /**
+     * Turn a connection away with a 503.
+     * 
+     * @param r the queued handler for the connection.
+     */
+    private void refuse(final Runnable r)
+    {
+        rejected.incrementAndGet();
+        Runnable handler = ((Queued) r).handler;
+        if (handler instanceof SlowProxyThread)
+        {
+            ((SlowProxyThread) handler).refuse();
+        }
+        else if (handler instanceof TunnelHandler)
+        {
+            ((TunnelHandler) handler).refuse();
+        }
+    }
+
+    /**
+     * Close a connection that has been refused, without resetting it.
+     * <p>
+     * 
+     * Closing a socket with unread input sends a reset, which can reach the
+     * browser before the 503 and throw it away.  So half-close first, and 
+     * read what the browser has sent for a short, bounded time.
+     * 
+     * @param socket the refused connection.
+     * @throws IOException if the connection could not be closed.
+     */
+    static void closeRefused(final Socket socket) throws IOException
+    {
+        try
+        {
+            socket.shutdownOutput();
+            InputStream in = socket.getInputStream();
+            byte[] discard = new byte[4096];
+            long deadline = System.currentTimeMillis() + REFUSE_DRAIN_MILLIS;
+            int left = REFUSE_DRAIN_BYTES;
+            while (left > 0)
+            {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0)
+                {
+                    break;
+                }
+                socket.setSoTimeout((int) wait);
+                int read = in.read(discard, 0, Math.min(discard.length, left));
+                if (read == -1)
+                {
+                    break;
+                }
+                left -= read;
+            }
+        }
+        catch (SocketTimeoutException stx)
+        {
+            // The browser has nothing more to say yet: close anyway.
+        }
+        finally
+        {
+            socket.close();
+        }
+    }
+
+    /**
+     * Turn the connection away with a 503.
+     */
+    private class ServiceUnavailable implements RejectedExecutionHandler
+    {
+        public void rejectedExecution(final Runnable r, final ThreadPoolExecutor executor)
+        {
+            refuse(r);
+        }
+    }
+
+    /**
+     * Block the accepting thread until there's room in the queue, 
+     * or turn the connection away with a 503 if none comes in time.
+     */
+    private class WaitForRoom implements RejectedExecutionHandler
+    {
+        public void rejectedExecution(final Runnable r, final ThreadPoolExecutor executor)
+        {
+            if (executor.isShutdown())
+            {
+                throw new RejectedExecutionException("Handler pool has been shut down"); //$NON-NLS-1$
+            }
+
+            try
+            {
+                if (!executor.getQueue().offer(r, backlogWaitMillis, TimeUnit.MILLISECONDS))
+                {
+                    refuse(r);
+                }
+            }
+            catch (InterruptedException ix)
+            {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException(ix);
+            }
+        }
+    }
+
+}
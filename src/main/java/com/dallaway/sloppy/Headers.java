@@ -19,143 +19,84 @@
  */
 package com.dallaway.sloppy;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.net.HttpURLConnection;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.io.InputStream;
 
 /**
- * Utilities for reading, writing and managing HTTP Headers.
+ * Utilities for reading and managing HTTP Headers.
+ * <p>
  * 
+ * The headers themselves are held by {@link RequestParser} and
+ * {@link ResponseParser}, as offsets into the bytes read.
  */
-public class Headers
+public final class Headers
 {
 
-    private static final Logger LOG = Logger.getLogger(Headers.class.getName());
+    // The longest request line or header line we will read.
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
 
-    // Internal map of header name associated with header value
-    private HashMap<String, String> headers;
+    /** Headers that only apply to a single connection, or are answered by Sloppy itself. */
+    static final String[] HOP_BY_HOP = {
+        "Connection", "Keep-Alive", "Proxy-Connection", "Transfer-Encoding", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+        "TE", "Trailer", "Upgrade", "Expect" //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+    };
 
     /**
-     * Set a name value pair in the headers.  Used in unit testing; not thread safe.
-     * 
-     * @param name the name of the header.
-     * @param value the value of the header.
-     */
-    public void set(final String name, final String value)
-    {
-       if (headers == null)
-       {
-           headers = new HashMap<String, String>();
-       }
-       
-       headers.put(name, value);
-    }
-    
-    
-    /**
-     * Read a header value.
-     * @param name the name of the header.
-     * @return the value, or null if not set.
-     */
-    public String get(final String name)
-    {
-        String value = null;
-        
-        if (headers != null)
-        {
-            value = headers.get(name);
-        }
-        
-        return value;
-    }
-    
-    /**
-     * @return the number of headers.
+     * Static utilities only.
      */
-    public int size()
+    private Headers()
     {
-        if (headers == null)
-        {
-            return 0;
-        }
-        else
-        {
-            return headers.size();
-        }
     }
-    
+
     /**
-     * Output headers down the given connection.
-     * 
-     * @param con the connection to write to.
+     * @param name the name of a header.
+     * @return true if the header only applies to a single connection, or is
+     *         answered by Sloppy itself (Expect), so should not be passed on.
      */
-    public void writeTo(final HttpURLConnection con)
+    public static boolean isHopByHop(final String name)
     {
-        for(Map.Entry<String,String> entry: headers.entrySet())
+        for (String hop : HOP_BY_HOP)
         {
-            String name = entry.getKey();
-            // Host is already set {@see getConnection}, and we don't want to do
-            // Keep-Alive
-            if (!"Host".equalsIgnoreCase(name) && !"Connection".equalsIgnoreCase(name))
+            if (hop.equalsIgnoreCase(name))
             {
-                String value = entry.getValue();
-
-                if (LOG.isLoggable(Level.FINE))
-                {
-                    LOG.fine("> "+name+": "+value);
-                }
-                con.setRequestProperty(name, value);    
+                return true;
             }
         }
+        return false;
     }
 
-
-
     /**
-     * Read the HTTP headers from the web browser.
-     * 
-     * @param r the input from the web browser.
-     * @return the set of headers.
+     * Read a line terminated by LF or CRLF, without using a Reader (which
+     * would read ahead into the body).  Each byte becomes one char, as in ISO-8859-1.
      * 
-     * @throws IOException
-     *             if there was a problem reading from the web browers.
+     * @param in the stream to read from.
+     * @return the line without its terminator, or null if the stream ended first.
+     * @throws IOException if there was a problem reading, or the line is unreasonably long.
      */
-    public static Headers readFrom(final BufferedReader r) throws IOException
+    public static String readLine(final InputStream in) throws IOException
     {
-
-        final HashMap<String, String> toRet = new HashMap<String, String>();
-
-        String line = r.readLine();
-        while (line != null && !"".equals(line))
+        StringBuilder b = new StringBuilder();
+        int c = in.read();
+        if (c == -1)
         {
-            // Headers look like "Name: value"
+            return null;
+        }
 
-            int colon = line.indexOf(": ");
-            if (colon == -1)
-            {
-                toRet.put(line, "");
-            }
-            else
+        while (c != -1 && c != '\n')
+        {
+            if (b.length() == MAX_LINE_LENGTH)
             {
-                String name = line.substring(0, colon);
-                String value = line.substring(colon+2); // +2 to get past the space
-                toRet.put(name, value);
+                throw new IOException("Line too long"); //$NON-NLS-1$
             }
-
-            line = r.readLine();
+            b.append((char) c);
+            c = in.read();
         }
 
-
-        Headers headers = new Headers();
-        headers.headers = toRet;
-        return headers;
-
+        int last = b.length() - 1;
+        if (last >= 0 && b.charAt(last) == '\r')
+        {
+            b.setLength(last);
+        }
+        return b.toString();
     }
 }
-
-
-
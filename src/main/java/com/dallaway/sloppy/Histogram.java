@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts how often values of each size are recorded, so the {@link Metrics}
+ * can give percentiles, such as the time to first byte that 99% of
+ * requests beat.
+ * <p>
+ *
+ * Values are counted in buckets whose width grows with the value, as in
+ * an HDR histogram: each power of two is split into {@link #SUB_BUCKETS}
+ * buckets, and values below that are counted exactly.  So any value is 
+ * known to within one part in {@link #SUB_BUCKETS}, from microseconds to
+ * tens of minutes, in a fixed array of a couple of hundred counts.
+ * Values above {@link #MAX_VALUE} are counted as that.
+ * <p>
+ *
+ * Recording is an atomic increment of the value's bucket, never a lock,
+ * so any number of threads may record at once.  A {@link Snapshot} copies
+ * the counts, to work out the percentiles from.
+ */
+public class Histogram
+{
+
+    /** The buckets each power of two is split into. */
+    public static final int SUB_BUCKETS = 8;
+
+    /** The largest value told apart from larger ones. */
+    public static final long MAX_VALUE = (1L << 31) - 1;
+
+    // log2(SUB_BUCKETS).
+    private static final int SUB_BUCKET_BITS = 3;
+
+    // The number of buckets needed for values up to MAX_VALUE.
+    private static final int BUCKETS = bucketOf(MAX_VALUE) + 1;
+
+    // The number of values recorded in each bucket.
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    // The total of the values recorded.
+    private final StripedCounter sum = new StripedCounter();
+
+    // The largest value recorded.
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param value a value to count; negative values count as zero.
+     */
+    public void record(final long value)
+    {
+        long v = Math.max(0, Math.min(MAX_VALUE, value));
+        counts.incrementAndGet(bucketOf(v));
+        sum.add(v);
+
+        long largest = max.get();
+        while (v > largest && !max.compareAndSet(largest, v))
+        {
+            largest = max.get();
+        }
+    }
+
+    /**
+     * @return a copy of the counts so far.
+     */
+    public Snapshot snapshot()
+    {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            copy[i] = counts.get(i);
+        }
+        return new Snapshot(copy, sum.sum(), max.get());
+    }
+
+    /**
+     * @param value a value from zero to MAX_VALUE.
+     * @return the bucket the value is counted in.
+     */
+    static int bucketOf(final long value)
+    {
+        if (value < SUB_BUCKETS)
+        {
+            return (int) value;
+        }
+        // The top SUB_BUCKET_BITS + 1 bits of the value pick the bucket within its power of two
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * @param bucket a bucket.
+     * @return the largest value counted in the bucket.
+     */
+    static long highestValueIn(final int bucket)
+    {
+        if (bucket < SUB_BUCKETS)
+        {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long sub = SUB_BUCKETS + bucket % SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * The counts of a histogram at one moment.
+     */
+    public static class Snapshot
+    {
+
+        // The number of values in each bucket.
+        private final long[] counts;
+
+        // The number of values.
+        private final long count;
+
+        // The total of the values.
+        private final long sum;
+
+        // The largest value.
+        private final long max;
+
+        /**
+         * @param counts the number of values in each bucket.
+         * @param sum the total of the values.
+         * @param max the largest value.
+         */
+        Snapshot(final long[] counts, final long sum, final long max)
+        {
+            long count = 0;
+            for (long c : counts)
+            {
+                count += c;
+            }
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        /**
+         * @return the number of values recorded.
+         */
+        public long getCount()
+        {
+            return count;
+        }
+
+        /**
+         * @return the total of the values recorded.
+         */
+        public long getSum()
+        {
+            return sum;
+        }
+
+        /**
+         * @return the largest value recorded; zero if none has been.
+         */
+        public long getMax()
+        {
+            return max;
+        }
+
+        /**
+         * @return the mean of the values recorded; zero if none has been.
+         */
+        public double getMean()
+        {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * @param percent a percentage, from 0 to 100.
+         * @return the value that percentage of the values recorded are no larger than, 
+         *         to within a bucket; zero if none has been recorded.
+         */
+        public long getValueAtPercentile(final double percent)
+        {
+            if (count == 0)
+            {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(Math.min(100, percent) / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++)
+            {
+                seen += counts[i];
+                if (seen >= rank)
+                {
+                    return Math.min(highestValueIn(i), max);
+                }
+            }
+            return max;
+        }
+
+    }
+
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+/**
+ * Writes JSON text, a name or value at a time, for the {@link AdminServer}.
+ * <p>
+ *
+ * The writer puts in the commas and escapes the strings, but doesn't check
+ * that the calls make sense: each <code>begin</code> needs its <code>end</code>,
+ * and each value in an object needs its name before it.
+ * <p>
+ *
+ * For example:
+ * <pre>
+ * new JsonWriter().beginObject().name("port").value(7569).endObject().toString()
+ * </pre>
+ * gives <code>{"port":7569}</code>.  Not thread safe.
+ */
+public class JsonWriter
+{
+
+    // Hex digits, for escaping control characters.
+    private static final char[] HEX = "0123456789abcdef".toCharArray(); //$NON-NLS-1$
+
+    // The text so far.
+    private final StringBuffer out = new StringBuffer();
+
+    // Is the next name or value the first in its object or array?
+    private boolean first = true;
+
+    // Has a name just been written, so the next value goes with it?
+    private boolean named = false;
+
+    /**
+     * @return this writer, having started an object.
+     */
+    public JsonWriter beginObject()
+    {
+        separate();
+        out.append('{');
+        first = true;
+        return this;
+    }
+
+    /**
+     * @return this writer, having finished an object.
+     */
+    public JsonWriter endObject()
+    {
+        out.append('}');
+        first = false;
+        return this;
+    }
+
+    /**
+     * @return this writer, having started an array.
+     */
+    public JsonWriter beginArray()
+    {
+        separate();
+        out.append('[');
+        first = true;
+        return this;
+    }
+
+    /**
+     * @return this writer, having finished an array.
+     */
+    public JsonWriter endArray()
+    {
+        out.append(']');
+        first = false;
+        return this;
+    }
+
+    /**
+     * @param name the name of the next value in an object.
+     * @return this writer.
+     */
+    public JsonWriter name(final String name)
+    {
+        separate();
+        string(name);
+        out.append(':');
+        named = true;
+        return this;
+    }
+
+    /**
+     * @param value a string, or null.
+     * @return this writer.
+     */
+    public JsonWriter value(final String value)
+    {
+        separate();
+        if (value == null)
+        {
+            out.append("null"); //$NON-NLS-1$
+        }
+        else
+        {
+            string(value);
+        }
+        return this;
+    }
+
+    /**
+     * @param value a whole number.
+     * @return this writer.
+     */
+    public JsonWriter value(final long value)
+    {
+        separate();
+        out.append(value);
+        return this;
+    }
+
+    /**
+     * @param value a number; not a number and the infinities are written as null.
+     * @return this writer.
+     */
+    public JsonWriter value(final double value)
+    {
+        separate();
+        if (Double.isNaN(value) || Double.isInfinite(value))
+        {
+            out.append("null"); //$NON-NLS-1$
+        }
+        else
+        {
+            out.append(value);
+        }
+        return this;
+    }
+
+    /**
+     * @param value true or false.
+     * @return this writer.
+     */
+    public JsonWriter value(final boolean value)
+    {
+        separate();
+        out.append(value);
+        return this;
+    }
+
+    /**
+     * @return The JSON written so far.
+     */
+    @Override
+    public String toString()
+    {
+        return out.toString();
+    }
+
+    /**
+     * Put a comma before anything but the first item in an object or array,
+     * or a value following its name.
+     */
+    private void separate()
+    {
+        if (named)
+        {
+            named = false;
+        }
+        else if (first)
+        {
+            first = false;
+        }
+        else
+        {
+            out.append(',');
+        }
+    }
+
+    /**
+     * @param s a string to write in quotes, escaped.
+     */
+    private void string(final String s)
+    {
+        out.append('"');
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+            switch (c)
+            {
+                case '"':
+                    out.append("\\\""); //$NON-NLS-1$
+                    break;
+                case '\\':
+                    out.append("\\\\"); //$NON-NLS-1$
+                    break;
+                case '\n':
+                    out.append("\\n"); //$NON-NLS-1$
+                    break;
+                case '\r':
+                    out.append("\\r"); //$NON-NLS-1$
+                    break;
+                case '\t':
+                    out.append("\\t"); //$NON-NLS-1$
+                    break;
+                default:
+                    if (c < 0x20)
+                    {
+                        out.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xf]); //$NON-NLS-1$
+                    }
+                    else
+                    {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import java.io.Serializable;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * The round trip time of a link: a fixed delay plus a random jitter.
+ * <p>
+ *
+ * Each crossing of the link takes half a round trip, drawn afresh each time,
+ * so the two directions and successive chunks see different delays.  The
+ * model only describes the delays: a {@link DelayLine} applies them to a 
+ * connection's chunks.
+ * <p>
+ *
+ * Immutable, so it can be shared by any number of connections.
+ */
+public class LatencyModel implements Serializable
+{
+
+    private static final long serialVersionUID = 4466082147735013245L;
+
+    /** A link with no latency at all. */
+    public static final LatencyModel NONE = new LatencyModel(0, 0, JitterDistribution.UNIFORM);
+
+    // Nanoseconds in a millisecond.
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    // The shortest retransmission timeout TCP uses (as Linux does).
+    private static final long MIN_RETRANSMIT_TIMEOUT_NANOS = 200 * NANOS_PER_MILLI;
+
+    // How far a normal sample may stray from the base, in standard deviations.
+    private static final double MAX_DEVIATIONS = 3.0;
+
+    // The base round trip time.
+    private final int roundTripMillis;
+
+    // How far the round trip time varies from the base.
+    private final int jitterMillis;
+
+    // How the round trip time varies.
+    private final JitterDistribution distribution;
+
+    /**
+     * @param roundTripMillis the base round trip time, in milliseconds.
+     * @param jitterMillis how far the round trip time varies, in milliseconds: the
+     *        most either side of the base for a uniform distribution, the standard deviation
+     *        for a normal one.
+     * @param distribution how the round trip time varies.
+     */
+    public LatencyModel(final int roundTripMillis, final int jitterMillis, final JitterDistribution distribution)
+    {
+        if (roundTripMillis < 0 || jitterMillis < 0)
+        {
+            throw new IllegalArgumentException("Latency can't be negative: " + roundTripMillis + "ms, jitter " + jitterMillis + "ms"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        }
+        this.roundTripMillis = roundTripMillis;
+        this.jitterMillis = jitterMillis;
+        this.distribution = distribution;
+    }
+
+    /**
+     * @param random the source of the jitter.
+     * @return a round trip time, in nanoseconds; never negative.
+     */
+    public long roundTripNanos(final Random random)
+    {
+        if (jitterMillis == 0)
+        {
+            return roundTripMillis * NANOS_PER_MILLI;
+        }
+
+        double deviation;
+        if (distribution == JitterDistribution.NORMAL)
+        {
+            deviation = Math.max(-MAX_DEVIATIONS, Math.min(MAX_DEVIATIONS, random.nextGaussian()));
+        }
+        else
+        {
+            deviation = random.nextDouble() * 2.0 - 1.0;
+        }
+        return Math.max(0, (long) ((roundTripMillis + jitterMillis * deviation) * NANOS_PER_MILLI));
+    }
+
+    /**
+     * @param random the source of the jitter.
+     * @return the time to cross the link once, in nanoseconds: half a round trip.
+     */
+    public long oneWayNanos(final Random random)
+    {
+        return roundTripNanos(random) / 2;
+    }
+
+    /**
+     * @return how long TCP waits before sending a lost segment again, in nanoseconds:
+     *         the round trip time plus four times its variation, but no less than 200ms.
+     */
+    public long retransmitTimeoutNanos()
+    {
+        return Math.max(MIN_RETRANSMIT_TIMEOUT_NANOS, (roundTripMillis + 4L * jitterMillis) * NANOS_PER_MILLI);
+    }
+
+    /**
+     * @return true if the link delays anything at all.
+     */
+    public boolean hasDelay()
+    {
+        return roundTripMillis > 0 || jitterMillis > 0;
+    }
+
+    /**
+     * @return the base round trip time, in milliseconds.
+     */
+    public int getRoundTripMillis()
+    {
+        return roundTripMillis;
+    }
+
+    /**
+     * @return how far the round trip time varies, in milliseconds.
+     */
+    public int getJitterMillis()
+    {
+        return jitterMillis;
+    }
+
+    /**
+     * @return how the round trip time varies.
+     */
+    public JitterDistribution getDistribution()
+    {
+        return distribution;
+    }
+
+    /**
+     * @return the latency for the user, such as "600ms +/- 150ms normal".
+     */
+    @Override
+    public String toString()
+    {
+        StringBuffer b = new StringBuffer();
+        b.append(roundTripMillis).append("ms"); //$NON-NLS-1$
+        if (jitterMillis > 0)
+        {
+            b.append(" +/- ").append(jitterMillis).append("ms "); //$NON-NLS-1$ //$NON-NLS-2$
+            b.append(distribution.name().toLowerCase(Locale.ENGLISH));
+        }
+        return b.toString();
+    }
+
+}
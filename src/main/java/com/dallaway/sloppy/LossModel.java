@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import java.io.Serializable;
+import java.util.Random;
+
+/**
+ * The packet loss of a link.
+ * <p>
+ *
+ * Loss is described by the share of packets lost and, for bursty loss, how
+ * many are lost in a row on average.  For a {@link LossPattern#GILBERT_ELLIOTT}
+ * link these give the chances of moving between the good and bad states: a
+ * burst ends with a chance of one in the burst length, and bursts start 
+ * just often enough to lose the given share overall.
+ * <p>
+ *
+ * The model only describes the loss: a {@link PacketLoss} keeps the state of
+ * one direction of a connection, and works out the stalls the losses cause.
+ * <p>
+ *
+ * Immutable, so it can be shared by any number of connections.
+ */
+public class LossModel implements Serializable
+{
+
+    private static final long serialVersionUID = -3021756185370409432L;
+
+    /** A link that loses nothing. */
+    public static final LossModel NONE = new LossModel(LossPattern.BERNOULLI, 0, 1);
+
+    // Which packets are lost.
+    private final LossPattern pattern;
+
+    // The share of packets lost, as a percentage.
+    private final float lossPercent;
+
+    // The average number of packets lost in a row, for bursty loss.
+    private final float burstPackets;
+
+    // The chance of a burst starting after a packet gets through.
+    private final double startBurst;
+
+    // The chance of a burst ending after a packet is lost.
+    private final double endBurst;
+
+    /**
+     * @param pattern which packets are lost.
+     * @param lossPercent the share of packets lost, as a percentage: at least 0 and less than 100.
+     * @param burstPackets the average number of packets lost in a row, at least 1; only used for bursty loss.
+     */
+    public LossModel(final LossPattern pattern, final float lossPercent, final float burstPackets)
+    {
+        if (lossPercent < 0 || lossPercent >= 100 || burstPackets < 1)
+        {
+            throw new IllegalArgumentException("Bad loss: " + lossPercent + "%, bursts of " + burstPackets); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        this.pattern = pattern;
+        this.lossPercent = lossPercent;
+        this.burstPackets = burstPackets;
+
+        // In the long run the link is in the bad state for the loss share of packets
+        double loss = lossPercent / 100.0;
+        this.endBurst = 1.0 / burstPackets;
+        this.startBurst = endBurst * loss / (1.0 - loss);
+    }
+
+    /**
+     * Decide the fate of the next packet.  On a bursty link the bad state loses
+     * everything and the good state nothing, so the state is whether the last 
+     * packet was lost.
+     * 
+     * @param random the source of the losses.
+     * @param lastLost true if the packet before was lost.
+     * @return true if the packet is lost.
+     */
+    public boolean lose(final Random random, final boolean lastLost)
+    {
+        if (pattern == LossPattern.GILBERT_ELLIOTT)
+        {
+            return random.nextDouble() < (lastLost ? 1.0 - endBurst : startBurst);
+        }
+        return random.nextDouble() * 100.0 < lossPercent;
+    }
+
+    /**
+     * Decide the fate of a packet sent again, a retransmission timeout after
+     * it was lost.  The link has moved on by then, so the packet is lost with
+     * the overall chance whatever the pattern.
+     * 
+     * @param random the source of the losses.
+     * @return true if the packet is lost again.
+     */
+    public boolean loseAgain(final Random random)
+    {
+        return random.nextDouble() * 100.0 < lossPercent;
+    }
+
+    /**
+     * @return true if the link loses anything at all.
+     */
+    public boolean hasLoss()
+    {
+        return lossPercent > 0;
+    }
+
+    /**
+     * @return which packets are lost.
+     */
+    public LossPattern getPattern()
+    {
+        return pattern;
+    }
+
+    /**
+     * @return the share of packets lost, as a percentage.
+     */
+    public float getLossPercent()
+    {
+        return lossPercent;
+    }
+
+    /**
+     * @return the average number of packets lost in a row, for bursty loss.
+     */
+    public float getBurstPackets()
+    {
+        return burstPackets;
+    }
+
+    /**
+     * @return the loss for the user, such as "2% in bursts of 3".
+     */
+    @Override
+    public String toString()
+    {
+        StringBuffer b = new StringBuffer();
+        b.append(lossPercent).append('%');
+        if (pattern == LossPattern.GILBERT_ELLIOTT)
+        {
+            b.append(" in bursts of ").append(burstPackets); //$NON-NLS-1$
+        }
+        return b.toString();
+    }
+
+}
@@ -347,7 +347,7 @@ private void go_buttonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIR
  */
 private void connection_speed_optionsActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_connection_speed_optionsActionPerformed
 
-    conf.setBytesPerSecond( ((Bandwidth)(connection_speed_options.getSelectedItem())).getBytesPerSecond() );
+    conf.setBandwidth( (Bandwidth)(connection_speed_options.getSelectedItem()) );
 }//GEN-LAST:event_connection_speed_optionsActionPerformed
 
 
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+/**
+ * What a client, or everyone using a listener, has actually been given:
+ * the bytes each way, and how long the requests took, to compare with the
+ * limits and latency they were meant to get.
+ * <p>
+ *
+ * Each {@link Bottleneck} records to the metrics of its client, kept with 
+ * the client's {@link Usage}, and to the metrics of its listener, kept with
+ * the listener's {@link Configuration}.  The times are recorded in
+ * {@link Histogram}s, in microseconds:
+ * <ul>
+ * <li> <i>upstream wait</i>: from starting to pass a request on, to the head
+ *      of the response arriving from the web server. </li>
+ * <li> <i>pacing delay</i>: how long each chunk was held back, by the limits,
+ *      latency and packet loss, before going on its way. </li>
+ * <li> <i>first byte</i>: from the request arriving, to the first byte of the
+ *      response being due at the client. </li>
+ * <li> <i>duration</i>: from the request arriving, to the last byte of the 
+ *      response having been sent to the client. </li>
+ * </ul>
+ * <p>
+ *
+ * Recording never locks, so handlers for the same client or listener 
+ * don't hold each other up.  The admin server shows the metrics at
+ * <code>GET /metrics</code>, and the server logs the listener's when it stops.
+ */
+public class Metrics
+{
+
+    // Nanoseconds in a microsecond.
+    private static final long NANOS_PER_MICRO = 1000L;
+
+    // The connections made.
+    private final StripedCounter connections = new StripedCounter();
+
+    // The requests made.
+    private final StripedCounter requests = new StripedCounter();
+
+    // Bytes sent to the client, and received from it.
+    private final StripedCounter bytesOut = new StripedCounter();
+    private final StripedCounter bytesIn = new StripedCounter();
+
+    // The times, in microseconds.
+    private final Histogram upstreamWait = new Histogram();
+    private final Histogram pacingDelay = new Histogram();
+    private final Histogram firstByte = new Histogram();
+    private final Histogram duration = new Histogram();
+
+    /**
+     * Note a new connection.
+     */
+    public void connectionOpened()
+    {
+        connections.increment();
+    }
+
+    /**
+     * Note a new request.
+     */
+    public void requestStarted()
+    {
+        requests.increment();
+    }
+
+    /**
+     * @param bytes the number of bytes being sent to the client.
+     */
+    public void sent(final int bytes)
+    {
+        bytesOut.add(bytes);
+    }
+
+    /**
+     * @param bytes the number of bytes received from the client.
+     */
+    public void received(final int bytes)
+    {
+        bytesIn.add(bytes);
+    }
+
+    /**
+     * @param nanos how long the web server took to start responding.
+     */
+    public void recordUpstreamWait(final long nanos)
+    {
+        upstreamWait.record(nanos / NANOS_PER_MICRO);
+    }
+
+    /**
+     * @param nanos how long a chunk was held back.
+     */
+    public void recordPacingDelay(final long nanos)
+    {
+        pacingDelay.record(nanos / NANOS_PER_MICRO);
+    }
+
+    /**
+     * @param nanos how long until the first byte of a response was due at the client.
+     */
+    public void recordFirstByte(final long nanos)
+    {
+        firstByte.record(nanos / NANOS_PER_MICRO);
+    }
+
+    /**
+     * @param nanos how long until the last byte of a response was due at the client.
+     */
+    public void recordDuration(final long nanos)
+    {
+        duration.record(nanos / NANOS_PER_MICRO);
+    }
+
+    /**
+     * @return the number of connections made.
+     */
+    public long getConnections()
+    {
+        return connections.sum();
+    }
+
+    /**
+     * @return the number of requests made.
+     */
+    public long getRequests()
+    {
+        return requests.sum();
+    }
+
+    /**
+     * @return the bytes sent to the client.
+     */
+    public long getBytesOut()
+    {
+        return bytesOut.sum();
+    }
+
+    /**
+     * @return the bytes received from the client.
+     */
+    public long getBytesIn()
+    {
+        return bytesIn.sum();
+    }
+
+    /**
+     * @return the times the web server took to start responding, in microseconds.
+     */
+    public Histogram getUpstreamWait()
+    {
+        return upstreamWait;
+    }
+
+    /**
+     * @return the times chunks were held back, in microseconds.
+     */
+    public Histogram getPacingDelay()
+    {
+        return pacingDelay;
+    }
+
+    /**
+     * @return the times to the first byte of each response, in microseconds.
+     */
+    public Histogram getFirstByte()
+    {
+        return firstByte;
+    }
+
+    /**
+     * @return the times to the last byte of each response, in microseconds.
+     */
+    public Histogram getDuration()
+    {
+        return duration;
+    }
+
+    /**
+     * @return a summary, for logging.
+     */
+    @Override
+    public String toString()
+    {
+        StringBuffer b = new StringBuffer();
+        b.append("connections=").append(getConnections()); //$NON-NLS-1$
+        b.append(" requests=").append(getRequests()); //$NON-NLS-1$
+        b.append(" sent=").append(getBytesOut()); //$NON-NLS-1$
+        b.append(" received=").append(getBytesIn()); //$NON-NLS-1$
+        appendMillis(b, " first byte", firstByte.snapshot()); //$NON-NLS-1$
+        appendMillis(b, " duration", duration.snapshot()); //$NON-NLS-1$
+        appendMillis(b, " upstream wait", upstreamWait.snapshot()); //$NON-NLS-1$
+        return b.toString();
+    }
+
+    /**
+     * @param b where to describe the times.
+     * @param name what the times are.
+     * @param times the times, in microseconds.
+     */
+    private static void appendMillis(final StringBuffer b, final String name, final Histogram.Snapshot times)
+    {
+        if (times.getCount() > 0)
+        {
+            b.append(name).append(" p50=").append(times.getValueAtPercentile(50) / 1000); //$NON-NLS-1$
+            b.append("ms p99=").append(times.getValueAtPercentile(99) / 1000).append("ms"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+    }
+
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single selector thread of the {@link NioProxyEngine}.
+ * <p>
+ *
+ * Besides dispatching channel events to their {@link NioHandler}, the loop
+ * runs tasks whose throttling delay has passed.  The delays are timed by the
+ * server's {@link PacingScheduler}, which hands each task back to the loop
+ * and wakes the selector, so pacing costs nothing while an exchange is waiting.
+ * Host names are looked up by the server's {@link Resolver} in the same way, 
+ * so a slow look up never holds up the loop.
+ * <p>
+ *
+ * Each connection is handled by a {@link NioExchange}, or by a {@link NioTunnel}
+ * when the server is tunnelling.  A loop may also be dedicated to a single
+ * connection, in which case it stops when that connection is closed.
+ */
+class NioEventLoop implements Runnable
+{
+
+    // The interface to log to.
+    private final UserInterface ui;
+
+    // Multiplexes all the channels owned by this loop.
+    private final Selector selector;
+
+    // Connections accepted by another thread, waiting to be registered here.
+    private final Queue<NioHandler> pending = new ConcurrentLinkedQueue<NioHandler>();
+
+    // Times the delays of throttled tasks.
+    private final PacingScheduler scheduler;
+
+    // Tasks whose delay has passed, waiting to run on the loop thread.
+    private final Queue<Task> due = new ConcurrentLinkedQueue<Task>();
+
+    // Does the loop stop once its connections have all closed?
+    private final boolean single;
+
+    // Connections currently being handled.  Only touched by the loop thread.
+    private int connections = 0;
+
+    // Is this loop running?
+    private volatile boolean running = true;
+
+    /**
+     * @param conf the configuration for this run of the server.
+     * @throws IOException if the selector could not be opened.
+     */
+    NioEventLoop(final Configuration conf) throws IOException
+    {
+        this(conf, false);
+    }
+
+    /**
+     * @param conf the configuration for this run of the server.
+     * @param single true if the loop is for a single connection, and should
+     *        stop when that connection is closed.
+     * @throws IOException if the selector could not be opened.
+     */
+    NioEventLoop(final Configuration conf, final boolean single) throws IOException
+    {
+        this.ui = conf.getUserInterface();
+        this.scheduler = conf.getPacingScheduler();
+        this.selector = Selector.open();
+        this.single = single;
+    }
+
+    /**
+     * Queue a browser connection to be serviced by this loop.
+     * 
+     * @param client the connection from the web browser.
+     * @param listener the configuration of the listener that accepted the connection.
+     */
+    void register(final SocketChannel client, final Configuration listener)
+    {
+        register(newHandler(client, listener));
+    }
+
+    /**
+     * Queue a handler to be started on this loop.
+     * 
+     * @param handler the handler for a connection from a web browser.
+     */
+    void register(final NioHandler handler)
+    {
+        pending.add(handler);
+        selector.wakeup();
+    }
+
+    /**
+     * Ask the loop to close its connections and terminate.
+     */
+    void stop()
+    {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Called by a handler when it closes its connections.
+     */
+    void connectionClosed()
+    {
+        connections--;
+        if (single && connections == 0)
+        {
+            running = false;
+        }
+    }
+
+    /**
+     * @return the selector channels should be registered with.
+     */
+    Selector getSelector()
+    {
+        return selector;
+    }
+
+    /**
+     * Arrange for a task to be run on the loop's thread once a time has passed.
+     * 
+     * @param owner the handler the task belongs to, closed if the task fails; or null.
+     * @param task the task to run later.
+     * @param delayNanos how long to wait, in nanoseconds.
+     */
+    void schedule(final NioHandler owner, final Runnable task, final long delayNanos)
+    {
+        scheduler.schedule(new Task(owner, task), delayNanos);
+    }
+
+    /**
+     * Arrange for a task to be run on the loop's thread as soon as it can.
+     * May be called from any thread.
+     * 
+     * @param owner the handler the task belongs to, closed if the task fails; or null.
+     * @param task the task to run.
+     */
+    void execute(final NioHandler owner, final Runnable task)
+    {
+        new Task(owner, task).run();
+    }
+
+    /**
+     * Run the select loop until stopped.
+     */
+    public void run()
+    {
+        while (running)
+        {
+            try
+            {
+                selector.select();
+            }
+            catch (IOException iox)
+            {
+                ui.error("Selector failed", iox); //$NON-NLS-1$
+                break;
+            }
+
+            registerPending();
+            dispatchSelected();
+            runDue();
+        }
+
+        for (SelectionKey key : selector.keys())
+        {
+            if (key.attachment() instanceof NioHandler)
+            {
+                ((NioHandler) key.attachment()).close();
+            }
+        }
+
+        try
+        {
+            selector.close();
+        }
+        catch (IOException iox)
+        {
+            ui.debug("Error closing selector: " + iox); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * Start servicing connections handed to us by the accepting thread.
+     */
+    private void registerPending()
+    {
+        NioHandler handler;
+        while ((handler = pending.poll()) != null)
+        {
+            try
+            {
+                connections++;
+                handler.start();
+            }
+            catch (IOException iox)
+            {
+                ui.debug("Failed to register connection: " + iox); //$NON-NLS-1$
+                handler.close();
+            }
+            catch (RuntimeException rx)
+            {
+                failed(handler, rx);
+            }
+        }
+    }
+
+    /**
+     * @param client the connection from the web browser.
+     * @param listener the configuration of the listener that accepted the connection.
+     * @return the handler for the connection, according to the proxy mode.
+     */
+    private NioHandler newHandler(final SocketChannel client, final Configuration listener)
+    {
+        if (listener.getMode() == ProxyMode.TUNNEL)
+        {
+            return new NioTunnel(this, client, listener);
+        }
+        return new NioExchange(this, client, listener);
+    }
+
+    /**
+     * Pass each ready key on to the handler it belongs to.
+     */
+    private void dispatchSelected()
+    {
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext())
+        {
+            SelectionKey key = keys.next();
+            keys.remove();
+
+            NioHandler handler = (NioHandler) key.attachment();
+            try
+            {
+                if (key.isValid())
+                {
+                    handler.onReady(key);
+                }
+            }
+            catch (RuntimeException rx)
+            {
+                // Such as a key cancelled under us: only this connection is lost
+                failed(handler, rx);
+            }
+        }
+    }
+
+    /**
+     * Run every task whose delay has passed.
+     */
+    private void runDue()
+    {
+        Task task;
+        while ((task = due.poll()) != null)
+        {
+            try
+            {
+                task.task.run();
+            }
+            catch (RuntimeException rx)
+            {
+                failed(task.owner, rx);
+            }
+        }
+    }
+
+    /**
+     * A handler has failed unexpectedly: report it, and close just that
+     * handler's connections, so the loop carries on with the others.
+     * 
+     * @param handler the handler that failed, or null if not known.
+     * @param rx what went wrong.
+     */
+    private void failed(final NioHandler handler, final RuntimeException rx)
+    {
+        ui.error("Connection failed", rx); //$NON-NLS-1$
+        if (handler == null)
+        {
+            return;
+        }
+        try
+        {
+            handler.close();
+        }
+        catch (RuntimeException closing)
+        {
+            ui.debug("Error closing failed connection: " + closing); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * A task for the loop's thread, and the handler it belongs to.  Run by the
+     * {@link PacingScheduler}, or any other thread, it hands itself to the loop.
+     */
+    private final class Task implements Runnable
+    {
+        // The handler to close if the task fails, or null.
+        private final NioHandler owner;
+
+        // What to run on the loop's thread.
+        private final Runnable task;
+
+        /**
+         * @param owner the handler the task belongs to, or null.
+         * @param task what to run on the loop's thread.
+         */
+        Task(final NioHandler owner, final Runnable task)
+        {
+            this.owner = owner;
+            this.task = task;
+        }
+
+        /**
+         * Queue the task for the loop, and wake the selector.
+         */
+        public void run()
+        {
+            due.add(this);
+            selector.wakeup();
+        }
+    }
+
+}
@@ -0,0 +1,881 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+
+/**
+ * The state of one browser connection being serviced by a {@link NioEventLoop}.
+ * <p>
+ *
+ * The exchange reads the request head from the web browser, rewrites the
+ * Host: and Connection: headers, and then relays bytes in both directions
+ * between the browser and the web server: the request body, as far as its
+ * declared end, and the response.  Both connections carry just the one
+ * request, so the request and the response head each say 
+ * <code>Connection: close</code>, and anything the browser sends after the
+ * body is left unread.  Bytes going back to the browser
+ * are released through a {@link Bottleneck}: when a delay is needed the 
+ * exchange stops reading from the web server and asks the loop for a timer, 
+ * rather than sleeping.  Bytes from the browser are held back in the same way
+ * to keep within the client's upload limit.
+ * <p>
+ *
+ * When Sloppy is a forward proxy, a request for an absolute URI goes to the 
+ * host it names, and a CONNECT request hands the connection over to a 
+ * {@link NioTunnel} to the host it names.
+ * <p>
+ *
+ * All methods are called from the loop's thread only.
+ */
+class NioExchange implements NioHandler
+{
+
+    // The largest request or response head we are prepared to buffer.
+    private static final int MAX_HEAD_SIZE = 64 * 1024;
+
+    // HTTP heads are bytes; this charset maps them one-to-one onto chars.
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1"); //$NON-NLS-1$
+
+    // Ends every request head we send to the server.
+    private static final byte[] CONNECTION_CLOSE = "Connection: close\r\n\r\n".getBytes(LATIN1); //$NON-NLS-1$
+
+    // Ends every response head we send to the browser.
+    private static final String CONNECTION_CLOSE_LINE = "Connection: close"; //$NON-NLS-1$
+
+    // The reply to a CONNECT request, sent once the tunnel's destination has answered.
+    private static final byte[] CONNECTION_ESTABLISHED = "HTTP/1.1 200 Connection Established\r\n\r\n".getBytes(LATIN1); //$NON-NLS-1$
+
+    // The response sent when we can't tell where a request should go.
+    private static final byte[] BAD_REQUEST = (
+        "HTTP/1.0 400 Bad Request\r\n" + //$NON-NLS-1$
+        "Content-Length: 0\r\n" + //$NON-NLS-1$
+        "Connection: close\r\n\r\n").getBytes(LATIN1); //$NON-NLS-1$
+
+    // The response sent when the web server could not be reached, as the thread engine sends.
+    private static final byte[] BAD_GATEWAY = (
+        "HTTP/1.0 502 Bad Gateway\r\n" + //$NON-NLS-1$
+        "Content-Length: 0\r\n" + //$NON-NLS-1$
+        "Connection: close\r\n\r\n").getBytes(LATIN1); //$NON-NLS-1$
+
+    // The loop that owns this exchange.
+    private final NioEventLoop loop;
+
+    // The system configuration/settings.
+    private final Configuration conf;
+
+    // The interface to log to.
+    private final UserInterface ui;
+
+    // The bottleneck to limit this user to a specific number of bytes per millisecond.
+    private final Bottleneck bottleneck;
+
+    // Connection from the web browser, and its key.
+    private final SocketChannel browser;
+    private SelectionKey browserKey;
+
+    // Connection to the web server, and its key; null until the request head is read.
+    private SocketChannel server;
+    private SelectionKey serverKey;
+    private boolean serverConnected = false;
+
+    // Bytes read from the browser: first the request head, later any request body.
+    private ByteBuffer fromBrowser = ByteBuffer.allocate(4096);
+
+    // Parses the request head as it arrives.
+    private final RequestParser parser = new RequestParser();
+
+    // Where the request goes; null until the request head is read.
+    private URL target = null;
+
+    // True if the request named its own host, as sent to a forward proxy.
+    private boolean absolute = false;
+
+    // Bytes waiting to go to the server; null until the request head is complete.
+    private ByteBuffer toServer = null;
+
+    // Finds the end of the request body; null until the request head is complete.
+    private BodyScanner body = null;
+
+    // The response head collected so far; null once it has been passed on.
+    private ByteBuffer responseHead = ByteBuffer.allocate(4096);
+
+    // Buffer for reading data from web server, from the direct buffer pool;
+    // replaced by a bigger one if the client's rate goes up.
+    private ByteBuffer fromServer;
+
+    // Bytes waiting to go to the browser, or null if none.
+    private ByteBuffer toBrowser = null;
+
+    // True while a write to the browser is being held back by the bottleneck.
+    private boolean delayed = false;
+
+    // True while a write to the server is being held back by the upload limit.
+    private boolean uploadDelayed = false;
+
+    // Releases a held back write to the browser.
+    private final Runnable resumeDownload = new Runnable()
+    {
+        public void run()
+        {
+            delayed = false;
+            resume();
+        }
+    };
+
+    // Releases a held back write to the server.
+    private final Runnable resumeUpload = new Runnable()
+    {
+        public void run()
+        {
+            uploadDelayed = false;
+            resume();
+        }
+    };
+
+    // End of stream flags.
+    private boolean browserEof = false;
+    private boolean serverEof = false;
+
+    private boolean closed = false;
+
+    /**
+     * @param loop the event loop servicing this exchange.
+     * @param browser the (unregistered) connection from the web browser.
+     * @param conf the configuration for this run of the server.
+     */
+    NioExchange(final NioEventLoop loop, final SocketChannel browser, final Configuration conf)
+    {
+        this.loop = loop;
+        this.browser = browser;
+        this.conf = conf;
+        this.ui = conf.getUserInterface();
+
+        // The IP address identifies the browser.
+        String clientId = browser.socket().getInetAddress().getHostAddress();
+        this.bottleneck = new Bottleneck(clientId, conf);
+
+        this.fromServer = conf.getDirectBufferPool().acquire(bottleneck.chunkSize());
+    }
+
+    /**
+     * Start reading the request from the browser.
+     *
+     * @throws IOException if the channel could not be registered.
+     */
+    public void start() throws IOException
+    {
+        ui.debug("Starting request"); //$NON-NLS-1$
+        bottleneck.open();
+        browser.configureBlocking(false);
+
+        // Wait a round trip for the handshake over the client's link before reading
+        long setup = bottleneck.connectNanos();
+        browserKey = browser.register(loop.getSelector(), setup > 0 ? 0 : SelectionKey.OP_READ, this);
+        if (setup > 0)
+        {
+            loop.schedule(this, new Runnable()
+            {
+                public void run()
+                {
+                    updateInterest();
+                }
+            }, setup);
+        }
+    }
+
+    /**
+     * Handle a ready event on one of our channels.
+     * 
+     * @param key the key selected by the loop.
+     */
+    public void onReady(final SelectionKey key)
+    {
+        try
+        {
+            if (key == serverKey)
+            {
+                if (key.isConnectable())
+                {
+                    try
+                    {
+                        server.finishConnect();
+                    }
+                    catch (IOException iox)
+                    {
+                        badGateway(iox);
+                        return;
+                    }
+                    serverConnected = true;
+                }
+                if (key.isValid() && key.isWritable() && !uploadDelayed)
+                {
+                    server.write(toServer);
+                }
+                if (key.isValid() && key.isReadable())
+                {
+                    readFromServer();
+                }
+            }
+            else
+            {
+                if (key.isWritable())
+                {
+                    writeToBrowser();
+                }
+                if (key.isValid() && key.isReadable())
+                {
+                    readFromBrowser();
+                }
+            }
+            updateInterest();
+        }
+        catch (IOException iox)
+        {
+            // Probably a client closed connection error.
+            ui.debug(iox.getMessage());
+            close();
+        }
+    }
+
+    /**
+     * A throttling delay has passed: release the held back bytes.
+     */
+    private void resume()
+    {
+        if (closed)
+        {
+            return;
+        }
+
+        try
+        {
+            writeToBrowser();
+            updateInterest();
+        }
+        catch (IOException iox)
+        {
+            ui.debug(iox.getMessage());
+            close();
+        }
+    }
+
+    /**
+     * Close both connections.  Safe to call more than once.
+     */
+    public void close()
+    {
+        if (closed)
+        {
+            return;
+        }
+        closed = true;
+        loop.connectionClosed();
+        bottleneck.close();
+        ui.debug("Connection done: " + bottleneck); //$NON-NLS-1$
+        conf.getDirectBufferPool().release(fromServer);
+
+        closeQuietly(browser);
+        if (server != null)
+        {
+            closeQuietly(server);
+        }
+
+        ui.debug("REQUEST DONE"); //$NON-NLS-1$
+    }
+
+    /**
+     * Read the request head, or request body, from the browser.
+     * 
+     * @throws IOException if there was a problem communicating with the browser or server.
+     */
+    private void readFromBrowser() throws IOException
+    {
+        if (toServer != null)
+        {
+            // The head has gone; anything else is body to pass straight on.
+            fromBrowser.clear();
+        }
+
+        int bytesRead = browser.read(fromBrowser);
+        if (bytesRead == -1)
+        {
+            browserEof = true;
+            if (toServer == null)
+            {
+                close(); // Browser went away before sending a request
+            }
+            return;
+        }
+
+        if (toServer != null)
+        {
+            // Anything after the body is another request, which we won't be answering
+            int bodyBytes = body.scan(fromBrowser.array(), 0, bytesRead);
+            fromBrowser.flip();
+            fromBrowser.limit(bodyBytes);
+            toServer = fromBrowser;
+            restrictUpload(bodyBytes);
+            return;
+        }
+
+        if (parser.parse(fromBrowser.array(), fromBrowser.position()))
+        {
+            bottleneck.beginRequest();
+            if (conf.isForwardProxy() && "CONNECT".equalsIgnoreCase(parser.getMethod())) //$NON-NLS-1$
+            {
+                becomeTunnel();
+                return;
+            }
+
+            absolute = conf.isForwardProxy() && isAbsolute(parser.getTarget());
+            target = targetURL();
+            try
+            {
+                body = BodyScanner.forRequest(parser);
+            }
+            catch (IOException iox)
+            {
+                ui.debug(iox.getMessage());
+                target = null;
+            }
+            if (target == null)
+            {
+                ui.debug("Can't route request for " + parser.getTarget()); //$NON-NLS-1$
+                browserEof = true;
+                serverEof = true;
+                send(ByteBuffer.wrap(BAD_REQUEST));
+                return;
+            }
+
+            toServer = rewriteRequestHead();
+            restrictUpload(toServer.remaining());
+            connectToServer();
+        }
+        else if (!fromBrowser.hasRemaining())
+        {
+            fromBrowser = grow(fromBrowser);
+        }
+    }
+
+    /**
+     * Hand the connection over to a tunnel to the host and port named
+     * by a CONNECT request.  Any bytes the browser sent after the request
+     * go through the tunnel first.
+     * 
+     * @throws IOException if there was a problem replying to the browser.
+     */
+    private void becomeTunnel() throws IOException
+    {
+        InetSocketAddress destination;
+        try
+        {
+            destination = Util.parseHostPort(parser.getTarget(), 443);
+        }
+        catch (IllegalArgumentException iax)
+        {
+            ui.debug(iax.getMessage());
+            browserEof = true;
+            serverEof = true;
+            send(ByteBuffer.wrap(BAD_REQUEST));
+            return;
+        }
+
+        int end = parser.getHeadLength();
+        byte[] early = new byte[fromBrowser.position() - end];
+        System.arraycopy(fromBrowser.array(), end, early, 0, early.length);
+
+        // The tunnel takes over the browser's key, our bottleneck and our place in the loop's
+        // count of connections, so the connection is counted once, and this exchange just
+        // stops without closing anything.
+        closed = true;
+        conf.getDirectBufferPool().release(fromServer);
+        NioTunnel tunnel = new NioTunnel(loop, browser, conf, destination, CONNECTION_ESTABLISHED, early, bottleneck);
+        try
+        {
+            tunnel.start();
+        }
+        catch (IOException iox)
+        {
+            ui.debug("Failed to open tunnel: " + iox); //$NON-NLS-1$
+            tunnel.close();
+        }
+    }
+
+    /**
+     * @param target the target from a request line.
+     * @return true if the target is an absolute URI, as sent to a forward proxy.
+     */
+    private static boolean isAbsolute(final String target)
+    {
+        return target.length() > 0 && target.charAt(0) != '/' && target.indexOf("://") != -1; //$NON-NLS-1$
+    }
+
+    /**
+     * @return the URL the request is for, or null if it isn't one we can proxy.
+     */
+    private URL targetURL()
+    {
+        try
+        {
+            if (absolute)
+            {
+                URL url = new URL(parser.getTarget());
+                return "http".equalsIgnoreCase(url.getProtocol()) ? url : null; //$NON-NLS-1$
+            }
+            return conf.getDestination();
+        }
+        catch (MalformedURLException mx)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Read the next chunk of the response and pass it on to the browser,
+     * subject to the bottleneck.
+     * 
+     * @throws IOException if there was a problem communicating with the browser or server.
+     */
+    private void readFromServer() throws IOException
+    {
+        bottleneck.mark(); // mark an event
+
+        // Read no more than the client's rate, as it is now, lets through in one pacing interval
+        int chunkSize = bottleneck.chunkSize();
+        if (chunkSize > fromServer.capacity())
+        {
+            BufferPool pool = conf.getDirectBufferPool();
+            ByteBuffer bigger = pool.acquire(chunkSize);
+            pool.release(fromServer);
+            fromServer = bigger;
+        }
+        fromServer.clear();
+        fromServer.limit(chunkSize);
+        int bytesRead = server.read(fromServer);
+        if (bytesRead == -1)
+        {
+            serverEof = true;
+            if (responseHead != null && responseHead.position() > 0)
+            {
+                // The server closed before finishing the head: pass on what we have.
+                bottleneck.endUpstream();
+                responseHead.flip();
+                send(responseHead);
+                responseHead = null;
+            }
+            else if (toBrowser == null)
+            {
+                bottleneck.endRequest();
+                close();
+            }
+            return;
+        }
+
+        fromServer.flip();
+
+        if (responseHead == null)
+        {
+            send(fromServer);
+            return;
+        }
+
+        while (responseHead.remaining() < fromServer.remaining())
+        {
+            responseHead = grow(responseHead);
+        }
+        responseHead.put(fromServer);
+
+        int end = endOfHead(responseHead);
+        if (end != -1)
+        {
+            bottleneck.endUpstream();
+            ByteBuffer head = rewriteResponseHead(end);
+            responseHead = null;
+            send(head);
+        }
+    }
+
+    /**
+     * Hold bytes for the browser for as long as the bottleneck requires.
+     * 
+     * @param bytes the bytes to send to the browser.
+     * @throws IOException if there was a problem writing to the browser.
+     */
+    private void send(final ByteBuffer bytes) throws IOException
+    {
+        toBrowser = bytes;
+
+        long delay = bottleneck.restrictNanos(bytes.remaining());
+        if (delay > 0)
+        {
+            ui.debug(browser.socket().getRemoteSocketAddress() + " delaying " + delay + "ns"); //$NON-NLS-1$ //$NON-NLS-2$
+            delayed = true;
+            loop.schedule(this, resumeDownload, delay);
+        }
+        else
+        {
+            writeToBrowser();
+        }
+    }
+
+    /**
+     * Hold bytes read from the browser for as long as the upload limit requires.
+     * 
+     * @param bytesRead the number of bytes the browser sent.
+     */
+    private void restrictUpload(final int bytesRead)
+    {
+        long delay = bottleneck.restrictUploadNanos(bytesRead);
+        if (delay > 0)
+        {
+            uploadDelayed = true;
+            loop.schedule(this, resumeUpload, delay);
+        }
+    }
+
+    /**
+     * Write as much of the pending output as the browser will take.
+     * 
+     * @throws IOException if there was a problem writing to the browser.
+     */
+    private void writeToBrowser() throws IOException
+    {
+        if (delayed || toBrowser == null)
+        {
+            return;
+        }
+
+        browser.write(toBrowser);
+        if (!toBrowser.hasRemaining())
+        {
+            toBrowser = null;
+            if (serverEof)
+            {
+                bottleneck.endRequest();
+                close();
+            }
+        }
+    }
+
+    /**
+     * Look up the web server, off the loop, then connect to it.  Until then
+     * nothing more is read from the browser.
+     */
+    private void connectToServer()
+    {
+        int port = target.getPort() == -1 ? target.getDefaultPort() : target.getPort();
+
+        bottleneck.beginUpstream();
+        conf.getResolver().resolve(target.getHost(), port, loop, this, new Resolver.Callback()
+        {
+            public void resolved(final InetSocketAddress address)
+            {
+                if (closed)
+                {
+                    return;
+                }
+                try
+                {
+                    connectTo(address);
+                    updateInterest();
+                }
+                catch (IOException iox)
+                {
+                    badGateway(iox);
+                }
+            }
+        });
+    }
+
+    /**
+     * The web server could not be reached: tell the browser with a 502, as the
+     * thread engine does, and close once it has gone.
+     * 
+     * @param iox why the web server could not be reached.
+     */
+    private void badGateway(final IOException iox)
+    {
+        ui.debug("Failed to connect to " + target + ": " + iox); //$NON-NLS-1$ //$NON-NLS-2$
+        if (server != null)
+        {
+            closeQuietly(server);
+            server = null;
+            serverKey = null;
+        }
+
+        browserEof = true;
+        serverEof = true;
+        try
+        {
+            send(ByteBuffer.wrap(BAD_GATEWAY));
+            updateInterest();
+        }
+        catch (IOException browserGone)
+        {
+            ui.debug(browserGone.getMessage());
+            close();
+        }
+    }
+
+    /**
+     * Start a non-blocking connection to the web server.
+     * 
+     * @param address the web server, looked up.
+     * @throws IOException if the host is not known, or the connection could not be started.
+     */
+    private void connectTo(final InetSocketAddress address) throws IOException
+    {
+        if (address.isUnresolved())
+        {
+            throw new UnknownHostException(address.getHostString());
+        }
+        server = SocketChannel.open();
+        server.configureBlocking(false);
+        serverConnected = server.connect(address);
+        serverKey = server.register(loop.getSelector(), 0, this);
+    }
+
+    /**
+     * Work out which events we are interested in from the state of the buffers.
+     */
+    private void updateInterest()
+    {
+        if (closed)
+        {
+            return;
+        }
+
+        int browserOps = 0;
+        boolean wantBody = toServer != null && serverConnected && !toServer.hasRemaining() && !body.isFinished();
+        if (!browserEof && (toServer == null || wantBody))
+        {
+            browserOps |= SelectionKey.OP_READ;
+        }
+        if (toBrowser != null && !delayed)
+        {
+            browserOps |= SelectionKey.OP_WRITE;
+        }
+        browserKey.interestOps(browserOps);
+
+        if (serverKey != null)
+        {
+            int serverOps = 0;
+            if (!serverConnected)
+            {
+                serverOps = SelectionKey.OP_CONNECT;
+            }
+            else
+            {
+                if (toServer.hasRemaining() && !uploadDelayed)
+                {
+                    serverOps |= SelectionKey.OP_WRITE;
+                }
+                if (!serverEof && toBrowser == null)
+                {
+                    serverOps |= SelectionKey.OP_READ;
+                }
+            }
+            serverKey.interestOps(serverOps);
+        }
+    }
+
+    /**
+     * Produce the request head to send to the web server: the browser's
+     * request with the Host: header pointing at the destination and
+     * keep-alive turned off.  Any body bytes already read follow the head.
+     * The lines we keep are copied across byte for byte, except that an
+     * absolute URI in the request line is cut down to its path.
+     * 
+     * @return bytes for the web server, ready for reading.
+     * @throws IOException if the body bytes already read are not a valid body.
+     */
+    private ByteBuffer rewriteRequestHead() throws IOException
+    {
+        ui.debug("> " + parser.getRequestLine()); //$NON-NLS-1$
+
+        byte[] host = ("Host: " + Util.hostHeader(target) + "\r\n").getBytes(LATIN1); //$NON-NLS-1$ //$NON-NLS-2$
+        byte[] requestLine = null;
+        if (absolute)
+        {
+            String file = target.getFile().length() == 0 ? "/" : target.getFile(); //$NON-NLS-1$
+            requestLine = (parser.getMethod() + " " + file + " " + parser.getVersion() + "\r\n").getBytes(LATIN1); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        }
+        int end = parser.getHeadLength();
+        int rest = body.scan(fromBrowser.array(), end, fromBrowser.position() - end);
+
+        // The original head is enough room for the lines we keep, allowing for
+        // a CR to be added to each line that ended with a bare LF.
+        int room = end + parser.getHeaderCount() + 1 + host.length + CONNECTION_CLOSE.length + rest
+            + (requestLine == null ? 0 : requestLine.length);
+        ByteBuffer out = ByteBuffer.allocate(room);
+        if (requestLine == null)
+        {
+            parser.copyRequestLine(out);
+        }
+        else
+        {
+            out.put(requestLine);
+        }
+        for (int i = 0, n = parser.getHeaderCount(); i < n; i++)
+        {
+            if (parser.isHeader(i, "Host") //$NON-NLS-1$
+                || parser.isHeader(i, "Connection") //$NON-NLS-1$
+                || parser.isHeader(i, "Keep-Alive") //$NON-NLS-1$
+                || parser.isHeader(i, "Proxy-Connection") //$NON-NLS-1$
+                || (body.isChunked() && parser.isHeader(i, "Content-Length"))) //$NON-NLS-1$
+            {
+                continue; // A Content-Length beside chunking could be read by the web server as another body length
+            }
+            parser.copyHeader(i, out);
+        }
+        out.put(host);
+        // We don't do Keep-Alive to keep this code simple.
+        out.put(CONNECTION_CLOSE);
+
+        out.put(fromBrowser.array(), end, rest);
+        out.flip();
+        return out;
+    }
+
+    /**
+     * Produce the response head for the browser, with any redirection
+     * pointing back through Sloppy, and with <code>Connection: close</code> 
+     * in place of the web server's connection headers, as we close the 
+     * browser's connection after the response.  Body bytes already read follow the head.
+     * 
+     * @param end the offset just past the blank line ending the head.
+     * @return bytes for the browser, ready for reading.
+     */
+    private ByteBuffer rewriteResponseHead(final int end)
+    {
+        String[] lines = new String(responseHead.array(), 0, end, LATIN1).split("\r?\n"); //$NON-NLS-1$
+
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < lines.length; i++)
+        {
+            String line = lines[i];
+            String name = i == 0 ? "" : headerName(line); //$NON-NLS-1$
+            if ("Connection".equalsIgnoreCase(name) //$NON-NLS-1$
+                || "Keep-Alive".equalsIgnoreCase(name) //$NON-NLS-1$
+                || "Proxy-Connection".equalsIgnoreCase(name)) //$NON-NLS-1$
+            {
+                continue;
+            }
+            if (!absolute && "Location".equalsIgnoreCase(name)) //$NON-NLS-1$
+            {
+                String value = line.substring(line.indexOf(':') + 1).trim();
+                line = "Location: " + Util.rewriteLocation(value, conf.getDestination(), conf.getLocalPort()); //$NON-NLS-1$
+            }
+            ui.debug("< " + line); //$NON-NLS-1$
+            b.append(line).append("\r\n"); //$NON-NLS-1$
+        }
+        b.append(CONNECTION_CLOSE_LINE).append("\r\n\r\n"); //$NON-NLS-1$
+
+        byte[] head = b.toString().getBytes(LATIN1);
+        int rest = responseHead.position() - end;
+
+        ByteBuffer out = ByteBuffer.allocate(head.length + rest);
+        out.put(head);
+        out.put(responseHead.array(), end, rest);
+        out.flip();
+        return out;
+    }
+
+    /**
+     * @param line a header line.
+     * @return the name of the header, or the whole line if there is no colon.
+     */
+    private static String headerName(final String line)
+    {
+        int colon = line.indexOf(':');
+        return colon == -1 ? line.trim() : line.substring(0, colon).trim();
+    }
+
+    /**
+     * Find the end of an HTTP head in the bytes written to a buffer so far.
+     * 
+     * @param buffer a buffer being written to.
+     * @return the offset just past the blank line, or -1 if not yet seen.
+     */
+    private static int endOfHead(final ByteBuffer buffer)
+    {
+        byte[] bytes = buffer.array();
+        for (int i = 0, n = buffer.position(); i < n; i++)
+        {
+            if (bytes[i] != '\n')
+            {
+                continue;
+            }
+            if (i + 1 < n && bytes[i + 1] == '\n')
+            {
+                return i + 2;
+            }
+            if (i + 2 < n && bytes[i + 1] == '\r' && bytes[i + 2] == '\n')
+            {
+                return i + 3;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Double the size of a buffer that is being written to.
+     * 
+     * @param buffer the full buffer.
+     * @return a larger buffer with the same content.
+     * @throws IOException if the buffer would exceed the limit for heads.
+     */
+    private static ByteBuffer grow(final ByteBuffer buffer) throws IOException
+    {
+        if (buffer.capacity() >= MAX_HEAD_SIZE)
+        {
+            throw new IOException("HTTP head too large"); //$NON-NLS-1$
+        }
+        ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+
+    /**
+     * @param channel the channel to close, ignoring any error.
+     */
+    private static void closeQuietly(final SocketChannel channel)
+    {
+        try
+        {
+            channel.close();
+        }
+        catch (IOException ignored)
+        {
+            // We're finished with it either way.
+        }
+    }
+
+}
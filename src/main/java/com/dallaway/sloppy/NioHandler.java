@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+
+/**
+ * Something that services one browser connection on a {@link NioEventLoop}.
+ * The handler is attached to the selection keys of its channels, and its 
+ * methods are only called from the loop's thread.
+ */
+interface NioHandler
+{
+
+    /**
+     * Register the handler's channels with the loop's selector.
+     *
+     * @throws IOException if a channel could not be registered.
+     */
+    void start() throws IOException;
+
+    /**
+     * Handle a ready event on one of the handler's channels.
+     * 
+     * @param key the key selected by the loop.
+     */
+    void onReady(SelectionKey key);
+
+    /**
+     * Close the handler's connections.  Safe to call more than once.
+     */
+    void close();
+
+}
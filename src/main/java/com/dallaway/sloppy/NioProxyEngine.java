@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Non-blocking alternative to running a {@link SlowProxyThread} per request.
+ * <p>
+ *
+ * Accepted connections are spread round-robin over a fixed number of
+ * {@link NioEventLoop}s, each of which multiplexes the browser and web server
+ * channels of many exchanges on a single selector.  Throttling works
+ * the same way as for threads -- via {@link Bottleneck} -- except that instead 
+ * of sleeping, a delayed write is parked on a timer in the event loop,
+ * so a thousand slow clients do not need a thousand sleeping threads.
+ * <p>
+ *
+ * Unlike {@link SlowProxyThread}, each connection carries a single
+ * request: the request is forwarded with <code>Connection: close</code>,
+ * and the response relayed with <code>Connection: close</code> until the 
+ * web server closes the connection.
+ * <p>
+ *
+ * The loops are shared by all of the server's listeners: each connection
+ * is serviced with the settings of the listener that accepted it.
+ */
+public class NioProxyEngine
+{
+
+    // The system configuration/settings.
+    private final Configuration conf;
+
+    // The selector threads.
+    private final NioEventLoop[] loops;
+
+    // Index of the loop to receive the next connection.
+    private int next = 0;
+
+    /**
+     * @param conf the configuration for this run of the server.
+     */
+    public NioProxyEngine(final Configuration conf)
+    {
+        this.conf = conf;
+        this.loops = new NioEventLoop[Math.max(1, conf.getNioThreads())];
+    }
+
+    /**
+     * Open the selectors and start the event loop threads.
+     * 
+     * @throws IOException if a selector could not be opened.
+     */
+    public void start() throws IOException
+    {
+        for (int i = 0; i < loops.length; i++)
+        {
+            loops[i] = new NioEventLoop(conf);
+            Thread thread = new Thread(loops[i], "sloppy-nio-" + i); //$NON-NLS-1$
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Hand a newly accepted browser connection to one of the event loops.
+     * Only called from the accepting thread.
+     * 
+     * @param client the connection from the web browser.
+     * @param listener the configuration of the listener that accepted the connection.
+     */
+    public void register(final SocketChannel client, final Configuration listener)
+    {
+        NioEventLoop loop = loops[next];
+        next = (next + 1) % loops.length;
+        loop.register(client, listener);
+    }
+
+    /**
+     * Stop all event loops, closing any connections still in progress.
+     */
+    public void stop()
+    {
+        for (NioEventLoop loop : loops)
+        {
+            if (loop != null)
+            {
+                loop.stop();
+            }
+        }
+    }
+
+}
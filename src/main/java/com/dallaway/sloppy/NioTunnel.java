@@ -0,0 +1,553 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Splices a browser connection onto a connection to the tunnel destination,
+ * passing bytes through unchanged in both directions.
+ * <p>
+ *
+ * Nothing is parsed, so any TCP protocol can be tunnelled: WebSockets, 
+ * database connections, mail and so on.  Each direction is a {@link Flow}
+ * with its own direct buffer, from the {@link BufferPool}, reused for every chunk
+ * until a rise in the rate calls for a bigger one.  Bytes towards the 
+ * browser are paced by the client's download limit and bytes towards the 
+ * server by its upload limit, both via a {@link Bottleneck} and timers on
+ * the loop, exactly as for a {@link NioExchange}.
+ * <p>
+ *
+ * A tunnel can also be started part way through a conversation, as when a 
+ * browser asks a forward proxy to CONNECT: the reply to the browser and any
+ * bytes the browser has already sent are passed on once the destination answers.
+ * <p>
+ *
+ * When one side shuts down its output the other side's output is shut down
+ * once the buffered bytes have been written, so protocols that half-close
+ * still work.  The tunnel closes when both directions are finished.
+ * <p>
+ *
+ * All methods are called from the loop's thread only.
+ */
+class NioTunnel implements NioHandler
+{
+
+    // The loop that owns this tunnel.
+    private final NioEventLoop loop;
+
+    // The system configuration/settings.
+    private final Configuration conf;
+
+    // The interface to log to.
+    private final UserInterface ui;
+
+    // The bottleneck to limit this user to a specific number of bytes per millisecond.
+    private final Bottleneck bottleneck;
+
+    // Connection from the web browser, and its key.
+    private final SocketChannel browser;
+    private SelectionKey browserKey;
+
+    // Where the connection to the server goes.
+    private final InetSocketAddress destination;
+
+    // Is this a new connection, which waits for the handshake over the client's link?
+    private final boolean handshake;
+
+    // Connection to the tunnel destination, and its key.
+    private SocketChannel server;
+    private SelectionKey serverKey;
+    private boolean serverConnected = false;
+
+    // Bytes from the browser to the server.
+    private final Flow upload;
+
+    // Bytes from the server to the browser.
+    private final Flow download;
+
+    private boolean closed = false;
+
+    /**
+     * @param loop the event loop servicing this tunnel.
+     * @param browser the (unregistered) connection from the web browser.
+     * @param conf the configuration for this run of the server.
+     */
+    NioTunnel(final NioEventLoop loop, final SocketChannel browser, final Configuration conf)
+    {
+        this(loop, browser, conf, conf.getTunnelDestination(), null, null);
+    }
+
+    /**
+     * @param loop the event loop servicing this tunnel.
+     * @param browser the connection from the web browser, which may already be registered with the loop.
+     * @param conf the configuration for this run of the server.
+     * @param destination where to connect to (the host need not be resolved yet).
+     * @param toBrowser bytes to send the browser once the destination is connected, or null
+     *        for a new connection, which first waits a round trip for the handshake.
+     * @param toServer bytes already read from the browser, to send on first, or null.
+     */
+    NioTunnel(final NioEventLoop loop, final SocketChannel browser, final Configuration conf,
+        final InetSocketAddress destination, final byte[] toBrowser, final byte[] toServer)
+    {
+        // The IP address identifies the browser.
+        this(loop, browser, conf, destination, toBrowser, toServer,
+            new Bottleneck(browser.socket().getInetAddress().getHostAddress(), conf));
+    }
+
+    /**
+     * @param loop the event loop servicing this tunnel.
+     * @param browser the connection from the web browser, which may already be registered with the loop.
+     * @param conf the configuration for this run of the server.
+     * @param destination where to connect to (the host need not be resolved yet).
+     * @param toBrowser bytes to send the browser once the destination is connected, or null
+     *        for a new connection, which first waits a round trip for the handshake.
+     * @param toServer bytes already read from the browser, to send on first, or null.
+     * @param bottleneck the connection's bottleneck, which may already be open, 
+     *        as when taking over from a CONNECT request; the tunnel closes it.
+     */
+    NioTunnel(final NioEventLoop loop, final SocketChannel browser, final Configuration conf,
+        final InetSocketAddress destination, final byte[] toBrowser, final byte[] toServer,
+        final Bottleneck bottleneck)
+    {
+        this.loop = loop;
+        this.browser = browser;
+        this.conf = conf;
+        this.ui = conf.getUserInterface();
+        this.destination = destination;
+        this.handshake = toBrowser == null;
+        this.bottleneck = bottleneck;
+
+        this.upload = new Flow(true, toServer);
+        this.download = new Flow(false, toBrowser);
+    }
+
+    /**
+     * Start connecting to the tunnel destination, once any handshake delay has passed.
+     * Nothing is read from the browser until the connection is made.
+     *
+     * @throws IOException if the connection could not be started.
+     */
+    public void start() throws IOException
+    {
+        if (destination == null)
+        {
+            throw new IOException("No tunnel destination configured"); //$NON-NLS-1$
+        }
+        ui.debug("Tunnelling " + browser.socket().getRemoteSocketAddress() + " to " + destination); //$NON-NLS-1$ //$NON-NLS-2$
+        bottleneck.open();
+
+        browser.configureBlocking(false);
+        browserKey = browser.register(loop.getSelector(), 0, this);
+
+        long setup = handshake ? bottleneck.connectNanos() : 0;
+        if (setup > 0)
+        {
+            loop.schedule(this, new Runnable()
+            {
+                public void run()
+                {
+                    if (!closed)
+                    {
+                        connect();
+                    }
+                }
+            }, setup);
+        }
+        else
+        {
+            connect();
+        }
+    }
+
+    /**
+     * Look up the tunnel destination, off the loop, then connect to it.
+     */
+    private void connect()
+    {
+        conf.getResolver().resolve(destination.getHostString(), destination.getPort(), loop, this, new Resolver.Callback()
+        {
+            public void resolved(final InetSocketAddress address)
+            {
+                if (closed)
+                {
+                    return;
+                }
+                try
+                {
+                    connectTo(address);
+                }
+                catch (IOException iox)
+                {
+                    ui.debug("Failed to connect tunnel: " + iox); //$NON-NLS-1$
+                    close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Start connecting to the tunnel destination.
+     *
+     * @param address the destination, looked up.
+     * @throws IOException if the host is not known, or the connection could not be started.
+     */
+    private void connectTo(final InetSocketAddress address) throws IOException
+    {
+        if (address.isUnresolved())
+        {
+            throw new UnknownHostException(address.getHostString());
+        }
+        server = SocketChannel.open();
+        try
+        {
+            server.configureBlocking(false);
+            server.socket().setTcpNoDelay(true);
+            serverConnected = server.connect(address);
+            serverKey = server.register(loop.getSelector(), 0, this);
+        }
+        catch (IOException iox)
+        {
+            closeQuietly(server);
+            throw iox;
+        }
+
+        upload.connect(browser, server);
+        download.connect(server, browser);
+        updateInterest();
+    }
+
+    /**
+     * Handle a ready event on one of our channels.
+     * 
+     * @param key the key selected by the loop.
+     */
+    public void onReady(final SelectionKey key)
+    {
+        try
+        {
+            if (key == serverKey)
+            {
+                if (key.isConnectable())
+                {
+                    server.finishConnect();
+                    serverConnected = true;
+                }
+                if (key.isValid() && key.isWritable())
+                {
+                    upload.write();
+                }
+                if (key.isValid() && key.isReadable())
+                {
+                    download.read();
+                }
+            }
+            else
+            {
+                if (key.isWritable())
+                {
+                    download.write();
+                }
+                if (key.isValid() && key.isReadable())
+                {
+                    upload.read();
+                }
+            }
+            updateInterest();
+        }
+        catch (IOException iox)
+        {
+            // Probably one end or the other reset the connection.
+            ui.debug(iox.getMessage());
+            close();
+        }
+    }
+
+    /**
+     * Close both connections.  Safe to call more than once.
+     */
+    public void close()
+    {
+        if (closed)
+        {
+            return;
+        }
+        closed = true;
+        loop.connectionClosed();
+        bottleneck.close();
+        ui.debug("Connection done: " + bottleneck); //$NON-NLS-1$
+        conf.getDirectBufferPool().release(upload.buffer);
+        conf.getDirectBufferPool().release(download.buffer);
+
+        closeQuietly(browser);
+        if (server != null)
+        {
+            closeQuietly(server);
+        }
+
+        ui.debug("TUNNEL DONE"); //$NON-NLS-1$
+    }
+
+    /**
+     * Work out which events we are interested in from the state of the flows.
+     */
+    private void updateInterest()
+    {
+        if (closed)
+        {
+            return;
+        }
+
+        if (!serverConnected)
+        {
+            // Nothing moves until the destination has been looked up and answers
+            browserKey.interestOps(0);
+            if (serverKey != null)
+            {
+                serverKey.interestOps(SelectionKey.OP_CONNECT);
+            }
+            return;
+        }
+
+        browserKey.interestOps(upload.readOps() | download.writeOps());
+        serverKey.interestOps(download.readOps() | upload.writeOps());
+    }
+
+    /**
+     * @param channel the channel to close, ignoring any error.
+     */
+    private static void closeQuietly(final SocketChannel channel)
+    {
+        try
+        {
+            channel.close();
+        }
+        catch (IOException ignored)
+        {
+            // We're finished with it either way.
+        }
+    }
+
+    /**
+     * Bytes travelling in one direction through the tunnel.  The buffer holds
+     * at most one chunk at a time: once read, the chunk is held back for as long
+     * as the bottleneck requires, and nothing more is read until it has been written.
+     * The flow is its own timer task, so being held back allocates nothing.
+     */
+    private final class Flow implements Runnable
+    {
+
+        // True for browser to server, which counts against the upload limit.
+        private final boolean isUpload;
+
+        // The chunk being passed on, ready for reading when full is set.
+        private ByteBuffer buffer;
+
+        // Where the bytes come from, and go to.
+        private SocketChannel from;
+        private SocketChannel to;
+
+        // True while the buffer holds bytes still to be written.
+        private boolean full = false;
+
+        // True while a write is being held back by the bottleneck.
+        private boolean delayed = false;
+
+        // True once the source has reached end of stream.
+        private boolean eof = false;
+
+        // True once end of stream has been passed on to the destination.
+        private boolean shut = false;
+
+        /**
+         * @param isUpload true for the browser to server direction.
+         * @param initial bytes to pass on before any are read, or null.
+         */
+        Flow(final boolean isUpload, final byte[] initial)
+        {
+            this.isUpload = isUpload;
+            int chunkSize = chunkSize();
+            this.buffer = conf.getDirectBufferPool().acquire(initial == null ? chunkSize : Math.max(chunkSize, initial.length));
+            if (initial != null && initial.length > 0)
+            {
+                buffer.put(initial);
+                buffer.flip();
+                full = true;
+            }
+        }
+
+        /**
+         * @param from the channel to read from.
+         * @param to the channel to write to.
+         */
+        void connect(final SocketChannel from, final SocketChannel to)
+        {
+            this.from = from;
+            this.to = to;
+        }
+
+        /**
+         * @return OP_READ if the flow can take another chunk from its source.
+         */
+        int readOps()
+        {
+            return eof || full ? 0 : SelectionKey.OP_READ;
+        }
+
+        /**
+         * @return OP_WRITE if the flow has bytes its destination may now be sent.
+         */
+        int writeOps()
+        {
+            return full && !delayed ? SelectionKey.OP_WRITE : 0;
+        }
+
+        /**
+         * @return the most to read in one go: what the limit for this direction
+         *         lets through in one pacing interval.
+         */
+        private int chunkSize()
+        {
+            return isUpload ? bottleneck.uploadChunkSize() : bottleneck.chunkSize();
+        }
+
+        /**
+         * Read the next chunk and hold it back for as long as the bottleneck requires.
+         * 
+         * @throws IOException if there was a problem reading or writing.
+         */
+        void read() throws IOException
+        {
+            if (!isUpload)
+            {
+                bottleneck.mark(); // mark an event
+            }
+
+            int chunkSize = chunkSize();
+            if (chunkSize > buffer.capacity())
+            {
+                BufferPool pool = conf.getDirectBufferPool();
+                ByteBuffer bigger = pool.acquire(chunkSize);
+                pool.release(buffer);
+                buffer = bigger;
+            }
+            buffer.clear();
+            buffer.limit(chunkSize);
+            int bytesRead = from.read(buffer);
+            if (bytesRead == -1)
+            {
+                eof = true;
+                shutdown();
+                return;
+            }
+            if (bytesRead == 0)
+            {
+                return;
+            }
+
+            buffer.flip();
+            full = true;
+
+            long delay = isUpload ? bottleneck.restrictUploadNanos(bytesRead) : bottleneck.restrictNanos(bytesRead);
+            if (delay > 0)
+            {
+                delayed = true;
+                loop.schedule(NioTunnel.this, this, delay);
+            }
+            else
+            {
+                write();
+            }
+        }
+
+        /**
+         * Write as much of the held chunk as the destination will take.
+         * 
+         * @throws IOException if there was a problem writing.
+         */
+        void write() throws IOException
+        {
+            if (!full || delayed)
+            {
+                return;
+            }
+
+            to.write(buffer);
+            if (!buffer.hasRemaining())
+            {
+                full = false;
+                if (eof)
+                {
+                    shutdown();
+                }
+            }
+        }
+
+        /**
+         * Pass end of stream on, once everything before it has been written.
+         * 
+         * @throws IOException if the destination could not be shut down.
+         */
+        private void shutdown() throws IOException
+        {
+            if (full || shut)
+            {
+                return;
+            }
+            shut = true;
+            to.socket().shutdownOutput();
+
+            if (upload.shut && download.shut)
+            {
+                close();
+            }
+        }
+
+        /**
+         * The throttling delay has passed: release the held back chunk.
+         */
+        public void run()
+        {
+            delayed = false;
+            if (closed)
+            {
+                return;
+            }
+
+            try
+            {
+                write();
+                updateInterest();
+            }
+            catch (IOException iox)
+            {
+                ui.debug(iox.getMessage());
+                close();
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs tasks after a delay, with a resolution much finer than a millisecond, 
+ * for all the throttled writes of a server.
+ * <p>
+ *
+ * This is a hashed timing wheel driven by a single thread and {@link System#nanoTime()}.
+ * Time is cut into ticks of {@link #TICK_NANOS}; a task goes in the slot of the
+ * wheel for the tick in which it falls due, with a count of the turns of the 
+ * wheel still to wait if that is more than one turn away.  Each tick the thread
+ * runs the due tasks in one slot, so scheduling and expiry cost the same 
+ * however many tasks are waiting.
+ * <p>
+ *
+ * The ticks are fixed against the time the wheel started, not against when
+ * the thread last woke, so a late wake-up is caught up on the following ticks
+ * instead of pushing every later tick back: the wheel does not drift.  A task
+ * runs in the first tick that ends after it falls due, so it may be up to one
+ * tick late, but never early.  The {@link TokenBucket}s admit bytes against 
+ * absolute times, so lateness on one chunk shortens the wait for the next, and
+ * the rate achieved over a connection matches the rate configured.
+ * <p>
+ *
+ * When nothing is scheduled the thread parks until something is, so an idle
+ * server costs nothing.  Tasks run on the wheel's thread and must be quick:
+ * they typically wake a sleeping handler thread or hand work to an event loop.
+ * <p>
+ *
+ * Safe to use from any number of threads.
+ */
+public class PacingScheduler implements Runnable
+{
+
+    /** The length of a tick of the wheel, in nanoseconds. */
+    public static final long TICK_NANOS = 250 * 1000L;
+
+    // The number of slots in the wheel (a power of two), one per tick.
+    private static final int WHEEL_SIZE = 1024;
+
+    // Tasks scheduled but not yet placed on the wheel.
+    private final Queue<Timeout> incoming = new ConcurrentLinkedQueue<Timeout>();
+
+    // Tasks waiting, placed or not.
+    private final AtomicInteger pending = new AtomicInteger();
+
+    // The slots of the wheel: each is a list of tasks.  Only touched by the wheel's thread.
+    private final Timeout[] wheel = new Timeout[WHEEL_SIZE];
+
+    // The wheel's thread, once started.
+    private volatile Thread thread;
+
+    // The interface to log to.
+    private final UserInterface ui;
+
+    /**
+     * @param ui where to report tasks that fail.
+     */
+    public PacingScheduler(final UserInterface ui)
+    {
+        this.ui = ui;
+    }
+
+    /**
+     * Arrange for a task to be run once a delay has passed.
+     * 
+     * @param task the task to run, on the wheel's thread.
+     * @param delayNanos how long to wait, in nanoseconds.
+     */
+    public void schedule(final Runnable task, final long delayNanos)
+    {
+        boolean wasIdle = pending.getAndIncrement() == 0;
+        incoming.add(new Timeout(task, System.nanoTime() + delayNanos));
+        if (wasIdle)
+        {
+            // The wheel may be parked for want of anything to do
+            LockSupport.unpark(start());
+        }
+    }
+
+    /**
+     * Block the calling thread for a time, waking it from the wheel.
+     * 
+     * @param nanos how long to wait, in nanoseconds.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    public void sleepNanos(final long nanos) throws InterruptedException
+    {
+        if (nanos <= 0)
+        {
+            return;
+        }
+
+        Sleeper sleeper = new Sleeper(Thread.currentThread());
+        schedule(sleeper, nanos);
+        while (!sleeper.woken)
+        {
+            LockSupport.park(this);
+            if (Thread.interrupted())
+            {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /**
+     * @return the number of tasks waiting to run.
+     */
+    public int getPendingCount()
+    {
+        return pending.get();
+    }
+
+    /**
+     * @return the wheel's thread, starting it if need be.
+     */
+    private synchronized Thread start()
+    {
+        if (thread == null)
+        {
+            thread = new Thread(this, "sloppy-pacing"); //$NON-NLS-1$
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return thread;
+    }
+
+    /**
+     * Turn the wheel, for as long as the program runs.
+     */
+    public void run()
+    {
+        long tick = 0;
+        long startTime = System.nanoTime();
+
+        while (true)
+        {
+            if (pending.get() == 0)
+            {
+                // Nothing to do until something is scheduled.  The wheel is empty,
+                // so the ticks can be re-based on when we wake up.
+                LockSupport.park(this);
+                startTime = System.nanoTime() - tick * TICK_NANOS;
+                continue;
+            }
+
+            // Wait for the end of the tick, measured from the start, so we never drift
+            long tickEnd = startTime + (tick + 1) * TICK_NANOS;
+            long wait = tickEnd - System.nanoTime();
+            while (wait > 0)
+            {
+                LockSupport.parkNanos(this, wait);
+                wait = tickEnd - System.nanoTime();
+            }
+
+            place(startTime, tick);
+            expire(tick);
+            tick++;
+        }
+    }
+
+    /**
+     * Move newly scheduled tasks onto the wheel.
+     * 
+     * @param startTime when tick zero began.
+     * @param tick the tick being processed.
+     */
+    private void place(final long startTime, final long tick)
+    {
+        Timeout timeout;
+        while ((timeout = incoming.poll()) != null)
+        {
+            // The tick the task falls due in; anything already due goes in this one
+            long due = Math.max(tick, (timeout.deadline - startTime) / TICK_NANOS);
+            timeout.rounds = (due - tick) / WHEEL_SIZE;
+
+            int slot = (int) (due & (WHEEL_SIZE - 1));
+            timeout.next = wheel[slot];
+            wheel[slot] = timeout;
+        }
+    }
+
+    /**
+     * Run the tasks due in a tick, and count down the rest in its slot.
+     * 
+     * @param tick the tick that has just ended.
+     */
+    private void expire(final long tick)
+    {
+        int slot = (int) (tick & (WHEEL_SIZE - 1));
+        Timeout previous = null;
+        Timeout timeout = wheel[slot];
+        while (timeout != null)
+        {
+            Timeout next = timeout.next;
+            if (timeout.rounds > 0)
+            {
+                timeout.rounds--;
+                previous = timeout;
+            }
+            else
+            {
+                if (previous == null)
+                {
+                    wheel[slot] = next;
+                }
+                else
+                {
+                    previous.next = next;
+                }
+                pending.decrementAndGet();
+                try
+                {
+                    timeout.task.run();
+                }
+                catch (RuntimeException rx)
+                {
+                    ui.error("Paced task failed", rx); //$NON-NLS-1$
+                }
+            }
+            timeout = next;
+        }
+    }
+
+    /**
+     * A task waiting on the wheel.
+     */
+    private static final class Timeout
+    {
+        // What to run.
+        final Runnable task;
+
+        // When to run it (System.nanoTime()).
+        final long deadline;
+
+        // Turns of the wheel still to wait once in its slot.
+        long rounds;
+
+        // The next task in the same slot.
+        Timeout next;
+
+        Timeout(final Runnable task, final long deadline)
+        {
+            this.task = task;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * Wakes a thread waiting in {@link PacingScheduler#sleepNanos(long)}.
+     */
+    private static final class Sleeper implements Runnable
+    {
+        // The waiting thread.
+        private final Thread thread;
+
+        // Set once the wait is over.
+        volatile boolean woken = false;
+
+        Sleeper(final Thread thread)
+        {
+            this.thread = thread;
+        }
+
+        public void run()
+        {
+            woken = true;
+            LockSupport.unpark(thread);
+        }
+    }
+
+}
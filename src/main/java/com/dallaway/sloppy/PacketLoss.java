@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import java.util.Random;
+
+/**
+ * The packets lost in one direction of a connection, and the stalls they cause.
+ * <p>
+ *
+ * The bytes passed on are counted off into segments of {@link #SEGMENT_BYTES},
+ * and the {@link LossModel} decides the fate of each segment as it is completed.
+ * Segments are counted by their place in the stream, not by how the stream was
+ * read, so the same seed loses the same segments however the reads fall.
+ * <p>
+ *
+ * A lost segment holds up everything behind it until it is sent again, after
+ * a retransmission timeout.  The segments lost in the same burst are sent
+ * again with it, so a burst costs one timeout.  If a retransmission is lost
+ * as well the timeout doubles, as TCP backs off, up to {@link #MAX_TIMEOUT_NANOS}.
+ * <p>
+ *
+ * Used by one connection's thread at a time.
+ */
+public class PacketLoss
+{
+
+    /** The bytes in a segment: a typical TCP maximum segment size. */
+    public static final int SEGMENT_BYTES = 1460;
+
+    /** The longest TCP waits before sending a segment again. */
+    public static final long MAX_TIMEOUT_NANOS = 60 * 1000000000L;
+
+    // The source of the losses.
+    private final Random random;
+
+    // Was the last segment lost?  For bursty loss, this is the state of the link.
+    private boolean lastLost = false;
+
+    // Bytes passed on so far.
+    private long bytes = 0;
+
+    // Segments lost so far, counting each retransmission lost too.
+    private long lost = 0;
+
+    // The time spent waiting to retransmit so far.
+    private long stalledNanos = 0;
+
+    /**
+     * @param random the source of the losses.
+     */
+    public PacketLoss(final Random random)
+    {
+        this.random = random;
+    }
+
+    /**
+     * @param model the loss of the link.
+     * @param count the number of bytes being passed on.
+     * @param timeoutNanos the retransmission timeout.
+     * @return nanoseconds the bytes are held up by losses; zero if none are lost.
+     */
+    public long stallNanos(final LossModel model, final int count, final long timeoutNanos)
+    {
+        long segments = (bytes + count) / SEGMENT_BYTES - bytes / SEGMENT_BYTES;
+        bytes += count;
+
+        long stall = 0;
+        for (long i = 0; i < segments; i++)
+        {
+            boolean isLost = model.lose(random, lastLost);
+            if (isLost)
+            {
+                lost++;
+            }
+            if (isLost && !lastLost)
+            {
+                // A new burst: wait, then send again until the retransmission gets through
+                long timeout = timeoutNanos;
+                stall += timeout;
+                while (model.loseAgain(random))
+                {
+                    lost++;
+                    timeout = Math.min(MAX_TIMEOUT_NANOS, timeout * 2);
+                    stall += timeout;
+                }
+            }
+            lastLost = isLost;
+        }
+        stalledNanos += stall;
+        return stall;
+    }
+
+    /**
+     * @return the number of segments lost so far.
+     */
+    public long getLostCount()
+    {
+        return lost;
+    }
+
+    /**
+     * @return the nanoseconds spent waiting to retransmit so far.
+     */
+    public long getStalledNanos()
+    {
+        return stalledNanos;
+    }
+
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+/**
+ * What {@link SloppyServer} does with the bytes on the connections it accepts.
+ */
+public enum ProxyMode
+{
+    /**
+     * Connections carry HTTP requests: heads are parsed and rewritten so
+     * the requests reach the destination URL.
+     */
+    HTTP,
+
+    /**
+     * Connections are spliced byte for byte onto a connection to the tunnel
+     * destination, throttled in both directions but otherwise untouched,
+     * so any TCP protocol can be slowed down.  See {@link NioTunnel}.
+     */
+    TUNNEL;
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+/**
+ * What a {@link HandlerPool} does with a connection when its queue is full.
+ */
+public enum RejectionPolicy
+{
+    /**
+     * Answer the browser with <code>503 Service Unavailable</code> and close the connection.
+     */
+    UNAVAILABLE,
+
+    /**
+     * Stop accepting until there is room in the queue, leaving new connections
+     * waiting in the operating system's TCP backlog.  No listener accepts 
+     * while waiting, so the wait is bounded (see {@link HandlerPool#BACKLOG_WAIT_MILLIS});
+     * if there is still no room the connection gets a 503, as for {@link #UNAVAILABLE}.
+     */
+    BACKLOG;
+}
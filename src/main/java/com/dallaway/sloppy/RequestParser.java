@@ -0,0 +1,574 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Parses the head of an HTTP/1.x request (the request line and headers)
+ * straight from the bytes read from the web browser.
+ * <p>
+ *
+ * The parser works on a byte array holding the head from its first byte.
+ * It can be given the head a piece at a time, as it arrives: each call to
+ * {@link #parse(byte[], int)} carries on from where the last one stopped, so
+ * non-blocking code can call it after every read.  Nothing is copied or
+ * decoded while parsing: the request line and each header are recorded as
+ * offsets into the array, and only turned into Strings when asked for.
+ * Bytes map one-to-one onto chars, as in ISO-8859-1, so nothing is mangled.
+ * <p>
+ *
+ * A parser can be reused for the next request on a connection after
+ * calling {@link #reset()}.  Not thread safe.
+ */
+public class RequestParser
+{
+
+    /** The largest request head we are prepared to buffer. */
+    public static final int MAX_HEAD_SIZE = 64 * 1024;
+
+    // HTTP heads are bytes; this charset maps them one-to-one onto chars.
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1"); //$NON-NLS-1$
+
+    // Each header is four offsets: name start, name end, value start, value end.
+    private static final int FIELDS = 4;
+
+    // The array holding the head, as last passed to parse().
+    private byte[] buffer;
+
+    // Array used by readFrom(InputStream), kept for the next request.
+    private byte[] own;
+
+    // How far we have looked for the end of a line.
+    private int scanned;
+
+    // Where the line being parsed starts.
+    private int lineStart;
+
+    // Has the request line been read?
+    private boolean requestLineDone;
+
+    // Offset just past the blank line ending the head, or -1 if not seen yet.
+    private int headLength;
+
+    // Offsets of the request line: the method, target and (possibly empty) version.
+    private int methodEnd, targetStart, targetEnd, versionStart, versionEnd;
+    private int requestLineStart;
+
+    // The headers, FIELDS offsets each.
+    private int[] fields = new int[16 * FIELDS];
+
+    // The number of headers.
+    private int count;
+
+    /**
+     * Create a parser ready for the first request.
+     */
+    public RequestParser()
+    {
+        reset();
+    }
+
+    /**
+     * Forget the request parsed so far, ready for the next one.
+     */
+    public void reset()
+    {
+        buffer = null;
+        scanned = 0;
+        lineStart = 0;
+        requestLineDone = false;
+        headLength = -1;
+        count = 0;
+    }
+
+    /**
+     * Parse more of a request head.
+     * 
+     * @param bytes the head so far, from its first byte; later calls must pass
+     *        the same bytes, perhaps in a bigger array, with more added.
+     * @param length the number of bytes of the head in the array.
+     * @return true once the whole head has been parsed.
+     * @throws IOException if the request line is not valid, or the head is too large.
+     */
+    public boolean parse(final byte[] bytes, final int length) throws IOException
+    {
+        buffer = bytes;
+
+        while (headLength == -1 && scanned < length)
+        {
+            if (bytes[scanned++] != '\n')
+            {
+                continue;
+            }
+
+            int lineEnd = scanned - 1;
+            if (lineEnd > lineStart && bytes[lineEnd - 1] == '\r')
+            {
+                lineEnd--;
+            }
+
+            if (!requestLineDone)
+            {
+                // Blank lines are allowed before the request line.
+                if (lineEnd > lineStart)
+                {
+                    requestLine(lineStart, lineEnd);
+                }
+            }
+            else if (lineEnd == lineStart)
+            {
+                headLength = scanned;
+            }
+            else
+            {
+                headerLine(lineStart, lineEnd);
+            }
+            lineStart = scanned;
+        }
+
+        if (headLength == -1 && length >= MAX_HEAD_SIZE)
+        {
+            throw new IOException("HTTP head too large"); //$NON-NLS-1$
+        }
+
+        return headLength != -1;
+    }
+
+    /**
+     * Read a request head from a stream, leaving the stream positioned at the
+     * start of the body.  The stream must support mark and reset, so that
+     * bytes read past the end of the head can be put back.
+     * 
+     * @param in the input from the web browser.
+     * @return true if a head was read, or false if the stream ended before the request started.
+     * @throws IOException if there was a problem reading, or the head is not valid.
+     */
+    public boolean readFrom(final InputStream in) throws IOException
+    {
+        reset();
+        if (own == null)
+        {
+            own = new byte[1024];
+        }
+
+        int length = 0;
+        while (true)
+        {
+            if (length == own.length)
+            {
+                byte[] bigger = new byte[Math.min(own.length * 2, MAX_HEAD_SIZE)];
+                System.arraycopy(own, 0, bigger, 0, length);
+                own = bigger;
+            }
+
+            int room = own.length - length;
+            in.mark(room);
+            int bytesRead = in.read(own, length, room);
+            if (bytesRead == -1)
+            {
+                if (requestLineDone)
+                {
+                    throw new EOFException("Connection closed in the middle of the request head"); //$NON-NLS-1$
+                }
+                return false;
+            }
+
+            if (parse(own, length + bytesRead))
+            {
+                // Put back whatever followed the head.
+                in.reset();
+                long skip = headLength - length;
+                while (skip > 0)
+                {
+                    skip -= in.skip(skip);
+                }
+                return true;
+            }
+            length += bytesRead;
+        }
+    }
+
+    /**
+     * @return true once the whole head has been parsed.
+     */
+    public boolean isComplete()
+    {
+        return headLength != -1;
+    }
+
+    /**
+     * @return the number of bytes in the head, including the blank line ending it.
+     */
+    public int getHeadLength()
+    {
+        return headLength;
+    }
+
+    /**
+     * @return the method, such as GET or POST.
+     */
+    public String getMethod()
+    {
+        return string(requestLineStart, methodEnd);
+    }
+
+    /**
+     * @return the target of the request, such as <code>/index.html</code>.
+     */
+    public String getTarget()
+    {
+        return string(targetStart, targetEnd);
+    }
+
+    /**
+     * @return the HTTP version, such as HTTP/1.1, or an empty string for an HTTP/0.9 request.
+     */
+    public String getVersion()
+    {
+        return string(versionStart, versionEnd);
+    }
+
+    /**
+     * @return the request line, without its line ending.
+     */
+    public String getRequestLine()
+    {
+        return string(requestLineStart, versionEnd > targetEnd ? versionEnd : targetEnd);
+    }
+
+    /**
+     * @return the number of header lines.
+     */
+    public int getHeaderCount()
+    {
+        return count;
+    }
+
+    /**
+     * @param i which header, from zero.
+     * @return the name of the header.
+     */
+    public String getHeaderName(final int i)
+    {
+        return string(fields[i * FIELDS], fields[i * FIELDS + 1]);
+    }
+
+    /**
+     * @param i which header, from zero.
+     * @return the value of the header, with any folded lines joined by a space.
+     */
+    public String getHeaderValue(final int i)
+    {
+        int start = fields[i * FIELDS + 2];
+        int end = fields[i * FIELDS + 3];
+        for (int p = start; p < end; p++)
+        {
+            if (buffer[p] == '\n')
+            {
+                return unfold(start, end);
+            }
+        }
+        return string(start, end);
+    }
+
+    /**
+     * @param i which header, from zero.
+     * @param name a header name.
+     * @return true if the header has the given name, ignoring case.
+     */
+    public boolean isHeader(final int i, final String name)
+    {
+        int start = fields[i * FIELDS];
+        int end = fields[i * FIELDS + 1];
+        if (end - start != name.length())
+        {
+            return false;
+        }
+        for (int p = start; p < end; p++)
+        {
+            int a = buffer[p] & 0xff;
+            int b = name.charAt(p - start);
+            if (a != b && toLower(a) != toLower(b))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param i which header, from zero.
+     * @return true if the header only applies to a single connection; see {@link Headers#isHopByHop(String)}.
+     */
+    public boolean isHopByHop(final int i)
+    {
+        for (String hop : Headers.HOP_BY_HOP)
+        {
+            if (isHeader(i, hop))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param name a header name, in any case.
+     * @return the value of the first header with that name, or null if there is none.
+     */
+    public String getHeader(final String name)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            if (isHeader(i, name))
+            {
+                return getHeaderValue(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Copy the request line, with a CRLF, as it was sent.
+     * 
+     * @param out the buffer to copy to.
+     */
+    public void copyRequestLine(final ByteBuffer out)
+    {
+        int end = versionEnd > targetEnd ? versionEnd : targetEnd;
+        out.put(buffer, requestLineStart, end - requestLineStart);
+        out.put((byte) '\r').put((byte) '\n');
+    }
+
+    /**
+     * Copy a header line, with a CRLF, as it was sent.
+     * 
+     * @param i which header, from zero.
+     * @param out the buffer to copy to.
+     */
+    public void copyHeader(final int i, final ByteBuffer out)
+    {
+        int start = fields[i * FIELDS];
+        int end = fields[i * FIELDS + 3];
+        out.put(buffer, start, end - start);
+        out.put((byte) '\r').put((byte) '\n');
+    }
+
+    /**
+     * Record the parts of the request line: method SP target [SP version].
+     * 
+     * @param start offset of the line.
+     * @param end offset just past the line, without its line ending.
+     * @throws IOException if there is no target.
+     */
+    private void requestLine(final int start, final int end) throws IOException
+    {
+        int space = indexOf(' ', start, end);
+        if (space == -1)
+        {
+            throw new IOException("Bad request line: " + string(start, end)); //$NON-NLS-1$
+        }
+
+        requestLineStart = start;
+        methodEnd = space;
+        targetStart = space + 1;
+
+        int space2 = indexOf(' ', targetStart, end);
+        if (space2 == -1)
+        {
+            // HTTP/0.9: no version
+            targetEnd = end;
+            versionStart = end;
+            versionEnd = end;
+        }
+        else
+        {
+            targetEnd = space2;
+            versionStart = skipSpace(space2 + 1, end);
+            versionEnd = trimEnd(versionStart, end);
+        }
+        requestLineDone = true;
+    }
+
+    /**
+     * Record the name and value of a header line, or add a folded line to the last header.
+     * 
+     * @param start offset of the line.
+     * @param end offset just past the line, without its line ending.
+     */
+    private void headerLine(final int start, final int end)
+    {
+        byte first = buffer[start];
+        if ((first == ' ' || first == '\t') && count > 0)
+        {
+            // A continuation of the previous value
+            int last = (count - 1) * FIELDS;
+            if (trimEnd(start, end) > start)
+            {
+                if (fields[last + 3] == fields[last + 2])
+                {
+                    fields[last + 2] = skipSpace(start, end);
+                }
+                fields[last + 3] = trimEnd(start, end);
+            }
+            return;
+        }
+
+        int colon = indexOf(':', start, end);
+        if (colon == -1)
+        {
+            return; // Not a header: ignore it
+        }
+
+        if (fields.length == count * FIELDS)
+        {
+            int[] bigger = new int[fields.length * 2];
+            System.arraycopy(fields, 0, bigger, 0, fields.length);
+            fields = bigger;
+        }
+
+        int f = count * FIELDS;
+        fields[f] = start;
+        fields[f + 1] = trimEnd(start, colon);
+        fields[f + 2] = skipSpace(colon + 1, end);
+        fields[f + 3] = trimEnd(fields[f + 2], end);
+        count++;
+    }
+
+    /**
+     * @param start the first byte.
+     * @param end just past the last byte.
+     * @return the bytes as a String, one char per byte.
+     */
+    private String string(final int start, final int end)
+    {
+        return new String(buffer, start, end - start, LATIN1);
+    }
+
+    /**
+     * @param start the first byte of a folded value.
+     * @param end just past the last byte.
+     * @return the value, with each line break and the white space around it replaced by one space.
+     */
+    private String unfold(final int start, final int end)
+    {
+        StringBuilder b = new StringBuilder(end - start);
+        boolean inBreak = false;
+        for (int p = start; p < end; p++)
+        {
+            int c = buffer[p] & 0xff;
+            if (c == '\r' || c == '\n')
+            {
+                inBreak = true;
+                int trailing = b.length();
+                while (trailing > 0 && isSpace(b.charAt(trailing - 1)))
+                {
+                    trailing--;
+                }
+                b.setLength(trailing);
+            }
+            else if (inBreak && isSpace(c))
+            {
+                continue;
+            }
+            else
+            {
+                if (inBreak)
+                {
+                    b.append(' ');
+                    inBreak = false;
+                }
+                b.append((char) c);
+            }
+        }
+        return b.toString();
+    }
+
+    /**
+     * @param c the byte to look for.
+     * @param start where to start looking.
+     * @param end where to stop looking.
+     * @return the offset of the byte, or -1 if not found.
+     */
+    private int indexOf(final char c, final int start, final int end)
+    {
+        for (int p = start; p < end; p++)
+        {
+            if (buffer[p] == c)
+            {
+                return p;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param start the first byte to look at.
+     * @param end just past the last byte to look at.
+     * @return the offset of the first byte that is not a space or tab, or end if none.
+     */
+    private int skipSpace(final int start, final int end)
+    {
+        int p = start;
+        while (p < end && isSpace(buffer[p]))
+        {
+            p++;
+        }
+        return p;
+    }
+
+    /**
+     * @param start the first byte to look at.
+     * @param end just past the last byte to look at.
+     * @return the offset just past the last byte that is not a space or tab, or start if none.
+     */
+    private int trimEnd(final int start, final int end)
+    {
+        int p = end;
+        while (p > start && isSpace(buffer[p - 1]))
+        {
+            p--;
+        }
+        return p;
+    }
+
+    /**
+     * @param c a byte or char.
+     * @return true for a space or tab.
+     */
+    private static boolean isSpace(final int c)
+    {
+        return c == ' ' || c == '\t';
+    }
+
+    /**
+     * @param c a byte or char.
+     * @return the lower case version of an ASCII letter, or the value unchanged.
+     */
+    private static int toLower(final int c)
+    {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+}
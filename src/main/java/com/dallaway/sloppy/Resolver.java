@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ *
+ * This file is part of Sloppy.
+ *
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Looks up host names for the event loops of the {@link NioProxyEngine},
+ * on threads of its own.
+ * <p>
+ *
+ * A look up can take seconds, and a loop that waited for one would hold up
+ * every other connection it serves.  So the name is looked up here, and the
+ * address handed back to the loop, which carries on with the connection.
+ * A few threads are plenty, as most names are answered from a cache; they
+ * are daemons, and go away when there is nothing to look up.
+ * <p>
+ *
+ * Safe to use from any number of threads.
+ */
+public class Resolver
+{
+
+    /** The most look ups in progress at once. */
+    public static final int THREADS = 4;
+
+    // How long an idle thread waits for another look up before it goes away.
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    // Runs the look ups.
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Told the result of a look up, on the loop's thread.
+     */
+    interface Callback
+    {
+        /**
+         * @param address the address looked up, which is unresolved if the host is not known.
+         */
+        void resolved(InetSocketAddress address);
+    }
+
+    /**
+     * Create a resolver; its threads are started as they are needed.
+     */
+    public Resolver()
+    {
+        executor = new ThreadPoolExecutor(THREADS, THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ResolverThreadFactory());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Look up a host, and pass the address to a callback on a loop's thread.
+     * 
+     * @param host the host name or address.
+     * @param port the port to go with it.
+     * @param loop the loop to run the callback on.
+     * @param owner the handler the callback belongs to, closed if it fails; or null.
+     * @param callback told the address.
+     */
+    void resolve(final String host, final int port, final NioEventLoop loop, final NioHandler owner, 
+        final Callback callback)
+    {
+        executor.execute(new Runnable()
+        {
+            public void run()
+            {
+                final InetSocketAddress address = new InetSocketAddress(host, port);
+                loop.execute(owner, new Runnable()
+                {
+                    public void run()
+                    {
+                        callback.resolved(address);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Names resolver threads, and makes them daemons so they don't keep the JVM alive.
+     */
+    private static class ResolverThreadFactory implements ThreadFactory
+    {
+        // Number of threads created so far.
+        private final AtomicInteger count = new AtomicInteger();
+
+        /** {@inheritDoc} */
+        public Thread newThread(final Runnable r)
+        {
+            Thread thread = new Thread(r, "sloppy-resolver-" + count.incrementAndGet()); //$NON-NLS-1$
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
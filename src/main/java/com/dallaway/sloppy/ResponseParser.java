@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2001-2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Parses the head of an HTTP/1.x response from a web server.
+ * <p>
+ *
+ * A status line has the same shape as a request line, three parts separated
+ * by spaces (version, status code and reason), so the parsing is done by a
+ * {@link RequestParser}.  This gives the parts their proper names, and
+ * keeps the request's names for them out of sight.  Not thread safe.
+ */
+public class ResponseParser
+{
+
+    // Does the work; its method, target and version are our version, status and reason.
+    private final RequestParser head = new RequestParser();
+
+    /**
+     * Read a response head from a stream, leaving the stream positioned at the
+     * start of the body.  The stream must support mark and reset.
+     * 
+     * @param in the input from the web server.
+     * @return true if a head was read, or false if the stream ended before the response started.
+     * @throws IOException if there was a problem reading, or the head is not valid.
+     */
+    public boolean readFrom(final InputStream in) throws IOException
+    {
+        return head.readFrom(in);
+    }
+
+    /**
+     * @return the HTTP version of the response, such as HTTP/1.1.
+     */
+    public String getVersion()
+    {
+        return head.getMethod();
+    }
+
+    /**
+     * @return the status code, such as 200.
+     * @throws IOException if the status line does not have a number for the status.
+     */
+    public int getStatus() throws IOException
+    {
+        try
+        {
+            return Integer.parseInt(head.getTarget());
+        }
+        catch (NumberFormatException nfx)
+        {
+            throw new IOException("Bad status line: " + getStatusLine()); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * @return the reason phrase, such as OK, which may be empty.
+     */
+    public String getReason()
+    {
+        return head.getVersion();
+    }
+
+    /**
+     * @return the status line, without its line ending.
+     */
+    public String getStatusLine()
+    {
+        return head.getRequestLine();
+    }
+
+    /**
+     * Copy the status line, with a CRLF, as it was sent.
+     * 
+     * @param out the buffer to copy to.
+     */
+    public void copyStatusLine(final ByteBuffer out)
+    {
+        head.copyRequestLine(out);
+    }
+
+    /**
+     * @return the number of bytes in the head, including the blank line ending it.
+     */
+    public int getHeadLength()
+    {
+        return head.getHeadLength();
+    }
+
+    /**
+     * @return the number of header lines.
+     */
+    public int getHeaderCount()
+    {
+        return head.getHeaderCount();
+    }
+
+    /**
+     * @param i which header, from zero.
+     * @param name a header name.
+     * @return true if the header has the given name, ignoring case.
+     */
+    public boolean isHeader(final int i, final String name)
+    {
+        return head.isHeader(i, name);
+    }
+
+    /**
+     * @param i which header, from zero.
+     * @return true if the header only applies to a single connection; see {@link Headers#isHopByHop(String)}.
+     */
+    public boolean isHopByHop(final int i)
+    {
+        return head.isHopByHop(i);
+    }
+
+    /**
+     * @param name a header name, in any case.
+     * @return the value of the first header with that name, or null if there is none.
+     */
+    public String getHeader(final String name)
+    {
+        return head.getHeader(name);
+    }
+
+    /**
+     * Copy a header line, with a CRLF, as it was sent.
+     * 
+     * @param i which header, from zero.
+     * @param out the buffer to copy to.
+     */
+    public void copyHeader(final int i, final ByteBuffer out)
+    {
+        head.copyHeader(i, out);
+    }
+}
@@ -21,14 +21,37 @@ package com.dallaway.sloppy;
 
 import java.io.IOException;
 import java.io.Serializable;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Main wrapper class for starting the proxy.
  *
  * Each request creates a new SlowProxyThread to 
- * process the request.
+ * process the request, run on a thread chosen by the configured
+ * {@link ExecutionMode}, or, when the configuration selects the
+ * {@link Engine#NIO} engine, is handed to a {@link NioProxyEngine}.
+ * In {@link ProxyMode#TUNNEL} mode the connection is not parsed as HTTP
+ * but spliced onto the tunnel destination by a {@link NioTunnel}.
+ *
+ * Besides the main port, the server can listen on further ports, each with
+ * its own bandwidth and destination (see {@link Configuration#getListeners()}).
+ * All the listeners share the same threads, and the accepting is done
+ * by one thread selecting over all of the listening sockets.
+ *
+ * An {@link AdminServer} can be run alongside, on a port of its own, to
+ * change the settings while the server runs, add listeners, and drain the
+ * server: stop accepting connections, and stop once those open have finished.
  *
  * The proxy can be configured via a properties file.  
  * See default.properties for a sample.
@@ -45,7 +68,31 @@ public class SloppyServer implements Runnable, Serializable
 	private Configuration conf;
 
 	/** Is this proxy running? */
-	private boolean running = false;
+	private volatile boolean running = false;
+
+	/** The non-blocking engine, when in use. */
+	private transient NioProxyEngine nio;
+
+	/** Waits for connections on all of the listeners. */
+	private transient volatile Selector accepting;
+
+	/** Runs the SlowProxyThread handlers, when the thread engine is in use. */
+	private transient volatile ExecutorService handlers;
+
+	/** Answers requests to the admin port, when there is one. */
+	private transient AdminServer admin;
+
+	/** How long to wait between checks for the last connection to finish, when draining. */
+	private static final long DRAIN_CHECK_MILLIS = 100;
+
+	/** The sockets listening for proxy requests.  Only touched by the accepting thread. */
+	private transient List<ServerSocketChannel> channels;
+
+	/** Listeners added while running, waiting for the accepting thread to take them on. */
+	private transient Queue<Runnable> added;
+
+	/** Has the server been asked to drain? */
+	private volatile boolean draining = false;
 
 	/**
 	 * @param	conf	The configuration for this run of the server.
@@ -81,43 +128,95 @@ public class SloppyServer implements Runnable, Serializable
     ui.notice(Messages.getString("info.startingNotice") + release.getRelease()); //$NON-NLS-1$
 	ui.notice( release.getCopyright());
 	
-    // Start listening for proxy requests
-    ServerSocket ss = null;
-    
+    // Start listening for proxy requests, on the main port and any further listeners
+    List<Configuration> listeners = new ArrayList<Configuration>();
+    listeners.add(conf);
+    listeners.addAll(conf.getListeners());
+
+    channels = new ArrayList<ServerSocketChannel>();
+    added = new ConcurrentLinkedQueue<Runnable>();
+    draining = false;
     try
     {
-    	ss = new ServerSocket( conf.getLocalPort() );
+    	accepting = Selector.open();
+    	for (Configuration listener : listeners)
+    	{
+    		ServerSocketChannel channel = bind(listener);
+    		channels.add(channel);
+    		channel.register(accepting, SelectionKey.OP_ACCEPT, listener);
+    	}
+    	if (conf.getAdminPort() > 0)
+    	{
+    		admin = new AdminServer(conf, this);
+    		admin.bind();
+    	}
     }
     catch (IOException iox)
     {
     	ui.error(Messages.getString("error.failedToStartBecausePortInUse"), iox); //$NON-NLS-1$
+    	closeQuietly(channels);
     	return;
     }
 
-	ui.notice(Messages.getString("info.listening")+conf);     //$NON-NLS-1$
+	if (conf.getEngine() == Engine.NIO)
+	{
+		nio = new NioProxyEngine(conf);
+		try
+		{
+			nio.start();
+		}
+		catch (IOException iox)
+		{
+			ui.error(Messages.getString("error.failedToStart"), iox); //$NON-NLS-1$
+			closeQuietly(channels);
+			return;
+		}
+	}
+	else
+	{
+		handlers = HandlerExecutors.create(conf);
+	}
+
+	for (Configuration listener : listeners)
+	{
+		ui.notice(Messages.getString("info.listening")+listener);     //$NON-NLS-1$
+	}
+
+	if (admin != null)
+	{
+		Thread thread = new Thread(admin, "sloppy-admin"); //$NON-NLS-1$
+		thread.setDaemon(true);
+		thread.start();
+	}
 
     running = true;
     while (running)
     {
 
-      // NB: if performance is an issue we can consider a pool of handler threads here
-
       try
       {
-        // Accept an incoming request...
-        Socket request = ss.accept();
-        
-        if (!running)
+        // Wait for a connection on any of the listeners...
+        accepting.select(draining ? DRAIN_CHECK_MILLIS : 0);
+        registerAdded();
+        if (draining)
+        {
+        	closeWhenDrained();
+        	continue;
+        }
+
+        Iterator<SelectionKey> keys = accepting.selectedKeys().iterator();
+        while (running && keys.hasNext())
         {
-        	ui.debug("Stopping..."); //$NON-NLS-1$
-        	break;
+        	SelectionKey key = keys.next();
+        	keys.remove();
+
+        	// Accept an incoming request...
+        	SocketChannel client = ((ServerSocketChannel) key.channel()).accept();
+        	if (client != null)
+        	{
+        		dispatch(client, (Configuration) key.attachment());
+        	}
         }
-        
-        // Hand the request off to a separate thread...
-        // NB: we could start threads with different BPS to simulate clients of varying connectivity, perhaps
-        SlowProxyThread handler = new SlowProxyThread(request, conf);
-        handler.start();
-        // Start listening again...
       }
       catch (IOException iox)
       {
@@ -125,10 +224,49 @@ public class SloppyServer implements Runnable, Serializable
       }
 
     }
+    ui.debug("Stopping..."); //$NON-NLS-1$
+
+	if (admin != null)
+	{
+		admin.stop();
+		admin = null;
+	}
+
+	if (nio != null)
+	{
+		nio.stop();
+		nio = null;
+	}
+
+	if (handlers != null)
+	{
+		HandlerPool pool = getHandlerPool();
+		if (pool != null)
+		{
+			ui.notice(pool.toString());
+		}
+
+		// Let requests in progress finish, but start no more
+		handlers.shutdown();
+		handlers = null;
 
+		UpstreamPool upstream = conf.getUpstreamPool();
+		ui.notice(upstream.toString());
+		upstream.closeAll();
+	}
+
+	ui.notice("Metrics: " + conf.getMetrics()); //$NON-NLS-1$
+	for (Configuration listener : conf.getListeners())
+	{
+		ui.notice("Metrics for " + listener.getListenerName() + ": " + listener.getMetrics()); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+	ui.notice(conf.getHeapBufferPool().toString());
+	ui.notice(conf.getDirectBufferPool().toString());
+
+	closeQuietly(channels);
 	try
 	{
-		ss.close();
+		accepting.close();
 	}
 	catch (IOException iox)
 	{
@@ -138,6 +276,87 @@ public class SloppyServer implements Runnable, Serializable
     ui.notice(Messages.getString("info.shutdown")); //$NON-NLS-1$
   }
 
+	/**
+	 * @return The pool running the handlers, or null if handlers are not
+	 *         pooled (see {@link ExecutionMode#POOL}) or the server is not running.
+	 */
+	public HandlerPool getHandlerPool()
+	{
+		ExecutorService executor = handlers;
+		return executor instanceof HandlerPool ? (HandlerPool) executor : null;
+	}
+
+	/**
+	 * Start listening on a further port, while running.
+	 * 
+	 * @param listener the settings for the new listener, made by {@link Configuration#readListener(String, java.util.Properties)}.
+	 * @throws IOException if the port can't be listened on.
+	 * @throws IllegalArgumentException if there is already a listener with the same name.
+	 * @throws IllegalStateException if the server is not running, or is draining.
+	 */
+	public void addListener(final Configuration listener) throws IOException
+	{
+		if (!running || draining)
+		{
+			throw new IllegalStateException("Not accepting connections"); //$NON-NLS-1$
+		}
+		final ServerSocketChannel channel = bind(listener);
+		try
+		{
+			conf.addListener(listener);
+		}
+		catch (IllegalArgumentException iax)
+		{
+			channel.close();
+			throw iax;
+		}
+
+		// Registering blocks while the accepting thread is selecting, so hand it over
+		added.add(new Runnable()
+		{
+			public void run()
+			{
+				channels.add(channel);
+				try
+				{
+					channel.register(accepting, SelectionKey.OP_ACCEPT, listener);
+					conf.getUserInterface().notice(Messages.getString("info.listening") + listener); //$NON-NLS-1$
+				}
+				catch (IOException iox)
+				{
+					conf.getUserInterface().error(Messages.getString("error.failedToStart"), iox); //$NON-NLS-1$
+				}
+			}
+		});
+		accepting.wakeup();
+	}
+
+	/**
+	 * Stop accepting connections, and stop the server once the connections
+	 * in progress have finished.
+	 */
+	public void drain()
+	{
+		if (!running)
+		{
+			return;
+		}
+		draining = true;
+		Selector selector = accepting;
+		if (selector != null)
+		{
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * @return True if the server is draining.
+	 */
+	public boolean isDraining()
+	{
+		return draining;
+	}
+
 	/**
 	 * Stop this proxy.
 	 */
@@ -151,20 +370,132 @@ public class SloppyServer implements Runnable, Serializable
 		running = false;
 	
 		// Wake up the socket listener:
+		Selector selector = accepting;
+		if (selector != null)
+		{
+			selector.wakeup();
+		}
+
+		// Listener shutdown code should have run now and
+		// the thread will terminate.
+	}
+
+	/**
+	 * Hand a newly accepted connection off to be serviced.
+	 * 
+	 * @param client the connection from the web browser.
+	 * @param listener the configuration of the listener that accepted it.
+	 * @throws IOException if the connection could not be set up.
+	 */
+	private void dispatch(final SocketChannel client, final Configuration listener) throws IOException
+	{
+		if (nio != null)
+		{
+			nio.register(client, listener);
+			return;
+		}
+
+		// Hand the request off to a separate thread, with the listener's bandwidth settings...
+		client.configureBlocking(true);
+		Socket request = client.socket();
+		if (listener.getMode() == ProxyMode.TUNNEL)
+		{
+			handlers.execute(new TunnelHandler(request, listener));
+		}
+		else
+		{
+			handlers.execute(new SlowProxyThread(request, listener));
+		}
+	}
+
+
+
+	/**
+	 * Bind a listener's port via a channel, so accepted sockets have channels 
+	 * the NIO engine can use.
+	 * 
+	 * @param listener the settings for the listener.
+	 * @return the channel, listening and non-blocking.
+	 * @throws IOException if the port can't be listened on.
+	 */
+	private static ServerSocketChannel bind(final Configuration listener) throws IOException
+	{
+		ServerSocketChannel channel = ServerSocketChannel.open();
 		try
 		{
-			Socket s = new Socket("127.0.0.1", conf.getLocalPort()); //$NON-NLS-1$
-			s.close();
+			channel.socket().setReuseAddress(true);
+			channel.socket().bind(new InetSocketAddress(listener.getLocalPort()));
+			channel.configureBlocking(false);
 		}
 		catch (IOException iox)
 		{
-			// we expect an error, because we want Sloppy to stop.
-		}			
+			channel.close();
+			throw iox;
+		}
+		return channel;
+	}
 
-		// Listener shutdown code should have run now and
-		// the thread will terminate.
+	/**
+	 * Take on the listeners added since the last time round.  Called on the accepting thread.
+	 */
+	private void registerAdded()
+	{
+		Runnable task;
+		while ((task = added.poll()) != null)
+		{
+			task.run();
+		}
+	}
+
+	/**
+	 * Stop listening, and stop running once the last connection has finished.
+	 * Called on the accepting thread.
+	 */
+	private void closeWhenDrained()
+	{
+		if (!channels.isEmpty())
+		{
+			conf.getUserInterface().notice("Draining " + conf.getConnections().size() + " connections"); //$NON-NLS-1$ //$NON-NLS-2$
+			closeChannels(channels);
+			channels.clear();
+		}
+		if (conf.getConnections().isEmpty())
+		{
+			running = false;
+		}
 	}
 
+	/**
+	 * Close the listeners, and the admin server, when stopping or when they failed to start.
+	 * 
+	 * @param channels the server sockets to close.
+	 */
+	private void closeQuietly(final List<ServerSocketChannel> channels)
+	{
+		if (admin != null)
+		{
+			admin.close();
+			admin = null;
+		}
+		closeChannels(channels);
+	}
 
+	/**
+	 * @param channels the server sockets to close.
+	 */
+	private static void closeChannels(final List<ServerSocketChannel> channels)
+	{
+		for (ServerSocketChannel channel : channels)
+		{
+			try
+			{
+				channel.close();
+			}
+			catch (IOException iox)
+			{
+				// We're already stopping, or reporting a failure.
+			}
+		}
+	}
 
 }
\ No newline at end of file
@@ -19,36 +19,53 @@
  */
 package com.dallaway.sloppy;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
+import java.net.ProtocolException;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Locale;
 
 /**
  * All requests are handed off to an instance of this class for co-ordinating
  * sender/receiver communication.
  * <p>
  *
- * This thread reads from the browser, sends to the web server, and
+ * Despite the name, this is a Runnable: {@link SloppyServer} runs it on
+ * whatever thread the configured {@link ExecutionMode} provides,
+ * which may be a virtual thread.
+ * <p>
+ *
+ * This handler reads from the browser, sends to the web server, and
  * then reads from the web server and copies what it receives
  * back to the web browser.	 This final copy back is slowed down
  * to simulate the selected modem speed.
  * 
- * To simplify the code, HTTP/1.1 keep-alive connections are
- * converted into one-use connections.
+ * The browser's connection is kept open for further requests when it asks for
+ * that (HTTP/1.1 by default, or HTTP/1.0 with <code>Connection: keep-alive</code>).
+ * Requests are read from the connection one after another, so a browser that
+ * pipelines requests gets its responses back in order.  A response of unknown
+ * length is sent with chunked encoding so that the connection can carry on. 
+ * All the requests on a connection share one {@link Bottleneck}.
+ * 
+ * When Sloppy is a forward proxy, a request for an absolute URI goes to the 
+ * host it names, and a CONNECT request turns the rest of the connection 
+ * into a throttled tunnel to the host it names (see {@link TunnelHandler}).
  * 
  * Note that a web browser will request elements on a page
  * (e.g., GIFs) as separate requests.  To maintain a coherent bandwidth bottleneck
  * we have to record the total bytes sent to a particular client.  This means we
  * need to identify a client.  We use IP address to do this.
  */
-public class SlowProxyThread extends Thread
+public class SlowProxyThread implements Runnable
 {
 	// The interface to log to. 
 	private UserInterface ui;
@@ -59,15 +76,64 @@ public class SlowProxyThread extends Thread
 	// The client request. 
 	private Socket request;
 	
-	// Buffer size for reading data from web server.
-	private static final int BUFFER_SIZE = 2048;
+	// Wakes us when a paced write is due; looked up once rather than on every write.
+	private final PacingScheduler scheduler;
+	
+	// How long a kept-alive browser connection may sit idle before we close it.
+	private static final int KEEP_ALIVE_TIMEOUT_MILLIS = 15 * 1000;
+	
+	// HTTP heads are bytes; this charset maps them one-to-one onto chars.
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+	
+	// The end of a line in HTTP.
+	private static final byte[] CRLF = { '\r', '\n' };
+	
+	// The end of a chunked body.
+	private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(LATIN1);
+	
+	// Headers we add to responses, to describe the browser's connection to us.
+	private static final byte[] TRANSFER_ENCODING_CHUNKED = "Transfer-Encoding: chunked\r\n".getBytes(LATIN1);
+	private static final byte[] CONNECTION_KEEP_ALIVE = "Connection: keep-alive\r\n".getBytes(LATIN1);
+	private static final byte[] CONNECTION_CLOSE = "Connection: close\r\n".getBytes(LATIN1);
+	
+	// The reply to a browser waiting for permission to send a request body.
+	private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes();
+	
+	// The response sent when there is no room to queue a request.
+	private static final byte[] SERVICE_UNAVAILABLE = (
+		"HTTP/1.0 503 Service Unavailable\r\n" +
+		"Retry-After: 1\r\n" +
+		"Content-Length: 0\r\n" +
+		"Connection: close\r\n\r\n").getBytes();
+	
+	// The reply to a CONNECT request, sent once the tunnel's destination has answered.
+	private static final byte[] CONNECTION_ESTABLISHED = "HTTP/1.1 200 Connection Established\r\n\r\n".getBytes();
+	
+	// The response sent when we can't tell where a request should go.
+	private static final byte[] BAD_REQUEST = (
+		"HTTP/1.0 400 Bad Request\r\n" +
+		"Content-Length: 0\r\n" +
+		"Connection: close\r\n\r\n").getBytes();
+	
+	// The responses sent when the web server could not be reached, or did not answer in time.
+	private static final byte[] BAD_GATEWAY = (
+		"HTTP/1.0 502 Bad Gateway\r\n" +
+		"Content-Length: 0\r\n" +
+		"Connection: close\r\n\r\n").getBytes();
+	private static final byte[] GATEWAY_TIMEOUT = (
+		"HTTP/1.0 504 Gateway Timeout\r\n" +
+		"Content-Length: 0\r\n" +
+		"Connection: close\r\n\r\n").getBytes();
 	
 	// The bottleneck to limit this user to a specific number of bytes per millisecond. 
 	private Bottleneck bottleneck;
 
+	// Parses each request head read from the browser. 
+	private final RequestParser parser = new RequestParser();
+
 	
 	/**
-	 * Construct a new thread to handle a client request.
+	 * Construct a new handler for a client request.
 	 *
 	 * @param request The client request to proxy.
 	 * @param conf	The application configuration.
@@ -77,364 +143,765 @@ public class SlowProxyThread extends Thread
 		this.ui = conf.getUserInterface();
 		this.request = request;
 		this.conf = conf;
+		this.scheduler = conf.getPacingScheduler();
 		
 		// The client ID is a unique way to identify the browser.
-		// For now we just use IP address/host name.
-		String clientId = request.getInetAddress().getHostName();
+		// For now we just use IP address, which client groups match on.
+		String clientId = request.getInetAddress().getHostAddress();
 		this.bottleneck = new Bottleneck(clientId, conf);	
 	}
 	
 	/**
-	 * Run the proxying thread from a single request.
+	 * Proxy the requests made on the browser's connection.
 	 */
 	public void run()
 	{
-		if (conf.getDestination() == null)
+		bottleneck.open();
+		try
 		{
-			ui.error("Desitnation not set");
-			return;
+			if (conf.getDestination() == null && !conf.isForwardProxy())
+			{
+				ui.error("Desitnation not set");
+				return;
+			}
+			
+			if (conf.getDestination() != null && !"http".equalsIgnoreCase(conf.getDestination().getProtocol()))
+			{
+				ui.error(
+					"Sloppy currenty only works with HTTP addresses, not "
+						+ conf.getDestination().getProtocol());
+				return;
+			}
+
+			// The stream from the web browser:
+			InputStream inFromWebBrowser = new BufferedInputStream(request.getInputStream());
+
+			// The stream to the web browser:
+			OutputStream outputToWebBrowser = request.getOutputStream();
+
+			request.setSoTimeout(KEEP_ALIVE_TIMEOUT_MILLIS);
+
+			// Wait a round trip for the handshake over the client's link
+			pause(bottleneck.connectNanos());
+			
+			while (processRequest(inFromWebBrowser, outputToWebBrowser))
+			{
+				// Go round for the next request on the same connection
+			}
 		}
-		
-		if (!"http".equalsIgnoreCase(conf.getDestination().getProtocol()))
+		catch (IOException iox)
 		{
-			ui.error(
-				"Sloppy currenty only works with HTTP addresses, not "
-					+ conf.getDestination().getProtocol());
-			return;
+			// Probably a client closed connection error.
+			ui.debug(iox.getMessage());
+		}
+		finally
+		{
+			try
+			{
+				request.close();
+			}
+			catch (IOException iox)
+			{
+				ui.debug(iox.getMessage());
+			}
+			bottleneck.close();
 		}
+		
+		ui.debug("CONNECTION DONE: "+bottleneck);
+	}
+
 
+	/**
+	 * Turn the request away because Sloppy is too busy to handle it.
+	 * Called on the accepting thread instead of {@link #run()}.
+	 */
+	public void refuse()
+	{
+		ui.debug("Too busy: refusing request from "+request.getInetAddress().getHostAddress());
 		try
 		{
-			processRequest();							
+			OutputStream outputToWebBrowser = request.getOutputStream();
+			outputToWebBrowser.write(SERVICE_UNAVAILABLE);
+			outputToWebBrowser.flush();
+			HandlerPool.closeRefused(request);
 		}
 		catch (IOException iox)
 		{
-			// Probably a client closed connection error.
+			// The browser has gone away; nothing more to do.
 			ui.debug(iox.getMessage());
 		}
-		
-		ui.debug("REQUEST DONE");
 	}
 
 
 	/**
 	 * Proxy a single HTTP request from the web browser, through Sloppy, to the 
 	 * web server and back again.
+	 * <p>
 	 * 
-	 * To understand why this method does what it does in the
-	 * order that it does it, take a look at:
-	 * Michael C. Daconta, "Dodge the traps hiding in the URLConnection class"
-	 * http://www.javaworld.com/javaworld/jw-03-2001/jw-0323-traps.html
-	 * 
+	 * The request is passed on mostly as the browser sent it: only the
+	 * Host: header and the headers describing the browser's connection
+	 * to us are changed.  Likewise the response status line and headers 
+	 * are passed back byte for byte, apart from any Location: header, which
+	 * is pointed back through Sloppy.  Connections to the web server come from
+	 * the {@link UpstreamPool}, and go back to it if the response leaves the
+	 * connection fit for another request.
 	 * 
+	 * @param inFromWebBrowser	The stream from the web browser.
+	 * @param outputToWebBrowser	The stream to the web browser.
+	 * @return True if the browser's connection can be used for another request.
 	 * @throws IOException	if there was a problem communicating with the web server
 	 *						or the web browser.
 	 */
-	private void processRequest() throws IOException
+	private boolean processRequest(final InputStream inFromWebBrowser, final OutputStream outputToWebBrowser) throws IOException
 	{
 	
+		// Read the request head from the browser: a first line such as "GET /somefile HTTP/1.1",
+		// and the headers
+		try
+		{
+			if (!parser.readFrom(inFromWebBrowser))
+			{
+				return false; // The browser has closed the connection
+			}
+		}
+		catch (SocketTimeoutException stx)
+		{
+			ui.debug("Closing idle connection");
+			return false;
+		}
+
 		ui.debug("Starting request");
-	
-		// The stream from the web browser:
-		BufferedReader inFromWebBrowser = new BufferedReader(new InputStreamReader(request.getInputStream()));
-
-		// The stream to the web browser:
-		OutputStream outputToWebBrowser = request.getOutputStream();
-
-		// Read the first line from the browser, which will be something like "GET /somefile HTTP/1.1"
-		String firstLine = inFromWebBrowser.readLine();
-        if (firstLine == null)
-        {
-            inFromWebBrowser.close();
-            outputToWebBrowser.close();
-            return;
-        }
-		int space = firstLine.indexOf(" ");
-
-		String method = firstLine.substring(0, space); // GET or POST etc.
-		int space2 = firstLine.indexOf(" ", space+1);
-		
-		String file = firstLine.substring(space+1, space2); // The file being requested
+		ui.debug("> "+parser.getRequestLine());
+		bottleneck.beginRequest();
 
-		// Read the rest of the message from the web browser:
-		Headers headers = Headers.readFrom(inFromWebBrowser);
-		String requestBody = readBody(inFromWebBrowser);
+		// The request takes a while to cross the client's link
+		pause(bottleneck.uploadLatencyNanos());
 
-		bottleneck.mark(); // mark an event, to record elapse time.
+		String method = parser.getMethod(); // GET or POST etc.
+		String version = parser.getVersion(); // HTTP/1.0 or HTTP/1.1
+		if (version.length() == 0)
+		{
+			version = "HTTP/1.0";
+		}
 
-		// Set up the request to the server, copying over all data from the browser:
-		HttpURLConnection con = getConnection(method, file);
+		if (conf.isForwardProxy() && "CONNECT".equalsIgnoreCase(method))
+		{
+			tunnel(inFromWebBrowser, outputToWebBrowser);
+			return false;
+		}
 
-		// Set up the request headers and body and send the request to the server
-		ui.debug("Sending request to web server");
-		sendRequest(con, headers, requestBody);
-		con.connect();	
+		// Work out where the request goes: the host named in an absolute URI, 
+		// or the destination we are proxying to.
+		boolean absolute = conf.isForwardProxy() && isAbsolute(parser.getTarget());
+		URL url = targetURL(absolute);
+		if (url == null)
+		{
+			ui.debug("Can't route request for "+parser.getTarget());
+			outputToWebBrowser.write(BAD_REQUEST);
+			outputToWebBrowser.flush();
+			return false;
+		}
 
-		// Read reply from server:
-		InputStream rawInputFromWebServer = null;
-		try 
+		if ("100-continue".equalsIgnoreCase(parser.getHeader("Expect")))
 		{
-			rawInputFromWebServer = con.getInputStream();
+			outputToWebBrowser.write(CONTINUE);
+			outputToWebBrowser.flush();
 		}
-		catch (IOException ex) 
+		InputStream requestBody = openBody(inFromWebBrowser);
+
+		boolean keepAlive = isKeepAlive(version);
+
+		bottleneck.mark(); // mark an event, to record elapse time.
+
+		String host = url.getHost();
+		int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+		byte[] requestHead = requestHead(url, version, requestBody instanceof ChunkedInputStream);
+
+		UpstreamPool pool = conf.getUpstreamPool();
+		UpstreamConnection upstream = null;
+		boolean headersSent = false;
+		try
 		{
-			// Ignore - could be a FileNotFoundException for a 404
+			// Send the request to the web server, and wait for the response
+			ResponseParser response;
+			bottleneck.beginUpstream();
+			upstream = pool.acquire(host, port);
+			ui.debug("Sending request to web server "+upstream);
+			try
+			{
+				sendRequest(upstream, requestHead, requestBody);
+				response = readResponseHead(upstream);
+			}
+			catch (IOException iox)
+			{
+				// A kept-alive connection may have been closed by the web server while it
+				// was idle.  Try once more on a new connection, if we can send the request again.
+				if (!upstream.isReused() || requestBody != null || iox instanceof ProtocolException)
+				{
+					throw iox;
+				}
+				ui.debug("Retrying on a new connection: "+iox.getMessage());
+				upstream.close();
+				upstream = pool.open(host, port);
+				sendRequest(upstream, requestHead, null);
+				response = readResponseHead(upstream);
+			}
+			bottleneck.endUpstream();
+
+			// Decide how the browser will know where the body ends.  If the web
+			// server didn't tell us the length, we chunk the body for HTTP/1.1
+			// browsers, and otherwise close the connection at the end of it.
+			int status = response.getStatus();
+			boolean hasBody = !"HEAD".equalsIgnoreCase(method) && status >= 200 && status != 204 && status != 304;
+			String transferEncoding = response.getHeader("Transfer-Encoding");
+			boolean upstreamChunked = hasBody && transferEncoding != null 
+				&& transferEncoding.toLowerCase(Locale.ENGLISH).indexOf("chunked") != -1;
+			long length = hasBody && !upstreamChunked ? contentLength(response.getHeader("Content-Length")) : -1;
+
+			boolean chunked = false;
+			if (hasBody && length == -1)
+			{
+				chunked = keepAlive && "HTTP/1.1".equals(version);
+				keepAlive = chunked;
+			}
+
+			// The web server's connection can carry another request if we can tell
+			// where this response ends, and the web server hasn't said otherwise.
+			boolean upstreamKeepAlive = (!hasBody || upstreamChunked || length != -1) && isKeepAlive(response);
+
+			// Copy the headers back to the web browser, once they would have crossed the client's link:
+			pause(bottleneck.downloadLatencyNanos());
+			copyHeadersToWebBrowser(response, outputToWebBrowser, keepAlive, chunked, !absolute);
+			headersSent = true;
+			
+			// Copy the body back to the web browser (if any).
+			if (hasBody)
+			{
+				InputStream in = upstream.getInputStream();
+				if (upstreamChunked)
+				{
+					in = new ChunkedInputStream(in);
+				}
+				else if (length != -1)
+				{
+					in = new ContentLengthInputStream(in, length);
+				}
+				copyBodyToWebBrowser(in, outputToWebBrowser, chunked);
+			}
+			outputToWebBrowser.flush();
+
+			if (upstreamKeepAlive)
+			{
+				pool.release(upstream);
+			}
+			else
+			{
+				upstream.close();
+			}
+			upstream = null;
 		}
-		if (rawInputFromWebServer == null)
+		catch (IOException iox)
 		{
-			rawInputFromWebServer = con.getErrorStream();
+			if (headersSent)
+			{
+				throw iox;
+			}
+			// Tell the browser what went wrong, if it's still there to hear it
+			ui.debug("Web server failed: "+iox);
+			outputToWebBrowser.write(iox instanceof SocketTimeoutException ? GATEWAY_TIMEOUT : BAD_GATEWAY);
+			outputToWebBrowser.flush();
+			return false;
+		}
+		finally
+		{
+			// Never pool a connection with a half-read response on it
+			if (upstream != null)
+			{
+				upstream.close();
+			}
 		}
 		
+		bottleneck.endRequest();
+		ui.debug("REQUEST DONE");
+		return keepAlive;
+	}
 
-		// Copy the headers back to the web browser:			
-		copyHeadersToWebBrowser(con, outputToWebBrowser);
-		
-		// Copy the body back to the web browser (if any):			
-		if (rawInputFromWebServer != null) 
+	/**
+	 * @param target The target from a request line.
+	 * @return True if the target is an absolute URI, as sent to a forward proxy.
+	 */
+	private static boolean isAbsolute(final String target)
+	{
+		return target.length() > 0 && target.charAt(0) != '/' && target.indexOf("://") != -1;
+	}
+
+	/**
+	 * @param absolute True if the request target is an absolute URI, to be used as it is.
+	 * @return The URL the request is for, or null if it isn't one we can proxy.
+	 */
+	private URL targetURL(final boolean absolute)
+	{
+		try
 		{
-			copyBodyToWebBrowser(rawInputFromWebServer, outputToWebBrowser);
-			rawInputFromWebServer.close();
+			if (absolute)
+			{
+				URL url = new URL(parser.getTarget());
+				return "http".equalsIgnoreCase(url.getProtocol()) ? url : null;
+			}
+			return conf.getDestination() == null ? null : new URL(conf.getDestination(), parser.getTarget());
 		}
-		
-		inFromWebBrowser.close();
-		outputToWebBrowser.close();
+		catch (MalformedURLException mx)
+		{
+			return null;
+		}
+	}
 
-		con.disconnect();
-		request.close();
-			
+	/**
+	 * Answer a CONNECT request by tunnelling the rest of the connection to the
+	 * host and port it names.  This doesn't return until the tunnel has closed.
+	 * 
+	 * @param inFromWebBrowser	The stream from the web browser.
+	 * @param outputToWebBrowser	The stream to the web browser.
+	 * @throws IOException	if there was a problem communicating with the web browser.
+	 */
+	private void tunnel(final InputStream inFromWebBrowser, final OutputStream outputToWebBrowser) throws IOException
+	{
+		InetSocketAddress destination;
+		try
+		{
+			destination = Util.parseHostPort(parser.getTarget(), 443);
+		}
+		catch (IllegalArgumentException iax)
+		{
+			ui.debug(iax.getMessage());
+			outputToWebBrowser.write(BAD_REQUEST);
+			outputToWebBrowser.flush();
+			return;
+		}
+
+		// Anything the browser sent after the request, such as the start of a 
+		// TLS handshake, is already in our buffer and has to go on first.
+		byte[] early = new byte[inFromWebBrowser.available()];
+		int n = 0;
+		while (n < early.length)
+		{
+			int bytesRead = inFromWebBrowser.read(early, n, early.length - n);
+			if (bytesRead == -1)
+			{
+				break;
+			}
+			n += bytesRead;
+		}
+		if (n < early.length)
+		{
+			byte[] shorter = new byte[n];
+			System.arraycopy(early, 0, shorter, 0, n);
+			early = shorter;
+		}
+
+		// The tunnel carries on with our bottleneck, so the connection is counted once
+		new TunnelHandler(request, conf, destination, CONNECTION_ESTABLISHED, early, bottleneck).run();
+	}
+
+	/**
+	 * @param version The HTTP version of the browser's request.
+	 * @return True if the browser wants to keep its connection open after this request.
+	 */
+	private boolean isKeepAlive(final String version)
+	{
+		String connection = parser.getHeader("Connection");
+		if (connection == null)
+		{
+			connection = parser.getHeader("Proxy-Connection");
+		}
+		connection = connection == null ? "" : connection.toLowerCase(Locale.ENGLISH);
+
+		if ("HTTP/1.1".equals(version))
+		{
+			return connection.indexOf("close") == -1;
+		}
+		return connection.indexOf("keep-alive") != -1;
+	}
+
+	/**
+	 * @param response The head of the web server's response.
+	 * @return True if the web server will keep its connection open after this response.
+	 */
+	private boolean isKeepAlive(final ResponseParser response)
+	{
+		String connection = response.getHeader("Connection");
+		connection = connection == null ? "" : connection.toLowerCase(Locale.ENGLISH);
+
+		if ("HTTP/1.1".equals(response.getVersion()))
+		{
+			return connection.indexOf("close") == -1;
+		}
+		return connection.indexOf("keep-alive") != -1;
 	}
 
 	/**
 	 * Copy the body of the http request from the web server to the web browser.
-	 * @param inFromWebServer	The input stream to Sloppy from the web server.
+	 * @param inFromWebServer	The input stream to Sloppy from the web server; may be null if there is no body.
 	 * @param outputToWebBrowser	The output stream from Sloppy to the web browser.
+	 * @param chunked	True to send the body with chunked transfer encoding.
 	 * @throws IOException  if there was a communication error.
 	 */
-	private void copyBodyToWebBrowser(final InputStream inFromWebServer, final OutputStream outputToWebBrowser) throws IOException
+	private void copyBodyToWebBrowser(final InputStream inFromWebServer, final OutputStream outputToWebBrowser, final boolean chunked) throws IOException
 	{
-
-		byte[] buffer = new byte[BUFFER_SIZE];
-		
-		while (true)
+		BufferPool pool = conf.getHeapBufferPool();
+		ByteBuffer pooled = null;
+		try
 		{
-			bottleneck.mark(); // mark an event
+			while (inFromWebServer != null)
+			{
+				bottleneck.mark(); // mark an event
+
+				// The chunk size follows the client's rate, so a slow client gets a steady
+				// trickle of small writes and a fast one fewer, larger writes.  The rate
+				// can change part way through a body, so look again for every chunk.
+				int readSize = bottleneck.chunkSize();
+				pooled = fit(pool, pooled, readSize);
+				byte[] buffer = pooled.array();
 			
-			int bytesRead = inFromWebServer.read(buffer);
+				int bytesRead = inFromWebServer.read(buffer, 0, readSize);
 
-			if (bytesRead == -1)
+				if (bytesRead == -1)
+				{
+					break; // end of input
+				}
+			
+				byte[] chunkSize = chunked ? (Integer.toHexString(bytesRead) + "\r\n").getBytes() : null;
+
+				// Before we send the data, delay it:
+				long delay = bottleneck.restrictNanos(chunked ? chunkSize.length + bytesRead + CRLF.length : bytesRead);
+				pause(delay);	
+			
+				if (chunked)
+				{
+					outputToWebBrowser.write(chunkSize);
+					outputToWebBrowser.write(buffer, 0, bytesRead);
+					outputToWebBrowser.write(CRLF);
+				}
+				else
+				{
+					outputToWebBrowser.write(buffer, 0, bytesRead);
+				}
+			}
+		}
+		finally
+		{
+			if (pooled != null)
 			{
-				break; // end of input
+				pool.release(pooled);
 			}
-			
-			// Before we send the data, delay it:
-			long delay = bottleneck.restrict(bytesRead);
-			pause(delay);	
-						
-			outputToWebBrowser.write(buffer, 0, bytesRead);						
-		}	
+		}
+
+		if (chunked)
+		{
+			outputToWebBrowser.write(LAST_CHUNK);
+		}
 
 		outputToWebBrowser.flush();
 				
 	}
 
+	/**
+	 * Make sure we have a pooled buffer big enough for the next chunk.
+	 * 
+	 * @param pool	The pool to take buffers from.
+	 * @param pooled	The buffer in use so far, or null if there is none yet.
+	 * @param size	The size of the next chunk.
+	 * @return The buffer to use, which replaces (and gives back) the old one if that was too small.
+	 */
+	private static ByteBuffer fit(final BufferPool pool, final ByteBuffer pooled, final int size)
+	{
+		if (pooled != null && pooled.capacity() >= size)
+		{
+			return pooled;
+		}
+		ByteBuffer bigger = pool.acquire(size);
+		if (pooled != null)
+		{
+			pool.release(pooled);
+		}
+		return bigger;
+	}
+
+
 
 	/**
-	 * Copy the HTTP headers returned by the web server to the web browser.
+	 * Copy the status line and headers returned by the web server to the web browser.
 	 * 
-	 * @param con	The connection to the web server.
+	 * @param response	The head of the web server's response.
 	 * @param outputToWebBrowser	The output stream from Sloppy to the web browser.
+	 * @param keepAlive	True if the browser's connection will be kept open.
+	 * @param chunked	True if the body will be sent with chunked transfer encoding.
+	 * @param rewriteLocation	True to point any redirection back through Sloppy.
 	 * @throws IOException	 if there was a communication error.
 	 */
-	private void copyHeadersToWebBrowser(final HttpURLConnection con, final OutputStream outputToWebBrowser) throws IOException
+	private void copyHeadersToWebBrowser(final ResponseParser response, final OutputStream outputToWebBrowser, 
+		final boolean keepAlive, final boolean chunked, final boolean rewriteLocation) throws IOException
 	{	  
-		int i=0;
-		while (true)
+		ui.debug("< "+response.getStatusLine());
+
+		// Change the redirection to the localhost.  A browser using us as a 
+		// forward proxy will come back through us whatever the address.
+		String location = rewriteLocation ? response.getHeader("Location") : null;
+		byte[] rewritten = location == null ? new byte[0] :
+			("Location: "+Util.rewriteLocation(location, conf.getDestination(), conf.getLocalPort())+"\r\n").getBytes(LATIN1);
+
+		// The original head is enough room for the lines we keep, allowing for a CR
+		// to be added to each line that ended with a bare LF, plus the lines we add.
+		int n = response.getHeaderCount();
+		ByteBuffer head = ByteBuffer.allocate(response.getHeadLength() + n + 1 + rewritten.length
+			+ TRANSFER_ENCODING_CHUNKED.length + CONNECTION_KEEP_ALIVE.length + CRLF.length);
+
+		response.copyStatusLine(head);
+		for (int i = 0; i < n; i++)
 		{
-			String value = con.getHeaderField(i);
-			if (value == null)
+			if (response.isHopByHop(i))
 			{
-				break; // End of headers
+				continue; // These describe our connection to the web server, not the browser's to us
 			}
+			if (location != null && response.isHeader(i, "Location"))
+			{
+				head.put(rewritten);
+				rewritten = new byte[0]; // Only the one
+				continue;
+			}
+			response.copyHeader(i, head);
+		}
+        
+		if (chunked)
+		{
+			head.put(TRANSFER_ENCODING_CHUNKED);
+		}
+		head.put(keepAlive ? CONNECTION_KEEP_ALIVE : CONNECTION_CLOSE);
 
-			String name = con.getHeaderFieldKey(i);
+        // Mark the end of headers/start of body with a new line.
+		head.put(CRLF);
 
-			i++;
+		outputToWebBrowser.write(head.array(), 0, head.position());
+	}
 
-			if ("Transfer-Encoding".equalsIgnoreCase(name))
+	/**
+	 * Produce the request head to send to the web server: the browser's
+	 * request line and headers, with the Host: header pointing at the web 
+	 * server and without the headers that describe the browser's connection to us.
+	 * The lines we keep are copied across byte for byte.
+	 * 
+	 * @param	url		The web server and file being requested.
+	 * @param	version	The HTTP version of the browser's request.
+	 * @param	chunked	True if the body will be sent with chunked transfer encoding.
+	 * @return The request head, ending with a blank line.
+	 */
+	private byte[] requestHead(final URL url, final String version, final boolean chunked)
+	{
+		String file = url.getFile().length() == 0 ? "/" : url.getFile();
+		StringBuilder b = new StringBuilder();
+		b.append(parser.getMethod()).append(' ').append(file).append(' ').append(version).append("\r\n");
+		b.append("Host: ").append(Util.hostHeader(url)).append("\r\n");
+		if (chunked)
+		{
+			b.append("Transfer-Encoding: chunked\r\n");
+		}
+		if (!"HTTP/1.1".equals(version))
+		{
+			// HTTP/1.0 web servers close the connection after each response unless asked not to
+			b.append("Connection: keep-alive\r\n");
+		}
+		byte[] start = b.toString().getBytes(LATIN1);
+
+		int n = parser.getHeaderCount();
+		ByteBuffer head = ByteBuffer.allocate(start.length + parser.getHeadLength() + n + CRLF.length);
+		head.put(start);
+		for (int i = 0; i < n; i++)
+		{
+			// Host is set above, and the others describe the browser's
+			// connection to us, not ours to the web server.  A chunked body
+			// has no length, and a Content-Length beside the chunking could
+			// lead the web server to read the body differently from us.
+			if (!parser.isHeader(i, "Host") && !parser.isHopByHop(i)
+				&& !(chunked && parser.isHeader(i, "Content-Length")))
 			{
-				continue; // We drop this heading as per RFC2616			
+				parser.copyHeader(i, head);
 			}
+		}
+		head.put(CRLF);
+
+		byte[] bytes = new byte[head.position()];
+		System.arraycopy(head.array(), 0, bytes, 0, bytes.length);
+		return bytes;
+	}
 
+	/**
+	 * Send the request received from the web browser on to the web server.
+	 * 
+	 * @param	upstream	The connection to the web server.
+	 * @param	head	The request head to send to the web server.
+	 * @param	body	The body to send to the web server, or null if there is none.
+	 * @throws IOException	if there was a problem communicating with the web server.
+	 */
+	private void sendRequest(final UpstreamConnection upstream, final byte[] head, final InputStream body) throws IOException
+	{
+		OutputStream outputToWebServer = upstream.getOutputStream();
+		outputToWebServer.write(head);
 
-			if (name != null)
+		// The body is streamed from the browser to the web server a buffer at a 
+		// time, rather than held in memory, so it reaches the web server at the 
+		// client's upload rate.
+		if (body != null)
+		{
+			// Write straight through, so the bytes go when the upload limit says
+			outputToWebServer.flush();
+			OutputStream throttled = new ThrottledOutputStream(outputToWebServer, bottleneck, scheduler);
+			boolean chunked = body instanceof ChunkedInputStream;
+			BufferPool pool = conf.getHeapBufferPool();
+			ByteBuffer pooled = null;
+			try
 			{
-				// Some headers, like the status line, have no name
-				outputToWebBrowser.write(name.getBytes());
-				outputToWebBrowser.write(": ".getBytes());
-				
-				// Change the redirection to the localhost
-				if (name.equals("Location"))
+				while (true)
 				{
-					URL location;
-					try 
+					// The upload rate can change part way through a body too
+					int chunkSize = bottleneck.uploadChunkSize();
+					pooled = fit(pool, pooled, chunkSize);
+					byte[] buffer = pooled.array();
+					int bytesRead = body.read(buffer, 0, chunkSize);
+					if (bytesRead == -1)
 					{
-						location = new URL(value);
-						if (location.getHost().equals(conf.getDestination().getHost())) 
-						{
-							location = new URL("http", "127.0.0.1", conf.getLocalPort(), 
-								location.getFile());
-							value = location.toString();
-						}
+						break;
 					}
-					catch (MalformedURLException ex) 
+					if (chunked)
 					{
-						// Ignore - don't bother changing the Location header
+						outputToWebServer.write((Integer.toHexString(bytesRead)+"\r\n").getBytes(LATIN1));
 					}
+					throttled.write(buffer, 0, bytesRead);
+					if (chunked)
+					{
+						outputToWebServer.write(CRLF);
+					}
+					outputToWebServer.flush();
 				}
 			}
-
-			outputToWebBrowser.write(value.getBytes());
-			
-			outputToWebBrowser.write('\r');
-			outputToWebBrowser.write('\n');
-
-			ui.debug("< "+name+": "+value);
-			
+			finally
+			{
+				if (pooled != null)
+				{
+					pool.release(pooled);
+				}
+			}
+			if (chunked)
+			{
+				outputToWebServer.write(LAST_CHUNK);
+			}
 		}
-        
-        // Mark the end of headers/start of body with a new line.
-		outputToWebBrowser.write('\r');
-		outputToWebBrowser.write('\n');
-		
-	}
-
 
+		outputToWebServer.flush();
+	}
 
 	/**
-	 * Send the request received from the web browser on to the web server.
+	 * Read the head of the web server's response, skipping any interim (1xx) responses.
+	 * <p>
 	 * 
-	 * @param	con		The connection to the web server.
-	 * @param	headers The headers to send to the web server.
-	 * @param	body	The body to send to the web server.
-	 * @throws IOException	if there was a problem communicating with the web server.
+	 * A <code>101 Switching Protocols</code> is not interim: the connection 
+	 * stops being HTTP.  We never pass the browser's Upgrade: header on, so
+	 * a web server shouldn't send one; if it does, the request fails rather than
+	 * reading whatever follows as a response.
+	 * 
+	 * @param	upstream	The connection to the web server.
+	 * @return The parsed response head.
+	 * @throws IOException	if the web server closed the connection or sent a bad response.
+	 * @throws ProtocolException	if the web server switched protocols.
 	 */
-	private void sendRequest(final HttpURLConnection con, final Headers headers, final String body) throws IOException
+	private ResponseParser readResponseHead(final UpstreamConnection upstream) throws IOException
 	{
-
-        headers.writeTo(con);
-		
-
-		// Send the body (just opening the conenction
-		// seems to make some web servers think you're
-		// doing a POST).
-		if (body != null && body.length() > 0)
+		ResponseParser response = upstream.getResponseParser();
+		int status;
+		do
 		{
-			OutputStream outputToWebServer = con.getOutputStream();
-			OutputStreamWriter osw = new OutputStreamWriter(outputToWebServer);
-			osw.write(body);
-			osw.flush();
-			osw.close();
-			outputToWebServer.close();	
+			if (!response.readFrom(upstream.getInputStream()))
+			{
+				throw new EOFException("Web server closed the connection without responding");
+			}
+			status = response.getStatus();
+			if (status == 101)
+			{
+				throw new ProtocolException("Web server switched protocols, which Sloppy does not support");
+			}
 		}
-
+		while (status / 100 == 1);
+		return response;
 	}
 
-
 	/**
-	 * Set up a URLConnection to the web server.
-	 * 
-	 * @param	method	The HTTP metod (e.g., GET, POST).
-	 * @param	file	The file being requested.
-	 * @return The HttpURLConnection to the web server (not opened).
-	 * @throws IOException	if there was a problem setting up the connection.
+	 * @param	value	The value of a Content-Length header, or null.
+	 * @return The length, or -1 if there is no (usable) length.
 	 */
-	private HttpURLConnection getConnection(final String method, final String file) throws IOException
+	private static long contentLength(final String value)
 	{
-		URL url = new URL(conf.getDestination(), file);
-		
-		ui.debug("Method ["+method+"]");
-		ui.debug("File ["+file+"]");
-		ui.debug(url.toExternalForm());
-
-		HttpURLConnection con = (HttpURLConnection)url.openConnection();
-		
-		con.setAllowUserInteraction(true);
-		con.setDoInput(true);
-		con.setDoOutput(true);
-		con.setUseCaches(false);
-		con.setRequestMethod(method);
-		con.setInstanceFollowRedirects(false);
-		
-		/* 
-		 * The Host: header should be for the original request not
-		 * sloppy.	E.g., if we're proxying to someplace:8080 then then
-		 * header should be host:someplace:8080, not localhost:7569/ 
-		 * (where Sloppy runs)
-		 * 
-		 * This is because some application servers use the Host: header
-		 * to know what application to call.
-		 */
-		StringBuffer originHost = new StringBuffer();
-		originHost.append(conf.getDestination().getHost());
-		int port = conf.getDestination().getPort();
-		if (port != -1)
-		{
-			originHost.append(":").append(port);	
-		}
-		con.setRequestProperty("Host", originHost.toString());
-		
-		// We don't do Keep-Alive to keep this code simple.
-		con.setRequestProperty("Connection", "close");
-		
-		return con;
-	
+		if (value == null)
+		{
+			return -1;
+		}
+		try
+		{
+			long length = Long.parseLong(value.trim());
+			return length < 0 ? -1 : length;
+		}
+		catch (NumberFormatException nfx)
+		{
+			return -1;
+		}
 	}
 
-
-
 	/**
-	 * Read the HTTP body from the web browser into a string.
+	 * Find the HTTP body from the web browser, using the Content-Length or
+	 * chunked encoding to find where it ends (and where any next request starts).
 	 * 
-	 * @param	r	The input from the web browser.
-	 * @return The body of the request.
-	 * @throws IOException if there was a problem reading from the web browser.
+	 * @param	in	The input from the web browser.
+	 * @return A stream of just the body of the request, or null if there is none.
+	 * @throws IOException if the Content-Length is not valid.
 	 */
-	private String readBody(final BufferedReader r) throws IOException
+	private InputStream openBody(final InputStream in) throws IOException
 	{
-		StringBuffer b = new StringBuffer();
-		char[] buffer = new char[BUFFER_SIZE];
-		while (r.ready()) 
+		String transferEncoding = parser.getHeader("Transfer-Encoding");
+		if (transferEncoding != null && transferEncoding.toLowerCase(Locale.ENGLISH).indexOf("chunked") != -1)
 		{
-			int charsRead = r.read(buffer);
-			if (charsRead == -1) 
-			{
-				break;
-			}
-			b.append(buffer, 0, charsRead);
+			return new ChunkedInputStream(in);
 		}
-		return b.toString();		
+
+		String contentLength = parser.getHeader("Content-Length");
+		if (contentLength == null)
+		{
+			return null;
+		}
+
+		long length = contentLength(contentLength);
+		if (length == -1)
+		{
+			throw new IOException("Bad Content-Length: "+contentLength);
+		}
+		return length == 0 ? null : new ContentLengthInputStream(in, length);
 	}
 
 
-	
-	
 	/**
-	 * Suspend the exchange of data on this thread
+	 * Suspend the exchange of data on the current thread
 	 * for some amount of time.
 	 * 
-	 * @param	milliseconds	The number of milliseconds to sleep.
+	 * @param	nanos	The number of nanoseconds to sleep.
 	 */
-	private void pause(final long milliseconds)
+	private void pause(final long nanos)
 	{
-		if (milliseconds <= 0)
+		if (nanos <= 0)
 		{
 			return;
 		}
 	
 		try
 		{
-			ui.debug(getName()+" sleeping "+milliseconds);
-			sleep(milliseconds);
+			ui.debug(Thread.currentThread().getName()+" sleeping "+nanos+"ns");
+			scheduler.sleepNanos(nanos);
 		}
 		catch (InterruptedException ix)
 		{
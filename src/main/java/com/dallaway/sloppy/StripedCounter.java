@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A count that many threads add to at once, for the {@link Metrics}.
+ * <p>
+ *
+ * Threads that add to one {@link java.util.concurrent.atomic.AtomicLong}
+ * all fight over one cache line.  Here the count is split over a few 
+ * stripes, each on a cache line of its own, and a thread adds to the
+ * stripe its id picks: threads mostly add to different stripes, and
+ * the total is the sum of the stripes.  The idea is the one behind 
+ * <code>java.util.concurrent.atomic.LongAdder</code>, which only arrived in
+ * Java 8; Sloppy needs no more than Java 7.
+ * <p>
+ *
+ * Adding is cheap and never blocks.  The total read while threads are
+ * adding may miss their latest additions.
+ */
+public class StripedCounter
+{
+
+    // The most stripes: more than enough for the threads that handle one client or listener.
+    private static final int MAX_STRIPES = 16;
+
+    // Longs between stripes, so each is on a cache line of its own (64 bytes).
+    private static final int PADDING = 8;
+
+    // The number of stripes, a power of two.
+    private static final int STRIPES = stripes(Runtime.getRuntime().availableProcessors());
+
+    // The stripes, each PADDING longs apart.
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    /**
+     * @param n the amount to add.
+     */
+    public void add(final long n)
+    {
+        cells.addAndGet(stripe(Thread.currentThread().getId()) * PADDING, n);
+    }
+
+    /**
+     * Add one.
+     */
+    public void increment()
+    {
+        add(1);
+    }
+
+    /**
+     * @return the total added so far.
+     */
+    public long sum()
+    {
+        long sum = 0;
+        for (int i = 0; i < cells.length(); i += PADDING)
+        {
+            sum += cells.get(i);
+        }
+        return sum;
+    }
+
+    /**
+     * @param threadId a thread's id.
+     * @return the stripe the thread adds to.
+     */
+    static int stripe(final long threadId)
+    {
+        // Spread ids handed out in sequence over the stripes (Fibonacci hashing)
+        return (int) ((threadId * 0x9E3779B97F4A7C15L) >>> 32) & (STRIPES - 1);
+    }
+
+    /**
+     * @param processors the number of processors.
+     * @return the number of stripes to use: a power of two, at least twice the processors, up to the most allowed.
+     */
+    static int stripes(final int processors)
+    {
+        int stripes = 1;
+        while (stripes < 2 * processors && stripes < MAX_STRIPES)
+        {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+
+    /**
+     * @return the total, for logging.
+     */
+    @Override
+    public String toString()
+    {
+        return String.valueOf(sum());
+    }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * An output stream that passes data on no faster than a client's upload
+ * limit allows.  Data is written a chunk at a time, waiting before each
+ * chunk for as long as the {@link Bottleneck} says, timed by the
+ * {@link PacingScheduler}.  The chunk size comes from the bottleneck too,
+ * so it follows the upload limit.
+ */
+public class ThrottledOutputStream extends FilterOutputStream
+{
+
+	// Limits the rate the data is written at. 
+	private final Bottleneck bottleneck;
+
+	// Times the waits. 
+	private final PacingScheduler scheduler;
+
+	/**
+	 * @param out the stream to write to.
+	 * @param bottleneck the limit on the client's uploads.
+	 * @param scheduler times the waits between chunks.
+	 */
+	public ThrottledOutputStream(final OutputStream out, final Bottleneck bottleneck, final PacingScheduler scheduler)
+	{
+		super(out);
+		this.bottleneck = bottleneck;
+		this.scheduler = scheduler;
+	}
+
+	@Override
+	public void write(final int b) throws IOException
+	{
+		pause(bottleneck.restrictUploadNanos(1));
+		out.write(b);
+	}
+
+	@Override
+	public void write(final byte[] b, final int off, final int len) throws IOException
+	{
+		int written = 0;
+		while (written < len)
+		{
+			int n = Math.min(bottleneck.uploadChunkSize(), len - written);
+			pause(bottleneck.restrictUploadNanos(n));
+			out.write(b, off + written, n);
+			written += n;
+		}
+	}
+
+	/**
+	 * @param nanos the time to wait for, in nanoseconds.
+	 * @throws InterruptedIOException if the thread is interrupted while waiting.
+	 */
+	private void pause(final long nanos) throws InterruptedIOException
+	{
+		if (nanos <= 0)
+		{
+			return;
+		}
+
+		try
+		{
+			scheduler.sleepNanos(nanos);
+		}
+		catch (InterruptedException ix)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while limiting upload");
+		}
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+/**
+ * Measures the rate a connection's bytes actually go at, so it can be
+ * compared with the rate they are meant to go at.
+ * <p>
+ *
+ * Each chunk is recorded as it is admitted.  The time a chunk takes is only
+ * known when the next one arrives, so the rate is the bytes of every chunk 
+ * but the last over the time from the first chunk to the last.
+ * <p>
+ *
+ * Safe to read from any thread while the connection records to it.
+ */
+public class Throughput
+{
+
+    // When the first chunk was recorded (System.nanoTime()), or zero if none has been.
+    private long firstNanos = 0;
+
+    // When the latest chunk was recorded.
+    private long lastNanos = 0;
+
+    // Bytes of every chunk before the latest.
+    private long measuredBytes = 0;
+
+    // Bytes of the latest chunk, not yet known to have gone.
+    private long latestBytes = 0;
+
+    /**
+     * @param bytes the size of a chunk about to be sent.
+     * @param now the time (System.nanoTime()).
+     */
+    public synchronized void record(final int bytes, final long now)
+    {
+        if (firstNanos == 0)
+        {
+            firstNanos = now;
+        }
+        else
+        {
+            measuredBytes += latestBytes;
+            lastNanos = now;
+        }
+        latestBytes = bytes;
+    }
+
+    /**
+     * @return the total bytes recorded.
+     */
+    public synchronized long getBytes()
+    {
+        return measuredBytes + latestBytes;
+    }
+
+    /**
+     * @return the rate achieved so far, in bytes per second; zero until there are two chunks to measure between.
+     */
+    public synchronized long getBytesPerSecond()
+    {
+        long nanos = lastNanos - firstNanos;
+        return lastNanos == 0 || nanos <= 0 ? 0 : measuredBytes * 1000000000L / nanos;
+    }
+
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket rate limiter, safe to share between threads without locking.
+ * <p>
+ *
+ * Rather than counting tokens, the bucket keeps a single "theoretical
+ * arrival time": the {@link System#nanoTime()} at which everything reserved
+ * so far will have been sent at the configured rate.  Reserving bytes pushes
+ * that time forward with a compare-and-set, and the caller is told how long 
+ * to wait before sending.  Up to the burst size may be sent without waiting,
+ * so an idle client starts with a full bucket, and a caller that oversleeps 
+ * a little catches up on its next reservation rather than falling behind.
+ * <p>
+ *
+ * Callers reserve before they send, so a large reservation makes later
+ * callers wait behind it: keep reservations to a chunk at a time and 
+ * connections sharing a bucket take turns.
+ * <p>
+ *
+ * The rate can be changed while bytes are in flight.  The rate and burst
+ * are swapped in together, so no caller sees one without the other, and the
+ * bytes already reserved but not yet due are rescaled to the new rate: they
+ * are sent at the new rate from the moment of the change, with no pause for
+ * the old rate's backlog and no burst from its slack.
+ */
+public class TokenBucket
+{
+
+    // Nanoseconds in a second.
+    private static final double NANOS_PER_SECOND = 1000000000.0;
+
+    // How long ago a new bucket was last used: long enough that it is full
+    // however far back a caller's idea of now is (see DelayLine).
+    private static final long IDLE_SINCE_NANOS = 1L << 40;
+
+    // When the bytes reserved so far will have been sent (System.nanoTime()).
+    private final AtomicLong arrivalTime;
+
+    // The rate and burst, swapped in whole when either changes.
+    private volatile Rate rate;
+
+    /**
+     * @param bytesPerSecond the sustained rate; zero or less means unlimited.
+     * @param burstBytes the number of bytes that may be sent without waiting.
+     */
+    public TokenBucket(final int bytesPerSecond, final int burstBytes)
+    {
+        this.arrivalTime = new AtomicLong(System.nanoTime() - IDLE_SINCE_NANOS);
+        this.rate = new Rate(bytesPerSecond, burstBytes);
+    }
+
+    /**
+     * Reserve bytes for sending.
+     * 
+     * @param bytes the number of bytes about to be sent.
+     * @return nanoseconds to wait before sending them; zero if they may go now.
+     */
+    public long reserve(final int bytes)
+    {
+        return reserve(bytes, System.nanoTime());
+    }
+
+    /**
+     * Reserve bytes for sending, as of a given time.
+     * 
+     * @param bytes the number of bytes about to be sent.
+     * @param now the current {@link System#nanoTime()}.
+     * @return nanoseconds to wait before sending them; zero if they may go now.
+     */
+    long reserve(final int bytes, final long now)
+    {
+        Rate current = rate;
+        if (current.nanosPerByte == 0)
+        {
+            return 0; // Unlimited
+        }
+
+        long cost = (long) (bytes * current.nanosPerByte);
+        long tolerance = current.burstNanos;
+
+        while (true)
+        {
+            long arrival = arrivalTime.get();
+            // An idle bucket has filled up: we never go back further than now.
+            long next = Math.max(arrival, now) + cost;
+            if (arrivalTime.compareAndSet(arrival, next))
+            {
+                return Math.max(0, next - tolerance - now);
+            }
+        }
+    }
+
+    /**
+     * @return nanoseconds until everything reserved so far is due, less the burst; 
+     *         zero if bytes could be sent now without waiting.
+     */
+    public long getBacklogNanos()
+    {
+        return Math.max(0, arrivalTime.get() - rate.burstNanos - System.nanoTime());
+    }
+
+    /**
+     * @return the sustained rate, in bytes per second; zero or less means unlimited.
+     */
+    public int getBytesPerSecond()
+    {
+        return rate.bytesPerSecond;
+    }
+
+    /**
+     * Change the rate, rescaling the bytes reserved but not yet due so they
+     * go at the new rate from now.
+     * 
+     * @param bytesPerSecond the sustained rate; zero or less means unlimited.
+     */
+    public synchronized void setBytesPerSecond(final int bytesPerSecond)
+    {
+        Rate old = rate;
+        if (bytesPerSecond == old.bytesPerSecond)
+        {
+            return;
+        }
+        Rate changed = new Rate(bytesPerSecond, old.burstBytes);
+        rate = changed;
+
+        // Callers that reserved between the swap and here were charged at the
+        // new rate, on top of the old backlog: near enough, for a chunk.
+        long now = System.nanoTime();
+        while (true)
+        {
+            long arrival = arrivalTime.get();
+            long next;
+            if (arrival <= now)
+            {
+                return; // Nothing outstanding
+            }
+            if (old.nanosPerByte == 0 || changed.nanosPerByte == 0)
+            {
+                next = now; // Nothing is owed to or from an unlimited bucket
+            }
+            else
+            {
+                next = now + (long) ((arrival - now) * (changed.nanosPerByte / old.nanosPerByte));
+            }
+            if (arrivalTime.compareAndSet(arrival, next))
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes that may be sent without waiting.
+     */
+    public int getBurstBytes()
+    {
+        return rate.burstBytes;
+    }
+
+    /**
+     * @param burstBytes the number of bytes that may be sent without waiting.
+     */
+    public synchronized void setBurstBytes(final int burstBytes)
+    {
+        rate = new Rate(rate.bytesPerSecond, burstBytes);
+    }
+
+    /**
+     * A rate and burst, with the time each takes worked out.  Immutable, so
+     * a caller reserving bytes sees all of one setting.
+     */
+    private static final class Rate
+    {
+        // The rate, and the same rate expressed as the time each byte takes.
+        final int bytesPerSecond;
+        final double nanosPerByte;
+
+        // The burst size, and the time it takes to send a burst at the rate.
+        final int burstBytes;
+        final long burstNanos;
+
+        /**
+         * @param bytesPerSecond the sustained rate; zero or less means unlimited.
+         * @param burstBytes the number of bytes that may be sent without waiting.
+         */
+        Rate(final int bytesPerSecond, final int burstBytes)
+        {
+            this.bytesPerSecond = bytesPerSecond;
+            this.nanosPerByte = bytesPerSecond <= 0 ? 0 : NANOS_PER_SECOND / bytesPerSecond;
+            this.burstBytes = Math.max(0, burstBytes);
+            this.burstNanos = (long) (this.burstBytes * nanosPerByte);
+        }
+    }
+
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One client's place in a {@link BandwidthTrace}.
+ * <p>
+ *
+ * The cursor starts at the beginning of the trace when it is made, and 
+ * moves on through the mapped file as time passes, reading one line ahead.
+ * Time only moves forward, so each line is read once for each time round the
+ * trace, however often the rate is asked for.  A client that has been away
+ * for longer than the whole trace skips the rounds it missed without reading them.
+ * <p>
+ *
+ * This class is safe to use from several handler threads at once.
+ */
+public class TraceCursor
+{
+
+    // Nanoseconds in a millisecond.
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    // The trace being followed.
+    private final BandwidthTrace trace;
+
+    // This cursor's own view of the trace file.
+    private final ByteBuffer buffer;
+
+    // When the cursor started (System.nanoTime()).
+    private final long start;
+
+    // When, since the start, the current time round the trace began.
+    private long roundMillis = 0;
+
+    // The rate and round trip time now.
+    private volatile int bytesPerSecond;
+    private volatile int roundTripMillis;
+
+    // The rate and round trip time to come, and when, since the start, they begin.
+    private long nextMillis;
+    private int nextBytesPerSecond;
+    private int nextRoundTripMillis;
+
+    // For a Mahimahi trace: the start of the next window, and the first 
+    // delivery not yet counted (or -1 at the end of the trace).
+    private long windowMillis = 0;
+    private long pending;
+
+    /**
+     * @param trace the trace to follow.
+     * @param buffer a view of the trace file, at its start, for this cursor alone.
+     */
+    TraceCursor(final BandwidthTrace trace, final ByteBuffer buffer)
+    {
+        this.trace = trace;
+        this.buffer = buffer;
+        this.start = System.nanoTime();
+        if (trace.getFormat() == TraceFormat.MAHIMAHI)
+        {
+            pending = readDelivery();
+        }
+
+        // The first line holds from the start, whatever its timestamp
+        readNext();
+        takeNext();
+        readNext();
+    }
+
+    /**
+     * Catch up with the trace.
+     * 
+     * @param now the time now (System.nanoTime()).
+     */
+    public synchronized void advance(final long now)
+    {
+        long elapsed = (now - start) / NANOS_PER_MILLI;
+        long period = trace.getPeriodMillis();
+        if (elapsed - nextMillis > period)
+        {
+            // Skip whole times round: they would only be read to be thrown away
+            long skip = (elapsed - nextMillis) / period * period;
+            roundMillis += skip;
+            nextMillis += skip;
+        }
+        while (elapsed >= nextMillis)
+        {
+            takeNext();
+            readNext();
+        }
+    }
+
+    /**
+     * @return The trace being followed.
+     */
+    public BandwidthTrace getTrace()
+    {
+        return trace;
+    }
+
+    /**
+     * @return The rate the trace has reached, in bytes per second.
+     */
+    public int getBytesPerSecond()
+    {
+        return bytesPerSecond;
+    }
+
+    /**
+     * @return The round trip time the trace has reached, in milliseconds;
+     *         -1 if the trace doesn't say.
+     */
+    public int getRoundTripMillis()
+    {
+        return roundTripMillis;
+    }
+
+    /**
+     * Move on to the rate read ahead.
+     */
+    private void takeNext()
+    {
+        bytesPerSecond = nextBytesPerSecond;
+        roundTripMillis = nextRoundTripMillis;
+    }
+
+    /**
+     * Read ahead to the next rate, going round again at the end of the trace.
+     */
+    private void readNext()
+    {
+        if (trace.getFormat() == TraceFormat.MAHIMAHI)
+        {
+            readWindow();
+            return;
+        }
+
+        if (!BandwidthTrace.nextRecord(buffer))
+        {
+            goRound();
+            BandwidthTrace.nextRecord(buffer);
+        }
+        double timestamp = BandwidthTrace.readNumber(buffer);
+        double kiloBitsPerSecond = BandwidthTrace.readNumber(buffer);
+        double roundTrip = BandwidthTrace.readNumber(buffer);
+        BandwidthTrace.skipLine(buffer);
+
+        nextMillis = roundMillis + (long) timestamp;
+        nextBytesPerSecond = BandwidthTrace.toBytesPerSecond(kiloBitsPerSecond);
+        nextRoundTripMillis = roundTrip < 0 ? -1 : (int) Math.round(roundTrip);
+    }
+
+    /**
+     * Read ahead to the rate for the next window of a Mahimahi trace: the 
+     * packets delivered in the window.
+     */
+    private void readWindow()
+    {
+        long period = trace.getPeriodMillis();
+        if (windowMillis >= period)
+        {
+            goRound();
+            windowMillis = 0;
+            pending = readDelivery();
+        }
+
+        // The last window may be short, and takes the delivery at the very end
+        long end = Math.min(windowMillis + BandwidthTrace.WINDOW_MILLIS, period);
+        long packets = 0;
+        while (pending >= 0 && (pending < end || end == period))
+        {
+            packets++;
+            pending = readDelivery();
+        }
+
+        nextMillis = roundMillis + windowMillis;
+        nextBytesPerSecond = (int) Math.max(BandwidthTrace.MIN_BYTES_PER_SECOND, 
+            Math.min(Integer.MAX_VALUE, packets * BandwidthTrace.PACKET_BYTES * 1000L / (end - windowMillis)));
+        nextRoundTripMillis = -1;
+        windowMillis = end;
+    }
+
+    /**
+     * @return The next delivery time in a Mahimahi trace, or -1 at the end of the trace.
+     */
+    private long readDelivery()
+    {
+        if (!BandwidthTrace.nextRecord(buffer))
+        {
+            return -1;
+        }
+        long timestamp = (long) BandwidthTrace.readNumber(buffer);
+        BandwidthTrace.skipLine(buffer);
+        return timestamp;
+    }
+
+    /**
+     * Start the next time round the trace.
+     */
+    private void goRound()
+    {
+        buffer.rewind();
+        roundMillis += trace.getPeriodMillis();
+    }
+}
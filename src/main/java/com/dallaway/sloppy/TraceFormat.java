@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+/**
+ * How a {@link BandwidthTrace} file is laid out.
+ */
+public enum TraceFormat
+{
+    /**
+     * Lines of <code>timestamp,kbps</code> or <code>timestamp,kbps,rtt</code>:
+     * from each timestamp (in milliseconds) the link runs at the rate (in 
+     * kilobits of 1000 bits a second) with the round trip time (in milliseconds),
+     * until the next line.
+     */
+    CSV,
+
+    /**
+     * A Mahimahi delivery trace: one timestamp (in milliseconds) a line for
+     * each 1500 byte packet the link can deliver, repeating from the start 
+     * after the last timestamp.
+     */
+    MAHIMAHI;
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Runs a {@link NioTunnel} for one connection when the server is using the
+ * thread engine.
+ * <p>
+ *
+ * A tunnel has to move bytes both ways at once, which a single blocking 
+ * thread cannot do, so the handler gives the connection an event loop 
+ * of its own and runs it on the handler's thread until the tunnel closes.
+ * The thread, the execution mode and the handler pool's limits are therefore
+ * the same as for a {@link SlowProxyThread}.
+ * <p>
+ *
+ * A {@link SlowProxyThread} also uses a tunnel handler to carry on with a
+ * connection after a CONNECT request.
+ */
+public class TunnelHandler implements Runnable
+{
+
+    // The system configuration/settings.
+    private final Configuration conf;
+
+    // The interface to log to.
+    private final UserInterface ui;
+
+    // The connection from the web browser.
+    private final Socket request;
+
+    // Where to connect to.
+    private final InetSocketAddress destination;
+
+    // Bytes to send the browser once connected, and bytes already read from it; may be null.
+    private final byte[] toBrowser;
+    private final byte[] toServer;
+
+    // The connection's bottleneck, carried on from a CONNECT request; null for the tunnel to make one.
+    private final Bottleneck bottleneck;
+
+    /**
+     * @param request the connection from the web browser.
+     * @param conf the configuration for this run of the server.
+     */
+    public TunnelHandler(final Socket request, final Configuration conf)
+    {
+        this(request, conf, conf.getTunnelDestination(), null, null);
+    }
+
+    /**
+     * @param request the connection from the web browser.
+     * @param conf the configuration for this run of the server.
+     * @param destination where to connect to (the host need not be resolved yet).
+     * @param toBrowser bytes to send the browser once the destination is connected, or null.
+     * @param toServer bytes already read from the browser, to send on first, or null.
+     */
+    public TunnelHandler(final Socket request, final Configuration conf, final InetSocketAddress destination,
+        final byte[] toBrowser, final byte[] toServer)
+    {
+        this(request, conf, destination, toBrowser, toServer, null);
+    }
+
+    /**
+     * @param request the connection from the web browser.
+     * @param conf the configuration for this run of the server.
+     * @param destination where to connect to (the host need not be resolved yet).
+     * @param toBrowser bytes to send the browser once the destination is connected, or null.
+     * @param toServer bytes already read from the browser, to send on first, or null.
+     * @param bottleneck the connection's bottleneck, already open, for the tunnel
+     *        to carry on with and close; or null for the tunnel to make its own.
+     */
+    public TunnelHandler(final Socket request, final Configuration conf, final InetSocketAddress destination,
+        final byte[] toBrowser, final byte[] toServer, final Bottleneck bottleneck)
+    {
+        this.request = request;
+        this.conf = conf;
+        this.ui = conf.getUserInterface();
+        this.destination = destination;
+        this.toBrowser = toBrowser;
+        this.toServer = toServer;
+        this.bottleneck = bottleneck;
+    }
+
+    /**
+     * Tunnel the connection until both ends have finished with it.
+     */
+    public void run()
+    {
+        NioEventLoop loop;
+        try
+        {
+            loop = new NioEventLoop(conf, true);
+        }
+        catch (IOException iox)
+        {
+            ui.error("Failed to open selector for tunnel", iox); //$NON-NLS-1$
+            refuse();
+            return;
+        }
+
+        if (bottleneck == null)
+        {
+            loop.register(new NioTunnel(loop, request.getChannel(), conf, destination, toBrowser, toServer));
+        }
+        else
+        {
+            loop.register(new NioTunnel(loop, request.getChannel(), conf, destination, toBrowser, toServer, bottleneck));
+        }
+        loop.run();
+    }
+
+    /**
+     * Turn the connection away because Sloppy is too busy to handle it.
+     * There's no protocol to say so in, so the connection is just closed.
+     * Called on the accepting thread instead of {@link #run()}.
+     */
+    public void refuse()
+    {
+        ui.debug("Too busy: refusing tunnel from " + request.getInetAddress().getHostAddress()); //$NON-NLS-1$
+        try
+        {
+            HandlerPool.closeRefused(request);
+        }
+        catch (IOException iox)
+        {
+            ui.debug(iox.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2001-2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * A connection from Sloppy to a web server, which can be kept open and
+ * used for one request after another.  See {@link UpstreamPool}.
+ * <p>
+ *
+ * Used by one handler at a time: not thread safe.
+ */
+public class UpstreamConnection
+{
+
+    // Buffer size for talking to the web server.
+    private static final int BUFFER_SIZE = 8192;
+
+    // The host and port, which is how the pool files the connection.
+    private final String key;
+
+    // The connection itself.
+    private final Socket socket;
+
+    // Buffered streams over the socket.
+    private final InputStream in;
+    private final OutputStream out;
+
+    // Parses each response head read from the web server.
+    private final ResponseParser parser = new ResponseParser();
+
+    // Has this connection been used before the current request?
+    private boolean reused = false;
+
+    // When the connection was last put back in the pool.
+    private long idleSince;
+
+    /**
+     * @param key the host and port of the web server.
+     * @param socket an open connection to the web server.
+     * @throws IOException if the socket's streams could not be opened.
+     */
+    UpstreamConnection(final String key, final Socket socket) throws IOException
+    {
+        this.key = key;
+        this.socket = socket;
+        this.in = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+        this.out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+    }
+
+    /**
+     * @return the host and port of the web server.
+     */
+    public String getKey()
+    {
+        return key;
+    }
+
+    /**
+     * @return the stream from the web server.  Supports mark and reset.
+     */
+    public InputStream getInputStream()
+    {
+        return in;
+    }
+
+    /**
+     * @return the stream to the web server.  Flush it once the request has been written.
+     */
+    public OutputStream getOutputStream()
+    {
+        return out;
+    }
+
+    /**
+     * @return the parser for response heads read from this connection.
+     */
+    public ResponseParser getResponseParser()
+    {
+        return parser;
+    }
+
+    /**
+     * @return true if the connection carried an earlier request, so the
+     *         web server may have closed it since.
+     */
+    public boolean isReused()
+    {
+        return reused;
+    }
+
+    /**
+     * Note that the connection is going back in the pool.
+     * 
+     * @param now the time, in milliseconds.
+     */
+    void idle(final long now)
+    {
+        reused = true;
+        idleSince = now;
+    }
+
+    /**
+     * @return when the connection was last put back in the pool.
+     */
+    long getIdleSince()
+    {
+        return idleSince;
+    }
+
+    /**
+     * A cheap check that a pooled connection is still worth trying.  This cannot
+     * tell that the web server has closed its end, which is why a failed request on
+     * a reused connection may be tried again.
+     * 
+     * @return false if the connection is closed, or has data waiting that no request asked for.
+     */
+    boolean isHealthy()
+    {
+        if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown())
+        {
+            return false;
+        }
+
+        try
+        {
+            return in.available() == 0;
+        }
+        catch (IOException iox)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Close the connection, ignoring any error.
+     */
+    public void close()
+    {
+        try
+        {
+            socket.close();
+        }
+        catch (IOException ignored)
+        {
+            // We're finished with it either way.
+        }
+    }
+
+    /**
+     * @return the web server and local port, for debugging.
+     */
+    @Override
+    public String toString()
+    {
+        return key + " (local port " + socket.getLocalPort() + ")"; //$NON-NLS-1$ //$NON-NLS-2$
+    }
+}
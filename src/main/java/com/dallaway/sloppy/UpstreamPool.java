@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2001-2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps connections to web servers open between requests, so that only the
+ * first request to a web server pays for setting up a connection.
+ * <p>
+ *
+ * Idle connections are kept for each host and port, most recently used first,
+ * up to a maximum for each.  Connections idle for longer than the idle time
+ * are closed: those for a web server when it is next used, and all of them
+ * every so often, along with the list of any web server left with none, so
+ * a forward proxy visiting many hosts does not keep an entry for each.
+ * Before a pooled connection is handed out it is given a
+ * cheap health check; see {@link UpstreamConnection#isHealthy()}.
+ * <p>
+ *
+ * New connections have TCP_NODELAY set, since requests are written in one
+ * go and small requests should not wait for the previous response to be
+ * acknowledged, and a read timeout so that a stuck web server does not
+ * hold on to a handler forever.
+ * <p>
+ *
+ * Safe to use from several handler threads at once.
+ */
+public class UpstreamPool
+{
+
+    // Idle connections for each "host:port", most recently used first.
+    private final ConcurrentHashMap<String, LinkedList<UpstreamConnection>> idle =
+        new ConcurrentHashMap<String, LinkedList<UpstreamConnection>>();
+
+    // The most idle connections to keep for each web server.
+    private final int maxIdlePerHost;
+
+    // How long a connection may be idle before it is closed (milliseconds).
+    private final long idleMillis;
+
+    // Time allowed to connect, and to wait for data, in milliseconds.
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+
+    // When we next look for idle connections to close (System.currentTimeMillis()).
+    private final AtomicLong nextSweep;
+
+    // Connections opened, and requests that reused a connection.
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+
+    /**
+     * @param maxIdlePerHost the most idle connections to keep for each web server; zero to keep none.
+     * @param idleMillis how long a connection may be idle before it is closed.
+     * @param connectTimeoutMillis time allowed for connecting; zero for no limit.
+     * @param readTimeoutMillis time allowed for the web server to send the next part of a response; zero for no limit.
+     */
+    public UpstreamPool(final int maxIdlePerHost, final long idleMillis,
+        final int connectTimeoutMillis, final int readTimeoutMillis)
+    {
+        this.maxIdlePerHost = maxIdlePerHost;
+        this.idleMillis = idleMillis;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.nextSweep = new AtomicLong(System.currentTimeMillis() + sweepInterval());
+    }
+
+    /**
+     * Take an idle connection to the web server, or open a new one if there is none.
+     * 
+     * @param host the web server's host.
+     * @param port the web server's port.
+     * @return a connection, which should be given back with {@link #release(UpstreamConnection)}
+     *         if it can carry another request, or closed if not.
+     * @throws IOException if a new connection could not be opened.
+     */
+    public UpstreamConnection acquire(final String host, final int port) throws IOException
+    {
+        long now = System.currentTimeMillis();
+        sweepIfDue(now);
+
+        LinkedList<UpstreamConnection> connections = idle.get(key(host, port));
+        if (connections != null)
+        {
+            while (true)
+            {
+                UpstreamConnection connection;
+                synchronized (connections)
+                {
+                    connection = connections.poll();
+                }
+                if (connection == null)
+                {
+                    break;
+                }
+                if (now - connection.getIdleSince() < idleMillis && connection.isHealthy())
+                {
+                    reused.incrementAndGet();
+                    return connection;
+                }
+                connection.close();
+            }
+        }
+
+        return open(host, port);
+    }
+
+    /**
+     * Open a new connection to the web server, ignoring any idle ones.
+     * 
+     * @param host the web server's host.
+     * @param port the web server's port.
+     * @return a new connection.
+     * @throws IOException if the connection could not be opened.
+     */
+    public UpstreamConnection open(final String host, final int port) throws IOException
+    {
+        Socket socket = new Socket();
+        try
+        {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+            socket.setSoTimeout(readTimeoutMillis);
+            opened.incrementAndGet();
+            return new UpstreamConnection(key(host, port), socket);
+        }
+        catch (IOException iox)
+        {
+            socket.close();
+            throw iox;
+        }
+    }
+
+    /**
+     * Give back a connection that has finished a request and can carry another.
+     * 
+     * @param connection a connection from {@link #acquire(String, int)}.
+     */
+    public void release(final UpstreamConnection connection)
+    {
+        if (maxIdlePerHost <= 0)
+        {
+            connection.close();
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        connection.idle(now);
+
+        UpstreamConnection dropped = null;
+        while (true)
+        {
+            LinkedList<UpstreamConnection> connections = idle.get(connection.getKey());
+            if (connections == null)
+            {
+                LinkedList<UpstreamConnection> created = new LinkedList<UpstreamConnection>();
+                connections = idle.putIfAbsent(connection.getKey(), created);
+                if (connections == null)
+                {
+                    connections = created;
+                }
+            }
+
+            synchronized (connections)
+            {
+                if (idle.get(connection.getKey()) != connections)
+                {
+                    continue; // Emptied and removed by a sweep: file it under a new list
+                }
+                connections.addFirst(connection);
+                if (connections.size() > maxIdlePerHost)
+                {
+                    dropped = connections.removeLast();
+                }
+            }
+            break;
+        }
+        if (dropped != null)
+        {
+            dropped.close();
+        }
+
+        sweepIfDue(now);
+    }
+
+    /**
+     * Close every idle connection.
+     */
+    public void closeAll()
+    {
+        for (Map.Entry<String, LinkedList<UpstreamConnection>> entry : idle.entrySet())
+        {
+            LinkedList<UpstreamConnection> connections = entry.getValue();
+            synchronized (connections)
+            {
+                for (UpstreamConnection connection : connections)
+                {
+                    connection.close();
+                }
+                connections.clear();
+                idle.remove(entry.getKey(), connections);
+            }
+        }
+    }
+
+    /**
+     * @return the number of idle connections, to all web servers.
+     */
+    public int getIdleCount()
+    {
+        int count = 0;
+        for (LinkedList<UpstreamConnection> connections : idle.values())
+        {
+            synchronized (connections)
+            {
+                count += connections.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of web servers with idle connections.
+     */
+    int getHostCount()
+    {
+        return idle.size();
+    }
+
+    /**
+     * @return the number of connections opened to web servers.
+     */
+    public long getOpenedCount()
+    {
+        return opened.get();
+    }
+
+    /**
+     * @return the number of requests that reused an idle connection.
+     */
+    public long getReusedCount()
+    {
+        return reused.get();
+    }
+
+    /**
+     * @return a summary of the pool's activity.
+     */
+    @Override
+    public String toString()
+    {
+        return "Upstream connections: opened=" + opened.get() //$NON-NLS-1$
+            + " reused=" + reused.get() //$NON-NLS-1$
+            + " idle=" + getIdleCount(); //$NON-NLS-1$
+    }
+
+    /**
+     * Close connections that have been idle too long, if it is time to look.
+     * 
+     * @param now the time, in milliseconds.
+     */
+    private void sweepIfDue(final long now)
+    {
+        long due = nextSweep.get();
+        if (now >= due && nextSweep.compareAndSet(due, now + sweepInterval()))
+        {
+            closeIdle(now); // Only the thread that moved nextSweep on does this
+        }
+    }
+
+    /**
+     * Close every connection that has been idle for longer than the idle time,
+     * and forget web servers left with no idle connections.
+     * 
+     * @param now the time, in milliseconds.
+     */
+    void closeIdle(final long now)
+    {
+        for (Map.Entry<String, LinkedList<UpstreamConnection>> entry : idle.entrySet())
+        {
+            LinkedList<UpstreamConnection> connections = entry.getValue();
+            synchronized (connections)
+            {
+                Iterator<UpstreamConnection> i = connections.iterator();
+                while (i.hasNext())
+                {
+                    UpstreamConnection connection = i.next();
+                    if (now - connection.getIdleSince() >= idleMillis)
+                    {
+                        connection.close();
+                        i.remove();
+                    }
+                }
+                if (connections.isEmpty())
+                {
+                    idle.remove(entry.getKey(), connections); // Under the lock, so release() sees it went
+                }
+            }
+        }
+    }
+
+    /**
+     * @param host a web server's host.
+     * @param port a web server's port.
+     * @return the key idle connections to the web server are filed under.
+     */
+    private static String key(final String host, final int port)
+    {
+        return host + ":" + port; //$NON-NLS-1$
+    }
+
+    /**
+     * @return milliseconds between looking for connections to close.
+     */
+    private long sweepInterval()
+    {
+        return Math.max(1000L, idleMillis / 2);
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright (C) 2001-2010 Richard Dallaway <richard@dallaway.com>
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
  * 
  * This file is part of Sloppy.
  * 
@@ -19,37 +19,80 @@
  */
 package com.dallaway.sloppy;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Records the bandwidth usage for a given client. This class is used by {@link Bottleneck}.
  * <p>
  *
- * Note that if a user does not make a request for 5 seconds, this
- * data is considered stale and is reset.  We do this because
- * we use the timestamp of the first request and total bytes transferred
- * as measures to keep BPS low.  If a user goes away for a few
- * hours, it may suddenly look as if they have had very
- * low bandwidth usage (= bytes / total time).   If the user
- * is doing nothing, bytes is constant and total time increases
- * until they have effectively unlimited bandwidth.  So we reset
- * bytes and total time if the user goes quite for 5 seconds or longer.
-
+ * All of a client's connections share the one {@link TokenBucket}, which is
+ * what limits the client as a whole.  The bucket takes care of idle clients
+ * by itself: a client that goes quiet can send no more than a burst when it
+ * comes back, however long it has been away.
+ * <p>
+ *
+ * Data the client uploads is limited by a second bucket, so that uploads
+ * and downloads do not eat into each other's allowance, as on a real link.
+ * <p>
+ *
+ * When the rates follow a {@link BandwidthTrace}, the client keeps its own
+ * place in the trace, starting from when it first follows it.
+ * <p>
+ *
+ * The usage counts the connections holding it, so that the {@link ClientRegistry}
+ * never drops a client whose connections are still open: if it did, the
+ * client's next connection would get a fresh bucket, and the client twice the limit.
+ * <p>
+ *
+ * This class is safe to use from several handler threads at once.
  */
 public class Usage
 {
 
-	// Time stamp of the first request.   
-	private long startTime = -1; 
+	// Limits the rate at which this client is sent data. 
+	private final TokenBucket bucket;
 
-	// Total bytes exchanged since the start time. 
-	private int totalBytes = 0;  
+	// Limits the rate at which this client may send data. 
+	private final TokenBucket uploadBucket;
+
+	// Total bytes exchanged since this client was first seen. 
+	private final AtomicLong totalBytes = new AtomicLong();
 
 	// The last time mark() was called. 
-	private long lastMark = -1; 
+	private volatile long lastMark;
+
+	// This client's place in the traces its rates follow, if any.
+	private TraceCursor downloadCursor = null;
+	private TraceCursor uploadCursor = null;
+
+	// What the client has actually been given.
+	private final Metrics metrics = new Metrics();
+
+	// Connections holding this usage; -1 once the registry has dropped it.
+	private final AtomicInteger connections = new AtomicInteger();
+
 
-	
-	// Number of milliseconds between requests until we  considerour data to be stale.
-	private static final long MIN_MARK_INTERVAL = 1000L * 5;
+  /**
+   * @param bytesPerSecond the rate to limit the client to.
+   * @param burstBytes the number of bytes the client may be sent without waiting.
+   */
+  public Usage(final int bytesPerSecond, final int burstBytes)
+  {
+    this(bytesPerSecond, 0, burstBytes);
+  }
 
+  /**
+   * @param bytesPerSecond the rate to limit the client to.
+   * @param uploadBytesPerSecond the rate to limit the client's uploads to; zero for no limit.
+   * @param burstBytes the number of bytes the client may send or be sent without waiting.
+   */
+  public Usage(final int bytesPerSecond, final int uploadBytesPerSecond, final int burstBytes)
+  {
+    this.bucket = new TokenBucket(bytesPerSecond, burstBytes);
+    this.uploadBucket = new TokenBucket(uploadBytesPerSecond, burstBytes);
+    this.lastMark = System.currentTimeMillis();
+  }
 
   /**
    * Note that the client has exchanged some data.
@@ -58,7 +101,7 @@ public class Usage
    */
   public void increment(final int n)
   {
-    totalBytes += n;
+    totalBytes.addAndGet(n);
   }
 
   /**
@@ -66,43 +109,118 @@ public class Usage
    */
   public void mark()
   {
+    lastMark = System.currentTimeMillis();
+  }
 
-    long now =  System.currentTimeMillis();
-    if (startTime == -1) 
-    {
-    	startTime = now;
-    }
+  /**
+   * @return The time of the last data exchange event.
+   */
+  public long getLastMark()
+  {
+    return lastMark;
+  }
 
-    if (lastMark == -1)
-    {
-      lastMark = now;
-      return;
-    }
+  /**
+   * @return totalBytes Total bytes exchanged to date.
+   */
+  public long getTotalBytes()
+  {
+    return totalBytes.get();
+  }
 
-    if (now - lastMark >= MIN_MARK_INTERVAL)
+  /**
+   * @return The rate limiter shared by all of this client's connections.
+   */
+  public TokenBucket getBucket()
+  {
+    return bucket;
+  }
+
+  /**
+   * @return The upload rate limiter shared by all of this client's connections.
+   */
+  public TokenBucket getUploadBucket()
+  {
+    return uploadBucket;
+  }
+
+  /**
+   * @return What the client has actually been given, over all its connections.
+   */
+  public Metrics getMetrics()
+  {
+    return metrics;
+  }
+
+  /**
+   * Count a connection as holding this usage.
+   *
+   * @return True if counted; false if the registry has already dropped the usage.
+   */
+  boolean retain()
+  {
+    int n;
+    do
     {
-      // Reset
-      startTime = now;
-      totalBytes = 0;
+      n = connections.get();
+      if (n < 0)
+      {
+        return false;
+      }
     }
+    while (!connections.compareAndSet(n, n + 1));
+    return true;
+  }
 
-    lastMark = now;
+  /**
+   * A connection holding this usage has closed.
+   */
+  void release()
+  {
+    connections.decrementAndGet();
+  }
 
+  /**
+   * Mark the usage as dropped by the registry, if no connection holds it.
+   *
+   * @return True if dropped; false if it is in use.
+   */
+  boolean retire()
+  {
+    return connections.compareAndSet(0, -1);
   }
 
   /**
-   * @return startTime The time of the first data exchange event.
+   * @return The number of open connections holding this usage.
    */
-  public long getStartTime()
+  public int getConnectionCount()
   {
-    return startTime;
+    return Math.max(0, connections.get());
   }
 
   /**
-   * @return totalBytes Total bytes exchanged to date.
+   * @param trace the trace the client's download rate follows.
+   * @return The client's place in the trace, starting now if the client wasn't following it.
    */
-  public int getTotalBytes()
+  public synchronized TraceCursor followDownload(final BandwidthTrace trace)
   {
-    return totalBytes;
+    if (downloadCursor == null || downloadCursor.getTrace() != trace)
+    {
+      downloadCursor = trace.newCursor();
+    }
+    return downloadCursor;
+  }
+
+  /**
+   * @param trace the trace the client's upload rate follows.
+   * @return The client's place in the trace, starting now if the client wasn't following it.
+   */
+  public synchronized TraceCursor followUpload(final BandwidthTrace trace)
+  {
+    if (uploadCursor == null || uploadCursor.getTrace() != trace)
+    {
+      uploadCursor = trace.newCursor();
+    }
+    return uploadCursor;
   }
-}
\ No newline at end of file
+}
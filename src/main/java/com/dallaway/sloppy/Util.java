@@ -19,6 +19,7 @@
  */
 package com.dallaway.sloppy;
 
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.URL;
 
@@ -76,4 +77,96 @@ public class Util
     }
     
     
+    /**
+     * The Host: header should be for the original request not
+     * sloppy.  E.g., if we're proxying to someplace:8080 then then
+     * header should be host:someplace:8080, not localhost:7569/ 
+     * (where Sloppy runs)
+     * 
+     * This is because some application servers use the Host: header
+     * to know what application to call.
+     * 
+     * @param destination the address being proxied to.
+     * @return the value for the Host: header sent to the web server.
+     */
+    public static String hostHeader(final URL destination)
+    {
+        StringBuffer originHost = new StringBuffer();
+        originHost.append(destination.getHost());
+        int port = destination.getPort();
+        if (port != -1)
+        {
+            originHost.append(":").append(port); //$NON-NLS-1$
+        }
+        return originHost.toString();
+    }
+    
+    
+    /**
+     * Change a redirection to the web server into a redirection to Sloppy,
+     * so the browser stays behind the proxy.
+     * 
+     * @param value the value of the Location: header from the web server.
+     * @param destination the address being proxied to.
+     * @param local_port the port Sloppy is listening on.
+     * @return the value to send to the web browser.
+     */
+    public static String rewriteLocation(final String value, final URL destination, final int local_port)
+    {
+        try 
+        {
+            URL location = new URL(value);
+            if (location.getHost().equals(destination.getHost())) 
+            {
+                location = new URL("http", "127.0.0.1", local_port, location.getFile()); //$NON-NLS-1$ //$NON-NLS-2$
+                return location.toString();
+            }
+        }
+        catch (MalformedURLException ex) 
+        {
+            // Ignore - don't bother changing the Location header
+        }
+        return value;
+    }
+    
+    
+    /**
+     * Read a <i>host</i>:<i>port</i> pair, such as the target of a CONNECT request.
+     * IPv6 addresses may be given in square brackets.  The host is not looked up.
+     * 
+     * @param value the text to read.
+     * @param defaultPort the port to use if none is given.
+     * @return the (unresolved) address.
+     * @throws IllegalArgumentException if the value is not a host and port.
+     */
+    public static InetSocketAddress parseHostPort(final String value, final int defaultPort)
+    {
+        String host = value;
+        int port = defaultPort;
+
+        int colon = value.lastIndexOf(':');
+        if (colon != -1 && colon > value.lastIndexOf(']'))
+        {
+            host = value.substring(0, colon);
+            try
+            {
+                port = Integer.parseInt(value.substring(colon + 1));
+            }
+            catch (NumberFormatException nfx)
+            {
+                throw new IllegalArgumentException("Bad port in " + value); //$NON-NLS-1$
+            }
+        }
+        if (host.startsWith("[") && host.endsWith("]")) //$NON-NLS-1$ //$NON-NLS-2$
+        {
+            host = host.substring(1, host.length() - 1);
+        }
+        if (host.length() == 0 || port <= 0 || port > 65535)
+        {
+            throw new IllegalArgumentException("Not a host and port: " + value); //$NON-NLS-1$
+        }
+        return InetSocketAddress.createUnresolved(host, port);
+    }
+    
+    
 }
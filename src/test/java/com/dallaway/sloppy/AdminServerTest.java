@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Properties;
+
+import org.junit.Test;
+
+/**
+ * Test of the commands the admin server answers.
+ */
+public class AdminServerTest
+{
+
+    /**
+     * A POST changes the rates; other requests only show them.
+     */
+    @Test public void changesRates()
+    {
+        Configuration conf = new Configuration();
+        conf.setBytesPerSecond(1000);
+        AdminServer admin = new AdminServer(conf, null);
+
+        String response = admin.respond("POST", "/rate?bytesPerSecond=5000&uploadBytesPerSecond=%32000"); //$NON-NLS-1$ //$NON-NLS-2$
+        assertTrue(response, response.startsWith("HTTP/1.0 200 ")); //$NON-NLS-1$
+        assertEquals(5000, conf.getBytesPerSecond());
+        assertEquals(2000, conf.getUploadBytesPerSecond());
+
+        response = admin.respond("GET", "/rate?bytesPerSecond=1"); //$NON-NLS-1$ //$NON-NLS-2$
+        assertTrue(response, response.startsWith("HTTP/1.0 405 ")); //$NON-NLS-1$
+        assertEquals(5000, conf.getBytesPerSecond());
+    }
+
+    /**
+     * Nothing is changed unless every setting is good.
+     */
+    @Test public void rejectsBadRequests()
+    {
+        Configuration conf = new Configuration();
+        conf.setBytesPerSecond(1000);
+        AdminServer admin = new AdminServer(conf, null);
+
+        String response = admin.respond("POST", "/rate?bytesPerSecond=5000&uploadBytesPerSecond=fast"); //$NON-NLS-1$ //$NON-NLS-2$
+        assertTrue(response, response.startsWith("HTTP/1.0 400 ")); //$NON-NLS-1$
+        assertEquals(1000, conf.getBytesPerSecond());
+
+        response = admin.respond("POST", "/rate?listener=nowhere&bytesPerSecond=5000"); //$NON-NLS-1$ //$NON-NLS-2$
+        assertTrue(response, response.startsWith("HTTP/1.0 404 ")); //$NON-NLS-1$
+        response = admin.respond("GET", "/shutdown"); //$NON-NLS-1$ //$NON-NLS-2$
+        assertTrue(response, response.startsWith("HTTP/1.0 404 ")); //$NON-NLS-1$
+        response = admin.respond("POST", "/listeners?name=x"); //$NON-NLS-1$ //$NON-NLS-2$
+        assertTrue(response, response.startsWith("HTTP/1.0 400 ")); //$NON-NLS-1$
+    }
+
+    /**
+     * The state is shown as JSON; commands that need a running server say so.
+     */
+    @Test public void showsStateAsJson()
+    {
+        Configuration conf = new Configuration();
+        conf.setBytesPerSecond(1000);
+        AdminServer admin = new AdminServer(conf, null);
+
+        String response = admin.respond("GET", "/config"); //$NON-NLS-1$ //$NON-NLS-2$
+        assertTrue(response, response.contains("Content-Type: application/json")); //$NON-NLS-1$
+        assertTrue(response, response.contains("\"listeners\":[{\"name\":null,\"port\":7569,")); //$NON-NLS-1$
+        assertTrue(response, response.contains("\"bytesPerSecond\":1000,")); //$NON-NLS-1$
+
+        response = admin.respond("GET", "/connections"); //$NON-NLS-1$ //$NON-NLS-2$
+        assertTrue(response, response.endsWith("\r\n\r\n[]")); //$NON-NLS-1$
+
+        response = admin.respond("GET", "/metrics"); //$NON-NLS-1$ //$NON-NLS-2$
+        assertTrue(response, response.contains("[{\"name\":null,\"metrics\":{\"connections\":0,\"requests\":0,")); //$NON-NLS-1$
+        assertTrue(response, response.contains("\"firstByteMillis\":{\"count\":0,\"mean\":0.0,")); //$NON-NLS-1$
+
+        response = admin.respond("POST", "/drain"); //$NON-NLS-1$ //$NON-NLS-2$
+        assertTrue(response, response.startsWith("HTTP/1.0 503 ")); //$NON-NLS-1$
+        assertTrue(response, response.endsWith("{\"error\":\"The server isn't running\"}")); //$NON-NLS-1$
+    }
+
+    /**
+     * The server only listens on loopback unless told otherwise.
+     * 
+     * @throws IOException if the test fails unexpectedly.
+     */
+    @Test public void bindsToLoopbackByDefault() throws IOException
+    {
+        Configuration conf = new Configuration();
+        assertEquals("127.0.0.1", conf.getAdminAddress()); //$NON-NLS-1$
+        AdminServer admin = new AdminServer(conf, null);
+        admin.bind();
+        try
+        {
+            assertTrue(admin.getLocalAddress().getAddress().isLoopbackAddress());
+        }
+        finally
+        {
+            admin.close();
+        }
+
+        Properties props = new Properties();
+        props.setProperty("sloppy.adminAddress", " 0.0.0.0 "); //$NON-NLS-1$ //$NON-NLS-2$
+        conf = new Configuration(props);
+        admin = new AdminServer(conf, null);
+        admin.bind();
+        try
+        {
+            assertFalse(admin.getLocalAddress().getAddress().isLoopbackAddress());
+        }
+        finally
+        {
+            admin.close();
+        }
+    }
+
+}
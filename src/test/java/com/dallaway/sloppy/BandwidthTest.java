@@ -70,4 +70,32 @@ public class BandwidthTest
         int expect = (int) Math.round(((512.0f * 1024.0) / 8.0f) * 7.0 / 8.0f);
         assertEquals("Wrong bytes", expect, bw.getBytesPerSecond());
     }
+
+    /**
+     * Test of an asymmetric bandwidth object, and the symmetric default.
+     */
+    @Test
+    public void testUpload()
+    {
+        Bandwidth adsl = new Bandwidth(512.0f, "512k", 128.0f);
+
+        int expect = (int) Math.round(((128.0f * 1024.0) / 8.0f) * 7.0 / 8.0f);
+        assertEquals("Wrong upload bytes", expect, adsl.getUploadBytesPerSecond());
+        assertEquals("Wrong download bytes", new Bandwidth(512.0f).getBytesPerSecond(), adsl.getBytesPerSecond());
+
+        Bandwidth modem = new Bandwidth(28.8f);
+        assertEquals("Not symmetric", modem.getBytesPerSecond(), modem.getUploadBytesPerSecond());
+    }
+
+    /**
+     * Test looking up the bandwidth options by name, as listeners do.
+     */
+    @Test
+    public void testFind()
+    {
+        BandwidthList list = new BandwidthList(0);
+        assertEquals("80k (GPRS)", list.find("gprs").toString());
+        assertEquals("56k", list.find("56K").toString());
+        assertNull(list.find("10Gb"));
+    }
 }
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * Test of reading and following recorded bandwidth traces.
+ */
+public class BandwidthTraceTest
+{
+
+    // Nanoseconds in a millisecond.
+    private static final long MILLIS = 1000000L;
+
+    /**
+     * A CSV trace changes rate and round trip time at each line, and goes 
+     * round again after the last line has lasted as long as the one before.
+     */
+    @Test public void followsCsv() throws IOException
+    {
+        BandwidthTrace trace = BandwidthTrace.open(write("timestamp,kbps,rtt\n0,800,100\n1000,80,300\n# lost signal\n2000,0\n")); //$NON-NLS-1$
+        assertEquals(TraceFormat.CSV, trace.getFormat());
+        assertEquals(3, trace.getPoints());
+        assertEquals(3000, trace.getPeriodMillis());
+
+        TraceCursor cursor = trace.newCursor();
+        long start = System.nanoTime();
+        assertEquals(100000, cursor.getBytesPerSecond());
+        assertEquals(100, cursor.getRoundTripMillis());
+
+        cursor.advance(start + 1500 * MILLIS);
+        assertEquals(10000, cursor.getBytesPerSecond());
+        assertEquals(300, cursor.getRoundTripMillis());
+
+        cursor.advance(start + 2500 * MILLIS);
+        assertEquals(BandwidthTrace.MIN_BYTES_PER_SECOND, cursor.getBytesPerSecond());
+        assertEquals(-1, cursor.getRoundTripMillis());
+
+        // Round again, having missed a good many times round
+        cursor.advance(start + 3000500 * MILLIS);
+        assertEquals(100000, cursor.getBytesPerSecond());
+        cursor.advance(start + 3001500 * MILLIS);
+        assertEquals(10000, cursor.getBytesPerSecond());
+    }
+
+    /**
+     * A Mahimahi trace gives the rate of the deliveries in each window.
+     */
+    @Test public void followsMahimahi() throws IOException
+    {
+        StringBuffer lines = new StringBuffer();
+        for (int t = 1; t <= 100; t++)
+        {
+            lines.append(t).append('\n');
+        }
+        for (int t = 110; t <= 200; t += 10)
+        {
+            lines.append(t).append('\n');
+        }
+        BandwidthTrace trace = BandwidthTrace.open(write(lines.toString()));
+        assertEquals(TraceFormat.MAHIMAHI, trace.getFormat());
+        assertEquals(110, trace.getPoints());
+        assertEquals(200, trace.getPeriodMillis());
+
+        // One packet a millisecond, then one every ten
+        TraceCursor cursor = trace.newCursor();
+        long start = System.nanoTime();
+        assertEquals(99 * 1500 * 10, cursor.getBytesPerSecond());
+        cursor.advance(start + 150 * MILLIS);
+        assertEquals(11 * 1500 * 10, cursor.getBytesPerSecond());
+        cursor.advance(start + 250 * MILLIS);
+        assertEquals(99 * 1500 * 10, cursor.getBytesPerSecond());
+    }
+
+    /**
+     * @param contents The lines of a trace.
+     * @return A temporary file holding them.
+     */
+    private static File write(final String contents) throws IOException
+    {
+        File file = File.createTempFile("trace", ".txt"); //$NON-NLS-1$ //$NON-NLS-2$
+        file.deleteOnExit();
+        FileWriter out = new FileWriter(file);
+        try
+        {
+            out.write(contents);
+        }
+        finally
+        {
+            out.close();
+        }
+        return file;
+    }
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ *
+ * This file is part of Sloppy.
+ *
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * Test of finding where a request body ends.
+ */
+public class BodyScannerTest
+{
+
+    /**
+     * A body with a length ends after that many bytes.
+     *
+     * @throws IOException if the test fails unexpectedly.
+     */
+    @Test public void contentLength() throws IOException
+    {
+        BodyScanner body = new BodyScanner(5);
+        byte[] bytes = "abcdefgh".getBytes("ISO-8859-1"); //$NON-NLS-1$ //$NON-NLS-2$
+
+        assertEquals(3, body.scan(bytes, 0, 3));
+        assertFalse(body.isFinished());
+        assertEquals(2, body.scan(bytes, 3, 5));
+        assertTrue(body.isFinished());
+        assertEquals(0, body.scan(bytes, 5, 3));
+    }
+
+    /**
+     * A chunked body ends after the last chunk and trailer, however it is split.
+     *
+     * @throws IOException if the test fails unexpectedly.
+     */
+    @Test public void chunked() throws IOException
+    {
+        String chunked = "4\r\nWiki\r\nA;name=value\r\npedia in\r\n\r\n0\r\nExpires: never\r\n\r\n"; //$NON-NLS-1$
+        byte[] bytes = (chunked + "GET / HTTP/1.1\r\n\r\n").getBytes("ISO-8859-1"); //$NON-NLS-1$ //$NON-NLS-2$
+
+        BodyScanner whole = new BodyScanner();
+        assertEquals(chunked.length(), whole.scan(bytes, 0, bytes.length));
+        assertTrue(whole.isFinished());
+
+        BodyScanner bytewise = new BodyScanner();
+        int scanned = 0;
+        for (int i = 0; i < bytes.length && !bytewise.isFinished(); i++)
+        {
+            scanned += bytewise.scan(bytes, i, 1);
+        }
+        assertEquals(chunked.length(), scanned);
+    }
+
+    /**
+     * A chunk size that isn't hex is an error.
+     *
+     * @throws IOException if the test fails unexpectedly.
+     */
+    @Test(expected = IOException.class) public void badChunkSize() throws IOException
+    {
+        byte[] bytes = "zz\r\n".getBytes("ISO-8859-1"); //$NON-NLS-1$ //$NON-NLS-2$
+        new BodyScanner().scan(bytes, 0, bytes.length);
+    }
+
+}
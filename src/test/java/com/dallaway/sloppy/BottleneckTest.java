@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Test of the bottleneck's chunk sizes and metrics.
+ */
+public class BottleneckTest
+{
+
+    /**
+     * A chunk is what the tightest limit lets through in one pacing interval,
+     * within the chunk size limits.
+     */
+    @Test public void chunkSizeFollowsRate()
+    {
+        Configuration conf = new Configuration();
+        conf.setPacingIntervalMillis(10);
+        conf.setBytesPerSecond(400000);
+        conf.setUploadBytesPerSecond(0);
+        Bottleneck bottleneck = new Bottleneck("10.0.0.1", conf);
+
+        assertEquals(4000, bottleneck.chunkSize());
+        assertEquals("Unlimited", Bottleneck.MAX_CHUNK_SIZE, bottleneck.uploadChunkSize());
+
+        conf.setConnectionBytesPerSecond(100000);
+        assertEquals("Tightest limit", 1000, bottleneck.chunkSize());
+
+        conf.setBytesPerSecond(1200);
+        assertEquals("Slow links still send something", Bottleneck.MIN_CHUNK_SIZE, bottleneck.chunkSize());
+
+        conf.setBytesPerSecond(100000000);
+        conf.setConnectionBytesPerSecond(0);
+        assertEquals(Bottleneck.MAX_CHUNK_SIZE, bottleneck.chunkSize());
+    }
+
+    /**
+     * The bytes and times of a request are recorded for the client and the listener.
+     */
+    @Test public void recordsMetrics()
+    {
+        Configuration conf = new Configuration();
+        conf.setBytesPerSecond(0);
+        conf.setUploadBytesPerSecond(0);
+        Bottleneck bottleneck = new Bottleneck("10.0.0.1", conf); //$NON-NLS-1$
+        bottleneck.open();
+
+        bottleneck.beginRequest();
+        bottleneck.restrictUploadNanos(100);
+        bottleneck.beginUpstream();
+        bottleneck.endUpstream();
+        bottleneck.restrictNanos(1000);
+        bottleneck.restrictNanos(500);
+        bottleneck.endRequest();
+        bottleneck.endRequest();
+        bottleneck.close();
+
+        Metrics client = conf.getClientRegistry().peek("10.0.0.1").getMetrics(); //$NON-NLS-1$
+        for (Metrics metrics : new Metrics[] { client, conf.getMetrics() })
+        {
+            assertEquals(1, metrics.getConnections());
+            assertEquals(1, metrics.getRequests());
+            assertEquals(1500, metrics.getBytesOut());
+            assertEquals(100, metrics.getBytesIn());
+            assertEquals(1, metrics.getUpstreamWait().snapshot().getCount());
+            assertEquals(3, metrics.getPacingDelay().snapshot().getCount());
+            assertEquals("Only the first chunk", 1, metrics.getFirstByte().snapshot().getCount()); //$NON-NLS-1$
+            assertEquals(1, metrics.getDuration().snapshot().getCount());
+        }
+    }
+
+}
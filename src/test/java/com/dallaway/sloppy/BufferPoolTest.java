@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Test of reusing buffers.
+ */
+public class BufferPoolTest
+{
+
+    /**
+     * A buffer given back is handed out again for the same size class, and counted as a hit.
+     */
+    @Test public void reusesReleasedBuffers()
+    {
+        BufferPool pool = new BufferPool(4, false);
+
+        ByteBuffer first = pool.acquire(3000);
+        assertEquals(4096, first.capacity());
+        assertFalse(first.isDirect());
+        assertEquals(1, pool.getOutstandingCount());
+
+        first.put((byte) 1);
+        pool.release(first);
+        assertEquals(0, pool.getOutstandingCount());
+
+        ByteBuffer second = pool.acquire(4096);
+        assertSame(first, second);
+        assertEquals("Buffer should be cleared", 0, second.position());
+        assertEquals(1, pool.getHitCount());
+        assertEquals(1, pool.getMissCount());
+
+        assertNotSame(first, pool.acquire(2048));
+    }
+
+    /**
+     * Each size class holds no more than its maximum, and huge buffers are never kept.
+     */
+    @Test public void isBounded()
+    {
+        BufferPool pool = new BufferPool(1, true);
+
+        ByteBuffer a = pool.acquire(100);
+        ByteBuffer b = pool.acquire(100);
+        assertTrue(a.isDirect());
+        assertEquals(BufferPool.MIN_SIZE, a.capacity());
+        pool.release(a);
+        pool.release(b);
+        assertEquals(1, pool.getFreeCount());
+
+        ByteBuffer huge = pool.acquire(BufferPool.MAX_SIZE + 1);
+        assertEquals(BufferPool.MAX_SIZE + 1, huge.capacity());
+        pool.release(huge);
+        assertEquals(1, pool.getFreeCount());
+        assertEquals(0, pool.getOutstandingCount());
+    }
+
+}
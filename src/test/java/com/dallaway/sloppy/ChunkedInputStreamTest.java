@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+/**
+ * Test of reading chunked HTTP bodies.
+ */
+public class ChunkedInputStreamTest
+{
+
+    /**
+     * The chunks are joined together, and the stream is left at the start
+     * of the next request.
+     * 
+     * @throws IOException if the test fails unexpectedly.
+     */
+    @Test public void canReadChunksAndStopAtTheEnd() throws IOException
+    {
+        String input =
+            "5\r\nHello\r\n" +
+            "7;name=value\r\n, world\r\n" +
+            "0\r\n" +
+            "Trailer: ignored\r\n" +
+            "\r\n" +
+            "GET / HTTP/1.1\r\n";
+
+        InputStream in = new ByteArrayInputStream(input.getBytes("ISO-8859-1"));
+        assertEquals("Hello, world", readAll(new ChunkedInputStream(in)));
+        assertEquals("GET / HTTP/1.1", Headers.readLine(in));
+    }
+
+    /**
+     * A body truncated part way through a chunk is an error, not a short body.
+     * 
+     * @throws IOException when the test passes.
+     */
+    @Test(expected=IOException.class) public void truncatedChunkIsAnError() throws IOException
+    {
+        InputStream in = new ByteArrayInputStream("a\r\nshort".getBytes("ISO-8859-1"));
+        readAll(new ChunkedInputStream(in));
+    }
+
+    /**
+     * @param in the stream to read.
+     * @return everything in the stream, as ISO-8859-1 text.
+     * @throws IOException if the stream could not be read.
+     */
+    private static String readAll(final InputStream in) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[3];
+        int n;
+        while ((n = in.read(buffer)) != -1)
+        {
+            out.write(buffer, 0, n);
+        }
+        return out.toString("ISO-8859-1");
+    }
+
+}
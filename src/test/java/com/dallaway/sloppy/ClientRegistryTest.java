@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test of the registry of client usage.
+ */
+public class ClientRegistryTest
+{
+
+    /**
+     * Connections from the same client share a usage; reset forgets it.
+     */
+    @Test public void sameClientSharesUsageUntilReset()
+    {
+        ClientRegistry registry = new ClientRegistry(60000L, 100);
+        Usage usage = registry.get("10.0.0.1", 1000, 100);
+
+        assertSame(usage, registry.get("10.0.0.1", 1000, 100));
+        assertNotSame(usage, registry.get("10.0.0.2", 1000, 100));
+        assertEquals(2, registry.snapshot().size());
+
+        assertTrue(registry.reset("10.0.0.1"));
+        assertFalse(registry.reset("10.0.0.1"));
+        assertNull(registry.peek("10.0.0.1"));
+        assertNotSame(usage, registry.get("10.0.0.1", 1000, 100));
+    }
+
+    /**
+     * Clients idle for longer than the idle time are dropped.
+     */
+    @Test public void idleClientsAreEvicted()
+    {
+        ClientRegistry registry = new ClientRegistry(1000L, 100);
+        registry.get("10.0.0.1", 1000, 100);
+
+        registry.evictIdle(System.currentTimeMillis());
+        assertEquals(1, registry.size());
+
+        registry.evictIdle(System.currentTimeMillis() + 2000L);
+        assertEquals(0, registry.size());
+    }
+
+    /**
+     * A client with a connection open is never dropped, so its next connection
+     * shares the same limit; once the connection closes, it can be dropped.
+     */
+    @Test public void clientsInUseAreNotEvicted()
+    {
+        ClientRegistry registry = new ClientRegistry(1000L, 2);
+        Usage usage = registry.open("10.0.0.1", 1000, 100);
+        assertEquals(1, usage.getConnectionCount());
+
+        registry.evictIdle(System.currentTimeMillis() + 2000L);
+        for (int i = 0; i < 10; i++)
+        {
+            registry.get("10.0.1." + i, 1000, 100);
+        }
+        assertSame(usage, registry.peek("10.0.0.1"));
+        assertSame(usage, registry.open("10.0.0.1", 1000, 100));
+        assertEquals(2, usage.getConnectionCount());
+
+        usage.release();
+        usage.release();
+        registry.evictIdle(System.currentTimeMillis() + 2000L);
+        assertNull(registry.peek("10.0.0.1"));
+        assertNotSame(usage, registry.open("10.0.0.1", 1000, 100));
+    }
+
+    /**
+     * The registry never grows beyond its maximum size.
+     */
+    @Test public void sizeIsBounded()
+    {
+        ClientRegistry registry = new ClientRegistry(60000L, 10);
+        for (int i = 0; i < 100; i++)
+        {
+            registry.get("10.0.0." + i, 1000, 100);
+            assertTrue(registry.size() <= 10);
+        }
+    }
+
+}
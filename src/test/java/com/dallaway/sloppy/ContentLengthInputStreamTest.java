@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+/**
+ * Test of reading HTTP bodies framed by a Content-Length.
+ */
+public class ContentLengthInputStreamTest
+{
+
+    /**
+     * Every byte value comes through unchanged, and the stream is left at
+     * the start of the next request.
+     * 
+     * @throws IOException if the test fails unexpectedly.
+     */
+    @Test public void canReadBinaryBodyAndStopAtTheEnd() throws IOException
+    {
+        byte[] body = new byte[256];
+        for (int i = 0; i < body.length; i++)
+        {
+            body[i] = (byte) i;
+        }
+        byte[] next = "GET / HTTP/1.1\r\n".getBytes("ISO-8859-1");
+
+        byte[] input = new byte[body.length + next.length];
+        System.arraycopy(body, 0, input, 0, body.length);
+        System.arraycopy(next, 0, input, body.length, next.length);
+
+        InputStream in = new ByteArrayInputStream(input);
+        assertArrayEquals(body, readAll(new ContentLengthInputStream(in, body.length)));
+        assertEquals("GET / HTTP/1.1", Headers.readLine(in));
+    }
+
+    /**
+     * A body shorter than its Content-Length is an error, not a short body.
+     * 
+     * @throws IOException when the test passes.
+     */
+    @Test(expected=IOException.class) public void truncatedBodyIsAnError() throws IOException
+    {
+        InputStream in = new ByteArrayInputStream("short".getBytes("ISO-8859-1"));
+        readAll(new ContentLengthInputStream(in, 10));
+    }
+
+    /**
+     * @param in the stream to read.
+     * @return everything in the stream.
+     * @throws IOException if the stream could not be read.
+     */
+    private static byte[] readAll(final InputStream in) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[7];
+        int n;
+        while ((n = in.read(buffer)) != -1)
+        {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
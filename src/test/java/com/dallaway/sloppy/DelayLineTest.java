@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Test of holding chunks back for the latency of a link.
+ */
+public class DelayLineTest
+{
+
+    // A millisecond, in nanoseconds.
+    private static final long MS = 1000000L;
+
+    /**
+     * A flowing stream is delayed once, not once per chunk: each chunk is
+     * admitted as of when the one before was, and leaves a delay after that.
+     */
+    @Test public void delaysButDoesNotSlowAStream()
+    {
+        DelayLine line = new DelayLine();
+        long now = 1000 * MS;
+
+        // The first chunk goes straight through the limit, and is held for 100ms
+        assertEquals(now, line.virtualNow(now));
+        long release = line.release(now, now, 100 * MS, 0);
+        assertEquals(now + 100 * MS, release);
+
+        // Coming back as it leaves, the sender is treated as if it hadn't waited
+        now = release;
+        assertEquals(release - 100 * MS, line.virtualNow(now));
+
+        // A chunk admitted 10ms after the first leaves 10ms after it
+        assertEquals(release + 10 * MS, line.release(release - 90 * MS, now, 100 * MS, 0));
+    }
+
+    /**
+     * Chunks never overtake one another, and once the line runs dry the next chunk pays the full delay.
+     */
+    @Test public void keepsOrderAndNoticesIdleness()
+    {
+        DelayLine line = new DelayLine();
+        long now = 1000 * MS;
+        long first = line.release(now, now, 100 * MS, 0);
+
+        // A shorter delay can't bring the next chunk out ahead of the first
+        assertEquals(first, line.release(now + MS, now + MS, 20 * MS, 0));
+
+        // Come back long after, and there's no lag to make up
+        now = first + DelayLine.IDLE_NANOS + MS;
+        assertEquals(now, line.virtualNow(now));
+
+        line.idle();
+        assertEquals(0, line.getLag());
+    }
+
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ *
+ * This file is part of Sloppy.
+ *
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Test of the executors that run handlers in each execution mode.
+ */
+public class HandlerExecutorsTest
+{
+
+    /**
+     * Platform threads are named for handlers.
+     *
+     * @throws Exception if the test fails unexpectedly.
+     */
+    @Test public void platformRunsHandlers() throws Exception
+    {
+        Configuration conf = new Configuration();
+        conf.setExecutionMode(ExecutionMode.PLATFORM);
+        ExecutorService executor = HandlerExecutors.create(conf);
+
+        Thread thread = runOn(executor);
+        assertTrue(thread.getName(), thread.getName().startsWith("sloppy-handler-")); //$NON-NLS-1$
+        assertFalse(isVirtual(thread));
+    }
+
+    /**
+     * The pool is a handler pool with the configured number of threads.
+     *
+     * @throws Exception if the test fails unexpectedly.
+     */
+    @Test public void poolRunsHandlers() throws Exception
+    {
+        Configuration conf = new Configuration();
+        conf.setExecutionMode(ExecutionMode.POOL);
+        conf.setWorkerThreads(3);
+        ExecutorService executor = HandlerExecutors.create(conf);
+
+        assertTrue(executor instanceof HandlerPool);
+        assertEquals(3, ((HandlerPool) executor).getMaximumPoolSize());
+        Thread thread = runOn(executor);
+        assertTrue(thread.getName(), thread.getName().startsWith("sloppy-handler-")); //$NON-NLS-1$
+    }
+
+    /**
+     * Where the JDK has virtual threads, handlers run on them; otherwise on platform threads.
+     *
+     * @throws Exception if the test fails unexpectedly.
+     */
+    @Test public void virtualRunsHandlers() throws Exception
+    {
+        Configuration conf = new Configuration();
+        conf.setExecutionMode(ExecutionMode.VIRTUAL);
+        ExecutorService executor = HandlerExecutors.create(conf);
+
+        Thread thread = runOn(executor);
+        assertEquals(hasVirtualThreads(), isVirtual(thread));
+    }
+
+    /**
+     * A JDK without virtual threads falls back to platform threads, and says so.
+     *
+     * @throws Exception if the test fails unexpectedly.
+     */
+    @Test public void virtualFallsBackWithoutVirtualThreads() throws Exception
+    {
+        final List<String> notices = new ArrayList<String>();
+        Configuration conf = new Configuration();
+        conf.setUserInterface(new ConsoleLogger()
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public void notice(final String message)
+            {
+                notices.add(message);
+            }
+        });
+        conf.setExecutionMode(ExecutionMode.VIRTUAL);
+        ExecutorService executor = HandlerExecutors.create(conf, "noSuchVirtualThreadExecutor"); //$NON-NLS-1$
+
+        Thread thread = runOn(executor);
+        assertFalse(isVirtual(thread));
+        assertTrue(thread.getName(), thread.getName().startsWith("sloppy-handler-")); //$NON-NLS-1$
+        assertEquals(1, notices.size());
+        assertTrue(notices.get(0), notices.get(0).startsWith("Virtual threads are not available")); //$NON-NLS-1$
+    }
+
+    /**
+     * Run a handler, and shut the executor down.
+     *
+     * @param executor the executor to run on.
+     * @return the thread the handler ran on.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private static Thread runOn(final ExecutorService executor) throws InterruptedException
+    {
+        final AtomicReference<Thread> ranOn = new AtomicReference<Thread>();
+        final CountDownLatch ran = new CountDownLatch(1);
+        executor.execute(new Runnable()
+        {
+            public void run()
+            {
+                ranOn.set(Thread.currentThread());
+                ran.countDown();
+            }
+        });
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        return ranOn.get();
+    }
+
+    /**
+     * @return true if this JDK has virtual threads.
+     */
+    private static boolean hasVirtualThreads()
+    {
+        try
+        {
+            Thread.class.getMethod("isVirtual"); //$NON-NLS-1$
+            return true;
+        }
+        catch (NoSuchMethodException nsmx)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * @param thread a thread.
+     * @return true if the thread is virtual.
+     * @throws Exception if the JDK's method could not be called.
+     */
+    private static boolean isVirtual(final Thread thread) throws Exception
+    {
+        if (!hasVirtualThreads())
+        {
+            return false;
+        }
+        Method isVirtual = Thread.class.getMethod("isVirtual"); //$NON-NLS-1$
+        return ((Boolean) isVirtual.invoke(thread)).booleanValue();
+    }
+
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ *
+ * This file is part of Sloppy.
+ *
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of the bounded pool of handler threads.
+ */
+public class HandlerPoolTest
+{
+
+    // Accepts the connections of the browsers that are refused.
+    private ServerSocket server;
+
+    // Holds the pool's worker busy until released.
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    /**
+     * @throws IOException if the server socket could not be opened.
+     */
+    @Before public void listen() throws IOException
+    {
+        server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1")); //$NON-NLS-1$
+    }
+
+    /**
+     * @throws IOException if the server socket could not be closed.
+     */
+    @After public void close() throws IOException
+    {
+        release.countDown();
+        server.close();
+    }
+
+    /**
+     * With the worker busy and the queue full, the next connection gets a 503
+     * at once, not reset by the request it had sent, and the counters say what
+     * happened.
+     *
+     * @throws Exception if the test fails unexpectedly.
+     */
+    @Test(timeout = 10000) public void unavailableRefusesWhenFull() throws Exception
+    {
+        CountDownLatch ran = new CountDownLatch(1);
+        HandlerPool pool = new HandlerPool(1, 1, RejectionPolicy.UNAVAILABLE, Executors.defaultThreadFactory());
+        pool.execute(blocker());
+        pool.execute(counter(ran));
+        assertEquals(1, pool.getQueueDepth());
+
+        Socket browser = new Socket("127.0.0.1", server.getLocalPort()); //$NON-NLS-1$
+        browser.setSoTimeout(5000);
+        browser.getOutputStream().write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("ISO-8859-1")); //$NON-NLS-1$ //$NON-NLS-2$
+        Socket accepted = server.accept();
+        Thread.sleep(50); // Let the request arrive, unread
+        pool.execute(new SlowProxyThread(accepted, new Configuration()));
+        String response = NioExchangeTest.readAll(browser.getInputStream());
+        browser.close();
+
+        assertTrue(response, response.startsWith("HTTP/1.0 503 Service Unavailable\r\n")); //$NON-NLS-1$
+        assertEquals(3, pool.getSubmittedCount());
+        assertEquals(1, pool.getRejectedCount());
+        assertEquals(1, pool.getPeakQueueDepth());
+
+        Thread.sleep(20);
+        release.countDown();
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertEquals(0, pool.getQueueDepth());
+        assertTrue(pool.getMaxWaitMillis() >= 20.0);
+        assertTrue(pool.getMeanWaitMillis() > 0.0);
+        pool.shutdown();
+    }
+
+    /**
+     * With the worker busy and the queue full, the accepting thread waits, and
+     * the connection is queued once there is room.
+     *
+     * @throws Exception if the test fails unexpectedly.
+     */
+    @Test(timeout = 10000) public void backlogWaitsForRoom() throws Exception
+    {
+        final CountDownLatch ran = new CountDownLatch(2);
+        final HandlerPool pool = new HandlerPool(1, 1, RejectionPolicy.BACKLOG, Executors.defaultThreadFactory(), 5000);
+        pool.execute(blocker());
+        pool.execute(counter(ran));
+
+        Thread accepting = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                pool.execute(counter(ran));
+            }
+        };
+        accepting.start();
+        accepting.join(100);
+        assertTrue(accepting.isAlive()); // Waiting for room
+
+        release.countDown();
+        accepting.join(5000);
+        assertFalse(accepting.isAlive());
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertEquals(3, pool.getSubmittedCount());
+        assertEquals(0, pool.getRejectedCount());
+        pool.shutdown();
+    }
+
+    /**
+     * A connection that waits too long for room is refused after all.
+     *
+     * @throws Exception if the test fails unexpectedly.
+     */
+    @Test(timeout = 10000) public void backlogRefusesAfterWaiting() throws Exception
+    {
+        HandlerPool pool = new HandlerPool(1, 1, RejectionPolicy.BACKLOG, Executors.defaultThreadFactory(), 50);
+        pool.execute(blocker());
+        pool.execute(counter(new CountDownLatch(1)));
+
+        Socket browser = new Socket("127.0.0.1", server.getLocalPort()); //$NON-NLS-1$
+        browser.setSoTimeout(5000);
+        long start = System.nanoTime();
+        pool.execute(new SlowProxyThread(server.accept(), new Configuration()));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+
+        String response = NioExchangeTest.readAll(browser.getInputStream());
+        browser.close();
+        assertTrue(response, response.startsWith("HTTP/1.0 503 Service Unavailable\r\n")); //$NON-NLS-1$
+        assertEquals(1, pool.getRejectedCount());
+        pool.shutdown();
+    }
+
+    /**
+     * @return a handler that keeps its thread until released.
+     */
+    private Runnable blocker()
+    {
+        return new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    release.await();
+                }
+                catch (InterruptedException ix)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+
+    /**
+     * @param ran counted down when the handler runs.
+     * @return a handler that notes it has run.
+     */
+    private static Runnable counter(final CountDownLatch ran)
+    {
+        return new Runnable()
+        {
+            public void run()
+            {
+                ran.countDown();
+            }
+        };
+    }
+
+}
@@ -20,10 +20,13 @@
 package com.dallaway.sloppy;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.InputStream;
 
 import org.junit.Test;
 
@@ -35,49 +38,32 @@ public class HeadersTest
 {
     
     /**
-     * Ensure we can read in headers. 
+     * Ensure we can read lines ending in CRLF or LF, without reading past them. 
      * 
      * @throws IOException if the test fails unexpectedly.
      */
-    @Test public void canReadHeaders() throws IOException
+    @Test public void canReadLines() throws IOException
     {
-        String input = 
-            "Host: someplace.org\n" +
-            "Foo: bar\n" +
-            "Bah: ";
-        
-        StringReader r = new StringReader(input);
-        
-        final Headers headers = Headers.readFrom(new BufferedReader(r));
-        assertEquals(3, headers.size());
-        assertEquals("someplace.org", headers.get("Host"));
-        assertEquals("bar", headers.get("Foo"));
-        assertEquals("", headers.get("Bah"));
-        
-        
+        InputStream in = new ByteArrayInputStream("Host: someplace.org\r\nFoo: bar\n\r\nbody".getBytes("ISO-8859-1"));
         
+        assertEquals("Host: someplace.org", Headers.readLine(in));
+        assertEquals("Foo: bar", Headers.readLine(in));
+        assertEquals("", Headers.readLine(in));
+        assertEquals((int) 'b', in.read());
+        assertEquals("ody", Headers.readLine(in));
+        assertNull(Headers.readLine(in));
     }
     
     /**
-     * Test of writing the right headers down a HttpURLConnection.
+     * Headers describing the browser's connection to us are not passed on, whatever their case.
      */
-    @Test public void canWriteHeaders()
+    @Test public void knowsHopByHopHeaders()
     {
-        Headers headers = new Headers();
-        headers.set("Accept", "*/*");
-        headers.set("Hello", "How are you?");
-        
-        // These headers are not set by our code.
-        headers.set("Host", "Ignore me"); // Managed by HttpURLConnection
-        headers.set("Connection", "Ignore me too"); // We don't do keep-alive
-        
-        
-        MockHttpUrlConnection con = new MockHttpUrlConnection();
-        headers.writeTo(con);
-        
-        assertEquals(2, con.getNumRequestProperties());
-        assertEquals("*/*", con.getRequestProperty("Accept"));
-        assertEquals("How are you?", con.getRequestProperty("Hello"));
+        assertTrue(Headers.isHopByHop("Connection"));
+        assertTrue(Headers.isHopByHop("keep-alive"));
+        assertTrue(Headers.isHopByHop("TRANSFER-ENCODING"));
+        assertFalse(Headers.isHopByHop("Host"));
+        assertFalse(Headers.isHopByHop("Cookie"));
     }
 
 }
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test of the histogram's buckets and percentiles.
+ */
+public class HistogramTest
+{
+
+    /**
+     * Every value is counted in a bucket no wider than one part in 
+     * SUB_BUCKETS of the value, and the buckets follow on from each other.
+     */
+    @Test public void bucketsKeepValuesToWithinOnePartInEight()
+    {
+        for (long value = 0; value < 100000; value++)
+        {
+            long highest = Histogram.highestValueIn(Histogram.bucketOf(value));
+            assertTrue(value + " counted in bucket up to " + highest, //$NON-NLS-1$
+                highest >= value && highest - value <= value / Histogram.SUB_BUCKETS);
+        }
+        for (int bucket = 1; bucket <= Histogram.bucketOf(Histogram.MAX_VALUE); bucket++)
+        {
+            assertEquals(bucket, Histogram.bucketOf(Histogram.highestValueIn(bucket - 1) + 1));
+        }
+        assertEquals(Histogram.MAX_VALUE, Histogram.highestValueIn(Histogram.bucketOf(Histogram.MAX_VALUE)));
+    }
+
+    /**
+     * Percentiles come from the buckets, but are never more than the largest value.
+     */
+    @Test public void givesPercentiles()
+    {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.snapshot().getValueAtPercentile(99));
+
+        for (int value = 1; value <= 1000; value++)
+        {
+            histogram.record(value);
+        }
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1002, snapshot.getCount());
+        assertEquals(0, snapshot.getValueAtPercentile(0));
+        assertEquals(511, snapshot.getValueAtPercentile(50));
+        assertEquals(1023, snapshot.getValueAtPercentile(99));
+        assertEquals(Histogram.MAX_VALUE, snapshot.getMax());
+        assertEquals(Histogram.MAX_VALUE, snapshot.getValueAtPercentile(100));
+    }
+
+    /**
+     * Threads recording at once lose nothing.
+     */
+    @Test public void countsFromManyThreads() throws InterruptedException
+    {
+        final Histogram histogram = new Histogram();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++)
+        {
+            threads[i] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for (int n = 0; n < 10000; n++)
+                    {
+                        histogram.record(n % 100);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(80000, snapshot.getCount());
+        assertEquals(8 * 100 * 4950, snapshot.getSum());
+        assertEquals(99, snapshot.getMax());
+    }
+
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Test of writing JSON.
+ */
+public class JsonWriterTest
+{
+
+    /**
+     * Commas go between items, however deeply nested, and strings are escaped.
+     */
+    @Test public void writesNestedValues()
+    {
+        JsonWriter json = new JsonWriter().beginObject();
+        json.name("name").value("say \"hi\"\n\u0001"); //$NON-NLS-1$ //$NON-NLS-2$
+        json.name("list").beginArray().value(1).beginObject().endObject().beginArray().endArray().value(true).endArray(); //$NON-NLS-1$
+        json.name("none").value((String) null); //$NON-NLS-1$
+        json.name("rate").value(1.5).name("bad").value(Double.NaN).endObject(); //$NON-NLS-1$ //$NON-NLS-2$
+
+        assertEquals("{\"name\":\"say \\\"hi\\\"\\n\\u0001\",\"list\":[1,{},[],true],\"none\":null,\"rate\":1.5,\"bad\":null}", //$NON-NLS-1$
+            json.toString());
+    }
+
+}
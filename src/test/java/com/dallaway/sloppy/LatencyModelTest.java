@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Test of the round trip times drawn from a latency model.
+ */
+public class LatencyModelTest
+{
+
+    // A millisecond, in nanoseconds.
+    private static final long MS = 1000000L;
+
+    /**
+     * Round trips stay within the jitter of the base, and a crossing takes half of one.
+     */
+    @Test public void samplesWithinTheJitter()
+    {
+        Random random = new Random(42);
+
+        LatencyModel uniform = new LatencyModel(200, 50, JitterDistribution.UNIFORM);
+        LatencyModel normal = new LatencyModel(600, 150, JitterDistribution.NORMAL);
+        for (int i = 0; i < 1000; i++)
+        {
+            long rtt = uniform.roundTripNanos(random);
+            assertTrue(rtt >= 150 * MS && rtt <= 250 * MS);
+
+            rtt = normal.roundTripNanos(random);
+            assertTrue(rtt >= 150 * MS && rtt <= 1050 * MS);
+        }
+
+        LatencyModel fixed = new LatencyModel(300, 0, JitterDistribution.UNIFORM);
+        assertEquals(150 * MS, fixed.oneWayNanos(random));
+        assertTrue(fixed.hasDelay());
+        assertFalse(LatencyModel.NONE.hasDelay());
+    }
+
+}
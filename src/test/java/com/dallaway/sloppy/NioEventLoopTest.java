@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ *
+ * This file is part of Sloppy.
+ *
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Test of the selector thread of the NIO engine.
+ */
+public class NioEventLoopTest
+{
+
+    /**
+     * A scheduled task runs on the loop's own thread, after its delay.
+     *
+     * @throws Exception if the test fails unexpectedly.
+     */
+    @Test(timeout = 10000) public void runsScheduledTasksOnLoopThread() throws Exception
+    {
+        NioEventLoop loop = new NioEventLoop(new Configuration());
+        Thread thread = new Thread(loop, "loop"); //$NON-NLS-1$
+        thread.start();
+
+        final CountDownLatch ran = new CountDownLatch(1);
+        final AtomicReference<Thread> ranOn = new AtomicReference<Thread>();
+        long start = System.nanoTime();
+        loop.schedule(null, new Runnable()
+        {
+            public void run()
+            {
+                ranOn.set(Thread.currentThread());
+                ran.countDown();
+            }
+        }, TimeUnit.MILLISECONDS.toNanos(50));
+
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(thread, ranOn.get());
+
+        loop.stop();
+        thread.join(5000);
+        assertFalse(thread.isAlive());
+    }
+
+    /**
+     * A task that fails closes the handler it belongs to, and the loop carries
+     * on with the rest of its work.
+     *
+     * @throws Exception if the test fails unexpectedly.
+     */
+    @Test(timeout = 10000) public void failedTaskClosesOnlyItsHandler() throws Exception
+    {
+        Configuration conf = new Configuration();
+        conf.setUserInterface(new ConsoleLogger()
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public void error(final String message, final Exception exception)
+            {
+                // Expected
+            }
+        });
+        NioEventLoop loop = new NioEventLoop(conf);
+        Thread thread = new Thread(loop, "loop"); //$NON-NLS-1$
+        thread.start();
+
+        final CountDownLatch closed = new CountDownLatch(1);
+        NioHandler handler = new NioHandler()
+        {
+            public void start()
+            {
+                // Nothing to start
+            }
+
+            public void onReady(final SelectionKey key)
+            {
+                // No channels
+            }
+
+            public void close()
+            {
+                closed.countDown();
+            }
+        };
+        loop.execute(handler, new Runnable()
+        {
+            public void run()
+            {
+                throw new IllegalStateException("Bug"); //$NON-NLS-1$
+            }
+        });
+        assertTrue(closed.await(5, TimeUnit.SECONDS));
+
+        final CountDownLatch ran = new CountDownLatch(1);
+        loop.execute(null, new Runnable()
+        {
+            public void run()
+            {
+                ran.countDown();
+            }
+        });
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertTrue(thread.isAlive());
+
+        loop.stop();
+        thread.join(5000);
+    }
+
+    /**
+     * A loop for a single connection stops once the connection has closed,
+     * here because the browser went away without sending a request.
+     *
+     * @throws Exception if the test fails unexpectedly.
+     */
+    @Test(timeout = 10000) public void singleLoopStopsWhenConnectionCloses() throws Exception
+    {
+        Configuration conf = new Configuration();
+        conf.setDestination(new URL("http://127.0.0.1:1/")); //$NON-NLS-1$
+        NioEventLoop loop = new NioEventLoop(conf, true);
+        Thread thread = new Thread(loop, "single"); //$NON-NLS-1$
+        thread.start();
+
+        ServerSocketChannel listener = ServerSocketChannel.open();
+        try
+        {
+            listener.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0)); //$NON-NLS-1$
+            Socket browser = new Socket("127.0.0.1", listener.socket().getLocalPort()); //$NON-NLS-1$
+            loop.register(listener.accept(), conf);
+            browser.close();
+
+            thread.join(5000);
+            assertFalse(thread.isAlive());
+        }
+        finally
+        {
+            listener.close();
+        }
+    }
+
+    /**
+     * Stopping a loop closes the connections it is still handling.
+     *
+     * @throws Exception if the test fails unexpectedly.
+     */
+    @Test(timeout = 10000) public void stopClosesConnections() throws Exception
+    {
+        Configuration conf = new Configuration();
+        conf.setDestination(new URL("http://127.0.0.1:1/")); //$NON-NLS-1$
+        NioEventLoop loop = new NioEventLoop(conf);
+        Thread thread = new Thread(loop, "loop"); //$NON-NLS-1$
+        thread.start();
+
+        ServerSocketChannel listener = ServerSocketChannel.open();
+        try
+        {
+            listener.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0)); //$NON-NLS-1$
+            Socket browser = new Socket("127.0.0.1", listener.socket().getLocalPort()); //$NON-NLS-1$
+            browser.setSoTimeout(5000);
+            loop.register(listener.accept(), conf);
+
+            // The browser is waiting to send its request when the loop stops
+            Thread.sleep(100);
+            loop.stop();
+            thread.join(5000);
+
+            assertFalse(thread.isAlive());
+            assertEquals(-1, browser.getInputStream().read());
+            browser.close();
+        }
+        finally
+        {
+            listener.close();
+        }
+    }
+
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ *
+ * This file is part of Sloppy.
+ *
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of relaying requests and responses through the NIO engine.
+ */
+public class NioExchangeTest
+{
+
+    // The response the web server gives to every request.
+    private static final String RESPONSE =
+        "HTTP/1.1 200 OK\r\n" + //$NON-NLS-1$
+        "Content-Length: 5\r\n" + //$NON-NLS-1$
+        "Connection: keep-alive\r\n" + //$NON-NLS-1$
+        "Keep-Alive: timeout=5\r\n\r\n" + //$NON-NLS-1$
+        "hello"; //$NON-NLS-1$
+
+    // Stands in for a web server.
+    private WebServer server;
+
+    // Where browser connections are accepted, to hand to the loop.
+    private ServerSocketChannel listener;
+
+    // The settings the loop proxies with.
+    private Configuration conf;
+
+    // The loop under test.
+    private NioEventLoop loop;
+
+    /**
+     * @throws IOException if the sockets or selector could not be opened.
+     */
+    @Before public void start() throws IOException
+    {
+        server = new WebServer();
+        new Thread(server).start();
+
+        listener = ServerSocketChannel.open();
+        listener.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0)); //$NON-NLS-1$
+
+        conf = new Configuration();
+        conf.setBytesPerSecond(0);
+        conf.setDestination(new URL("http://127.0.0.1:" + server.getPort() + "/")); //$NON-NLS-1$ //$NON-NLS-2$
+        loop = new NioEventLoop(conf);
+        new Thread(loop).start();
+    }
+
+    /**
+     * @throws IOException if the sockets could not be closed.
+     */
+    @After public void stop() throws IOException
+    {
+        loop.stop();
+        listener.close();
+        server.close();
+    }
+
+    /**
+     * A GET goes to the web server with the Host: header pointing at it, and
+     * the response comes back telling the browser the connection will close.
+     *
+     * @throws Exception if the test fails unexpectedly.
+     */
+    @Test(timeout = 10000) public void relaysGet() throws Exception
+    {
+        String response = exchange("GET /page HTTP/1.1\r\nHost: localhost:7569\r\n\r\n"); //$NON-NLS-1$
+
+        String request = server.getRequest();
+        assertTrue(request, request.startsWith("GET /page HTTP/1.1\r\n")); //$NON-NLS-1$
+        assertTrue(request, request.contains("Host: 127.0.0.1:" + server.getPort() + "\r\n")); //$NON-NLS-1$ //$NON-NLS-2$
+        assertTrue(request, request.endsWith("Connection: close\r\n\r\n")); //$NON-NLS-1$
+
+        assertTrue(response, response.startsWith("HTTP/1.1 200 OK\r\n")); //$NON-NLS-1$
+        assertTrue(response, response.endsWith("Connection: close\r\n\r\nhello")); //$NON-NLS-1$
+        assertFalse(response, response.contains("keep-alive")); //$NON-NLS-1$
+        assertFalse(response, response.contains("Keep-Alive")); //$NON-NLS-1$
+    }
+
+    /**
+     * A request body goes on to the web server, and what a keep-alive browser
+     * sends after it is not mistaken for more of the body.
+     *
+     * @throws Exception if the test fails unexpectedly.
+     */
+    @Test(timeout = 10000) public void relaysBodyAndNoMore() throws Exception
+    {
+        String response = exchange(
+            "POST /form HTTP/1.1\r\nContent-Length: 7\r\n\r\n" + //$NON-NLS-1$
+            "a=b&c=d" + //$NON-NLS-1$
+            "GET /next HTTP/1.1\r\n\r\n"); //$NON-NLS-1$
+
+        String request = server.getRequest();
+        assertTrue(request, request.startsWith("POST /form HTTP/1.1\r\n")); //$NON-NLS-1$
+        assertTrue(request, request.endsWith("\r\n\r\na=b&c=d")); //$NON-NLS-1$
+        assertTrue(response, response.endsWith("Connection: close\r\n\r\nhello")); //$NON-NLS-1$
+    }
+
+    /**
+     * A chunked request body is passed on as far as its last chunk, even when
+     * it arrives in pieces.
+     *
+     * @throws Exception if the test fails unexpectedly.
+     */
+    @Test(timeout = 10000) public void relaysChunkedBodyAndNoMore() throws Exception
+    {
+        String response = exchange(
+            "POST /upload HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n4\r\nab", //$NON-NLS-1$
+            "cd\r\n3;x=y\r\nefg\r\n0\r\n", //$NON-NLS-1$
+            "\r\nGET /next HTTP/1.1\r\n\r\n"); //$NON-NLS-1$
+
+        String request = server.getRequest();
+        assertTrue(request, request.endsWith("\r\n\r\n4\r\nabcd\r\n3;x=y\r\nefg\r\n0\r\n\r\n")); //$NON-NLS-1$
+        assertTrue(response, response.endsWith("hello")); //$NON-NLS-1$
+    }
+
+    /**
+     * A Content-Length sent beside chunking is not passed on, so the web
+     * server cannot find a different end to the body from ours.
+     *
+     * @throws Exception if the test fails unexpectedly.
+     */
+    @Test(timeout = 10000) public void dropsContentLengthOfChunkedBody() throws Exception
+    {
+        exchange("POST /upload HTTP/1.1\r\nContent-Length: 3\r\nTransfer-Encoding: chunked\r\n\r\n2\r\nab\r\n0\r\n\r\n"); //$NON-NLS-1$
+
+        String request = server.getRequest();
+        assertTrue(request, request.contains("Transfer-Encoding: chunked\r\n")); //$NON-NLS-1$
+        assertFalse(request, request.contains("Content-Length")); //$NON-NLS-1$
+        assertTrue(request, request.endsWith("\r\n\r\n2\r\nab\r\n0\r\n\r\n")); //$NON-NLS-1$
+    }
+
+    /**
+     * A CONNECT turns the exchange into a tunnel, which carries on with the
+     * same bottleneck, so the connection is counted once.
+     *
+     * @throws Exception if the test fails unexpectedly.
+     */
+    @Test(timeout = 10000) public void connectCountsConnectionOnce() throws Exception
+    {
+        conf.setForwardProxy(true);
+        String response = exchange(
+            "CONNECT 127.0.0.1:" + server.getPort() + " HTTP/1.1\r\n\r\n" + //$NON-NLS-1$ //$NON-NLS-2$
+            "GET /tunnelled HTTP/1.1\r\n\r\n"); //$NON-NLS-1$
+
+        assertTrue(response, response.startsWith("HTTP/1.1 200 Connection Established\r\n\r\nHTTP/1.1 200 OK\r\n")); //$NON-NLS-1$
+        String request = server.getRequest();
+        assertTrue(request, request.startsWith("GET /tunnelled HTTP/1.1\r\n")); //$NON-NLS-1$
+        while (!conf.getConnections().isEmpty())
+        {
+            Thread.sleep(10);
+        }
+
+        assertEquals(1, conf.getMetrics().getConnections());
+        Usage usage = conf.getClientRegistry().peek("127.0.0.1"); //$NON-NLS-1$
+        assertEquals(1, usage.getMetrics().getConnections());
+        assertEquals(0, usage.getConnectionCount());
+    }
+
+    /**
+     * A web server that cannot be reached is answered with a 502, as the
+     * thread engine does, rather than a reset connection.
+     *
+     * @throws Exception if the test fails unexpectedly.
+     */
+    @Test(timeout = 10000) public void deadOriginIsBadGateway() throws Exception
+    {
+        ServerSocket dead = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1")); //$NON-NLS-1$
+        int port = dead.getLocalPort();
+        dead.close();
+        conf.setDestination(new URL("http://127.0.0.1:" + port + "/")); //$NON-NLS-1$ //$NON-NLS-2$
+
+        String response = exchange("GET /page HTTP/1.1\r\n\r\n"); //$NON-NLS-1$
+
+        assertTrue(response, response.startsWith("HTTP/1.0 502 Bad Gateway\r\n")); //$NON-NLS-1$
+    }
+
+    /**
+     * Send bytes from a browser through the loop, and read the response until
+     * the proxy closes the connection.
+     *
+     * @param parts what the browser sends, each part written separately.
+     * @return everything the browser received.
+     * @throws Exception if the exchange fails.
+     */
+    private String exchange(final String... parts) throws Exception
+    {
+        Socket browser = new Socket("127.0.0.1", listener.socket().getLocalPort()); //$NON-NLS-1$
+        try
+        {
+            browser.setSoTimeout(5000);
+            SocketChannel accepted = listener.accept();
+            loop.register(accepted, conf);
+
+            OutputStream out = browser.getOutputStream();
+            for (String part : parts)
+            {
+                out.write(part.getBytes("ISO-8859-1")); //$NON-NLS-1$
+                out.flush();
+                Thread.sleep(50);
+            }
+            return readAll(browser.getInputStream());
+        }
+        finally
+        {
+            browser.close();
+        }
+    }
+
+    /**
+     * @param in a stream.
+     * @return everything until end of stream.
+     * @throws IOException if the stream could not be read.
+     */
+    static String readAll(final InputStream in) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int n;
+        while ((n = in.read(buffer)) != -1)
+        {
+            bytes.write(buffer, 0, n);
+        }
+        return new String(bytes.toByteArray(), "ISO-8859-1"); //$NON-NLS-1$
+    }
+
+    /**
+     * A web server that answers one request at a time with {@link #RESPONSE},
+     * then keeps reading until the proxy closes the connection, so it sees
+     * everything the proxy forwarded.
+     */
+    private static final class WebServer implements Runnable
+    {
+
+        private final ServerSocket socket;
+
+        // Everything received on the last connection.
+        private String request = null;
+
+        /**
+         * @throws IOException if the socket could not be opened.
+         */
+        WebServer() throws IOException
+        {
+            socket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1")); //$NON-NLS-1$
+        }
+
+        /**
+         * @return the port the server is listening on.
+         */
+        int getPort()
+        {
+            return socket.getLocalPort();
+        }
+
+        /**
+         * @return everything received on the last connection, once it has closed.
+         * @throws InterruptedException if interrupted while waiting.
+         */
+        synchronized String getRequest() throws InterruptedException
+        {
+            while (request == null)
+            {
+                wait();
+            }
+            return request;
+        }
+
+        /**
+         * @throws IOException if the socket could not be closed.
+         */
+        void close() throws IOException
+        {
+            socket.close();
+        }
+
+        public void run()
+        {
+            try
+            {
+                while (true)
+                {
+                    Socket connection = socket.accept();
+                    try
+                    {
+                        connection.setSoTimeout(5000);
+                        InputStream in = connection.getInputStream();
+                        ByteArrayOutputStream received = new ByteArrayOutputStream();
+                        byte[] buffer = new byte[1024];
+                        int n;
+                        boolean answered = false;
+                        while ((n = in.read(buffer)) != -1)
+                        {
+                            received.write(buffer, 0, n);
+                            if (!answered && isComplete(received.toString("ISO-8859-1"))) //$NON-NLS-1$
+                            {
+                                answered = true;
+                                connection.getOutputStream().write(RESPONSE.getBytes("ISO-8859-1")); //$NON-NLS-1$
+                                connection.shutdownOutput();
+                            }
+                        }
+                        synchronized (this)
+                        {
+                            request = received.toString("ISO-8859-1"); //$NON-NLS-1$
+                            notifyAll();
+                        }
+                    }
+                    finally
+                    {
+                        connection.close();
+                    }
+                }
+            }
+            catch (IOException closed)
+            {
+                // The test is over
+            }
+        }
+
+        /**
+         * @param request the bytes received so far.
+         * @return true once the request head, and any body it declares, has arrived.
+         */
+        private static boolean isComplete(final String request)
+        {
+            int end = request.indexOf("\r\n\r\n"); //$NON-NLS-1$
+            if (end == -1)
+            {
+                return false;
+            }
+            String head = request.substring(0, end);
+            String body = request.substring(end + 4);
+            if (head.contains("Transfer-Encoding: chunked")) //$NON-NLS-1$
+            {
+                return body.endsWith("0\r\n\r\n"); //$NON-NLS-1$
+            }
+            int length = head.indexOf("Content-Length: "); //$NON-NLS-1$
+            if (length == -1)
+            {
+                return true;
+            }
+            int eol = head.indexOf("\r\n", length); //$NON-NLS-1$
+            String value = head.substring(length + 16, eol == -1 ? head.length() : eol);
+            return body.length() >= Integer.parseInt(value.trim());
+        }
+
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+/**
+ * Test of the timing wheel that paces throttled writes.
+ */
+public class PacingSchedulerTest
+{
+
+    /**
+     * Tasks run once their delay has passed, never before, and in order of their delays.
+     */
+    @Test public void runsTasksWhenDue() throws InterruptedException
+    {
+        PacingScheduler scheduler = new PacingScheduler(null);
+        final CountDownLatch done = new CountDownLatch(2);
+        final AtomicLong first = new AtomicLong();
+        final AtomicLong second = new AtomicLong();
+
+        long start = System.nanoTime();
+        scheduler.schedule(new Runnable()
+        {
+            public void run()
+            {
+                second.set(System.nanoTime());
+                done.countDown();
+            }
+        }, 20 * 1000000L);
+        scheduler.schedule(new Runnable()
+        {
+            public void run()
+            {
+                first.set(System.nanoTime());
+                done.countDown();
+            }
+        }, 5 * 1000000L);
+
+        assertTrue("Tasks should have run", done.await(5, TimeUnit.SECONDS));
+        assertTrue("Ran early", first.get() - start >= 5 * 1000000L);
+        assertTrue("Ran early", second.get() - start >= 20 * 1000000L);
+        assertTrue("Out of order", first.get() < second.get());
+        assertEquals(0, scheduler.getPendingCount());
+    }
+
+    /**
+     * A sleep lasts at least as long as asked, including delays longer than a turn of the wheel.
+     */
+    @Test public void sleepsForTheDelay() throws InterruptedException
+    {
+        PacingScheduler scheduler = new PacingScheduler(null);
+
+        long start = System.nanoTime();
+        scheduler.sleepNanos(300 * 1000000L);
+        assertTrue(System.nanoTime() - start >= 300 * 1000000L);
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Test of the packets lost by a link, and the stalls they cause.
+ */
+public class PacketLossTest
+{
+
+    // A retransmission timeout for the tests: 200ms.
+    private static final long TIMEOUT = 200 * 1000000L;
+
+    /**
+     * The same seed loses the same packets, however the stream is read.
+     */
+    @Test public void isRepeatableUnderASeed()
+    {
+        LossModel model = new LossModel(LossPattern.GILBERT_ELLIOTT, 5, 3);
+        PacketLoss bigReads = new PacketLoss(new Random(7));
+        PacketLoss smallReads = new PacketLoss(new Random(7));
+
+        long big = 0;
+        for (int i = 0; i < 100; i++)
+        {
+            big += bigReads.stallNanos(model, 10000, TIMEOUT);
+        }
+        long small = 0;
+        for (int i = 0; i < 1000; i++)
+        {
+            small += smallReads.stallNanos(model, 1000, TIMEOUT);
+        }
+
+        assertTrue("Expected some loss", big > 0);
+        assertEquals(big, small);
+        assertEquals(bigReads.getLostCount(), smallReads.getLostCount());
+        assertEquals(big, bigReads.getStalledNanos());
+    }
+
+    /**
+     * Each pattern loses about the share of packets asked for, with bursty loss
+     * losing them in runs that are recovered together.
+     */
+    @Test public void losesTheRightShare()
+    {
+        PacketLoss bernoulli = new PacketLoss(new Random(1));
+        PacketLoss bursty = new PacketLoss(new Random(1));
+        LossModel independent = new LossModel(LossPattern.BERNOULLI, 2, 1);
+        LossModel bursts = new LossModel(LossPattern.GILBERT_ELLIOTT, 2, 4);
+
+        int segments = 200000;
+        for (int i = 0; i < segments; i++)
+        {
+            bernoulli.stallNanos(independent, PacketLoss.SEGMENT_BYTES, TIMEOUT);
+            bursty.stallNanos(bursts, PacketLoss.SEGMENT_BYTES, TIMEOUT);
+        }
+
+        assertEquals(2.0, 100.0 * bernoulli.getLostCount() / segments, 0.2);
+        assertEquals(2.0, 100.0 * bursty.getLostCount() / segments, 0.4);
+
+        // Each loss costs about a timeout, but each burst of four costs only one
+        double timeouts = (double) bernoulli.getStalledNanos() / TIMEOUT;
+        assertEquals(1.0, timeouts / bernoulli.getLostCount(), 0.1);
+        timeouts = (double) bursty.getStalledNanos() / TIMEOUT;
+        assertEquals(0.25, timeouts / bursty.getLostCount(), 0.05);
+    }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Compares the time taken to read a request head with {@link RequestParser}
+ * against reading it a line at a time with {@link Headers#readLine(InputStream)},
+ * as Sloppy used to.
+ * <p>
+ *
+ * Not a unit test: run it by hand with <code>java com.dallaway.sloppy.RequestParserBenchmark</code>.
+ */
+public class RequestParserBenchmark
+{
+
+    // A typical request from a web browser.
+    private static final String REQUEST =
+        "GET /images/logo.png?v=20100101 HTTP/1.1\r\n" +
+        "Host: localhost:7569\r\n" +
+        "User-Agent: Mozilla/5.0 (Windows; U; Windows NT 6.1; en-GB; rv:1.9.2) Gecko/20100115 Firefox/3.6\r\n" +
+        "Accept: image/png,image/*;q=0.8,*/*;q=0.5\r\n" +
+        "Accept-Language: en-gb,en;q=0.5\r\n" +
+        "Accept-Encoding: gzip,deflate\r\n" +
+        "Accept-Charset: ISO-8859-1,utf-8;q=0.7,*;q=0.7\r\n" +
+        "Keep-Alive: 115\r\n" +
+        "Connection: keep-alive\r\n" +
+        "Referer: http://localhost:7569/index.html\r\n" +
+        "Cookie: session=8d3f2a1b9c; prefs=compact\r\n" +
+        "\r\n";
+
+    // Requests read per timed round.
+    private static final int REQUESTS = 10000;
+
+    // Rounds to run, of which the first half warm up the JIT.
+    private static final int ROUNDS = 20;
+
+    /**
+     * @param args ignored.
+     * @throws IOException if a request could not be parsed.
+     */
+    public static void main(final String[] args) throws IOException
+    {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < REQUESTS; i++)
+        {
+            b.append(REQUEST);
+        }
+        byte[] input = b.toString().getBytes("ISO-8859-1");
+
+        long lines = 0, parser = 0;
+        for (int round = 0; round < ROUNDS; round++)
+        {
+            long start = System.nanoTime();
+            readLines(new BufferedInputStream(new ByteArrayInputStream(input)));
+            long middle = System.nanoTime();
+            readParser(new BufferedInputStream(new ByteArrayInputStream(input)));
+            long end = System.nanoTime();
+
+            if (round >= ROUNDS / 2)
+            {
+                lines += middle - start;
+                parser += end - middle;
+            }
+        }
+
+        int measured = (ROUNDS - ROUNDS / 2) * REQUESTS;
+        System.out.println("Headers:       " + lines / measured + " ns/request"); //$NON-NLS-1$ //$NON-NLS-2$
+        System.out.println("RequestParser: " + parser / measured + " ns/request"); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    /**
+     * Read every request the way Sloppy used to.
+     * 
+     * @param in the requests.
+     * @throws IOException if a request could not be read.
+     */
+    private static void readLines(final InputStream in) throws IOException
+    {
+        String firstLine;
+        while ((firstLine = Headers.readLine(in)) != null)
+        {
+            int space = firstLine.indexOf(" "); //$NON-NLS-1$
+            int space2 = firstLine.indexOf(" ", space + 1); //$NON-NLS-1$
+            String method = firstLine.substring(0, space);
+            String file = firstLine.substring(space + 1, space2);
+            int headers = 0;
+            String line;
+            while ((line = Headers.readLine(in)) != null && line.length() > 0)
+            {
+                int colon = line.indexOf(':');
+                if (colon != -1 && line.substring(0, colon).trim().length() + line.substring(colon + 1).trim().length() > 0)
+                {
+                    headers++;
+                }
+            }
+            if (method.length() + file.length() + headers == 0)
+            {
+                throw new IOException("Bad request"); //$NON-NLS-1$
+            }
+        }
+    }
+
+    /**
+     * Read every request with a RequestParser, as Sloppy does now.
+     * 
+     * @param in the requests.
+     * @throws IOException if a request could not be read.
+     */
+    private static void readParser(final InputStream in) throws IOException
+    {
+        RequestParser parser = new RequestParser();
+        while (parser.readFrom(in))
+        {
+            String method = parser.getMethod();
+            String file = parser.getTarget();
+            int headers = 0;
+            for (int i = 0; i < parser.getHeaderCount(); i++)
+            {
+                if (parser.getHeaderName(i).length() + parser.getHeaderValue(i).length() > 0)
+                {
+                    headers++;
+                }
+            }
+            if (method.length() + file.length() + headers == 0)
+            {
+                throw new IOException("Bad request"); //$NON-NLS-1$
+            }
+        }
+    }
+}
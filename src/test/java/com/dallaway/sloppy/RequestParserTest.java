@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+/**
+ * Test of parsing HTTP request heads.
+ */
+public class RequestParserTest
+{
+
+    // A request with a body, followed by the next request on the connection.
+    private static final String PIPELINED =
+        "\r\n" +
+        "POST /form?a=1 HTTP/1.1\r\n" +
+        "Host: localhost:7569\r\n" +
+        "content-length: 5\r\n" +
+        "X-Folded: one\r\n" +
+        "  two\r\n" +
+        "\r\n" +
+        "helloGET / HTTP/1.1\r\n\r\n";
+
+    /**
+     * The parts of the request are found, and the stream is left at the body.
+     * 
+     * @throws IOException if the test fails unexpectedly.
+     */
+    @Test public void canReadHeadFromStream() throws IOException
+    {
+        InputStream in = new BufferedInputStream(new ByteArrayInputStream(PIPELINED.getBytes("ISO-8859-1")));
+        RequestParser parser = new RequestParser();
+
+        assertTrue(parser.readFrom(in));
+        assertEquals("POST", parser.getMethod());
+        assertEquals("/form?a=1", parser.getTarget());
+        assertEquals("HTTP/1.1", parser.getVersion());
+        assertEquals(3, parser.getHeaderCount());
+        assertEquals("5", parser.getHeader("Content-Length"));
+        assertEquals("one two", parser.getHeader("x-folded"));
+        assertNull(parser.getHeader("Cookie"));
+
+        assertEquals("hello", new String(new byte[] {
+            (byte) in.read(), (byte) in.read(), (byte) in.read(), (byte) in.read(), (byte) in.read()
+        }, "ISO-8859-1"));
+
+        assertTrue(parser.readFrom(in));
+        assertEquals("GET", parser.getMethod());
+        assertEquals(0, parser.getHeaderCount());
+        assertFalse(parser.readFrom(in));
+    }
+
+    /**
+     * Giving the parser one byte at a time gives the same result as giving it all at once.
+     * 
+     * @throws IOException if the test fails unexpectedly.
+     */
+    @Test public void canResumeParsing() throws IOException
+    {
+        byte[] head = PIPELINED.getBytes("ISO-8859-1");
+        RequestParser parser = new RequestParser();
+
+        int length = 0;
+        while (!parser.parse(head, ++length))
+        {
+            assertFalse(parser.isComplete());
+        }
+
+        assertEquals(PIPELINED.indexOf("hello"), parser.getHeadLength());
+        assertEquals("POST /form?a=1 HTTP/1.1", parser.getRequestLine());
+        assertEquals("localhost:7569", parser.getHeader("HOST"));
+    }
+
+    /**
+     * Bytes outside ASCII come through unchanged, and HTTP/0.9 requests have no version.
+     * 
+     * @throws IOException if the test fails unexpectedly.
+     */
+    @Test public void keepsEveryByte() throws IOException
+    {
+        byte[] head = "GET /caf\u00e9\nX-Name: \u00e9t\u00e9\n\n".getBytes("ISO-8859-1");
+        RequestParser parser = new RequestParser();
+
+        assertTrue(parser.parse(head, head.length));
+        assertEquals("/caf\u00e9", parser.getTarget());
+        assertEquals("", parser.getVersion());
+        assertEquals("\u00e9t\u00e9", parser.getHeader("X-Name"));
+    }
+
+    /**
+     * A request line without a target is rejected.
+     * 
+     * @throws IOException when the test passes.
+     */
+    @Test(expected=IOException.class) public void badRequestLineIsAnError() throws IOException
+    {
+        byte[] head = "GARBAGE\r\n\r\n".getBytes("ISO-8859-1");
+        new RequestParser().parse(head, head.length);
+    }
+}
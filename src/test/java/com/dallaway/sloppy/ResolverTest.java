@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ *
+ * This file is part of Sloppy.
+ *
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of looking up host names off the event loop.
+ */
+public class ResolverTest
+{
+
+    // The loop the answers come back to, and its thread.
+    private NioEventLoop loop;
+    private Thread thread;
+
+    /**
+     * @throws Exception if the loop could not be started.
+     */
+    @Before public void startLoop() throws Exception
+    {
+        loop = new NioEventLoop(new Configuration());
+        thread = new Thread(loop, "loop"); //$NON-NLS-1$
+        thread.start();
+    }
+
+    /**
+     * @throws Exception if the loop did not stop.
+     */
+    @After public void stopLoop() throws Exception
+    {
+        loop.stop();
+        thread.join(5000);
+    }
+
+    /**
+     * The address is handed back on the loop's thread.
+     *
+     * @throws Exception if the test fails unexpectedly.
+     */
+    @Test(timeout = 10000) public void answersOnLoopThread() throws Exception
+    {
+        final AtomicReference<Thread> answeredOn = new AtomicReference<Thread>();
+        InetSocketAddress address = resolve("127.0.0.1", answeredOn); //$NON-NLS-1$
+
+        assertFalse(address.isUnresolved());
+        assertEquals(80, address.getPort());
+        assertEquals(thread, answeredOn.get());
+    }
+
+    /**
+     * A host that isn't known comes back unresolved.
+     *
+     * @throws Exception if the test fails unexpectedly.
+     */
+    @Test(timeout = 10000) public void unknownHostIsUnresolved() throws Exception
+    {
+        InetSocketAddress address = resolve("no-such-host.invalid", new AtomicReference<Thread>()); //$NON-NLS-1$
+
+        assertTrue(address.isUnresolved());
+        assertEquals("no-such-host.invalid", address.getHostString()); //$NON-NLS-1$
+    }
+
+    /**
+     * @param host the host to look up.
+     * @param answeredOn set to the thread the answer came back on.
+     * @return the address looked up.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private InetSocketAddress resolve(final String host, final AtomicReference<Thread> answeredOn) throws InterruptedException
+    {
+        final AtomicReference<InetSocketAddress> answer = new AtomicReference<InetSocketAddress>();
+        final CountDownLatch answered = new CountDownLatch(1);
+        new Resolver().resolve(host, 80, loop, null, new Resolver.Callback()
+        {
+            public void resolved(final InetSocketAddress address)
+            {
+                answeredOn.set(Thread.currentThread());
+                answer.set(address);
+                answered.countDown();
+            }
+        });
+        assertTrue(answered.await(5, TimeUnit.SECONDS));
+        return answer.get();
+    }
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+/**
+ * Test of parsing HTTP response heads.
+ */
+public class ResponseParserTest
+{
+
+    /**
+     * The parts of the status line are found by their own names, and the stream is left at the body.
+     * 
+     * @throws IOException if the test fails unexpectedly.
+     */
+    @Test public void canReadStatusLine() throws IOException
+    {
+        InputStream in = new BufferedInputStream(new ByteArrayInputStream(
+            "HTTP/1.1 404 Not Found\r\nContent-Length: 2\r\n\r\nno".getBytes("ISO-8859-1")));
+        ResponseParser parser = new ResponseParser();
+
+        assertTrue(parser.readFrom(in));
+        assertEquals("HTTP/1.1", parser.getVersion());
+        assertEquals(404, parser.getStatus());
+        assertEquals("Not Found", parser.getReason());
+        assertEquals("HTTP/1.1 404 Not Found", parser.getStatusLine());
+        assertEquals("2", parser.getHeader("content-length"));
+        assertEquals((int) 'n', in.read());
+    }
+
+    /**
+     * The reason phrase may be left out.
+     * 
+     * @throws IOException if the test fails unexpectedly.
+     */
+    @Test public void reasonMayBeEmpty() throws IOException
+    {
+        ResponseParser parser = new ResponseParser();
+        assertTrue(parser.readFrom(new BufferedInputStream(new ByteArrayInputStream("HTTP/1.0 204\r\n\r\n".getBytes("ISO-8859-1")))));
+        assertEquals(204, parser.getStatus());
+        assertEquals("", parser.getReason());
+    }
+
+    /**
+     * A status that isn't a number is an error.
+     * 
+     * @throws IOException if the test fails as expected.
+     */
+    @Test(expected = IOException.class) public void badStatus() throws IOException
+    {
+        ResponseParser parser = new ResponseParser();
+        parser.readFrom(new BufferedInputStream(new ByteArrayInputStream("HTTP/1.1 OK\r\n\r\n".getBytes("ISO-8859-1"))));
+        parser.getStatus();
+    }
+
+}
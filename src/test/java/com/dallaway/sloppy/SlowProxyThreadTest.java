@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ *
+ * This file is part of Sloppy.
+ *
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of proxying a request with a handler thread.
+ */
+public class SlowProxyThreadTest
+{
+
+    // Stands in for the web server.
+    private ServerSocket server;
+
+    // Accepts the browser's connection to the proxy.
+    private ServerSocket proxy;
+
+    /**
+     * @throws IOException if the sockets could not be opened.
+     */
+    @Before public void listen() throws IOException
+    {
+        server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1")); //$NON-NLS-1$
+        proxy = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1")); //$NON-NLS-1$
+    }
+
+    /**
+     * @throws IOException if the sockets could not be closed.
+     */
+    @After public void close() throws IOException
+    {
+        server.close();
+        proxy.close();
+    }
+
+    /**
+     * Interim responses are skipped, and the final response passed on.
+     *
+     * @throws Exception if the test fails unexpectedly.
+     */
+    @Test(timeout = 10000) public void skipsInterimResponses() throws Exception
+    {
+        String response = exchange(
+            "HTTP/1.1 100 Continue\r\n\r\n" + //$NON-NLS-1$
+            "HTTP/1.1 102 Processing\r\n\r\n" + //$NON-NLS-1$
+            "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok"); //$NON-NLS-1$
+
+        assertTrue(response, response.startsWith("HTTP/1.1 200 OK\r\n")); //$NON-NLS-1$
+        assertTrue(response, response.endsWith("\r\n\r\nok")); //$NON-NLS-1$
+    }
+
+    /**
+     * A switch of protocols is not mistaken for an interim response: the browser
+     * is told the request failed, and nothing after the switch is passed on.
+     *
+     * @throws Exception if the test fails unexpectedly.
+     */
+    @Test(timeout = 10000) public void refusesSwitchingProtocols() throws Exception
+    {
+        String response = exchange(
+            "HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n\r\n" + //$NON-NLS-1$
+            "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok"); //$NON-NLS-1$
+
+        assertTrue(response, response.startsWith("HTTP/1.0 502 Bad Gateway\r\n")); //$NON-NLS-1$
+        assertFalse(response, response.contains("ok")); //$NON-NLS-1$
+    }
+
+    /**
+     * Send a request through a handler to a web server giving a canned response.
+     *
+     * @param canned what the web server sends once it has read the request head.
+     * @return everything the browser received.
+     * @throws Exception if the exchange fails.
+     */
+    private String exchange(final String canned) throws Exception
+    {
+        Thread webServer = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    Socket connection = server.accept();
+                    InputStream in = connection.getInputStream();
+                    int matched = 0;
+                    while (matched < 4)
+                    {
+                        int c = in.read();
+                        if (c == -1)
+                        {
+                            break;
+                        }
+                        matched = c == "\r\n\r\n".charAt(matched) ? matched + 1 : (c == '\r' ? 1 : 0); //$NON-NLS-1$
+                    }
+                    connection.getOutputStream().write(canned.getBytes("ISO-8859-1")); //$NON-NLS-1$
+                    connection.getOutputStream().flush();
+                    Thread.sleep(100);
+                    connection.close();
+                }
+                catch (Exception ex)
+                {
+                    // The test is over
+                }
+            }
+        };
+        webServer.start();
+
+        Configuration conf = new Configuration();
+        conf.setBytesPerSecond(0);
+        conf.setDestination(new URL("http://127.0.0.1:" + server.getLocalPort() + "/")); //$NON-NLS-1$ //$NON-NLS-2$
+
+        Socket browser = new Socket("127.0.0.1", proxy.getLocalPort()); //$NON-NLS-1$
+        try
+        {
+            browser.setSoTimeout(5000);
+            new Thread(new SlowProxyThread(proxy.accept(), conf)).start();
+            browser.getOutputStream().write("GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes("ISO-8859-1")); //$NON-NLS-1$ //$NON-NLS-2$
+            return NioExchangeTest.readAll(browser.getInputStream());
+        }
+        finally
+        {
+            browser.close();
+        }
+    }
+
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+/**
+ * Test of the token bucket rate limiter.
+ */
+public class TokenBucketTest
+{
+
+    // One second in nanoseconds.
+    private static final long SECOND = 1000000000L;
+
+    /**
+     * A burst goes straight away; after that bytes are released at the rate.
+     */
+    @Test public void burstThenSustainedRate()
+    {
+        TokenBucket bucket = new TokenBucket(1000, 500);
+        long now = System.nanoTime() + SECOND; // Long enough after creation for a full bucket
+
+        assertEquals(0, bucket.reserve(500, now));
+        assertEquals(SECOND, bucket.reserve(1000, now));
+        assertEquals(2 * SECOND, bucket.reserve(1000, now));
+
+        // Having waited, the next second's worth is due a second later
+        assertEquals(SECOND, bucket.reserve(1000, now + 2 * SECOND));
+    }
+
+    /**
+     * Waking late is made up for by the burst allowance on the next reservation.
+     */
+    @Test public void oversleepingIsCompensated()
+    {
+        TokenBucket bucket = new TokenBucket(1000, 500);
+        long now = System.nanoTime() + SECOND;
+
+        bucket.reserve(500, now);
+        assertEquals(SECOND, bucket.reserve(1000, now));
+
+        // We should have woken at now+1s, but were 100ms late
+        long late = now + SECOND + SECOND / 10;
+        assertEquals(SECOND - SECOND / 10, bucket.reserve(1000, late));
+    }
+
+    /**
+     * An idle bucket refills, but never beyond the burst size.
+     */
+    @Test public void idleBucketOnlyRefillsToBurst()
+    {
+        TokenBucket bucket = new TokenBucket(1000, 500);
+        long now = System.nanoTime() + 3600 * SECOND;
+
+        assertEquals(0, bucket.reserve(500, now));
+        assertEquals(SECOND / 2, bucket.reserve(500, now));
+    }
+
+    /**
+     * A rate of zero means no limit.
+     */
+    @Test public void zeroRateIsUnlimited()
+    {
+        TokenBucket bucket = new TokenBucket(0, 0);
+        assertEquals(0, bucket.reserve(Integer.MAX_VALUE));
+    }
+
+    /**
+     * Changing the rate sends the bytes still owed at the new rate from then on,
+     * without waiting out the old rate or leaving a backlog after an unlimited spell.
+     */
+    @Test public void rateChangeRescalesTheBacklog()
+    {
+        TokenBucket bucket = new TokenBucket(1000, 0);
+        long now = System.nanoTime();
+        assertEquals(10 * SECOND, bucket.reserve(10000, now));
+
+        // Ten seconds owed at 1000 bytes a second is five at 2000
+        bucket.setBytesPerSecond(2000);
+        assertEquals(5 * SECOND, bucket.reserve(0, now), SECOND / 20);
+
+        bucket.setBytesPerSecond(0);
+        assertEquals(0, bucket.reserve(10000, now));
+        bucket.setBytesPerSecond(1000);
+        assertEquals(SECOND, bucket.reserve(1000, System.nanoTime()), SECOND / 20);
+    }
+
+    /**
+     * Reservations made concurrently are all accounted for: the last one
+     * waits as long as if they had been made one after another.
+     * 
+     * @throws InterruptedException if the test is interrupted.
+     */
+    @Test public void concurrentReservationsAreNotLost() throws InterruptedException
+    {
+        final TokenBucket bucket = new TokenBucket(1000, 0);
+        final long now = System.nanoTime() + SECOND;
+        final int threads = 8;
+        final int reservations = 1000;
+        final AtomicLong longestWait = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++)
+        {
+            new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    for (int i = 0; i < reservations; i++)
+                    {
+                        long wait = bucket.reserve(1, now);
+                        long longest;
+                        while (wait > (longest = longestWait.get()) && !longestWait.compareAndSet(longest, wait))
+                        {
+                            // Try again
+                        }
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        done.await();
+        assertEquals(threads * reservations * (SECOND / 1000), longestWait.get());
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Test of tunnelling a connection with a handler thread.
+ */
+public class TunnelHandlerTest
+{
+
+    /**
+     * When the browser shuts down its output, the server sees end of stream
+     * but can still reply; once the server closes too, the browser sees end of
+     * stream and the tunnel finishes.
+     *
+     * @throws Exception if the test fails unexpectedly.
+     */
+    @Test(timeout = 10000) public void halfCloseDrainsBothWays() throws Exception
+    {
+        final ServerSocket server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1")); //$NON-NLS-1$
+        ServerSocketChannel proxy = ServerSocketChannel.open();
+        try
+        {
+            proxy.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0)); //$NON-NLS-1$
+
+            // The server reads everything the browser sends, then replies and closes
+            final AtomicReference<String> received = new AtomicReference<String>();
+            Thread destination = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        Socket connection = server.accept();
+                        received.set(NioExchangeTest.readAll(connection.getInputStream()));
+                        OutputStream out = connection.getOutputStream();
+                        out.write("world".getBytes("ISO-8859-1")); //$NON-NLS-1$ //$NON-NLS-2$
+                        out.flush();
+                        connection.close();
+                    }
+                    catch (Exception ex)
+                    {
+                        // The test will fail for want of a reply
+                    }
+                }
+            };
+            destination.start();
+
+            Configuration conf = new Configuration();
+            conf.setBytesPerSecond(0);
+            conf.setUploadBytesPerSecond(0);
+            conf.setTunnelDestination("127.0.0.1:" + server.getLocalPort()); //$NON-NLS-1$
+
+            Socket browser = new Socket("127.0.0.1", proxy.socket().getLocalPort()); //$NON-NLS-1$
+            browser.setSoTimeout(5000);
+            Thread handler = new Thread(new TunnelHandler(proxy.accept().socket(), conf));
+            handler.start();
+
+            browser.getOutputStream().write("hello".getBytes("ISO-8859-1")); //$NON-NLS-1$ //$NON-NLS-2$
+            browser.shutdownOutput();
+            InputStream in = browser.getInputStream();
+            assertEquals("world", NioExchangeTest.readAll(in)); //$NON-NLS-1$
+            browser.close();
+
+            destination.join(5000);
+            assertEquals("hello", received.get()); //$NON-NLS-1$
+            handler.join(5000);
+            assertFalse(handler.isAlive());
+            assertEquals(0, conf.getConnections().size());
+            assertEquals(0, conf.getClientRegistry().peek("127.0.0.1").getConnectionCount()); //$NON-NLS-1$
+        }
+        finally
+        {
+            proxy.close();
+            server.close();
+        }
+    }
+
+}
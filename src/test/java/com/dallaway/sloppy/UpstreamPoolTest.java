@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2010 Richard Dallaway <richard@dallaway.com>
+ * 
+ * This file is part of Sloppy.
+ * 
+ * Sloppy is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Sloppy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Sloppy; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.dallaway.sloppy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of keeping connections to web servers open between requests.
+ */
+public class UpstreamPoolTest
+{
+
+    // Stands in for a web server: connections wait in its backlog.
+    private ServerSocket server;
+
+    /**
+     * @throws IOException if the server socket could not be opened.
+     */
+    @Before public void listen() throws IOException
+    {
+        server = new ServerSocket(0);
+    }
+
+    /**
+     * @throws IOException if the server socket could not be closed.
+     */
+    @After public void close() throws IOException
+    {
+        server.close();
+    }
+
+    /**
+     * A connection given back is handed out again, rather than a new one opened.
+     * 
+     * @throws IOException if the test fails unexpectedly.
+     */
+    @Test public void reusesReleasedConnections() throws IOException
+    {
+        UpstreamPool pool = new UpstreamPool(2, 60000L, 1000, 1000);
+        int port = server.getLocalPort();
+
+        UpstreamConnection first = pool.acquire("127.0.0.1", port);
+        pool.release(first);
+        UpstreamConnection second = pool.acquire("127.0.0.1", port);
+
+        assertSame(first, second);
+        assertEquals(true, second.isReused());
+        assertEquals(1, pool.getOpenedCount());
+        assertEquals(1, pool.getReusedCount());
+        second.close();
+    }
+
+    /**
+     * No more than the maximum are kept for a web server, and idle connections are
+     * closed, along with the web server's empty list.
+     * 
+     * @throws IOException if the test fails unexpectedly.
+     */
+    @Test public void limitsIdleConnections() throws IOException
+    {
+        UpstreamPool pool = new UpstreamPool(1, 60000L, 1000, 1000);
+        int port = server.getLocalPort();
+
+        UpstreamConnection a = pool.acquire("127.0.0.1", port);
+        UpstreamConnection b = pool.acquire("127.0.0.1", port);
+        assertNotSame(a, b);
+
+        pool.release(a);
+        pool.release(b);
+        assertEquals(1, pool.getIdleCount());
+
+        pool.closeIdle(System.currentTimeMillis() + 60000L);
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(0, pool.getHostCount());
+
+        // A closed connection is never handed out
+        assertNotSame(b, pool.acquire("127.0.0.1", port));
+    }
+}
@@ -20,6 +20,9 @@
 package com.dallaway.sloppy;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.net.InetSocketAddress;
 
 import org.junit.Test;
 
@@ -46,4 +49,31 @@ public class UtilTest
         assertEquals("http://newscientist.com", Util.clean("newscientist.com").toExternalForm());
 
     }
+
+    /**
+     * Test reading host:port pairs, as used by CONNECT requests.
+     */
+    @Test
+    public void testParseHostPort()
+    {
+        InetSocketAddress address = Util.parseHostPort("example.com:443", 80);
+        assertEquals("example.com", address.getHostString());
+        assertEquals(443, address.getPort());
+
+        assertEquals(80, Util.parseHostPort("example.com", 80).getPort());
+
+        address = Util.parseHostPort("[::1]:8443", 80);
+        assertEquals("::1", address.getHostString());
+        assertEquals(8443, address.getPort());
+
+        try
+        {
+            Util.parseHostPort("example.com:https", 80);
+            fail("Expected a bad port to be rejected");
+        }
+        catch (IllegalArgumentException expected)
+        {
+            // Good
+        }
+    }
 }